@@ -1,77 +1,608 @@
 package com.ipcamera;
 
 import android.graphics.ImageFormat;
-import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
+import android.view.Surface;
 
 import androidx.annotation.NonNull;
 
-import java.io.ByteArrayOutputStream;
-import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static android.content.Context.CAMERA_SERVICE;
 
 public class CameraHandler {
     private static final String TAG = "CameraHandler";
-    private static final int IMAGE_WIDTH = 640;
-    private static final int IMAGE_HEIGHT = 480;
+    // Captured once at the largest size, smaller profiles are downscaled from it
+    private static final StreamProfile[] PROFILES = {
+        new StreamProfile("hd", 1280, 960, 90),
+        new StreamProfile(StreamProfile.DEFAULT, 640, 480, 80),
+        new StreamProfile("thumb", 320, 240, 60),
+    };
+    // Defaults for the capture settings /config can change at runtime
+    private static final int IMAGE_WIDTH = 1280;
+    private static final int IMAGE_HEIGHT = 960;
+    // Highest capture frame rate; 0 keeps the camera's default
+    private static final int MAX_FPS = 0;
     private static final int MAX_IMAGES = 2;
+    // Also feed the capture session into a hardware H.264 encoder for /h264
+    private static final boolean H264_ENABLED = false;
+    private static final int H264_RING_SIZE = 64;
+    // Let the camera compress the profile captured at full size, falling back to
+    // software if its JPEG stream cannot keep up
+    private static final boolean HARDWARE_JPEG = false;
+    // Drop to the slowest supported frame rate while nobody is watching
+    private static final boolean THROTTLE_WHEN_IDLE = true;
+    // Watch the luma plane for motion and report changes on /events
+    private static final boolean MOTION_DETECTION = true;
+    // Encode only about one frame per second while the scene is still
+    private static final boolean MOTION_GATED_STREAMING = false;
+    private static final long STILL_FRAME_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MOTION_BLOCK_SIZE = 32;
+    private static final int MOTION_THRESHOLD = 12;
+    private static final float MOTION_MIN_CHANGED_FRACTION = 0.01f;
+    private static final long MOTION_HOLD_NANOS = TimeUnit.SECONDS.toNanos(3);
+    // Regions to ignore, as {left, top, right, bottom} fractions of the frame
+    private static final float[][] MOTION_MASK = {};
+    private static final int EVENT_RING_SIZE = 32;
+    // Keep a rolling recording of one profile on disk and serve motion clips on /clips
+    private static final boolean RECORDING_ENABLED = false;
+    private static final String RECORDING_PROFILE = StreamProfile.DEFAULT;
+    private static final int RECORDING_SEGMENTS = 8;
+    private static final int RECORDING_SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final int RECORDING_SEGMENT_FRAMES = 4096;
+    private static final long RECORDING_PRE_MILLIS = 5_000;
+    private static final long RECORDING_POST_MILLIS = 10_000;
+    // Bounds for adapting each profile to the throughput its clients achieve
+    private static final int MIN_JPEG_QUALITY = 40;
+    private static final double MIN_CLIENT_FPS = 2;
+    private static final double TARGET_CLIENT_FPS = 10;
+    // Sensor timestamps further in the past than this are taken to be on an unknown clock
+    private static final long MAX_SENSOR_DELAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double MAX_CLIENT_FPS = 30;
+    // Delay before reopening a camera that was lost, doubled on each failed attempt
+    private static final long REOPEN_INITIAL_DELAY_MS = 500;
+    private static final long REOPEN_MAX_DELAY_MS = 30_000;
     
+    private CameraManager cameraManager;
+    private final String cameraId;
     private CameraDevice cameraDevice;
     private CameraCaptureSession captureSession;
     private ImageReader imageReader;
+    private ImageReader jpegReader;
+    private volatile StreamProfile hardwareProfile;
+    private boolean jpegTargeted = false;
+    private H264Encoder h264Encoder;
+    private Surface h264Surface;
     private HandlerThread backgroundThread;
     private Handler backgroundHandler;
+    private CaptureRequest.Builder previewRequestBuilder;
+    private Range<Integer> activeFpsRange;
+    private Range<Integer> idleFpsRange;
+    private CameraCharacteristics cameraCharacteristics;
+    // Image timestamps count from boot, deep sleep included, rather than monotonic time
+    private volatile boolean sensorClockRealtime = false;
+    private volatile Size[] captureSizes;
+    private EncodePipeline encodePipeline;
+    private final RetryBackoff reopenBackoff =
+        new RetryBackoff(REOPEN_INITIAL_DELAY_MS, REOPEN_MAX_DELAY_MS);
+    private final Runnable reopenDevice = this::reopenDevice;
+    private boolean reopenPending = false;
+    private boolean closing = false;
+    private volatile boolean cameraUp = false;
+    private boolean showingPlaceholder = false;
+    // Where the time to the next first frame goes, or null while frames are arriving
+    private LatencyHistogram pendingStartTimer;
+    private long startNanos;
+    private long openRequestedNanos;
+    private long sessionRequestedNanos;
     
-    private byte[] latestFrame;
-    private final Object frameLock = new Object();
+    private final Map<StreamProfile, FrameBus> profileBuses = new LinkedHashMap<>();
+    private final Map<String, StreamRateController> rateControllers = new LinkedHashMap<>();
+    private final File configFile;
+    private volatile StreamConfig config;
+    // The configuration with the throttling tier applied, which the camera actually runs with
+    private volatile StreamConfig captureConfig;
+    private volatile ThermalGovernor.Tier throttle = ThermalGovernor.DEFAULT_TIERS[0];
+    private final H264Stream h264Stream = H264_ENABLED ? new H264Stream(H264_RING_SIZE) : null;
+    private final YuvConverter yuvConverter = new YuvConverter();
+    private final MotionDetector motionDetector = MOTION_DETECTION ? new MotionDetector(
+        MOTION_BLOCK_SIZE, MOTION_THRESHOLD, MOTION_MIN_CHANGED_FRACTION, MOTION_HOLD_NANOS) : null;
+    private final EventStream events = new EventStream(EVENT_RING_SIZE);
+    private final SegmentRecorder recorder;
+    private volatile boolean sceneMoving = false;
+    private long lastEncodeNanos;
+    private final BufferPool nv21Pool;
+    private final MetricsRegistry metrics;
+    private final ThreadPoolExecutor encoders;
+    private final Counter framesCaptured;
+    private final Counter encodesPerformed;
+    private final Counter encodesSkipped;
+    private final LatencyHistogram frameProcessTimer;
+    private final LatencyHistogram sensorTimer;
+    private final LatencyHistogram copyTimer;
+    private final LatencyHistogram motionTimer;
+    private final Counter encodesGated;
+    private final Counter motionEvents;
+    private final LatencyHistogram coldStartTimer;
+    private final LatencyHistogram recoveryTimer;
+    private final LatencyHistogram openTimer;
+    private final LatencyHistogram sessionTimer;
+    private final Counter disconnects;
+    private final Counter deviceErrors;
+    private final Counter sessionFailures;
+    private final Counter openFailures;
+    private final HardwareJpegPolicy jpegPolicy;
+    private final Counter hardwareJpegFrames;
+    private final Counter hardwareJpegFallbacks;
+    private final FrameBus.SubscriberListener subscriberListener = this::onSubscriberCountChanged;
+
+    /**
+     * @param metrics      registry for this camera's metrics, labelled with it
+     *                     if there are several
+     * @param configFile   where settings changed through {@code /config} are kept, or null
+     * @param recordingDir where to keep the rolling recording, or null for none
+     * @param encoders     JPEG workers, shared with other cameras
+     */
+    public CameraHandler(String cameraId, MetricsRegistry metrics, File configFile,
+                         File recordingDir, ThreadPoolExecutor encoders) {
+        this.cameraId = cameraId;
+        this.encoders = encoders;
+        this.metrics = metrics;
+        this.configFile = configFile;
+        this.config = loadConfig(configFile);
+        this.captureConfig = config;
+        // One buffer per image the reader may hold plus everything the pipeline can have in flight
+        nv21Pool = new BufferPool(MAX_IMAGES + 2 * encoders.getMaximumPoolSize(),
+            YuvConverter.nv21Size(config.getCaptureWidth(), config.getCaptureHeight()));
+        for (StreamProfile profile : PROFILES) {
+            FrameBus frameBus = new FrameBus();
+            profileBuses.put(profile, frameBus);
+            metrics.gauge("ipcamera_subscribers", "Clients subscribed to a profile",
+                profileLabel(profile), frameBus::getSubscriberCount);
+            StreamRateController controller = new StreamRateController(profile, metrics,
+                MIN_JPEG_QUALITY, MIN_CLIENT_FPS, TARGET_CLIENT_FPS, MAX_CLIENT_FPS);
+            if (config.getQuality(profile.getName()) != profile.getQuality()) {
+                controller.setMaxQuality(config.getQuality(profile.getName()));
+            }
+            controller.setQualityListener(this::onQualityChanged);
+            rateControllers.put(profile.getName(), controller);
+        }
+        framesCaptured = metrics.counter("ipcamera_frames_captured_total",
+            "Images acquired from the ImageReader");
+        encodesPerformed = metrics.counter("ipcamera_encodes_performed_total",
+            "Captured frames handed to the encoder");
+        encodesSkipped = metrics.counter("ipcamera_encodes_skipped_total",
+            "Captured frames discarded because nobody was watching");
+        frameProcessTimer = metrics.histogram("ipcamera_image_available_seconds",
+            "Time spent in onImageAvailable on the camera thread");
+        sensorTimer = metrics.histogram("ipcamera_stage_seconds",
+            "Time spent in each pipeline stage", "stage=\"sensor\"");
+        copyTimer = metrics.histogram("ipcamera_stage_seconds",
+            "Time spent in each pipeline stage", "stage=\"copy\"");
+        motionTimer = metrics.histogram("ipcamera_stage_seconds",
+            "Time spent in each pipeline stage", "stage=\"motion\"");
+        encodesGated = metrics.counter("ipcamera_encodes_gated_total",
+            "Captured frames not encoded because the scene was still");
+        motionEvents = metrics.counter("ipcamera_motion_events_total",
+            "Times the scene started moving");
+        String firstFrameHelp = "Time from opening or losing the camera to its first frame";
+        coldStartTimer = metrics.histogram("ipcamera_camera_time_to_first_frame_seconds",
+            firstFrameHelp, "start=\"cold\"");
+        recoveryTimer = metrics.histogram("ipcamera_camera_time_to_first_frame_seconds",
+            firstFrameHelp, "start=\"recovery\"");
+        String stepHelp = "Time the camera takes for each step of starting up";
+        openTimer = metrics.histogram("ipcamera_camera_start_seconds", stepHelp, "step=\"open\"");
+        sessionTimer = metrics.histogram("ipcamera_camera_start_seconds", stepHelp,
+            "step=\"session\"");
+        String failureHelp = "Times the camera was lost and had to be reopened";
+        disconnects = metrics.counter("ipcamera_camera_failures_total", failureHelp,
+            "reason=\"disconnected\"");
+        deviceErrors = metrics.counter("ipcamera_camera_failures_total", failureHelp,
+            "reason=\"error\"");
+        sessionFailures = metrics.counter("ipcamera_camera_failures_total", failureHelp,
+            "reason=\"session\"");
+        openFailures = metrics.counter("ipcamera_camera_failures_total", failureHelp,
+            "reason=\"open\"");
+        jpegPolicy = HARDWARE_JPEG
+            ? new HardwareJpegPolicy(this::getJpegFrameDurationNanos, TARGET_CLIENT_FPS) : null;
+        if (jpegPolicy != null) {
+            jpegPolicy.setFallbackListener(this::onHardwareJpegFallback);
+        }
+        hardwareJpegFrames = metrics.counter("ipcamera_hardware_jpeg_frames_total",
+            "Frames compressed by the camera's own JPEG encoder");
+        hardwareJpegFallbacks = metrics.counter("ipcamera_hardware_jpeg_fallbacks_total",
+            "Times hardware JPEG was given up for software compression");
+        metrics.gauge("ipcamera_camera_up", "1 while the camera delivers frames",
+            () -> cameraUp ? 1 : 0);
+        if (motionDetector != null) {
+            motionDetector.setMask(MOTION_MASK);
+            motionDetector.setListener(this::onMotionChanged);
+            metrics.gauge("ipcamera_motion_active", "1 while motion is detected",
+                () -> sceneMoving ? 1 : 0);
+        }
+        recorder = RECORDING_ENABLED && recordingDir != null ? new SegmentRecorder(recordingDir,
+            RECORDING_SEGMENTS, RECORDING_SEGMENT_BYTES, RECORDING_SEGMENT_FRAMES,
+            RECORDING_PRE_MILLIS, RECORDING_POST_MILLIS, () -> sceneMoving, metrics) : null;
+        metrics.counter("ipcamera_encoder_frames_dropped_total",
+            "Frames dropped because every encoder worker was busy", "", () -> {
+                EncodePipeline pipeline = encodePipeline;
+                return pipeline != null ? pipeline.getFramesDropped() : 0;
+            });
+    }
+
+    private static StreamConfig loadConfig(File file) {
+        Map<String, Integer> qualities = new LinkedHashMap<>();
+        for (StreamProfile profile : PROFILES) {
+            qualities.put(profile.getName(), profile.getQuality());
+        }
+        StreamConfig defaults = new StreamConfig(IMAGE_WIDTH, IMAGE_HEIGHT, MAX_FPS, qualities);
+        if (file == null) {
+            return defaults;
+        }
+        try {
+            return StreamConfig.load(file, defaults);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Ignoring saved configuration " + file, e);
+            return defaults;
+        }
+    }
+
+    private static String profileLabel(StreamProfile profile) {
+        return "profile=\"" + profile.getName() + "\"";
+    }
+
+    private void registerPipelineMetrics(EncodePipeline pipeline) {
+        String help = "Time spent in each pipeline stage";
+        metrics.register("ipcamera_stage_seconds", help, "stage=\"queue\"",
+            pipeline.getQueueTimer());
+        metrics.register("ipcamera_stage_seconds", help, "stage=\"encode\"",
+            pipeline.getEncodeTimer());
+        metrics.register("ipcamera_stage_seconds", help, "stage=\"reorder\"",
+            pipeline.getReorderTimer());
+        StreamProfile[] profiles = pipeline.getProfiles();
+        for (int i = 0; i < profiles.length; i++) {
+            metrics.register("ipcamera_jpeg_compress_seconds", "Time spent in compressToJpeg",
+                profileLabel(profiles[i]), pipeline.getCompressTimer(i));
+            metrics.counter("ipcamera_jpeg_bytes_total", "Encoded JPEG bytes",
+                profileLabel(profiles[i]), pipeline.getJpegBytes(i)::get);
+        }
+    }
 
     public void openCamera() {
+        startNanos = System.nanoTime();
+        pendingStartTimer = coldStartTimer;
         startBackgroundThread();
-        
+        encodePipeline = new EncodePipeline(encoders, new YuvJpegEncoder(), nv21Pool,
+            profileBuses);
+        for (StreamRateController controller : rateControllers.values()) {
+            encodePipeline.setQuality(controller.getProfile(), controller.getQuality());
+        }
+        registerPipelineMetrics(encodePipeline);
+        for (FrameBus frameBus : profileBuses.values()) {
+            frameBus.addSubscriberListener(subscriberListener);
+        }
+
+        cameraManager = (CameraManager) IPCameraApp.getContext().getSystemService(CAMERA_SERVICE);
+        cameraManager.registerAvailabilityCallback(availabilityCallback, backgroundHandler);
+        // The rest runs on the camera thread so the caller is not held up
+        backgroundHandler.post(this::startCamera);
+
+        if (recorder != null) {
+            try {
+                recorder.start(getFrameBus(RECORDING_PROFILE));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to start recording", e);
+            }
+        }
+    }
+
+    private void startCamera() {
+        openDevice();
+        // The device opens meanwhile; its callbacks run on this thread once this returns
+        createImageReader();
+        if (h264Stream != null) {
+            startH264Encoder();
+        }
+    }
+
+    private void lookUpCamera() throws CameraAccessException {
+        CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(cameraId);
+        StreamConfigurationMap map = characteristics.get(
+            CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        Size[] sizes = map != null ? map.getOutputSizes(ImageFormat.YUV_420_888) : null;
+        captureSizes = sizes;
+        if (sizes != null && sizes.length > 0) {
+            useSupportedCaptureSize(sizes);
+        }
+        // Before the reader is created; a throttled capture size needs the sizes just found
+        captureConfig = throttled(config, throttle);
+        // The H.264 encoder shares the capture rate but not the subscriber count
+        if (THROTTLE_WHEN_IDLE && h264Stream == null) {
+            idleFpsRange = getFpsRange(characteristics, true, 0);
+        }
+        activeFpsRange = getFpsRange(characteristics, false, captureConfig.getMaxFps());
+        Integer timestampSource = characteristics.get(
+            CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+        sensorClockRealtime = timestampSource != null
+            && timestampSource == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+        cameraCharacteristics = characteristics;
+    }
+
+    /**
+     * Converts an image timestamp to the {@link System#nanoTime()} clock.
+     * Sensors with an unknown time source usually stamp monotonic time too;
+     * where that is implausible the time the image arrived is used instead.
+     */
+    private long toCaptureNanos(long sensorTimestamp, long arrivedNanos) {
+        long nanos = sensorClockRealtime
+            ? sensorTimestamp - SystemClock.elapsedRealtimeNanos() + System.nanoTime()
+            : sensorTimestamp;
+        long delay = arrivedNanos - nanos;
+        return delay >= 0 && delay < MAX_SENSOR_DELAY_NANOS ? nanos : arrivedNanos;
+    }
+
+    // Cameras differ, e.g. a front camera may not capture at the back camera's size
+    private synchronized void useSupportedCaptureSize(Size[] sizes) {
+        int width = config.getCaptureWidth();
+        int height = config.getCaptureHeight();
+        if (isSupported(sizes, width, height)) {
+            return;
+        }
+        Size closest = null;
+        for (Size size : sizes) {
+            if (closest == null || isCloser(size, closest, width, height)) {
+                closest = size;
+            }
+        }
+        Log.w(TAG, "Camera " + cameraId + " cannot capture at " + width + "x" + height
+            + ", using " + closest.getWidth() + "x" + closest.getHeight());
         try {
-            CameraManager manager = (CameraManager) 
-                IPCameraApp.getContext().getSystemService(CAMERA_SERVICE);
-            String cameraId = getBackCameraId(manager);
-            
-            imageReader = ImageReader.newInstance(
-                IMAGE_WIDTH, IMAGE_HEIGHT, ImageFormat.YUV_420_888, MAX_IMAGES);
-            imageReader.setOnImageAvailableListener(this::onImageAvailable, backgroundHandler);
-            
-            manager.openCamera(cameraId, stateCallback, backgroundHandler);
-            
-        } catch (CameraAccessException | SecurityException e) {
+            // Not saved, so the configured size is tried again next time
+            config = config.with(Collections.singletonMap("capture",
+                closest.getWidth() + "x" + closest.getHeight()));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Cannot capture at " + closest, e);
+        }
+    }
+
+    // Same aspect ratio first, then the nearest pixel count
+    private static boolean isCloser(Size size, Size best, int width, int height) {
+        boolean sameAspect = (long) size.getWidth() * height == (long) size.getHeight() * width;
+        boolean bestSameAspect = (long) best.getWidth() * height == (long) best.getHeight() * width;
+        if (sameAspect != bestSameAspect) {
+            return sameAspect;
+        }
+        long area = (long) width * height;
+        return Math.abs((long) size.getWidth() * size.getHeight() - area)
+            < Math.abs((long) best.getWidth() * best.getHeight() - area);
+    }
+
+    private void openDevice() {
+        try {
+            if (cameraCharacteristics == null) {
+                lookUpCamera();
+            }
+            openRequestedNanos = System.nanoTime();
+            cameraManager.openCamera(cameraId, stateCallback, backgroundHandler);
+        } catch (CameraAccessException | SecurityException | IllegalArgumentException e) {
             Log.e(TAG, "Failed to open camera", e);
+            onCameraLost(openFailures);
+        }
+    }
+
+    private void reopenDevice() {
+        reopenPending = false;
+        if (!closing) {
+            Log.i(TAG, "Reopening camera, attempt " + reopenBackoff.getAttempts());
+            openDevice();
         }
     }
 
-    private String getBackCameraId(CameraManager manager) throws CameraAccessException {
-        for (String cameraId : manager.getCameraIdList()) {
-            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
-            Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
-            if (facing != null && facing == CameraCharacteristics.LENS_FACING_BACK) {
-                return cameraId;
+    /**
+     * Closes what is left of the device and schedules another attempt to open
+     * it. The image reader, encoders and clients stay as they are; clients
+     * get a placeholder frame until the camera is back. Runs on the camera thread.
+     */
+    private void onCameraLost(Counter reason) {
+        reason.increment();
+        cameraUp = false;
+        previewRequestBuilder = null;
+        if (captureSession != null) {
+            captureSession.close();
+            captureSession = null;
+        }
+        if (cameraDevice != null) {
+            cameraDevice.close();
+            cameraDevice = null;
+        }
+        if (closing || reopenPending) {
+            return;
+        }
+        if (pendingStartTimer == null) {
+            pendingStartTimer = recoveryTimer;
+            startNanos = System.nanoTime();
+        }
+        if (!showingPlaceholder) {
+            showingPlaceholder = true;
+            encodePipeline.submitPlaceholder();
+        }
+        long delay = reopenBackoff.nextDelayMillis();
+        Log.w(TAG, "Camera lost, reopening in " + delay + " ms");
+        reopenPending = true;
+        backgroundHandler.postDelayed(reopenDevice, delay);
+    }
+
+    private final CameraManager.AvailabilityCallback availabilityCallback =
+        new CameraManager.AvailabilityCallback() {
+            @Override
+            public void onCameraAvailable(@NonNull String id) {
+                // Another app let go of the camera; no need to wait out the backoff
+                if (reopenPending && id.equals(cameraId)) {
+                    backgroundHandler.removeCallbacks(reopenDevice);
+                    reopenDevice();
+                }
+            }
+        };
+
+    private void onFirstFrame(long nowNanos) {
+        long elapsed = nowNanos - startNanos;
+        pendingStartTimer.record(elapsed);
+        Log.i(TAG, "First frame " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms after "
+            + (pendingStartTimer == coldStartTimer ? "opening" : "losing") + " the camera");
+        pendingStartTimer = null;
+        showingPlaceholder = false;
+        cameraUp = true;
+        reopenBackoff.reset();
+    }
+
+    private void createImageReader() {
+        StreamConfig current = captureConfig;
+        nv21Pool.setBufferSize(
+            YuvConverter.nv21Size(current.getCaptureWidth(), current.getCaptureHeight()));
+        imageReader = ImageReader.newInstance(current.getCaptureWidth(),
+            current.getCaptureHeight(), ImageFormat.YUV_420_888, MAX_IMAGES);
+        imageReader.setOnImageAvailableListener(this::onImageAvailable, backgroundHandler);
+        hardwareProfile = null;
+        if (jpegPolicy != null) {
+            createJpegReader(current.getCaptureWidth(), current.getCaptureHeight());
+        }
+    }
+
+    // The camera only compresses frames of the captured size, so this serves one profile at most
+    private void createJpegReader(int width, int height) {
+        StreamProfile selected = null;
+        for (StreamProfile profile : profileBuses.keySet()) {
+            boolean hardware = selected == null && profile.getWidth() == width
+                && profile.getHeight() == height && jpegPolicy.shouldUseHardware(width, height);
+            if (hardware) {
+                selected = profile;
+            }
+            encodePipeline.setSoftwareEncoded(profile, !hardware);
+        }
+        if (selected != null) {
+            jpegReader = ImageReader.newInstance(width, height, ImageFormat.JPEG, MAX_IMAGES);
+            jpegReader.setOnImageAvailableListener(this::onJpegAvailable, backgroundHandler);
+            hardwareProfile = selected;
+            Log.i(TAG, "Profile " + selected.getName() + " is compressed by the camera");
+        }
+    }
+
+    private long getJpegFrameDurationNanos(int width, int height) {
+        CameraCharacteristics characteristics = cameraCharacteristics;
+        StreamConfigurationMap map = characteristics != null ? characteristics.get(
+            CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP) : null;
+        Size[] sizes = map != null ? map.getOutputSizes(ImageFormat.JPEG) : null;
+        if (sizes == null || !isSupported(sizes, width, height)) {
+            return -1;
+        }
+        Size size = new Size(width, height);
+        return map.getOutputMinFrameDuration(ImageFormat.JPEG, size)
+            + map.getOutputStallDuration(ImageFormat.JPEG, size);
+    }
+
+    private void closeImageReaders() {
+        imageReader.close();
+        imageReader = null;
+        if (jpegReader != null) {
+            jpegReader.close();
+            jpegReader = null;
+        }
+    }
+
+    private void onHardwareJpegFallback(String reason) {
+        Log.w(TAG, "Falling back to software JPEG: " + reason);
+        hardwareJpegFallbacks.increment();
+        // Not from within the reader callback that is about to be closed
+        backgroundHandler.post(this::rebuildCapture);
+    }
+
+    private void startH264Encoder() {
+        h264Encoder = new H264Encoder(h264Stream);
+        try {
+            StreamConfig current = captureConfig;
+            h264Surface = h264Encoder.start(current.getCaptureWidth(), current.getCaptureHeight(),
+                backgroundHandler);
+        } catch (IOException | IllegalStateException e) {
+            Log.e(TAG, "Failed to start H.264 encoder", e);
+            h264Encoder.stop();
+            h264Encoder = null;
+        }
+    }
+
+    // What every repeating request feeds; the JPEG reader only while its profile is watched
+    private List<Surface> getRepeatingSurfaces() {
+        List<Surface> surfaces = new ArrayList<>();
+        surfaces.add(imageReader.getSurface());
+        if (h264Surface != null) {
+            surfaces.add(h264Surface);
+        }
+        return surfaces;
+    }
+
+    private List<Surface> getOutputSurfaces() {
+        List<Surface> surfaces = getRepeatingSurfaces();
+        if (jpegReader != null) {
+            surfaces.add(jpegReader.getSurface());
+        }
+        return surfaces;
+    }
+
+    // The slowest range, or the fastest one that stays within maxFps (0 for no bound)
+    private Range<Integer> getFpsRange(CameraCharacteristics characteristics, boolean slowest,
+                                       int maxFps) {
+        Range<Integer>[] ranges = characteristics.get(
+            CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        Range<Integer> best = null;
+        if (ranges != null) {
+            for (Range<Integer> range : ranges) {
+                if (!slowest && maxFps > 0 && range.getUpper() > maxFps) {
+                    continue;
+                }
+                if (best == null || (slowest
+                        ? range.getUpper() < best.getUpper()
+                        : range.getUpper() > best.getUpper())) {
+                    best = range;
+                }
             }
         }
-        return manager.getCameraIdList()[0];
+        if (best == null && !slowest) {
+            // Every range is faster than maxFps
+            return getFpsRange(characteristics, true, 0);
+        }
+        return best;
     }
 
     private final CameraDevice.StateCallback stateCallback = new CameraDevice.StateCallback() {
         @Override
         public void onOpened(@NonNull CameraDevice camera) {
+            openTimer.record(System.nanoTime() - openRequestedNanos);
+            if (closing) {
+                camera.close();
+                return;
+            }
             cameraDevice = camera;
             createCaptureSession();
         }
@@ -79,24 +610,32 @@ public class CameraHandler {
         @Override
         public void onDisconnected(@NonNull CameraDevice camera) {
             camera.close();
-            cameraDevice = null;
+            Log.w(TAG, "Camera disconnected");
+            onCameraLost(disconnects);
         }
 
         @Override
         public void onError(@NonNull CameraDevice camera, int error) {
             camera.close();
-            cameraDevice = null;
             Log.e(TAG, "Camera error: " + error);
+            onCameraLost(deviceErrors);
         }
     };
 
     private void createCaptureSession() {
         try {
+            sessionRequestedNanos = System.nanoTime();
             cameraDevice.createCaptureSession(
-                Arrays.asList(imageReader.getSurface()),
+                getOutputSurfaces(),
                 new CameraCaptureSession.StateCallback() {
                     @Override
                     public void onConfigured(@NonNull CameraCaptureSession session) {
+                        sessionTimer.record(System.nanoTime() - sessionRequestedNanos);
+                        if (cameraDevice == null) {
+                            // The device was lost while the session was being set up
+                            session.close();
+                            return;
+                        }
                         captureSession = session;
                         startPreview();
                     }
@@ -104,12 +643,19 @@ public class CameraHandler {
                     @Override
                     public void onConfigureFailed(@NonNull CameraCaptureSession session) {
                         Log.e(TAG, "Failed to configure capture session");
+                        if (cameraDevice != null && jpegReader != null) {
+                            // Likely the extra JPEG output; try again without it
+                            jpegPolicy.onSessionFailed();
+                        } else if (cameraDevice != null) {
+                            onCameraLost(sessionFailures);
+                        }
                     }
                 },
                 backgroundHandler
             );
-        } catch (CameraAccessException e) {
+        } catch (CameraAccessException | IllegalStateException e) {
             Log.e(TAG, "Failed to create capture session", e);
+            onCameraLost(sessionFailures);
         }
     }
 
@@ -117,66 +663,441 @@ public class CameraHandler {
         try {
             CaptureRequest.Builder builder = cameraDevice.createCaptureRequest(
                 CameraDevice.TEMPLATE_PREVIEW);
-            builder.addTarget(imageReader.getSurface());
+            for (Surface surface : getRepeatingSurfaces()) {
+                builder.addTarget(surface);
+            }
             builder.set(CaptureRequest.CONTROL_MODE, CaptureRequest.CONTROL_MODE_AUTO);
+            previewRequestBuilder = builder;
+            jpegTargeted = false;
+            if (jpegPolicy != null) {
+                jpegPolicy.stopMeasuring();
+            }
+            Range<Integer> templateFpsRange = builder.get(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE);
+            if (templateFpsRange != null && captureConfig.getMaxFps() == 0) {
+                activeFpsRange = templateFpsRange;
+            }
             
-            captureSession.setRepeatingRequest(builder.build(), null, backgroundHandler);
+            updateRepeatingRequest();
         } catch (CameraAccessException e) {
             Log.e(TAG, "Failed to start preview", e);
         }
     }
 
+    public String getCameraId() {
+        return cameraId;
+    }
+
+    public StreamConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Applies {@code settings} (see {@link StreamConfig#with}) while streaming.
+     * Quality changes take effect with the next encoded frame and a new frame
+     * rate only replaces the repeating request. A new capture size rebuilds
+     * the ImageReader and capture session; the camera device, encoders and
+     * client connections stay up.
+     *
+     * @return the configuration now set, before any throttling
+     * @throws IllegalArgumentException if a setting is invalid or the camera
+     *         cannot capture at the requested size
+     */
+    public synchronized StreamConfig reconfigure(Map<String, String> settings) {
+        StreamConfig previous = config;
+        StreamConfig next = previous.with(settings);
+        Size[] sizes = captureSizes;
+        if (sizes != null && !next.hasSameCaptureSize(previous)
+                && !isSupported(sizes, next.getCaptureWidth(), next.getCaptureHeight())) {
+            StringBuilder message = new StringBuilder("Camera does not capture at ")
+                .append(next.getCaptureWidth()).append('x').append(next.getCaptureHeight())
+                .append("; supported sizes are");
+            for (Size size : sizes) {
+                message.append(' ').append(size.getWidth()).append('x').append(size.getHeight());
+            }
+            throw new IllegalArgumentException(message.toString());
+        }
+        config = next;
+        if (configFile != null) {
+            try {
+                next.store(configFile);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to save configuration", e);
+            }
+        }
+        applyEffectiveConfig(throttled(next, throttle));
+        Log.i(TAG, "Configuration now " + next.toJson());
+        return next;
+    }
+
+    /**
+     * Runs the camera at a throttling tier: its frame rate limit, capture
+     * size and share of quality apply on top of the configuration, which is
+     * left as {@code /config} shows and saves it. Changes take effect as
+     * with {@link #reconfigure}.
+     */
+    public synchronized void setThrottle(ThermalGovernor.Tier tier) {
+        throttle = tier;
+        applyEffectiveConfig(throttled(config, tier));
+    }
+
+    private StreamConfig throttled(StreamConfig requested, ThermalGovernor.Tier tier) {
+        Map<String, String> settings = new LinkedHashMap<>();
+        int fps = requested.getMaxFps();
+        if (tier.getMaxFps() > 0 && (fps == 0 || fps > tier.getMaxFps())) {
+            settings.put("maxFps", Integer.toString(tier.getMaxFps()));
+        }
+        if (tier.getCaptureScale() < 1) {
+            Size size = scaledCaptureSize(requested, tier.getCaptureScale());
+            settings.put("capture", size.getWidth() + "x" + size.getHeight());
+        }
+        for (StreamProfile profile : PROFILES) {
+            int quality = requested.getQuality(profile.getName());
+            settings.put("quality." + profile.getName(),
+                Integer.toString(tier.scaleQuality(quality)));
+        }
+        return requested.with(settings);
+    }
+
+    // The supported size closest to the scaled one; the scaled one until the sizes are known
+    private Size scaledCaptureSize(StreamConfig requested, double scale) {
+        int width = (int) Math.round(requested.getCaptureWidth() * scale / 2) * 2;
+        int height = (int) Math.round(requested.getCaptureHeight() * scale / 2) * 2;
+        Size[] sizes = captureSizes;
+        Size closest = new Size(width, height);
+        if (sizes != null && !isSupported(sizes, width, height)) {
+            closest = null;
+            for (Size size : sizes) {
+                if (closest == null || isCloser(size, closest, width, height)) {
+                    closest = size;
+                }
+            }
+        }
+        return closest;
+    }
+
+    // Hands the settings now in effect to the rate controllers and the camera thread
+    private void applyEffectiveConfig(StreamConfig next) {
+        StreamConfig previous = captureConfig;
+        captureConfig = next;
+        for (StreamRateController controller : rateControllers.values()) {
+            String name = controller.getProfile().getName();
+            if (next.getQuality(name) != previous.getQuality(name)) {
+                controller.setMaxQuality(next.getQuality(name));
+            }
+        }
+        Handler handler = backgroundHandler;
+        if (handler != null) {
+            handler.post(() -> applyCaptureConfig(previous, next));
+        }
+    }
+
+    private static boolean isSupported(Size[] sizes, int width, int height) {
+        for (Size size : sizes) {
+            if (size.getWidth() == width && size.getHeight() == height) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Runs on the camera thread, in the order the changes were made
+    private void applyCaptureConfig(StreamConfig previous, StreamConfig next) {
+        if (next.getMaxFps() != previous.getMaxFps() && cameraCharacteristics != null) {
+            activeFpsRange = getFpsRange(cameraCharacteristics, false, next.getMaxFps());
+        }
+        if (!next.hasSameCaptureSize(previous)) {
+            if (jpegPolicy != null) {
+                // The camera may well keep up at the new size
+                jpegPolicy.reset();
+            }
+            rebuildCapture();
+        } else if (next.getMaxFps() != previous.getMaxFps()) {
+            updateRepeatingRequest();
+        }
+    }
+
+    // Recreates the outputs and keeps the camera device open
+    private void rebuildCapture() {
+        if (imageReader == null) {
+            // Camera not opened yet; it will start at the new size
+            return;
+        }
+        previewRequestBuilder = null;
+        if (captureSession != null) {
+            captureSession.close();
+            captureSession = null;
+        }
+        closeImageReaders();
+        createImageReader();
+        if (h264Encoder != null) {
+            h264Encoder.stop();
+            h264Encoder = null;
+            h264Surface = null;
+            startH264Encoder();
+        }
+        if (cameraDevice != null) {
+            createCaptureSession();
+        }
+    }
+
+    private void onSubscriberCountChanged(int subscribers) {
+        // Only the transitions between idle and watched change the capture rate
+        Handler handler = backgroundHandler;
+        if (handler != null && subscribers <= 1) {
+            handler.post(this::updateRepeatingRequest);
+        }
+    }
+
+    private boolean hasSubscribers() {
+        for (FrameBus frameBus : profileBuses.values()) {
+            if (frameBus.hasSubscribers()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void updateRepeatingRequest() {
+        if (captureSession == null || previewRequestBuilder == null) {
+            return;
+        }
+        try {
+            boolean idle = idleFpsRange != null && !hasSubscribers();
+            Range<Integer> fpsRange = idle ? idleFpsRange : activeFpsRange;
+            if (fpsRange != null) {
+                previewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+            }
+            if (jpegReader != null) {
+                updateJpegTarget();
+            }
+            captureSession.setRepeatingRequest(previewRequestBuilder.build(), null,
+                backgroundHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(TAG, "Failed to update repeating request", e);
+        }
+    }
+
+    // Only have the camera compress frames while someone watches the profile
+    private void updateJpegTarget() {
+        StreamProfile profile = hardwareProfile;
+        boolean watched = profileBuses.get(profile).hasSubscribers();
+        if (watched != jpegTargeted) {
+            if (watched) {
+                previewRequestBuilder.addTarget(jpegReader.getSurface());
+                jpegPolicy.startMeasuring(System.nanoTime());
+            } else {
+                previewRequestBuilder.removeTarget(jpegReader.getSurface());
+                jpegPolicy.stopMeasuring();
+            }
+            jpegTargeted = watched;
+        }
+        if (watched) {
+            int quality = rateControllers.get(profile.getName()).getQuality();
+            previewRequestBuilder.set(CaptureRequest.JPEG_QUALITY, (byte) quality);
+        }
+    }
+
+    private void onJpegAvailable(ImageReader reader) {
+        Image image = null;
+        try {
+            image = reader.acquireLatestImage();
+            StreamProfile profile = hardwareProfile;
+            if (image != null && profile != null) {
+                // Already compressed; copied once, straight into the published part
+                profileBuses.get(profile).publish(image.getPlanes()[0].getBuffer(),
+                    toCaptureNanos(image.getTimestamp(), System.nanoTime()));
+                hardwareJpegFrames.increment();
+                jpegPolicy.onHardwareFrame(System.nanoTime());
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error publishing hardware JPEG", e);
+        } finally {
+            if (image != null) {
+                image.close();
+            }
+        }
+    }
+
+    private void onMotionChanged(boolean moving, float score, long timestampNanos) {
+        sceneMoving = moving;
+        if (moving) {
+            motionEvents.increment();
+        }
+        events.publish("motion", String.format(Locale.ROOT,
+            "{\"moving\":%b,\"score\":%.3f,\"time\":%d}",
+            moving, score, System.currentTimeMillis()));
+    }
+
+    /** Returns whether the scene is moving; always true without a detector. */
+    private boolean detectMotion(Image image) {
+        if (motionDetector == null) {
+            return true;
+        }
+        long start = System.nanoTime();
+        Image.Plane luma = image.getPlanes()[0];
+        boolean moving = motionDetector.analyze(luma.getBuffer(), luma.getRowStride(),
+            image.getWidth(), image.getHeight(), image.getTimestamp());
+        motionTimer.record(System.nanoTime() - start);
+        return moving;
+    }
+
     private void onImageAvailable(ImageReader reader) {
+        long start = System.nanoTime();
         Image image = null;
         try {
             image = reader.acquireLatestImage();
+            long captureNanos = start;
             if (image != null) {
-                byte[] jpegData = imageToJpeg(image);
-                synchronized (frameLock) {
-                    latestFrame = jpegData;
+                framesCaptured.increment();
+                captureNanos = toCaptureNanos(image.getTimestamp(), start);
+                sensorTimer.record(start - captureNanos);
+                if (pendingStartTimer != null) {
+                    onFirstFrame(start);
+                }
+                if (jpegPolicy != null) {
+                    jpegPolicy.onCaptureFrame(start);
                 }
             }
+            // Runs whether or not anyone is watching, since /events clients are not subscribers
+            boolean moving = image != null && detectMotion(image);
+            if (image != null && !hasSubscribers()) {
+                encodesSkipped.increment();
+            } else if (image != null && MOTION_GATED_STREAMING && !moving
+                    && start - lastEncodeNanos < STILL_FRAME_INTERVAL_NANOS) {
+                encodesGated.increment();
+            } else if (image != null) {
+                lastEncodeNanos = start;
+                encodesPerformed.increment();
+                int width = image.getWidth();
+                int height = image.getHeight();
+                // Copy the planes out and give the image back before the slow part
+                byte[] nv21 = copyToNv21(image);
+                image.close();
+                image = null;
+                encodePipeline.submit(nv21, width, height, captureNanos);
+            }
         } catch (Exception e) {
             Log.e(TAG, "Error processing image", e);
         } finally {
             if (image != null) {
                 image.close();
             }
+            frameProcessTimer.record(System.nanoTime() - start);
         }
     }
 
-    private byte[] imageToJpeg(Image image) {
+    private byte[] copyToNv21(Image image) {
+        long start = System.nanoTime();
         Image.Plane[] planes = image.getPlanes();
-        ByteBuffer yBuffer = planes[0].getBuffer();
-        ByteBuffer uBuffer = planes[1].getBuffer();
-        ByteBuffer vBuffer = planes[2].getBuffer();
+        byte[] nv21 = nv21Pool.acquire();
+        try {
+            yuvConverter.toNv21(
+                planes[0].getBuffer(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(),
+                planes[1].getRowStride(), planes[1].getPixelStride(),
+                image.getWidth(), image.getHeight(), nv21);
+        } catch (RuntimeException e) {
+            nv21Pool.release(nv21);
+            throw e;
+        }
+        copyTimer.record(System.nanoTime() - start);
+        return nv21;
+    }
 
-        int ySize = yBuffer.remaining();
-        int uSize = uBuffer.remaining();
-        int vSize = vBuffer.remaining();
+    public FrameBus getFrameBus() {
+        return getFrameBus(StreamProfile.DEFAULT);
+    }
 
-        byte[] nv21 = new byte[ySize + uSize + vSize];
-        
-        yBuffer.get(nv21, 0, ySize);
-        vBuffer.get(nv21, ySize, vSize);
-        uBuffer.get(nv21, ySize + vSize, uSize);
-
-        YuvImage yuvImage = new YuvImage(nv21, ImageFormat.NV21, 
-            image.getWidth(), image.getHeight(), null);
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        yuvImage.compressToJpeg(new Rect(0, 0, image.getWidth(), image.getHeight()), 
-            80, out);
-        
-        return out.toByteArray();
+    /** Returns null for an unknown profile name. */
+    public FrameBus getFrameBus(String profileName) {
+        for (Map.Entry<StreamProfile, FrameBus> entry : profileBuses.entrySet()) {
+            if (entry.getKey().getName().equals(profileName)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    public StreamRateController getRateController(String profileName) {
+        return rateControllers.get(profileName);
     }
 
-    public byte[] getLatestFrame() {
-        synchronized (frameLock) {
-            return latestFrame;
+    private void onQualityChanged(StreamProfile profile, int quality) {
+        EncodePipeline pipeline = encodePipeline;
+        if (pipeline != null) {
+            pipeline.setQuality(profile, quality);
+        }
+        Handler handler = backgroundHandler;
+        if (profile == hardwareProfile && handler != null) {
+            // The camera takes its quality from the capture request
+            handler.post(this::updateRepeatingRequest);
         }
+        Log.i(TAG, "Quality of profile " + profile.getName() + " now " + quality);
+    }
+
+    public List<FrameBus> getFrameBuses() {
+        return Collections.unmodifiableList(new ArrayList<>(profileBuses.values()));
+    }
+
+    public long getEncodesPerformed() {
+        return encodesPerformed.get();
+    }
+
+    public long getEncodesSkipped() {
+        return encodesSkipped.get();
+    }
+
+    /** Motion changes as server-sent events; stays empty when detection is disabled. */
+    public EventStream getEvents() {
+        return events;
+    }
+
+    /** Returns null when recording is disabled. */
+    public SegmentRecorder getRecorder() {
+        return recorder;
+    }
+
+    /** Returns null when H.264 encoding is disabled. */
+    public H264Stream getH264Stream() {
+        return h264Stream;
     }
 
     public void closeCamera() {
+        for (FrameBus frameBus : profileBuses.values()) {
+            frameBus.removeSubscriberListener(subscriberListener);
+        }
+        if (cameraManager != null) {
+            cameraManager.unregisterAvailabilityCallback(availabilityCallback);
+        }
+        Handler handler = backgroundHandler;
+        if (handler != null) {
+            handler.removeCallbacks(reopenDevice);
+            // After whatever the camera thread is still doing; quitSafely runs it
+            handler.post(this::releaseCamera);
+        }
+        stopBackgroundThread();
+        if (recorder != null) {
+            recorder.stop();
+        }
+        if (encodePipeline != null) {
+            encodePipeline.shutdown();
+            Log.i(TAG, "Encode timings: " + encodePipeline.getEncodeTimer()
+                + ", dropped=" + encodePipeline.getFramesDropped());
+        }
+        for (FrameBus frameBus : profileBuses.values()) {
+            frameBus.close();
+        }
+        if (h264Stream != null) {
+            h264Stream.close();
+        }
+        events.close();
+    }
+
+    private void releaseCamera() {
+        closing = true;
+        cameraUp = false;
+        previewRequestBuilder = null;
+        
         if (captureSession != null) {
             captureSession.close();
             captureSession = null;
@@ -188,15 +1109,18 @@ public class CameraHandler {
         }
         
         if (imageReader != null) {
-            imageReader.close();
-            imageReader = null;
+            closeImageReaders();
+        }
+
+        if (h264Encoder != null) {
+            h264Encoder.stop();
+            h264Encoder = null;
+            h264Surface = null;
         }
-        
-        stopBackgroundThread();
     }
 
     private void startBackgroundThread() {
-        backgroundThread = new HandlerThread("CameraBackground");
+        backgroundThread = new HandlerThread("CameraBackground-" + cameraId);
         backgroundThread.start();
         backgroundHandler = new Handler(backgroundThread.getLooper());
     }
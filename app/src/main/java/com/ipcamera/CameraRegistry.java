@@ -0,0 +1,128 @@
+package com.ipcamera;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static android.content.Context.CAMERA_SERVICE;
+
+/**
+ * The cameras being streamed: the back camera, served at {@code /video}, plus
+ * every camera the device can run at the same time, each also served at
+ * {@code /video/{cameraId}}. Every camera has its own capture thread and
+ * frame buses; they share one pool of JPEG workers.
+ */
+public class CameraRegistry {
+    private static final String TAG = "CameraRegistry";
+    // Also stream the cameras that can run alongside the default one
+    private static final boolean CONCURRENT_CAMERAS = true;
+    private static final int ENCODER_THREADS = EncodePipeline.defaultWorkerCount();
+
+    private final Map<String, CameraHandler> cameras;
+    private final CameraHandler defaultCamera;
+    private final ThreadPoolExecutor encoders;
+
+    /** @param cameras by ID, the default camera first */
+    CameraRegistry(Map<String, CameraHandler> cameras, ThreadPoolExecutor encoders) {
+        this.cameras = Collections.unmodifiableMap(new LinkedHashMap<>(cameras));
+        this.defaultCamera = cameras.values().iterator().next();
+        this.encoders = encoders;
+    }
+
+    /**
+     * Finds the cameras to stream. Only the default camera keeps its settings
+     * in {@code configFile} and records into {@code recordingDir}.
+     */
+    public static CameraRegistry create(MetricsRegistry metrics, File configFile,
+                                        File recordingDir) throws CameraAccessException {
+        CameraManager manager = (CameraManager)
+            IPCameraApp.getContext().getSystemService(CAMERA_SERVICE);
+        String defaultId = getBackCameraId(manager);
+        List<String> ids = new ArrayList<>();
+        ids.add(defaultId);
+        if (CONCURRENT_CAMERAS) {
+            ids.addAll(findConcurrentCameras(manager, defaultId));
+        }
+
+        ThreadPoolExecutor encoders = EncodePipeline.newExecutor(ENCODER_THREADS);
+        Map<String, CameraHandler> cameras = new LinkedHashMap<>();
+        for (String id : ids) {
+            boolean isDefault = id.equals(defaultId);
+            cameras.put(id, new CameraHandler(id, metrics.withLabels("camera=\"" + id + "\""),
+                isDefault ? configFile : null, isDefault ? recordingDir : null, encoders));
+        }
+        Log.i(TAG, "Streaming cameras " + cameras.keySet());
+        return new CameraRegistry(cameras, encoders);
+    }
+
+    private static String getBackCameraId(CameraManager manager) throws CameraAccessException {
+        for (String cameraId : manager.getCameraIdList()) {
+            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
+            Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+            if (facing != null && facing == CameraCharacteristics.LENS_FACING_BACK) {
+                return cameraId;
+            }
+        }
+        return manager.getCameraIdList()[0];
+    }
+
+    // The other members of the largest set of cameras that can stream together with defaultId
+    private static List<String> findConcurrentCameras(CameraManager manager, String defaultId) {
+        Set<String> best = Collections.emptySet();
+        try {
+            for (Set<String> combination : manager.getConcurrentCameraIds()) {
+                if (combination.contains(defaultId) && combination.size() > best.size()) {
+                    best = combination;
+                }
+            }
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Failed to query concurrent cameras", e);
+        }
+        List<String> others = new ArrayList<>();
+        for (String id : best) {
+            if (!id.equals(defaultId)) {
+                others.add(id);
+            }
+        }
+        Collections.sort(others);
+        return others;
+    }
+
+    public CameraHandler getDefault() {
+        return defaultCamera;
+    }
+
+    /** Returns null for a camera that is not being streamed. */
+    public CameraHandler get(String cameraId) {
+        return cameras.get(cameraId);
+    }
+
+    /** All cameras, the default one first. */
+    public Collection<CameraHandler> getAll() {
+        return cameras.values();
+    }
+
+    public void openAll() {
+        for (CameraHandler camera : cameras.values()) {
+            camera.openCamera();
+        }
+    }
+
+    public void closeAll() {
+        for (CameraHandler camera : cameras.values()) {
+            camera.closeCamera();
+        }
+        EncodePipeline.shutdown(encoders);
+    }
+}
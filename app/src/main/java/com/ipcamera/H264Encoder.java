@@ -0,0 +1,127 @@
+package com.ipcamera;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class H264Encoder {
+    private static final String TAG = "H264Encoder";
+    private static final int BIT_RATE = 2_000_000;
+    private static final int FRAME_RATE = 30;
+    private static final int I_FRAME_INTERVAL_S = 1;
+
+    private final H264Stream stream;
+    private MediaCodec codec;
+    private Surface inputSurface;
+    private byte[] outputBuffer = new byte[0];
+
+    public H264Encoder(H264Stream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Configures the hardware encoder and returns the surface the camera
+     * should render into. Output is delivered on {@code handler}'s thread.
+     */
+    public Surface start(int width, int height, Handler handler) throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat(
+            MediaFormat.MIMETYPE_VIDEO_AVC, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL_S);
+        format.setInteger(MediaFormat.KEY_PREPEND_HEADER_TO_SYNC_FRAMES, 1);
+
+        codec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+        codec.setCallback(callback, handler);
+        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        inputSurface = codec.createInputSurface();
+        codec.start();
+        stream.setKeyFrameRequester(this::requestKeyFrame);
+        return inputSurface;
+    }
+
+    public void requestKeyFrame() {
+        MediaCodec current = codec;
+        if (current == null) {
+            return;
+        }
+        try {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            current.setParameters(params);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to request key frame", e);
+        }
+    }
+
+    public void stop() {
+        stream.setKeyFrameRequester(null);
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Error stopping encoder", e);
+            }
+            codec.release();
+            codec = null;
+        }
+        if (inputSurface != null) {
+            inputSurface.release();
+            inputSurface = null;
+        }
+    }
+
+    private final MediaCodec.Callback callback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            // Input arrives through the surface
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
+                                            @NonNull MediaCodec.BufferInfo info) {
+            try {
+                ByteBuffer buffer = codec.getOutputBuffer(index);
+                if (buffer != null && info.size > 0) {
+                    if (outputBuffer.length < info.size) {
+                        outputBuffer = new byte[info.size];
+                    }
+                    buffer.position(info.offset);
+                    buffer.get(outputBuffer, 0, info.size);
+
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                        byte[] config = new byte[info.size];
+                        System.arraycopy(outputBuffer, 0, config, 0, info.size);
+                        stream.setCodecConfig(config);
+                    } else {
+                        stream.publish(outputBuffer, 0, info.size, info.presentationTimeUs,
+                            (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+                    }
+                }
+            } finally {
+                codec.releaseOutputBuffer(index, false);
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, "Encoder error", e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            Log.i(TAG, "Encoder output format: " + format);
+        }
+    };
+}
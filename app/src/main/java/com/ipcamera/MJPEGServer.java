@@ -2,34 +2,157 @@ package com.ipcamera;
 
 import android.util.Log;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-public class MJPEGServer {
+public class MJPEGServer implements StreamServer {
     private static final String TAG = "MJPEGServer";
-    private static final String BOUNDARY = "frame";
-    private static final int FPS = 15;
-    private static final int FRAME_DELAY_MS = 1000 / FPS;
+    private static final long FRAME_WAIT_TIMEOUT_MS = 1000;
+    private static final long WATCHDOG_INTERVAL_MS = 500;
+    static final String VIDEO_PATH = "/video";
+    static final String SNAPSHOT_PATH = "/snapshot.jpg";
+    static final String CONFIG_PATH = "/config";
+    // Changes must carry this header. Browsers only send custom headers to
+    // other origins after a CORS preflight, which this server never allows,
+    // so a page the viewer happens to open cannot change the settings.
+    static final String CONFIG_CHANGE_HEADER = "X-Requested-With";
+    static final int KEEP_ALIVE_TIMEOUT_MS = 15_000;
+    // Whole request head must arrive within this, however slowly it trickles in
+    static final int REQUEST_TIMEOUT_MS = 10_000;
+    private static final int READ_BUFFER_SIZE = 1024;
+    // Short kernel queue for streams, so that write times reflect the client's
+    // link and frames do not go stale waiting in it
+    private static final int STREAM_SEND_BUFFER_BYTES = 128 * 1024;
+    // Frames older than this are not served as snapshots; the next one is awaited instead.
+    // Longer than the one second between frames of a motion-gated still scene.
+    static final long SNAPSHOT_MAX_AGE_NANOS = TimeUnit.SECONDS.toNanos(2);
+    static final long SNAPSHOT_WAIT_MS = 2000;
+    static final long EVENTS_KEEP_ALIVE_MS = 15_000;
+
+    static final String STREAM_HEADERS = "HTTP/1.1 200 OK\r\n" +
+            "Content-Type: multipart/x-mixed-replace; boundary=" + MultipartEncoder.BOUNDARY + "\r\n" +
+            "Cache-Control: no-cache\r\n" +
+            "Connection: close\r\n" +
+            "\r\n";
+    static final String H264_HEADERS = "HTTP/1.1 200 OK\r\n" +
+            "Content-Type: video/h264\r\n" +
+            "Cache-Control: no-cache\r\n" +
+            "Connection: close\r\n" +
+            "\r\n";
+    static final String METRICS_HEADERS = "HTTP/1.1 200 OK\r\n" +
+            "Content-Type: text/plain; version=0.0.4\r\n" +
+            "Connection: close\r\n";
+    static final String JSON_HEADERS = "HTTP/1.1 200 OK\r\n" +
+            "Content-Type: application/json\r\n" +
+            "Cache-Control: no-cache\r\n" +
+            "Connection: close\r\n";
+    static final String BAD_REQUEST_HEADERS = "HTTP/1.1 400 Bad Request\r\n" +
+            "Content-Type: text/plain\r\n" +
+            "Connection: close\r\n";
+    static final String FORBIDDEN_HEADERS = "HTTP/1.1 403 Forbidden\r\n" +
+            "Content-Type: text/plain\r\n" +
+            "Connection: close\r\n";
+    static final String NOT_FOUND_RESPONSE = "HTTP/1.1 404 Not Found\r\n" +
+            "Content-Type: text/plain\r\n" +
+            "Content-Length: 9\r\n" +
+            "\r\n" +
+            "Not Found";
+    static final String UNAVAILABLE_RESPONSE = "HTTP/1.1 503 Service Unavailable\r\n" +
+            "Retry-After: 1\r\n" +
+            "Content-Length: 0\r\n" +
+            "Connection: close\r\n" +
+            "\r\n";
     
     private final int port;
+    private final CameraRegistry cameras;
     private final CameraHandler cameraHandler;
+    private final MetricsRegistry metrics;
+    private final ConnectionLimiter limiter;
     private ServerSocket serverSocket;
     private ExecutorService executorService;
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+    // Streams the watchdog looks after, with the progress of their current write
+    private final Map<Socket, WriteProgress> watchedWrites = new ConcurrentHashMap<>();
+    private final Counter stalledDisconnects;
     private volatile boolean isRunning = false;
 
-    public MJPEGServer(int port, CameraHandler cameraHandler) {
+    public MJPEGServer(int port, CameraRegistry cameras, MetricsRegistry metrics) {
+        this(port, cameras, metrics, unlimited(metrics));
+    }
+
+    /** @param limiter admits each connection and sets the rate limits of its stream */
+    public MJPEGServer(int port, CameraRegistry cameras, MetricsRegistry metrics,
+                       ConnectionLimiter limiter) {
         this.port = port;
-        this.cameraHandler = cameraHandler;
+        this.cameras = cameras;
+        this.cameraHandler = cameras.getDefault();
+        this.metrics = metrics;
+        this.limiter = limiter;
         this.executorService = Executors.newCachedThreadPool();
+        this.stalledDisconnects = stalledDisconnectsCounter(metrics);
+    }
+
+    static Counter stalledDisconnectsCounter(MetricsRegistry metrics) {
+        return metrics.counter("ipcamera_clients_disconnected_total",
+                "Clients disconnected by the server", "reason=\"stalled\"");
+    }
+
+    static ConnectionLimiter unlimited(MetricsRegistry metrics) {
+        return new ConnectionLimiter(0, 0, 0, Collections.<String>emptySet(), metrics);
+    }
+
+    static void limitSendBuffer(Socket socket) {
+        try {
+            socket.setSendBufferSize(STREAM_SEND_BUFFER_BYTES);
+        } catch (SocketException e) {
+            Log.w(TAG, "Could not limit send buffer", e);
+        }
+    }
+
+    static String clientId(Socket socket) {
+        return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
     }
 
+    @Override
     public void start() {
         isRunning = true;
         executorService.execute(this::acceptConnections);
+        watchdog.scheduleWithFixedDelay(this::disconnectStalledClients,
+                WATCHDOG_INTERVAL_MS, WATCHDOG_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // A blocked write cannot time out on its own; closing the socket unblocks it
+    private void disconnectStalledClients() {
+        long now = System.nanoTime();
+        for (Map.Entry<Socket, WriteProgress> entry : watchedWrites.entrySet()) {
+            if (entry.getValue().isStalled(now)) {
+                Log.w(TAG, "Disconnecting stalled client " + clientId(entry.getKey()));
+                stalledDisconnects.increment();
+                watchedWrites.remove(entry.getKey());
+                try {
+                    entry.getKey().close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing stalled socket", e);
+                }
+            }
+        }
     }
 
     private void acceptConnections() {
@@ -40,8 +163,18 @@ public class MJPEGServer {
             while (isRunning) {
                 try {
                     Socket clientSocket = serverSocket.accept();
+                    ConnectionLimiter.Permit permit = limiter.tryAcquire(
+                            clientSocket.getInetAddress().getHostAddress());
+                    if (permit == null) {
+                        Log.w(TAG, "Turning away client " + clientSocket.getInetAddress());
+                        // Nothing has been written yet, so this fits the send buffer at once
+                        send(clientSocket,
+                                UNAVAILABLE_RESPONSE.getBytes(StandardCharsets.US_ASCII));
+                        clientSocket.close();
+                        continue;
+                    }
                     Log.i(TAG, "Client connected: " + clientSocket.getInetAddress());
-                    executorService.execute(() -> handleClient(clientSocket));
+                    executorService.execute(() -> handleClient(clientSocket, permit));
                 } catch (IOException e) {
                     if (isRunning) {
                         Log.e(TAG, "Error accepting connection", e);
@@ -53,94 +186,523 @@ public class MJPEGServer {
         }
     }
 
-    private void handleClient(Socket socket) {
+    private void handleClient(Socket socket, ConnectionLimiter.Permit permit) {
+        FrameBus snapshotBus = null;
+        HttpRequestParser parser = new HttpRequestParser();
+        ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        input.flip();
         try {
-            String request = readRequest(socket);
-            
-            if (request != null && request.startsWith("GET /video")) {
-                streamMJPEG(socket);
-            } else {
-                sendNotFound(socket);
+            HttpRequest request = readRequest(socket, parser, input, REQUEST_TIMEOUT_MS);
+            while (request != null && isRunning) {
+                boolean keepAlive = false;
+                CameraHandler camera = findCamera(cameras, request);
+                String profile = findProfile(request);
+                FrameBus frameBus = camera != null ? camera.getFrameBus(profile) : null;
+                FrameBus snapshotTarget = isGet(request, SNAPSHOT_PATH)
+                        ? cameraHandler.getFrameBus(findProfile(request)) : null;
+                SegmentRecorder.Clip clip = findClip(request, cameraHandler.getRecorder());
+
+                if (frameBus != null) {
+                    ClientSession session = camera.getRateController(profile)
+                            .openSession(clientId(socket));
+                    permit.limit(session);
+                    streamMJPEG(socket, frameBus, session);
+                } else if (isGet(request, "/metrics")) {
+                    sendMetrics(socket);
+                } else if (isConfigRequest(request)) {
+                    send(socket, configResponse(cameraHandler, request));
+                } else if (isGet(request, "/h264") && cameraHandler.getH264Stream() != null) {
+                    streamH264(socket, cameraHandler.getH264Stream());
+                } else if (isGet(request, "/events")) {
+                    streamEvents(socket, cameraHandler.getEvents(), request);
+                } else if (isGet(request, "/clips") && cameraHandler.getRecorder() != null) {
+                    send(socket, clipsResponse(cameraHandler.getRecorder()));
+                } else if (clip != null) {
+                    replayClip(socket, cameraHandler.getRecorder().replay(clip));
+                } else if (snapshotTarget != null) {
+                    // Stay subscribed while a poller is connected so frames keep coming
+                    if (snapshotTarget != snapshotBus) {
+                        snapshotTarget.subscribe();
+                        if (snapshotBus != null) {
+                            snapshotBus.unsubscribe();
+                        }
+                        snapshotBus = snapshotTarget;
+                    }
+                    keepAlive = sendSnapshot(socket, request, snapshotTarget);
+                } else {
+                    sendNotFound(socket);
+                }
+
+                // Only snapshot responses keep the connection open
+                request = keepAlive
+                        ? readRequest(socket, parser, input, KEEP_ALIVE_TIMEOUT_MS) : null;
+            }
+        } catch (HttpRequestParser.InvalidRequestException e) {
+            Log.w(TAG, "Rejecting request: " + e.getMessage());
+            sendError(socket, e.getStatus(), e.getReason());
+        } catch (SocketTimeoutException e) {
+            if (parser.isStarted()) {
+                sendError(socket, 408, "Request Timeout");
             }
         } catch (Exception e) {
             Log.e(TAG, "Error handling client", e);
         } finally {
+            if (snapshotBus != null) {
+                snapshotBus.unsubscribe();
+            }
             try {
                 socket.close();
             } catch (IOException e) {
                 Log.e(TAG, "Error closing socket", e);
             }
+            permit.close();
+        }
+    }
+
+    static boolean isConfigRequest(HttpRequest request) {
+        return request != null && CONFIG_PATH.equals(request.getPath())
+                && ("GET".equals(request.getMethod()) || "POST".equals(request.getMethod()));
+    }
+
+    static boolean isGet(HttpRequest request, String path) {
+        return request != null && "GET".equals(request.getMethod())
+                && path.equals(request.getPath());
+    }
+
+    /**
+     * Returns the camera a {@code GET /video[/cameraId]} request is for, or
+     * null for other requests and cameras that are not streamed.
+     */
+    static CameraHandler findCamera(CameraRegistry cameras, HttpRequest request) {
+        if (request == null || !"GET".equals(request.getMethod())) {
+            return null;
+        }
+        return findCamera(cameras, request.getPath());
+    }
+
+    /** Returns the camera streamed at {@code path}, or null. */
+    static CameraHandler findCamera(CameraRegistry cameras, String path) {
+        if (path.equals(VIDEO_PATH)) {
+            return cameras.getDefault();
+        }
+        if (path.startsWith(VIDEO_PATH + "/")) {
+            return cameras.get(path.substring(VIDEO_PATH.length() + 1));
+        }
+        return null;
+    }
+
+    /** The profile named by a {@code ?profile=name} query, the default profile without one. */
+    static String findProfile(HttpRequest request) {
+        String profile = request.getQueryParameter("profile");
+        return profile != null ? profile : StreamProfile.DEFAULT;
+    }
+
+    /** Returns the newest frame if it is recent enough to serve as a snapshot, else null. */
+    static Frame freshFrame(FrameBus frameBus, long now) {
+        Frame latest = frameBus.getLatestFrame();
+        if (latest == null || latest.getPayloadLength() == 0 || latest.isPlaceholder()
+                || now - latest.getPublishedAtNanos() > SNAPSHOT_MAX_AGE_NANOS) {
+            return null;
+        }
+        return latest;
+    }
+
+    /** True while the camera is down and clients are shown a placeholder instead. */
+    static boolean isShowingPlaceholder(FrameBus frameBus) {
+        Frame latest = frameBus.getLatestFrame();
+        return latest != null && latest.isPlaceholder();
+    }
+
+    // The publish time tells frames apart across restarts, which reset the sequence
+    static String etag(Frame frame) {
+        return "\"" + frame.getSequence() + "-"
+                + Long.toHexString(frame.getPublishedAtNanos()) + "\"";
+    }
+
+    static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
         }
+        return false;
     }
 
-    private String readRequest(Socket socket) {
+    /**
+     * Status line and headers for a snapshot of {@code frame}: 304 if the
+     * client already has it, otherwise 200 followed by the JPEG payload.
+     * {@code X-Frame-Age} tells how many milliseconds ago it was captured.
+     */
+    static byte[] snapshotHeaders(Frame frame, boolean notModified, boolean keepAlive) {
+        StringBuilder headers = new StringBuilder(192);
+        if (notModified) {
+            headers.append("HTTP/1.1 304 Not Modified\r\n");
+        } else {
+            headers.append("HTTP/1.1 200 OK\r\n")
+                    .append("Content-Type: image/jpeg\r\n")
+                    .append("Content-Length: ").append(frame.getPayloadLength()).append("\r\n");
+        }
+        long ageMillis = TimeUnit.NANOSECONDS.toMillis(
+                System.nanoTime() - frame.getCaptureNanos());
+        headers.append("ETag: ").append(etag(frame)).append("\r\n")
+                .append("X-Frame-Age: ").append(ageMillis).append("\r\n")
+                .append("Cache-Control: no-cache\r\n")
+                .append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n")
+                .append("\r\n");
+        return headers.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** Where a new {@code /events} client starts, honouring {@code Last-Event-ID} on reconnect. */
+    static long eventResumeId(EventStream events, HttpRequest request) {
+        String lastEventId = request.getHeader("Last-Event-ID");
+        if (lastEventId != null) {
+            try {
+                return Long.parseLong(lastEventId.trim());
+            } catch (NumberFormatException e) {
+                // Fall back to the newest event
+            }
+        }
+        return events.getResumeId();
+    }
+
+    /** Returns the clip named by a {@code GET /clips/{id}} request, or null. */
+    static SegmentRecorder.Clip findClip(HttpRequest request, SegmentRecorder recorder) {
+        if (recorder == null || request == null || !"GET".equals(request.getMethod())
+                || !request.getPath().startsWith("/clips/")) {
+            return null;
+        }
         try {
-            byte[] buffer = new byte[1024];
-            int bytesRead = socket.getInputStream().read(buffer);
-            if (bytesRead > 0) {
-                return new String(buffer, 0, bytesRead);
+            return recorder.getClip(Long.parseLong(request.getPath().substring(7)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static byte[] clipsResponse(SegmentRecorder recorder) {
+        StringBuilder json = new StringBuilder("[");
+        for (SegmentRecorder.Clip clip : recorder.getClips()) {
+            if (json.length() > 1) {
+                json.append(',');
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Error reading request", e);
+            json.append("{\"id\":").append(clip.getId())
+                    .append(",\"start\":").append(clip.getStartMillis())
+                    .append(",\"end\":").append(clip.getEndMillis())
+                    .append(",\"frames\":").append(clip.getFrames())
+                    .append(",\"url\":\"/clips/").append(clip.getId()).append("\"}");
         }
-        return null;
+        json.append(']');
+        return response(JSON_HEADERS, json.toString());
     }
 
-    private void streamMJPEG(Socket socket) {
+    /**
+     * Answers {@code GET /config} with the configuration in effect, and
+     * {@code POST /config?name=value...} by applying the settings first.
+     * Changes without a {@link #CONFIG_CHANGE_HEADER} are refused.
+     */
+    static byte[] configResponse(CameraHandler cameraHandler, HttpRequest request) {
+        StreamConfig config = cameraHandler.getConfig();
+        if ("POST".equals(request.getMethod())) {
+            if (request.getHeader(CONFIG_CHANGE_HEADER) == null) {
+                return response(FORBIDDEN_HEADERS,
+                        CONFIG_CHANGE_HEADER + " header required to change settings\n");
+            }
+            try {
+                config = cameraHandler.reconfigure(request.getQueryParameters());
+            } catch (IllegalArgumentException e) {
+                return response(BAD_REQUEST_HEADERS, e.getMessage() + "\n");
+            }
+        }
+        return response(JSON_HEADERS, config.toJson());
+    }
+
+    static byte[] metricsResponse(MetricsRegistry metrics) {
+        return response(METRICS_HEADERS, metrics.render());
+    }
+
+    private static byte[] response(String headers, String body) {
+        byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        byte[] head = (headers + "Content-Length: " + content.length + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        byte[] response = new byte[head.length + content.length];
+        System.arraycopy(head, 0, response, 0, head.length);
+        System.arraycopy(content, 0, response, head.length, content.length);
+        return response;
+    }
+
+    /**
+     * Reads the next request head from {@code socket}, keeping any bytes that
+     * follow it in {@code input} for the next call. The client gets
+     * {@code idleTimeoutMs} to start a request and {@link #REQUEST_TIMEOUT_MS}
+     * to finish it once started.
+     *
+     * @return the request, or null if the client closed the connection between requests
+     */
+    private static HttpRequest readRequest(Socket socket, HttpRequestParser parser,
+                                           ByteBuffer input, int idleTimeoutMs)
+            throws IOException {
+        InputStream in = socket.getInputStream();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+        boolean started = false;
+        while (true) {
+            HttpRequest request = parser.parse(input);
+            if (request != null) {
+                return request;
+            }
+            if (!started && parser.isStarted()) {
+                started = true;
+                deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REQUEST_TIMEOUT_MS);
+            }
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMs <= 0) {
+                throw new SocketTimeoutException("Request not received in time");
+            }
+            socket.setSoTimeout((int) remainingMs);
+
+            // The parser has consumed everything, so refill from the start
+            input.clear();
+            int bytesRead = in.read(input.array(), 0, input.capacity());
+            if (bytesRead < 0) {
+                if (started) {
+                    throw new EOFException("Connection closed mid-request");
+                }
+                return null;
+            }
+            input.limit(bytesRead);
+        }
+    }
+
+    /**
+     * Has the watchdog look after a long-running response on {@code socket}
+     * and returns the stream to write it to, until {@link #unwatch}.
+     */
+    private OutputStream watch(Socket socket, WriteProgress progress) throws IOException {
+        watchedWrites.put(socket, progress);
+        return progress.track(socket.getOutputStream());
+    }
+
+    private void unwatch(Socket socket) {
+        watchedWrites.remove(socket);
+    }
+
+    private void streamMJPEG(Socket socket, FrameBus frameBus, ClientSession session) {
+        frameBus.subscribe();
+        limitSendBuffer(socket);
         try {
-            OutputStream output = socket.getOutputStream();
+            // Parts go out in chunks, so a client that reads slowly but steadily
+            // keeps showing progress within the frame
+            OutputStream output = watch(socket, session.getWriteProgress());
             
             // Send HTTP headers for MJPEG stream
-            String headers = "HTTP/1.1 200 OK\r\n" +
-                    "Content-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY + "\r\n" +
-                    "Cache-Control: no-cache\r\n" +
-                    "Connection: close\r\n" +
-                    "\r\n";
-            output.write(headers.getBytes());
+            output.write(STREAM_HEADERS.getBytes());
             output.flush();
             
             Log.i(TAG, "Started streaming to client");
             
-            // Stream frames
-            while (isRunning && !socket.isClosed()) {
-                byte[] frame = cameraHandler.getLatestFrame();
+            // Stream frames as they are published, never sending the same one twice.
+            // Whatever is published while a write is in progress is dropped except
+            // the newest frame, so a slow client never holds back anyone else.
+            long lastSequence = 0;
+            while (isRunning && !socket.isClosed() && !frameBus.isClosed()) {
+                Frame published = frameBus.awaitFrame(lastSequence, FRAME_WAIT_TIMEOUT_MS);
+                if (published == null) {
+                    continue;
+                }
+                long delayNanos = session.getFrameDelayNanos(System.nanoTime());
+                if (delayNanos > 0) {
+                    // Rate-limited client; send whatever is newest once it is due
+                    TimeUnit.NANOSECONDS.sleep(delayNanos);
+                    published = frameBus.getLatestFrame();
+                }
+                lastSequence = published.getSequence();
                 
-                if (frame != null && frame.length > 0) {
-                    String frameHeader = "--" + BOUNDARY + "\r\n" +
-                            "Content-Type: image/jpeg\r\n" +
-                            "Content-Length: " + frame.length + "\r\n" +
-                            "\r\n";
-                    
-                    output.write(frameHeader.getBytes());
-                    output.write(frame);
-                    output.write("\r\n".getBytes());
+                if (published.getPayloadLength() > 0) {
+                    session.beginWrite();
+                    published.writePartTo(output);
                     output.flush();
+                    session.recordFrame(published);
                 }
-                
-                Thread.sleep(FRAME_DELAY_MS);
             }
             
-            Log.i(TAG, "Stopped streaming to client");
+            Log.i(TAG, "Stopped streaming to client after "
+                    + String.format("%.1f", session.getDeliveredFps()) + " fps, "
+                    + session.getFramesDropped() + " frames dropped");
             
         } catch (IOException | InterruptedException e) {
             Log.e(TAG, "Error streaming MJPEG", e);
+        } finally {
+            unwatch(socket);
+            session.close();
+            frameBus.unsubscribe();
+        }
+    }
+
+    private void streamH264(Socket socket, H264Stream stream) {
+        try {
+            OutputStream output = watch(socket, new WriteProgress());
+            output.write(H264_HEADERS.getBytes());
+            output.flush();
+
+            Log.i(TAG, "Started H.264 streaming to client");
+
+            // Access units must go out in order; a client that falls behind
+            // is resumed from the newest key frame, preceded by SPS/PPS
+            long lastSequence = 0;
+            while (isRunning && !socket.isClosed() && !stream.isClosed()) {
+                H264Stream.AccessUnit unit = stream.awaitNext(lastSequence, FRAME_WAIT_TIMEOUT_MS);
+                if (unit == null) {
+                    continue;
+                }
+                boolean resync = unit.getSequence() != lastSequence + 1 || lastSequence == 0;
+                byte[] config = stream.getCodecConfig();
+                if (resync && config != null) {
+                    output.write(config);
+                }
+                output.write(unit.getData());
+                output.flush();
+                lastSequence = unit.getSequence();
+            }
+
+            Log.i(TAG, "Stopped H.264 streaming to client");
+
+        } catch (IOException | InterruptedException e) {
+            Log.e(TAG, "Error streaming H.264", e);
+        } finally {
+            unwatch(socket);
+        }
+    }
+
+    /** Returns true if the connection should be kept open for another request. */
+    private boolean sendSnapshot(Socket socket, HttpRequest request, FrameBus frameBus)
+            throws IOException, InterruptedException {
+        OutputStream output = socket.getOutputStream();
+        Frame frame = freshFrame(frameBus, System.nanoTime());
+        if (frame == null && !isShowingPlaceholder(frameBus)) {
+            // Nothing recent was encoded, e.g. because nobody was watching
+            Frame latest = frameBus.getLatestFrame();
+            frame = frameBus.awaitFrame(latest != null ? latest.getSequence() : 0,
+                    SNAPSHOT_WAIT_MS);
+        }
+        if (frame == null || frame.getPayloadLength() == 0 || frame.isPlaceholder()) {
+            // The camera is down or nobody has started it
+            output.write(UNAVAILABLE_RESPONSE.getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+            return false;
+        }
+        boolean notModified = etagMatches(request.getHeader("If-None-Match"), etag(frame));
+        boolean keepAlive = request.isKeepAlive();
+        output.write(snapshotHeaders(frame, notModified, keepAlive));
+        if (!notModified) {
+            frame.writePayloadTo(output);
+        }
+        output.flush();
+        return keepAlive;
+    }
+
+    private void streamEvents(Socket socket, EventStream events, HttpRequest request) {
+        try {
+            OutputStream output = watch(socket, new WriteProgress());
+            output.write(EventStream.HEADERS.getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+
+            Log.i(TAG, "Started sending events to client");
+
+            long lastId = eventResumeId(events, request);
+            while (isRunning && !socket.isClosed() && !events.isClosed()) {
+                EventStream.Event event = events.awaitNext(lastId, EVENTS_KEEP_ALIVE_MS);
+                if (event == null) {
+                    // Also notices clients that went away without closing
+                    output.write(EventStream.KEEP_ALIVE.getBytes(StandardCharsets.US_ASCII));
+                } else {
+                    output.write(event.getEncoded());
+                    lastId = event.getId();
+                }
+                output.flush();
+            }
+
+            Log.i(TAG, "Stopped sending events to client");
+
+        } catch (IOException | InterruptedException e) {
+            Log.e(TAG, "Error sending events", e);
+        } finally {
+            unwatch(socket);
+        }
+    }
+
+    /** Replays a recorded clip as an MJPEG stream at the speed it was recorded. */
+    private void replayClip(Socket socket, SegmentRecorder.Replay replay) {
+        try {
+            OutputStream output = watch(socket, new WriteProgress());
+            output.write(STREAM_HEADERS.getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+            // Stored frames are complete multipart parts and go out unchanged
+            WritableByteChannel channel = Channels.newChannel(output);
+            long startedAt = System.nanoTime();
+            long firstMillis = -1;
+            while (isRunning && replay.next()) {
+                if (firstMillis < 0) {
+                    firstMillis = replay.getTimestampMillis();
+                }
+                long delayMs = replay.getTimestampMillis() - firstMillis
+                        - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+                if (delayMs > 0) {
+                    Thread.sleep(delayMs);
+                }
+                replay.transferFullyTo(channel);
+                output.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            Log.e(TAG, "Error replaying clip", e);
+        } finally {
+            unwatch(socket);
+        }
+    }
+
+    private void sendMetrics(Socket socket) {
+        send(socket, metricsResponse(metrics));
+    }
+
+    private void send(Socket socket, byte[] response) {
+        try {
+            socket.getOutputStream().write(response);
+            socket.getOutputStream().flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Error sending response", e);
+        }
+    }
+
+    static byte[] errorResponse(int status, String reason) {
+        return ("HTTP/1.1 " + status + " " + reason + "\r\n" +
+                "Content-Length: 0\r\n" +
+                "Connection: close\r\n" +
+                "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void sendError(Socket socket, int status, String reason) {
+        try {
+            socket.getOutputStream().write(errorResponse(status, reason));
+            socket.getOutputStream().flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Error sending " + status, e);
         }
     }
 
     private void sendNotFound(Socket socket) {
         try {
-            String response = "HTTP/1.1 404 Not Found\r\n" +
-                    "Content-Type: text/plain\r\n" +
-                    "Content-Length: 9\r\n" +
-                    "\r\n" +
-                    "Not Found";
-            socket.getOutputStream().write(response.getBytes());
+            socket.getOutputStream().write(NOT_FOUND_RESPONSE.getBytes());
             socket.getOutputStream().flush();
         } catch (IOException e) {
             Log.e(TAG, "Error sending 404", e);
         }
     }
 
+    @Override
     public void stop() {
         isRunning = false;
         
@@ -153,6 +715,7 @@ public class MJPEGServer {
         }
         
         executorService.shutdown();
+        watchdog.shutdownNow();
         Log.i(TAG, "Server stopped");
     }
 }
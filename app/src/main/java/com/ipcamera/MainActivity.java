@@ -22,7 +22,6 @@ import java.net.UnknownHostException;
 
 public class MainActivity extends AppCompatActivity {
     private static final int PERMISSION_REQUEST_CODE = 100;
-    private static final int PORT = 8080;
     
     private Button startStopButton;
     private TextView ipAddressText;
@@ -89,7 +88,8 @@ public class MainActivity extends AppCompatActivity {
         startStopButton.setText("Stop Streaming");
         statusText.setText("Streaming Active");
         updateIPAddress();
-        Toast.makeText(this, "Streaming started on port " + PORT, Toast.LENGTH_SHORT).show();
+        Toast.makeText(this, "Streaming started on port " + StreamingService.PORT,
+                Toast.LENGTH_SHORT).show();
     }
 
     private void stopStreaming() {
@@ -106,7 +106,7 @@ public class MainActivity extends AppCompatActivity {
     private void updateIPAddress() {
         String ipAddress = getLocalIpAddress();
         if (ipAddress != null && isStreaming) {
-            String url = "http://" + ipAddress + ":" + PORT + "/video";
+            String url = "http://" + ipAddress + ":" + StreamingService.PORT + "/video";
             ipAddressText.setText("VLC URL:\n" + url);
         } else if (ipAddress != null) {
             ipAddressText.setText("Local IP: " + ipAddress + "\nPress Start to begin streaming");
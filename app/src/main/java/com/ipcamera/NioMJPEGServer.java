@@ -0,0 +1,667 @@
+package com.ipcamera;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming server that serves every viewer from a single I/O thread using a
+ * {@link Selector} and non-blocking writes. Every connection writes its own
+ * duplicate of the same pre-rendered frame buffer. A connection only ever has
+ * the frame it is writing in flight and picks up the newest one when done, so
+ * slow clients drop frames instead of delaying anyone else, and a client whose
+ * write makes no progress for {@link WriteProgress#STALL_TIMEOUT_NANOS} is closed.
+ */
+public class NioMJPEGServer implements StreamServer {
+    private static final String TAG = "NioMJPEGServer";
+    private static final int READ_BUFFER_SIZE = 1024;
+    private static final long SELECT_TIMEOUT_MS = 1000;
+    private static final long KEEP_ALIVE_TIMEOUT_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(MJPEGServer.KEEP_ALIVE_TIMEOUT_MS);
+    private static final long EVENTS_KEEP_ALIVE_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(MJPEGServer.EVENTS_KEEP_ALIVE_MS);
+    private static final long REQUEST_TIMEOUT_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(MJPEGServer.REQUEST_TIMEOUT_MS);
+
+    private final int port;
+    private final CameraRegistry cameras;
+    private final CameraHandler cameraHandler;
+    private final MetricsRegistry metrics;
+    private final ConnectionLimiter limiter;
+    private final Counter stalledDisconnects;
+    private final FrameBus.Listener frameListener = frame -> wakeup();
+    private final EventStream.Listener eventListener = event -> wakeup();
+    private final H264Stream.Listener accessUnitListener = unit -> wakeup();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread ioThread;
+    private long nextDueNanos = Long.MAX_VALUE;
+    private volatile boolean isRunning = false;
+
+    public NioMJPEGServer(int port, CameraRegistry cameras, MetricsRegistry metrics) {
+        this(port, cameras, metrics, MJPEGServer.unlimited(metrics));
+    }
+
+    /** @param limiter admits each connection and sets the rate limits of its stream */
+    public NioMJPEGServer(int port, CameraRegistry cameras, MetricsRegistry metrics,
+                          ConnectionLimiter limiter) {
+        this.port = port;
+        this.cameras = cameras;
+        this.cameraHandler = cameras.getDefault();
+        this.metrics = metrics;
+        this.limiter = limiter;
+        this.stalledDisconnects = MJPEGServer.stalledDisconnectsCounter(metrics);
+    }
+
+    @Override
+    public void start() {
+        isRunning = true;
+        ioThread = new Thread(this::run, "MJPEGServer-IO");
+        ioThread.start();
+    }
+
+    private void run() {
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            for (CameraHandler camera : cameras.getAll()) {
+                for (FrameBus frameBus : camera.getFrameBuses()) {
+                    frameBus.addListener(frameListener);
+                }
+            }
+            cameraHandler.getEvents().addListener(eventListener);
+            if (cameraHandler.getH264Stream() != null) {
+                cameraHandler.getH264Stream().addListener(accessUnitListener);
+            }
+            Log.i(TAG, "Server started on port " + port);
+
+            while (isRunning) {
+                selector.select(selectTimeoutMs());
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if (key.isReadable()) {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                        }
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+                dispatchLatestFrame();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error running server", e);
+        } finally {
+            for (CameraHandler camera : cameras.getAll()) {
+                for (FrameBus frameBus : camera.getFrameBuses()) {
+                    frameBus.removeListener(frameListener);
+                }
+            }
+            cameraHandler.getEvents().removeListener(eventListener);
+            if (cameraHandler.getH264Stream() != null) {
+                cameraHandler.getH264Stream().removeListener(accessUnitListener);
+            }
+            closeAll();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection();
+        connection.permit = limiter.tryAcquire(channel.socket().getInetAddress().getHostAddress());
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+        if (connection.permit == null) {
+            Log.w(TAG, "Turning away client " + channel.socket().getInetAddress());
+            connection.closeWhenDone = true;
+            connection.queue(ByteBuffer.wrap(
+                    MJPEGServer.UNAVAILABLE_RESPONSE.getBytes(StandardCharsets.US_ASCII)));
+            try {
+                write(key);
+            } catch (IOException e) {
+                close(key);
+            }
+            return;
+        }
+        Log.i(TAG, "Client connected: " + channel.socket().getInetAddress());
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        if (connection.streaming || connection.events != null || connection.replay != null
+                || connection.h264 != null || connection.closeWhenDone) {
+            // Last request already handled; anything else the client sends is ignored
+            ByteBuffer discard = ByteBuffer.allocate(256);
+            if (channel.read(discard) < 0) {
+                close(key);
+            }
+            return;
+        }
+        if (!connection.request.hasRemaining()) {
+            // Still answering earlier requests; resume reading once the response is out
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            return;
+        }
+
+        if (channel.read(connection.request) < 0) {
+            close(key);
+            return;
+        }
+        handleRequest(key);
+        if (connection.pending != null) {
+            write(key);
+        }
+    }
+
+    /** Parses the next buffered request, if complete, and queues its response. */
+    private void handleRequest(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        if (connection.pending != null || connection.snapshotRequest != null) {
+            return;
+        }
+        HttpRequest parsed;
+        connection.request.flip();
+        try {
+            parsed = connection.parser.parse(connection.request);
+        } catch (HttpRequestParser.InvalidRequestException e) {
+            Log.w(TAG, "Rejecting request: " + e.getMessage());
+            connection.closeWhenDone = true;
+            connection.queue(ByteBuffer.wrap(
+                    MJPEGServer.errorResponse(e.getStatus(), e.getReason())));
+            return;
+        } finally {
+            // Anything pipelined after this request stays for the next round
+            connection.request.compact();
+        }
+        if (parsed == null) {
+            if (connection.parser.isStarted() && !connection.requestStarted) {
+                connection.requestStarted = true;
+                connection.deadlineNanos = System.nanoTime() + REQUEST_TIMEOUT_NANOS;
+            }
+            return;
+        }
+        connection.requestStarted = false;
+
+        CameraHandler camera = MJPEGServer.findCamera(cameras, parsed);
+        String profile = MJPEGServer.findProfile(parsed);
+        FrameBus frameBus = camera != null ? camera.getFrameBus(profile) : null;
+        FrameBus snapshotBus = MJPEGServer.isGet(parsed, MJPEGServer.SNAPSHOT_PATH)
+                ? cameraHandler.getFrameBus(MJPEGServer.findProfile(parsed)) : null;
+        SegmentRecorder.Clip clip = MJPEGServer.findClip(parsed, cameraHandler.getRecorder());
+        if (frameBus != null) {
+            connection.frameBus = frameBus;
+            connection.session = camera.getRateController(profile)
+                    .openSession(MJPEGServer.clientId(channel.socket()));
+            connection.permit.limit(connection.session);
+            connection.progress = connection.session.getWriteProgress();
+            connection.streaming = true;
+            MJPEGServer.limitSendBuffer(channel.socket());
+            frameBus.subscribe();
+            connection.queue(ByteBuffer.wrap(
+                    MJPEGServer.STREAM_HEADERS.getBytes(StandardCharsets.US_ASCII)));
+            Log.i(TAG, "Started streaming to client");
+        } else if (snapshotBus != null) {
+            connection.watchSnapshots(snapshotBus);
+            connection.snapshotRequest = parsed;
+            connection.snapshotDeadlineNanos = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(MJPEGServer.SNAPSHOT_WAIT_MS);
+            respondWithSnapshot(connection, System.nanoTime());
+        } else if (MJPEGServer.isGet(parsed, "/h264") && cameraHandler.getH264Stream() != null) {
+            connection.h264 = cameraHandler.getH264Stream();
+            MJPEGServer.limitSendBuffer(channel.socket());
+            connection.queue(ByteBuffer.wrap(
+                    MJPEGServer.H264_HEADERS.getBytes(StandardCharsets.US_ASCII)));
+            Log.i(TAG, "Started H.264 streaming to client");
+        } else if (MJPEGServer.isGet(parsed, "/events")) {
+            connection.events = cameraHandler.getEvents();
+            connection.lastEventId = MJPEGServer.eventResumeId(connection.events, parsed);
+            connection.queue(ByteBuffer.wrap(
+                    EventStream.HEADERS.getBytes(StandardCharsets.US_ASCII)));
+        } else if (MJPEGServer.isGet(parsed, "/clips") && cameraHandler.getRecorder() != null) {
+            connection.closeWhenDone = true;
+            connection.queue(ByteBuffer.wrap(
+                    MJPEGServer.clipsResponse(cameraHandler.getRecorder())));
+        } else if (clip != null) {
+            connection.replay = cameraHandler.getRecorder().replay(clip);
+            connection.queue(ByteBuffer.wrap(
+                    MJPEGServer.STREAM_HEADERS.getBytes(StandardCharsets.US_ASCII)));
+        } else if (MJPEGServer.isGet(parsed, "/metrics")) {
+            connection.closeWhenDone = true;
+            connection.queue(ByteBuffer.wrap(MJPEGServer.metricsResponse(metrics)));
+        } else if (MJPEGServer.isConfigRequest(parsed)) {
+            connection.closeWhenDone = true;
+            connection.queue(ByteBuffer.wrap(MJPEGServer.configResponse(cameraHandler, parsed)));
+        } else {
+            connection.closeWhenDone = true;
+            connection.queue(ByteBuffer.wrap(
+                    MJPEGServer.NOT_FOUND_RESPONSE.getBytes(StandardCharsets.US_ASCII)));
+        }
+    }
+
+    /**
+     * Queues the response to a pending snapshot request once a fresh frame is
+     * available, or a 503 after waiting too long.
+     *
+     * @return true if a response was queued
+     */
+    private boolean respondWithSnapshot(Connection connection, long now) {
+        Frame frame = MJPEGServer.freshFrame(connection.snapshotBus, now);
+        if (frame == null) {
+            if (now - connection.snapshotDeadlineNanos < 0
+                    && !MJPEGServer.isShowingPlaceholder(connection.snapshotBus)) {
+                return false;
+            }
+            connection.snapshotRequest = null;
+            connection.closeWhenDone = true;
+            connection.queue(ByteBuffer.wrap(
+                    MJPEGServer.UNAVAILABLE_RESPONSE.getBytes(StandardCharsets.US_ASCII)));
+            return true;
+        }
+        HttpRequest request = connection.snapshotRequest;
+        connection.snapshotRequest = null;
+        boolean notModified = MJPEGServer.etagMatches(
+                request.getHeader("If-None-Match"), MJPEGServer.etag(frame));
+        boolean keepAlive = request.isKeepAlive();
+        connection.closeWhenDone = !keepAlive;
+        ByteBuffer headers = ByteBuffer.wrap(
+                MJPEGServer.snapshotHeaders(frame, notModified, keepAlive));
+        if (notModified) {
+            connection.queue(headers);
+        } else {
+            connection.queue(headers, frame.getPayloadBuffer());
+        }
+        return true;
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        if (connection.pending == null && connection.replay != null) {
+            writeReplay(key, connection);
+            return;
+        }
+        if (connection.pending == null && connection.streaming) {
+            queueLatestFrame(connection);
+        }
+        while (connection.pending != null) {
+            long written = channel.write(connection.pending);
+            if (connection.pending[connection.pending.length - 1].hasRemaining()) {
+                connection.recordPartialWrite(written > 0);
+                // Socket buffer is full; resume when the selector says it drained
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            connection.pending = null;
+            connection.progress.end();
+            // For event streams this is when the next keep-alive comment is due
+            connection.deadlineNanos = System.nanoTime() + (connection.events != null
+                    ? EVENTS_KEEP_ALIVE_NANOS : KEEP_ALIVE_TIMEOUT_NANOS);
+            if (connection.frame != null) {
+                connection.session.recordFrame(connection.frame);
+                connection.frame = null;
+            }
+            if (connection.closeWhenDone) {
+                close(key);
+                return;
+            }
+            if (connection.replay != null) {
+                writeReplay(key, connection);
+                return;
+            }
+            if (connection.streaming) {
+                queueLatestFrame(connection);
+            } else if (connection.h264 != null) {
+                queueNextAccessUnit(connection);
+            } else if (connection.events != null) {
+                queueNextEvent(connection, System.nanoTime());
+            } else {
+                // Serve the next request on a kept-alive connection
+                handleRequest(key);
+            }
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    // Wakes up in time for the next replayed or rate-limited frame that falls due
+    private long selectTimeoutMs() {
+        if (nextDueNanos == Long.MAX_VALUE) {
+            return SELECT_TIMEOUT_MS;
+        }
+        long remainingMs = TimeUnit.NANOSECONDS.toMillis(nextDueNanos - System.nanoTime());
+        return Math.max(1, Math.min(SELECT_TIMEOUT_MS, remainingMs));
+    }
+
+    private void dispatchLatestFrame() {
+        long now = System.nanoTime();
+        nextDueNanos = Long.MAX_VALUE;
+        for (SelectionKey key : selector.keys()) {
+            if (!key.isValid() || !(key.attachment() instanceof Connection)) {
+                continue;
+            }
+            Connection connection = (Connection) key.attachment();
+            if (connection.progress.isStalled(now)) {
+                Log.w(TAG, "Disconnecting stalled client");
+                stalledDisconnects.increment();
+                close(key);
+                continue;
+            }
+            if (connection.snapshotRequest != null) {
+                if (respondWithSnapshot(connection, now)) {
+                    try {
+                        write(key);
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+                continue;
+            }
+            if (connection.replay != null) {
+                if (connection.pending == null && connection.replayLoaded
+                        && now - connection.replayDueNanos >= 0) {
+                    try {
+                        write(key);
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+                if (connection.replayLoaded && key.isValid()) {
+                    nextDueNanos = Math.min(nextDueNanos, connection.replayDueNanos);
+                }
+                continue;
+            }
+            if (connection.h264 != null) {
+                if (connection.h264.isClosed()) {
+                    close(key);
+                } else if (connection.pending == null) {
+                    queueNextAccessUnit(connection);
+                    try {
+                        write(key);
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+                continue;
+            }
+            if (connection.events != null) {
+                if (connection.pending == null) {
+                    queueNextEvent(connection, now);
+                    try {
+                        write(key);
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+                continue;
+            }
+            if (!connection.streaming && connection.pending == null
+                    && now - connection.deadlineNanos > 0) {
+                // Idle between requests, or too slow sending one
+                if (!connection.parser.isStarted()) {
+                    close(key);
+                    continue;
+                }
+                connection.closeWhenDone = true;
+                connection.queue(ByteBuffer.wrap(MJPEGServer.errorResponse(408, "Request Timeout")));
+                try {
+                    write(key);
+                } catch (IOException e) {
+                    close(key);
+                }
+                continue;
+            }
+            if (!connection.streaming || connection.pending != null) {
+                continue;
+            }
+            long delayNanos = connection.session.getFrameDelayNanos(now);
+            if (delayNanos > 0) {
+                nextDueNanos = Math.min(nextDueNanos, now + delayNanos);
+                continue;
+            }
+            Frame latest = connection.frameBus.getLatestFrame();
+            if (latest != null && connection.lastSequence < latest.getSequence()) {
+                try {
+                    write(key);
+                } catch (IOException e) {
+                    close(key);
+                }
+            }
+        }
+    }
+
+    /** Sends replayed frames straight from the segment files as they fall due. */
+    private void writeReplay(SelectionKey key, Connection connection) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        while (true) {
+            if (!connection.replayLoaded) {
+                if (!connection.replay.next()) {
+                    close(key);
+                    return;
+                }
+                connection.replayLoaded = true;
+                if (connection.replayFirstMillis < 0) {
+                    connection.replayFirstMillis = connection.replay.getTimestampMillis();
+                    connection.replayStartNanos = System.nanoTime();
+                }
+                connection.replayDueNanos = connection.replayStartNanos
+                        + TimeUnit.MILLISECONDS.toNanos(connection.replay.getTimestampMillis()
+                                - connection.replayFirstMillis);
+            }
+            if (System.nanoTime() - connection.replayDueNanos < 0) {
+                // Picked up again by dispatchLatestFrame once due
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            long remaining = connection.replay.getRemaining();
+            if (!connection.replay.transferTo(channel)) {
+                connection.recordPartialWrite(connection.replay.getRemaining() < remaining);
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            connection.replayLoaded = false;
+            connection.progress.end();
+        }
+    }
+
+    private void queueNextEvent(Connection connection, long now) {
+        EventStream.Event event = connection.events.next(connection.lastEventId);
+        if (event != null) {
+            connection.lastEventId = event.getId();
+            connection.queue(event.getEncodedBuffer());
+        } else if (now - connection.deadlineNanos > 0) {
+            connection.queue(ByteBuffer.wrap(
+                    EventStream.KEEP_ALIVE.getBytes(StandardCharsets.US_ASCII)));
+        }
+    }
+
+    /**
+     * Queues the access unit after the last one sent. A client that falls
+     * out of the ring resumes from the newest key frame, preceded by SPS/PPS.
+     */
+    private void queueNextAccessUnit(Connection connection) {
+        H264Stream.AccessUnit unit = connection.h264.next(connection.lastSequence);
+        if (unit == null) {
+            return;
+        }
+        boolean resync = connection.lastSequence == 0
+                || unit.getSequence() != connection.lastSequence + 1;
+        connection.lastSequence = unit.getSequence();
+        byte[] config = connection.h264.getCodecConfig();
+        if (resync && config != null) {
+            connection.queue(ByteBuffer.wrap(config), ByteBuffer.wrap(unit.getData()));
+        } else {
+            connection.queue(ByteBuffer.wrap(unit.getData()));
+        }
+    }
+
+    private void queueLatestFrame(Connection connection) {
+        Frame latest = connection.frameBus.getLatestFrame();
+        if (latest == null || latest.getPayloadLength() == 0
+                || latest.getSequence() <= connection.lastSequence
+                || connection.session.getFrameDelayNanos(System.nanoTime()) > 0) {
+            return;
+        }
+        connection.lastSequence = latest.getSequence();
+        connection.frame = latest;
+        connection.session.beginWrite();
+        connection.queue(latest.getPartBuffer());
+    }
+
+    private void wakeup() {
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing channel", e);
+        }
+        if (!(key.attachment() instanceof Connection)) {
+            return;
+        }
+        Connection connection = (Connection) key.attachment();
+        if (connection.permit != null) {
+            connection.permit.close();
+        }
+        if (connection.snapshotBus != null) {
+            connection.snapshotBus.unsubscribe();
+            connection.snapshotBus = null;
+        }
+        if (connection.h264 != null) {
+            connection.h264 = null;
+            Log.i(TAG, "Stopped H.264 streaming to client");
+        }
+        if (connection.streaming) {
+            connection.streaming = false;
+            connection.frameBus.unsubscribe();
+            connection.session.close();
+            Log.i(TAG, "Stopped streaming to client after "
+                    + String.format("%.1f", connection.session.getDeliveredFps()) + " fps, "
+                    + connection.session.getFramesDropped() + " frames dropped");
+        }
+    }
+
+    private void closeAll() {
+        if (selector != null) {
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing selector", e);
+            }
+        }
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing server socket", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        isRunning = false;
+        wakeup();
+        if (ioThread != null) {
+            try {
+                ioThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            ioThread = null;
+        }
+        Log.i(TAG, "Server stopped");
+    }
+
+    private static final class Connection {
+        final HttpRequestParser parser = new HttpRequestParser();
+        // Null for a connection turned away by the limiter
+        ConnectionLimiter.Permit permit;
+        ByteBuffer request = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        boolean requestStarted = false;
+        long deadlineNanos = System.nanoTime() + REQUEST_TIMEOUT_NANOS;
+        ByteBuffer[] pending;
+        FrameBus frameBus;
+        ClientSession session;
+        // Of the write in flight; a stream shares its session's
+        WriteProgress progress = new WriteProgress();
+        Frame frame;
+        // Of the last frame or, on an H.264 stream, access unit queued
+        long lastSequence = 0;
+        boolean streaming = false;
+        boolean closeWhenDone = false;
+        FrameBus snapshotBus;
+        HttpRequest snapshotRequest;
+        long snapshotDeadlineNanos;
+        H264Stream h264;
+        EventStream events;
+        long lastEventId;
+        SegmentRecorder.Replay replay;
+        boolean replayLoaded = false;
+        long replayFirstMillis = -1;
+        long replayStartNanos;
+        long replayDueNanos;
+
+        void queue(ByteBuffer... buffers) {
+            pending = buffers;
+        }
+
+        // The socket buffer filled up before the write was done
+        void recordPartialWrite(boolean moved) {
+            if (!progress.isWriting()) {
+                progress.begin(System.nanoTime());
+            } else if (moved) {
+                progress.progress();
+            }
+        }
+
+        // Stay subscribed while a poller is connected so frames keep coming
+        void watchSnapshots(FrameBus bus) {
+            if (bus != snapshotBus) {
+                bus.subscribe();
+                if (snapshotBus != null) {
+                    snapshotBus.unsubscribe();
+                }
+                snapshotBus = bus;
+            }
+        }
+    }
+}
@@ -0,0 +1,528 @@
+package com.ipcamera;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Records the frames published on one {@link FrameBus} into a fixed ring of
+ * memory-mapped segment files, overwriting the oldest segment when full.
+ * Frames are stored as the multipart parts they were published as, so a
+ * replay is a plain copy from file to socket.
+ *
+ * <p>Each segment file starts with a header and an index of
+ * {timestamp, offset, length, flags} entries, followed by the frame data.
+ * The index is ordered by time, so any instant is found with a binary
+ * search, and it is recovered on restart. Clips are derived from it: every
+ * frame recorded while the scene was moving pulls in {@code preMillis}
+ * before and {@code postMillis} after it, and overlapping windows merge.
+ */
+public class SegmentRecorder {
+    private static final String TAG = "SegmentRecorder";
+    private static final int MAGIC = 0x4D4A5347; // "MJSG"
+    // magic, segment number, frame count, index capacity
+    private static final int HEADER_BYTES = 20;
+    private static final int ENTRY_BYTES = 20;
+    private static final int FLAG_MOTION = 1;
+    private static final long FRAME_WAIT_TIMEOUT_MS = 1000;
+
+    /** A stretch of recording around detected motion, identified by its first motion frame. */
+    public static final class Clip {
+        private final long id;
+        private final long startMillis;
+        private final long endMillis;
+        private final int frames;
+
+        Clip(long id, long startMillis, long endMillis, int frames) {
+            this.id = id;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.frames = frames;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        public int getFrames() {
+            return frames;
+        }
+    }
+
+    private final File directory;
+    private final Segment[] ring;
+    private final long preMillis;
+    private final long postMillis;
+    private final BooleanSupplier motion;
+    private final Counter framesRecorded;
+    private final Counter bytesRecorded;
+    private FrameBus frameBus;
+    private Thread thread;
+    private volatile boolean isRunning = false;
+    private Segment current;
+    private long lastTimestamp = 0;
+
+    /**
+     * @param segmentBytes  size of each segment file, header and index included
+     * @param indexCapacity most frames a segment can hold
+     * @param motion        whether the scene is moving right now
+     */
+    public SegmentRecorder(File directory, int segments, int segmentBytes, int indexCapacity,
+                           long preMillis, long postMillis, BooleanSupplier motion,
+                           MetricsRegistry metrics) {
+        if (segmentBytes <= dataStart(indexCapacity)) {
+            throw new IllegalArgumentException("Segments are too small for their index");
+        }
+        this.directory = directory;
+        this.ring = new Segment[segments];
+        this.preMillis = preMillis;
+        this.postMillis = postMillis;
+        this.motion = motion;
+        for (int i = 0; i < segments; i++) {
+            ring[i] = new Segment(new File(directory, "segment-" + i + ".mjpeg"),
+                    segmentBytes, indexCapacity);
+        }
+        framesRecorded = metrics.counter("ipcamera_recorder_frames_total", "Frames recorded");
+        bytesRecorded = metrics.counter("ipcamera_recorder_bytes_total", "Bytes recorded");
+    }
+
+    private static int dataStart(int indexCapacity) {
+        return HEADER_BYTES + indexCapacity * ENTRY_BYTES;
+    }
+
+    /** Maps the segment files, keeping what they already hold, and starts recording. */
+    public void start(FrameBus frameBus) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        Segment newest = null;
+        for (Segment segment : ring) {
+            segment.open();
+            if (newest == null || segment.number > newest.number) {
+                newest = segment;
+            }
+            if (segment.count > 0) {
+                lastTimestamp = Math.max(lastTimestamp, segment.timestamp(segment.count - 1));
+            }
+        }
+        // Continue after the newest recovered segment rather than overwrite it
+        current = newest;
+        if (newest.count > 0) {
+            recycle(next(newest));
+        }
+
+        this.frameBus = frameBus;
+        // Recording needs encoded frames even when nobody is watching
+        frameBus.subscribe();
+        isRunning = true;
+        thread = new Thread(this::record, "SegmentRecorder");
+        thread.start();
+    }
+
+    private void record() {
+        long lastSequence = 0;
+        while (isRunning && !frameBus.isClosed()) {
+            try {
+                Frame frame = frameBus.awaitFrame(lastSequence, FRAME_WAIT_TIMEOUT_MS);
+                if (frame == null) {
+                    continue;
+                }
+                lastSequence = frame.getSequence();
+                if (frame.getPayloadLength() > 0 && !frame.isPlaceholder()) {
+                    append(frame, motion.getAsBoolean());
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error recording frame", e);
+            }
+        }
+    }
+
+    private void append(Frame frame, boolean moving) {
+        int length = frame.getPartLength();
+        if (!current.fits(length)) {
+            if (current.count == 0) {
+                // Would not fit into an empty segment either
+                return;
+            }
+            current.force();
+            recycle(next(current));
+        }
+        // Keep the index ordered even if the wall clock steps back
+        long timestamp = Math.max(lastTimestamp, System.currentTimeMillis());
+        lastTimestamp = timestamp;
+        current.append(frame.getPartBuffer(), timestamp, moving ? FLAG_MOTION : 0);
+        framesRecorded.increment();
+        bytesRecorded.add(length);
+    }
+
+    private Segment next(Segment segment) {
+        for (int i = 0; i < ring.length; i++) {
+            if (ring[i] == segment) {
+                return ring[(i + 1) % ring.length];
+            }
+        }
+        throw new IllegalStateException("Unknown segment");
+    }
+
+    private void recycle(Segment segment) {
+        long newest = 0;
+        for (Segment other : ring) {
+            newest = Math.max(newest, other.number);
+        }
+        segment.reset(newest + 1);
+        current = segment;
+    }
+
+    /** Segments holding frames, oldest first. */
+    private List<Segment> orderedSegments() {
+        List<Segment> segments = new ArrayList<>();
+        for (Segment segment : ring) {
+            if (segment.count > 0) {
+                segments.add(segment);
+            }
+        }
+        Collections.sort(segments, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                return Long.compare(a.number, b.number);
+            }
+        });
+        return segments;
+    }
+
+    /** Clips still held by the ring, oldest first. */
+    public List<Clip> getClips() {
+        List<Clip> clips = new ArrayList<>();
+        long first = -1;
+        long id = -1;
+        long start = 0;
+        long lastMotion = 0;
+        for (Segment segment : orderedSegments()) {
+            int count = segment.count;
+            for (int i = 0; i < count; i++) {
+                long timestamp = segment.timestamp(i);
+                if (first < 0) {
+                    first = timestamp;
+                }
+                if ((segment.flags(i) & FLAG_MOTION) == 0) {
+                    continue;
+                }
+                if (id >= 0 && timestamp - lastMotion > preMillis + postMillis) {
+                    clips.add(clip(id, start, lastMotion + postMillis));
+                    id = -1;
+                }
+                if (id < 0) {
+                    id = timestamp;
+                    start = Math.max(first, timestamp - preMillis);
+                }
+                lastMotion = timestamp;
+            }
+        }
+        if (id >= 0) {
+            clips.add(clip(id, start, lastMotion + postMillis));
+        }
+        return clips;
+    }
+
+    // Trims the window to the frames actually recorded in it
+    private Clip clip(long id, long fromMillis, long toMillis) {
+        long start = -1;
+        long end = fromMillis;
+        int frames = 0;
+        for (Segment segment : orderedSegments()) {
+            int count = segment.count;
+            for (int i = segment.search(fromMillis, count); i < count; i++) {
+                long timestamp = segment.timestamp(i);
+                if (timestamp > toMillis) {
+                    break;
+                }
+                if (start < 0) {
+                    start = timestamp;
+                }
+                end = timestamp;
+                frames++;
+            }
+        }
+        return new Clip(id, start < 0 ? fromMillis : start, end, frames);
+    }
+
+    /** Returns null if no clip with this id is still held by the ring. */
+    public Clip getClip(long id) {
+        for (Clip clip : getClips()) {
+            if (clip.getId() == id) {
+                return clip;
+            }
+        }
+        return null;
+    }
+
+    /** Cursor over the frames recorded during {@code clip}. */
+    public Replay replay(Clip clip) {
+        return new Replay(orderedSegments(), clip.getStartMillis(), clip.getEndMillis());
+    }
+
+    public void stop() {
+        isRunning = false;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        if (frameBus != null) {
+            frameBus.unsubscribe();
+            frameBus = null;
+        }
+        for (Segment segment : ring) {
+            segment.close();
+        }
+    }
+
+    /**
+     * Walks recorded frames in time order. A replay that the ring overtakes
+     * ends at the segment being overwritten.
+     */
+    public static final class Replay {
+        private final List<Segment> segments;
+        private final long[] numbers;
+        private final long endMillis;
+        private int segmentIndex;
+        private int entry;
+        private long timestamp;
+        private long position;
+        private long frameEnd;
+
+        Replay(List<Segment> segments, long startMillis, long endMillis) {
+            this.segments = segments;
+            this.numbers = new long[segments.size()];
+            for (int i = 0; i < numbers.length; i++) {
+                numbers[i] = segments.get(i).number;
+            }
+            this.endMillis = endMillis;
+            // Seek to the first frame at or after the start
+            for (segmentIndex = 0; segmentIndex < segments.size(); segmentIndex++) {
+                Segment segment = segments.get(segmentIndex);
+                int count = segment.count;
+                entry = segment.search(startMillis, count) - 1;
+                if (entry + 1 < count) {
+                    break;
+                }
+            }
+        }
+
+        /** Moves to the next frame; false at the end of the clip. */
+        public boolean next() {
+            while (segmentIndex < segments.size()) {
+                Segment segment = segments.get(segmentIndex);
+                if (segment.number != numbers[segmentIndex]) {
+                    return false;
+                }
+                if (entry + 1 < segment.count) {
+                    entry++;
+                    timestamp = segment.timestamp(entry);
+                    position = segment.offset(entry);
+                    frameEnd = position + segment.length(entry);
+                    return timestamp <= endMillis && segment.number == numbers[segmentIndex];
+                }
+                segmentIndex++;
+                entry = -1;
+            }
+            return false;
+        }
+
+        public long getTimestampMillis() {
+            return timestamp;
+        }
+
+        /** Bytes of the current frame that have not been sent yet. */
+        public long getRemaining() {
+            return frameEnd - position;
+        }
+
+        /**
+         * Sends what is left of the current frame straight from the segment
+         * file; a non-blocking target may take only part of it.
+         *
+         * @return true once the whole frame has been sent
+         */
+        public boolean transferTo(WritableByteChannel target) throws IOException {
+            transfer(target);
+            return position >= frameEnd;
+        }
+
+        /** Sends the whole current frame to a blocking target. */
+        public void transferFullyTo(WritableByteChannel target) throws IOException {
+            while (position < frameEnd) {
+                if (transfer(target) == 0) {
+                    // A blocking target takes everything, so the file is shorter than its index
+                    throw new IOException("Recording ends inside a frame");
+                }
+            }
+        }
+
+        private long transfer(WritableByteChannel target) throws IOException {
+            Segment segment = segments.get(segmentIndex);
+            checkSegment(segment);
+            long sent = segment.channel.transferTo(position, frameEnd - position, target);
+            // The recorder may have started reusing the segment while it was read
+            checkSegment(segment);
+            position += sent;
+            return sent;
+        }
+
+        private void checkSegment(Segment segment) throws IOException {
+            if (segment.number != numbers[segmentIndex]) {
+                throw new IOException("Recording was overwritten during replay");
+            }
+        }
+    }
+
+    private static final class Segment {
+        final File file;
+        final int size;
+        final int capacity;
+        FileChannel channel;
+        MappedByteBuffer map;
+        // Written by the recorder thread only; readers use entries below count
+        volatile long number;
+        volatile int count;
+        int dataEnd;
+
+        Segment(File file, int size, int capacity) {
+            this.file = file;
+            this.size = size;
+            this.capacity = capacity;
+        }
+
+        void open() throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            boolean fresh = raf.length() != size;
+            raf.setLength(size);
+            channel = raf.getChannel();
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (fresh || map.getInt(0) != MAGIC || map.getInt(16) != capacity) {
+                reset(0);
+                return;
+            }
+            // Keep entries only while they follow each other inside the file
+            int stored = Math.min(map.getInt(12), capacity);
+            int valid = 0;
+            long end = dataStart(capacity);
+            long previous = Long.MIN_VALUE;
+            while (valid < stored && offset(valid) == end && length(valid) > 0
+                    && end + length(valid) <= size && timestamp(valid) >= previous) {
+                end += length(valid);
+                previous = timestamp(valid);
+                valid++;
+            }
+            if (valid < stored) {
+                Log.w(TAG, "Recovered " + valid + " of " + stored + " frames from " + file);
+                map.putInt(12, valid);
+            }
+            number = map.getLong(4);
+            dataEnd = (int) end;
+            count = valid;
+        }
+
+        void reset(long newNumber) {
+            count = 0;
+            number = newNumber;
+            dataEnd = dataStart(capacity);
+            map.putInt(0, MAGIC);
+            map.putLong(4, newNumber);
+            map.putInt(12, 0);
+            map.putInt(16, capacity);
+        }
+
+        boolean fits(int length) {
+            return count < capacity && dataEnd + (long) length <= size;
+        }
+
+        void append(ByteBuffer part, long timestamp, int flags) {
+            int length = part.remaining();
+            map.position(dataEnd);
+            map.put(part);
+            int entry = HEADER_BYTES + count * ENTRY_BYTES;
+            map.putLong(entry, timestamp);
+            map.putInt(entry + 8, dataEnd);
+            map.putInt(entry + 12, length);
+            map.putInt(entry + 16, flags);
+            map.putInt(12, count + 1);
+            dataEnd += length;
+            // Readers only look at an entry once the count covers it
+            count = count + 1;
+        }
+
+        long timestamp(int entry) {
+            return map.getLong(HEADER_BYTES + entry * ENTRY_BYTES);
+        }
+
+        int offset(int entry) {
+            return map.getInt(HEADER_BYTES + entry * ENTRY_BYTES + 8);
+        }
+
+        int length(int entry) {
+            return map.getInt(HEADER_BYTES + entry * ENTRY_BYTES + 12);
+        }
+
+        int flags(int entry) {
+            return map.getInt(HEADER_BYTES + entry * ENTRY_BYTES + 16);
+        }
+
+        /** Index of the first of the first {@code count} entries at or after {@code millis}. */
+        int search(long millis, int count) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (timestamp(mid) < millis) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        void force() {
+            if (map != null) {
+                map.force();
+            }
+        }
+
+        void close() {
+            force();
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing " + file, e);
+            }
+        }
+    }
+}
@@ -5,21 +5,70 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
+import java.io.File;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
 public class StreamingService extends Service {
     private static final String TAG = "StreamingService";
     private static final String CHANNEL_ID = "IPCameraChannel";
     private static final int NOTIFICATION_ID = 1;
-    private static final int PORT = 8080;
+    static final int PORT = 8080;
+    // Settings changed through /config, kept across restarts
+    private static final String CONFIG_FILE_NAME = "stream-config.properties";
+    private static final String RECORDING_DIR_NAME = "recordings";
+    // Serve all viewers from one selector thread instead of a thread per client
+    private static final boolean USE_NIO_SERVER = false;
+    // Connections served at once, in total and from one address; 0 for no limit
+    private static final int MAX_CONNECTIONS = 32;
+    private static final int MAX_CONNECTIONS_PER_ADDRESS = 8;
+    // Bytes and frames per second each stream is capped at; 0 for no cap
+    private static final long MAX_STREAM_BYTES_PER_SECOND = 0;
+    private static final double MAX_STREAM_FPS = 0;
+    // Viewers exempt from the per-address and stream limits, e.g. a recorder at "192.168.1.10"
+    private static final String[] PRIORITY_ADDRESSES = {};
+    // Connections kept free for priority addresses once the others fill up
+    private static final int PRIORITY_RESERVED_CONNECTIONS = 4;
+    // Also serve every stream over RTSP, e.g. rtsp://phone:8554/video?profile=hd
+    private static final boolean RTSP_ENABLED = false;
+    // Also push the default stream to a relay, e.g. "http://192.168.1.10:8090/push"
+    private static final String RELAY_URL = null;
+    // Token the relay was started with (RELAY_PUSH_TOKEN), or null if it allows this address
+    private static final String RELAY_TOKEN = null;
+    // Step frame rate, capture size and quality down before the phone throttles itself
+    private static final boolean THERMAL_GOVERNOR = true;
+    private static final long THERMAL_POLL_INTERVAL_MS = 10_000;
+    // How far ahead the thermal headroom is forecast
+    private static final int THERMAL_FORECAST_SECONDS = 30;
+    private static final long THERMAL_RECOVERY_NANOS = TimeUnit.MINUTES.toNanos(2);
     
-    private MJPEGServer mjpegServer;
-    private CameraHandler cameraHandler;
+    private StreamServer mjpegServer;
+    private StreamServer rtspServer;
+    private StreamPusher pusher;
+    private CameraRegistry cameras;
+    private ThermalGovernor governor;
+    private PowerManager powerManager;
+    private final Handler thermalHandler = new Handler(Looper.getMainLooper());
+    private final Runnable pollThermals = this::pollThermals;
+    private final PowerManager.OnThermalStatusChangedListener thermalListener =
+        status -> {
+            // Act on the new status now rather than at the next poll
+            thermalHandler.removeCallbacks(pollThermals);
+            thermalHandler.post(pollThermals);
+        };
 
     @Override
     public void onCreate() {
@@ -32,11 +81,46 @@ public class StreamingService extends Service {
         startForeground(NOTIFICATION_ID, createNotification());
         
         try {
-            cameraHandler = new CameraHandler();
-            cameraHandler.openCamera();
+            MetricsRegistry metrics = new MetricsRegistry();
+            cameras = CameraRegistry.create(metrics,
+                    new File(getFilesDir(), CONFIG_FILE_NAME),
+                    new File(getFilesDir(), RECORDING_DIR_NAME));
+            cameras.openAll();
             
-            mjpegServer = new MJPEGServer(PORT, cameraHandler);
+            ConnectionLimiter limiter = new ConnectionLimiter(MAX_CONNECTIONS,
+                    MAX_CONNECTIONS_PER_ADDRESS, PRIORITY_RESERVED_CONNECTIONS,
+                    Arrays.asList(PRIORITY_ADDRESSES), metrics);
+            limiter.setClientRateLimits(MAX_STREAM_BYTES_PER_SECOND, MAX_STREAM_FPS);
+            mjpegServer = USE_NIO_SERVER
+                    ? new NioMJPEGServer(PORT, cameras, metrics, limiter)
+                    : new MJPEGServer(PORT, cameras, metrics, limiter);
             mjpegServer.start();
+
+            if (RTSP_ENABLED) {
+                rtspServer = new RtspServer(RtspServer.DEFAULT_PORT, (path, request) -> {
+                    CameraHandler camera = MJPEGServer.findCamera(cameras, path);
+                    return camera != null
+                            ? camera.getFrameBus(MJPEGServer.findProfile(request)) : null;
+                }, metrics, limiter);
+                try {
+                    rtspServer.start();
+                } catch (UncheckedIOException e) {
+                    // HTTP streaming goes on without it
+                    Log.e(TAG, "Error starting RTSP server", e);
+                    rtspServer = null;
+                }
+            }
+
+            if (RELAY_URL != null) {
+                pusher = new StreamPusher(RELAY_URL, RELAY_TOKEN,
+                    cameras.getDefault().getFrameBus(), metrics);
+                pusher.start();
+                Log.d(TAG, "Pushing stream to " + RELAY_URL);
+            }
+
+            if (THERMAL_GOVERNOR) {
+                startThermalGovernor(metrics);
+            }
             
             Log.d(TAG, "Streaming service started on port " + PORT);
         } catch (Exception e) {
@@ -51,17 +135,71 @@ public class StreamingService extends Service {
     public void onDestroy() {
         super.onDestroy();
         
+        if (governor != null) {
+            thermalHandler.removeCallbacks(pollThermals);
+            powerManager.removeThermalStatusListener(thermalListener);
+        }
+        
+        if (pusher != null) {
+            pusher.stop();
+        }
+        
         if (mjpegServer != null) {
             mjpegServer.stop();
         }
         
-        if (cameraHandler != null) {
-            cameraHandler.closeCamera();
+        if (rtspServer != null) {
+            rtspServer.stop();
+        }
+        
+        if (cameras != null) {
+            cameras.closeAll();
         }
         
         Log.d(TAG, "Streaming service stopped");
     }
 
+    private void startThermalGovernor(MetricsRegistry metrics) {
+        powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+        governor = new ThermalGovernor(ThermalGovernor.DEFAULT_TIERS, THERMAL_RECOVERY_NANOS,
+            metrics);
+        governor.setTierListener((previous, next, readings) -> {
+            Log.i(TAG, "Throttling tier " + previous.getName() + " -> " + next.getName()
+                + " at " + readings);
+            for (CameraHandler camera : cameras.getAll()) {
+                camera.setThrottle(next);
+            }
+        });
+        powerManager.addThermalStatusListener(thermalListener);
+        pollThermals();
+    }
+
+    private void pollThermals() {
+        // The sticky broadcast holds the latest battery state without registering a receiver
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        int percent = -1;
+        boolean charging = false;
+        double celsius = Double.NaN;
+        if (battery != null) {
+            int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            if (level >= 0 && scale > 0) {
+                percent = level * 100 / scale;
+            }
+            charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            int tenths = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, Integer.MIN_VALUE);
+            if (tenths != Integer.MIN_VALUE) {
+                celsius = tenths / 10.0;
+            }
+        }
+        // NaN if asked again within a second or unsupported, which leaves it out
+        float headroom = powerManager.getThermalHeadroom(THERMAL_FORECAST_SECONDS);
+        governor.update(new ThermalGovernor.Readings(powerManager.getCurrentThermalStatus(),
+            headroom, percent, charging, celsius), System.nanoTime());
+        thermalHandler.removeCallbacks(pollThermals);
+        thermalHandler.postDelayed(pollThermals, THERMAL_POLL_INTERVAL_MS);
+    }
+
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
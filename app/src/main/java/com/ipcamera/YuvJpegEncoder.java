@@ -0,0 +1,19 @@
+package com.ipcamera;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class YuvJpegEncoder implements EncodePipeline.JpegEncoder {
+    @Override
+    public void compress(byte[] nv21, int width, int height, int quality, OutputStream out)
+            throws IOException {
+        YuvImage yuvImage = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+        if (!yuvImage.compressToJpeg(new Rect(0, 0, width, height), quality, out)) {
+            throw new IOException("JPEG compression failed");
+        }
+    }
+}
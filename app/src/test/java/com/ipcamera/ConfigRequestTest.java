@@ -0,0 +1,69 @@
+package com.ipcamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Answers /config requests through a CameraHandler that never opens a
+ * camera and has no file to save to. Applying a change still logs through
+ * the android.jar stubs, which only works with
+ * {@code unitTests.returnDefaultValues}.
+ */
+public class ConfigRequestTest {
+    private ThreadPoolExecutor encoders;
+    private CameraHandler camera;
+
+    @Before
+    public void setUp() {
+        encoders = EncodePipeline.newExecutor(1);
+        camera = new CameraHandler("0", new MetricsRegistry(), null, null, encoders);
+    }
+
+    @After
+    public void tearDown() {
+        encoders.shutdownNow();
+    }
+
+    private static HttpRequest request(String head) throws Exception {
+        return new HttpRequestParser().parse(
+            ByteBuffer.wrap((head + "\r\n").getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private String respond(String head) throws Exception {
+        HttpRequest request = request(head);
+        assertTrue(MJPEGServer.isConfigRequest(request));
+        return new String(MJPEGServer.configResponse(camera, request), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void changesWithoutTheHeaderAreForbidden() throws Exception {
+        StreamConfig before = camera.getConfig();
+        String response = respond("POST /config?maxFps=5 HTTP/1.1\r\n"
+            + "Content-Type: application/x-www-form-urlencoded\r\n");
+        assertTrue(response, response.startsWith("HTTP/1.1 403 Forbidden\r\n"));
+        assertSame(before, camera.getConfig());
+    }
+
+    @Test
+    public void changesWithTheHeaderAreApplied() throws Exception {
+        String response = respond("POST /config?maxFps=5 HTTP/1.1\r\n"
+            + "X-Requested-With: test\r\n");
+        assertTrue(response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertEquals(5, camera.getConfig().getMaxFps());
+    }
+
+    @Test
+    public void readingNeedsNoHeader() throws Exception {
+        String response = respond("GET /config HTTP/1.1\r\n");
+        assertTrue(response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+    }
+}
@@ -0,0 +1,200 @@
+package com.ipcamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Streams to a client that reads everything, one that reads slowly but
+ * steadily and one that never reads. Only the last is disconnected, once its
+ * write has made no progress for the stall timeout, and the others keep
+ * getting frames meanwhile.
+ *
+ * <p>Like StreamServerLoadTest, this depends on
+ * {@code unitTests.returnDefaultValues} for the servers' {@code Log} calls.
+ */
+public class StalledClientTest {
+    private static final int FRAME_BYTES = 1024 * 1024;
+    private static final int FPS = 10;
+    // A frame takes the slow reader longer than the stall timeout
+    private static final int TRICKLE_BYTES = 8 * 1024;
+    private static final long TRICKLE_INTERVAL_MS = 60;
+    private static final String STALLED =
+        "ipcamera_clients_disconnected_total{reason=\"stalled\"} ";
+
+    private ThreadPoolExecutor encoders;
+    private CameraHandler camera;
+    private CameraRegistry cameras;
+    private MetricsRegistry metrics;
+
+    @Before
+    public void setUp() {
+        metrics = new MetricsRegistry();
+        encoders = EncodePipeline.newExecutor(1);
+        camera = new CameraHandler("0", metrics, null, null, encoders);
+        Map<String, CameraHandler> all = new LinkedHashMap<>();
+        all.put("0", camera);
+        cameras = new CameraRegistry(all, encoders);
+    }
+
+    @After
+    public void tearDown() {
+        encoders.shutdownNow();
+    }
+
+    @Test
+    public void blockingServerDisconnectsOnlyTheStalledClient() throws Exception {
+        int port = freePort();
+        run(new MJPEGServer(port, cameras, metrics), port);
+    }
+
+    @Test
+    public void nioServerDisconnectsOnlyTheStalledClient() throws Exception {
+        int port = freePort();
+        run(new NioMJPEGServer(port, cameras, metrics), port);
+    }
+
+    private void run(StreamServer server, int port) throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread publisher = new Thread(() -> {
+            byte[] jpeg = new byte[FRAME_BYTES];
+            jpeg[0] = (byte) 0xFF;
+            jpeg[1] = (byte) 0xD8;
+            while (running.get()) {
+                camera.getFrameBus().publish(jpeg);
+                try {
+                    Thread.sleep(1000 / FPS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        server.start();
+        try (Socket fast = connect(port, 0);
+             Socket trickle = connect(port, 4096);
+             Socket stalled = connect(port, 4096)) {
+            AtomicLong fastBytes = new AtomicLong();
+            AtomicBoolean trickleEnded = new AtomicBoolean();
+            // Both readers end when their sockets are closed
+            read(fast, 64 * 1024, 0, fastBytes, null);
+            read(trickle, TRICKLE_BYTES, TRICKLE_INTERVAL_MS, new AtomicLong(), trickleEnded);
+            long started = System.nanoTime();
+            publisher.start();
+
+            long deadline = started + WriteProgress.STALL_TIMEOUT_NANOS
+                + TimeUnit.SECONDS.toNanos(5);
+            while (!metrics.render().contains(STALLED + "1") && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            long stalledAfter = System.nanoTime() - started;
+            assertTrue(metrics.render(), metrics.render().contains(STALLED + "1"));
+            assertTrue("disconnected after " + stalledAfter / 1_000_000 + " ms",
+                stalledAfter >= WriteProgress.STALL_TIMEOUT_NANOS);
+            long fastFrames = fastBytes.get() / FRAME_BYTES;
+            double fastFps = fastFrames * 1e9 / stalledAfter;
+            assertTrue("fast client got " + fastFps + " fps", fastFps >= FPS * 0.7);
+
+            // The slow reader is well past the stall timeout in one frame by now
+            Thread.sleep(1000);
+            assertTrue(metrics.render().contains(STALLED + "1"));
+            assertFalse("slow reader was disconnected", trickleEnded.get());
+
+            // The stalled client gets what was buffered, then the end of the stream
+            stalled.setSoTimeout(5000);
+            InputStream input = stalled.getInputStream();
+            byte[] buffer = new byte[64 * 1024];
+            long buffered = 0;
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                buffered += read;
+            }
+            assertTrue("stalled client got " + buffered + " bytes", buffered > 0);
+            assertEquals(-1, input.read());
+        } finally {
+            running.set(false);
+            publisher.interrupt();
+            publisher.join(5000);
+            server.stop();
+        }
+    }
+
+    private static Socket connect(int port, int receiveBufferBytes) throws Exception {
+        awaitListening(port);
+        Socket socket = new Socket();
+        if (receiveBufferBytes > 0) {
+            socket.setReceiveBufferSize(receiveBufferBytes);
+        }
+        socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        socket.getOutputStream().write("GET /video HTTP/1.1\r\nHost: localhost\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII));
+        return socket;
+    }
+
+    /** Reads {@code chunk} bytes at a time, pausing {@code intervalMs} between reads. */
+    private static void read(Socket socket, int chunk, long intervalMs, AtomicLong bytes,
+                             AtomicBoolean ended) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[chunk];
+            try {
+                InputStream input = socket.getInputStream();
+                int read;
+                while ((read = input.read(buffer)) >= 0) {
+                    bytes.addAndGet(read);
+                    if (intervalMs > 0) {
+                        Thread.sleep(intervalMs);
+                    }
+                }
+                if (ended != null) {
+                    ended.set(true);
+                }
+            } catch (IOException e) {
+                if (ended != null && !socket.isClosed()) {
+                    ended.set(true);
+                }
+            } catch (InterruptedException e) {
+                // Test over
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void awaitListening(int port) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (true) {
+            try (Socket probe = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                assertTrue(probe.isConnected());
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.ipcamera;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Streams to over a hundred loopback clients and reports the throughput and
+ * the threads each server needs for them. The clients all share one selector
+ * thread, so the thread count is the server's own.
+ *
+ * <p>The servers and CameraHandler run against the android.jar stubs and
+ * rely on {@code unitTests.returnDefaultValues}: {@code Log} calls do
+ * nothing and {@code SystemClock} reads 0. The camera is never opened;
+ * frames are published straight to the handler's FrameBus.
+ */
+public class StreamServerLoadTest {
+    private static final int CLIENTS = 120;
+    private static final int FRAME_BYTES = 20_000;
+    private static final int FPS = 20;
+    private static final long DURATION_MS = 3000;
+
+    private ThreadPoolExecutor encoders;
+    private CameraHandler camera;
+    private CameraRegistry cameras;
+    private MetricsRegistry metrics;
+
+    @Before
+    public void setUp() {
+        metrics = new MetricsRegistry();
+        encoders = EncodePipeline.newExecutor(1);
+        camera = new CameraHandler("0", metrics, null, null, encoders);
+        Map<String, CameraHandler> all = new LinkedHashMap<>();
+        all.put("0", camera);
+        cameras = new CameraRegistry(all, encoders);
+    }
+
+    @After
+    public void tearDown() {
+        encoders.shutdownNow();
+    }
+
+    @Test
+    public void nioServerServesEveryClientFromOneThread() throws Exception {
+        int port = freePort();
+        Result result = run(new NioMJPEGServer(port, cameras, metrics), port);
+        assertTrue("every client should get frames: " + result, result.slowestFrames >= 5);
+        assertTrue("threads should not grow with clients: " + result, result.serverThreads <= 4);
+    }
+
+    @Test
+    public void blockingServerServesEveryClient() throws Exception {
+        int port = freePort();
+        Result result = run(new MJPEGServer(port, cameras, metrics), port);
+        assertTrue("every client should get frames: " + result, result.slowestFrames >= 5);
+    }
+
+    private static final class Result {
+        String server;
+        double megabytesPerSecond;
+        long slowestFrames;
+        long fastestFrames;
+        int serverThreads;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                "%s: %d clients, %.1f MB/s, %d to %d frames per client, %d server threads",
+                server, CLIENTS, megabytesPerSecond, slowestFrames, fastestFrames, serverThreads);
+        }
+    }
+
+    private Result run(StreamServer server, int port) throws Exception {
+        int threadsBefore = Thread.activeCount();
+        server.start();
+        List<SocketChannel> channels = new ArrayList<>();
+        try (Selector selector = Selector.open()) {
+            awaitListening(port);
+            ByteBuffer request = ByteBuffer.wrap("GET /video HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                .getBytes(StandardCharsets.US_ASCII));
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+            for (int i = 0; i < CLIENTS; i++) {
+                SocketChannel channel = SocketChannel.open(address);
+                channels.add(channel);
+                channel.write(request.duplicate());
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, new long[1]);
+            }
+
+            byte[] jpeg = new byte[FRAME_BYTES];
+            jpeg[0] = (byte) 0xFF;
+            jpeg[1] = (byte) 0xD8;
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            long total = 0;
+            long started = System.nanoTime();
+            long nextFrame = started;
+            long end = started + TimeUnit.MILLISECONDS.toNanos(DURATION_MS);
+            int serverThreads = 0;
+            while (System.nanoTime() < end) {
+                if (System.nanoTime() >= nextFrame) {
+                    camera.getFrameBus().publish(jpeg);
+                    nextFrame += TimeUnit.SECONDS.toNanos(1) / FPS;
+                    serverThreads = Math.max(serverThreads, Thread.activeCount() - threadsBefore);
+                }
+                selector.select(5);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    buffer.clear();
+                    int read = ((SocketChannel) key.channel()).read(buffer);
+                    if (read < 0) {
+                        key.cancel();
+                    } else {
+                        ((long[]) key.attachment())[0] += read;
+                        total += read;
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+            double seconds = (System.nanoTime() - started) / 1e9;
+
+            Result result = new Result();
+            result.server = server.getClass().getSimpleName();
+            result.megabytesPerSecond = total / seconds / 1e6;
+            result.slowestFrames = Long.MAX_VALUE;
+            for (SelectionKey key : selector.keys()) {
+                long frames = ((long[]) key.attachment())[0] / FRAME_BYTES;
+                result.slowestFrames = Math.min(result.slowestFrames, frames);
+                result.fastestFrames = Math.max(result.fastestFrames, frames);
+            }
+            result.serverThreads = serverThreads;
+            System.out.println(result);
+            return result;
+        } finally {
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+            server.stop();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void awaitListening(int port) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (true) {
+            try (SocketChannel probe = SocketChannel.open(
+                    new InetSocketAddress("127.0.0.1", port))) {
+                assertTrue(probe.isConnected());
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.ipcamera;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Publishing frames on a {@link FrameBus}, alone and while blocking-server
+ * clients wait on it. Parts are rendered once up front so that only the bus
+ * itself is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBusBenchmark {
+    // Long enough to never expire while frames flow, short enough to let
+    // readers notice the end of an iteration
+    private static final long AWAIT_TIMEOUT_MS = 10;
+
+    @State(Scope.Group)
+    public static class Bus {
+        @Param({"0", "4"})
+        public int listeners;
+
+        FrameBus bus;
+        byte[] part;
+        int payloadLength;
+
+        @Setup
+        public void setUp() {
+            bus = new FrameBus();
+            payloadLength = 65536;
+            part = MultipartEncoder.encode(new byte[payloadLength], 0, payloadLength);
+            for (int i = 0; i < listeners; i++) {
+                bus.addListener(new FrameBus.Listener() {
+                    @Override
+                    public void onFramePublished(Frame frame) {
+                    }
+                });
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            bus.close();
+        }
+    }
+
+    /** Sequence of the last frame one reader has seen. */
+    @State(Scope.Thread)
+    public static class Reader {
+        long lastSequence;
+    }
+
+    @Benchmark
+    @Group("publish")
+    public Frame publishAlone(Bus state) {
+        return state.bus.publishPart(state.part, state.payloadLength);
+    }
+
+    @Benchmark
+    @Group("fanOut")
+    @GroupThreads(1)
+    public Frame publish(Bus state) {
+        return state.bus.publishPart(state.part, state.payloadLength);
+    }
+
+    @Benchmark
+    @Group("fanOut")
+    @GroupThreads(3)
+    public Frame await(Bus state, Reader reader) throws InterruptedException {
+        Frame frame = state.bus.awaitFrame(reader.lastSequence, AWAIT_TIMEOUT_MS);
+        if (frame != null) {
+            reader.lastSequence = frame.getSequence();
+        }
+        return frame;
+    }
+}
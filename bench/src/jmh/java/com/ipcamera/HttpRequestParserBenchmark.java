@@ -0,0 +1,78 @@
+package com.ipcamera;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing typical request heads, delivered whole or in {@code chunk}-byte
+ * reads as a slow or fragmenting network would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpRequestParserBenchmark {
+    private static final String CURL = "GET /video?profile=low HTTP/1.1\r\n" +
+            "Host: 192.168.1.100:8080\r\n" +
+            "User-Agent: curl/8.4.0\r\n" +
+            "Accept: */*\r\n" +
+            "\r\n";
+
+    private static final String BROWSER = "GET /snapshot.jpg?profile=default HTTP/1.1\r\n" +
+            "Host: 192.168.1.100:8080\r\n" +
+            "Connection: keep-alive\r\n" +
+            "Cache-Control: max-age=0\r\n" +
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 " +
+            "(KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36\r\n" +
+            "Accept: image/avif,image/webp,image/apng,image/svg+xml,image/*,*/*;q=0.8\r\n" +
+            "Accept-Encoding: gzip, deflate\r\n" +
+            "Accept-Language: en-GB,en;q=0.9\r\n" +
+            "If-None-Match: \"1a2b-17f3c2d4e5\"\r\n" +
+            "\r\n";
+
+    @Param({"curl", "browser"})
+    public String client;
+
+    /** Bytes per read; 0 delivers the whole head at once. */
+    @Param({"0", "16"})
+    public int chunk;
+
+    private final HttpRequestParser parser = new HttpRequestParser();
+    private ByteBuffer input;
+
+    @Setup
+    public void setUp() {
+        String head = client.equals("curl") ? CURL : BROWSER;
+        input = ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Benchmark
+    public HttpRequest parse() throws Exception {
+        input.clear();
+        if (chunk == 0) {
+            return parser.parse(input);
+        }
+        HttpRequest request = null;
+        int end = input.capacity();
+        for (int limit = chunk; request == null; limit += chunk) {
+            input.limit(Math.min(limit, end));
+            request = parser.parse(input);
+        }
+        return request;
+    }
+}
@@ -0,0 +1,86 @@
+package com.ipcamera;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of framing one JPEG for {@code clients} MJPEG viewers: rendering the
+ * part once and writing the same array to everyone, against building the
+ * part headers for every client as {@code streamMJPEG} originally did.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultipartBenchmark {
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    @Param({"16384", "65536", "262144"})
+    public int payloadSize;
+
+    @Param({"1", "4"})
+    public int clients;
+
+    private byte[] jpeg;
+    private final CountingOutputStream sink = new CountingOutputStream();
+
+    @Setup
+    public void setUp() {
+        jpeg = new byte[payloadSize];
+        new Random(42).nextBytes(jpeg);
+    }
+
+    @Benchmark
+    public long renderOnce() throws Exception {
+        byte[] part = MultipartEncoder.encode(jpeg, 0, jpeg.length);
+        for (int i = 0; i < clients; i++) {
+            sink.write(part);
+        }
+        return sink.count;
+    }
+
+    @Benchmark
+    public long renderPerClient() throws Exception {
+        for (int i = 0; i < clients; i++) {
+            String header = "--" + MultipartEncoder.BOUNDARY + "\r\n" +
+                    "Content-Type: image/jpeg\r\n" +
+                    "Content-Length: " + jpeg.length + "\r\n" +
+                    "\r\n";
+            sink.write(header.getBytes());
+            sink.write(jpeg);
+            sink.write(CRLF);
+        }
+        return sink.count;
+    }
+
+    /** Stands in for a socket; only counts what it is given. */
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
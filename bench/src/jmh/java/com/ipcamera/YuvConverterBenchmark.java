@@ -0,0 +1,93 @@
+package com.ipcamera;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Repacking a YUV_420_888 image into NV21, the copy step of
+ * {@code CameraHandler.copyToNv21}. Planes are laid out the way camera HALs
+ * commonly deliver them: a semi-planar block whose V and U planes overlap
+ * ({@code nv21}), the same with row padding ({@code padded}), or fully
+ * planar I420 ({@code planar}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YuvConverterBenchmark {
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String size;
+
+    @Param({"nv21", "padded", "planar"})
+    public String layout;
+
+    private final YuvConverter converter = new YuvConverter();
+    private int width;
+    private int height;
+    private ByteBuffer y;
+    private ByteBuffer u;
+    private ByteBuffer v;
+    private int yRowStride;
+    private int uvRowStride;
+    private int uvPixelStride;
+    private byte[] nv21;
+
+    @Setup
+    public void setUp() {
+        String[] dimensions = size.split("x");
+        width = Integer.parseInt(dimensions[0]);
+        height = Integer.parseInt(dimensions[1]);
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        nv21 = new byte[YuvConverter.nv21Size(width, height)];
+
+        if (layout.equals("planar")) {
+            yRowStride = width;
+            uvRowStride = chromaWidth;
+            uvPixelStride = 1;
+            y = filled(yRowStride * height);
+            u = filled(uvRowStride * chromaHeight);
+            v = filled(uvRowStride * chromaHeight);
+            return;
+        }
+        // Padded rows are aligned to 64 bytes, as many HALs do
+        yRowStride = layout.equals("padded") ? (width + 63) & ~63 : width;
+        uvRowStride = yRowStride;
+        uvPixelStride = 2;
+        y = filled(yRowStride * height);
+        ByteBuffer chroma = filled(uvRowStride * chromaHeight);
+        chroma.limit(chroma.capacity() - 1);
+        v = chroma.slice();
+        chroma.limit(chroma.capacity()).position(1);
+        u = chroma.slice();
+    }
+
+    @Benchmark
+    public byte[] toNv21() {
+        converter.toNv21(y, yRowStride, u, v, uvRowStride, uvPixelStride, width, height, nv21);
+        return nv21;
+    }
+
+    // Camera planes are direct buffers
+    private static ByteBuffer filled(int capacity) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+        for (int i = 0; i < capacity; i++) {
+            buffer.put(i, (byte) (i * 31));
+        }
+        return buffer;
+    }
+}
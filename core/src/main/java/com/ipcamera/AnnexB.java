@@ -0,0 +1,52 @@
+package com.ipcamera;
+
+/**
+ * Helpers for H.264 Annex-B byte streams, where NAL units are separated by
+ * 00 00 01 or 00 00 00 01 start codes.
+ */
+public final class AnnexB {
+    public static final int NAL_SLICE = 1;
+    public static final int NAL_IDR_SLICE = 5;
+    public static final int NAL_SEI = 6;
+    public static final int NAL_SPS = 7;
+    public static final int NAL_PPS = 8;
+
+    private AnnexB() {
+    }
+
+    /**
+     * Returns the index of the first byte after the next start code at or
+     * after {@code from}, or -1 if there is none before {@code end}.
+     */
+    public static int nextNalStart(byte[] data, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (data[i] == 0 && data[i + 1] == 0) {
+                if (data[i + 2] == 1) {
+                    return i + 3;
+                }
+                if (data[i + 2] == 0 && i + 3 < end && data[i + 3] == 1) {
+                    return i + 4;
+                }
+            }
+        }
+        return -1;
+    }
+
+    public static int nalType(byte header) {
+        return header & 0x1f;
+    }
+
+    /** True if any NAL unit in the range is an IDR slice or a sequence parameter set. */
+    public static boolean containsKeyFrame(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int nal = nextNalStart(data, offset, end);
+        while (nal >= 0 && nal < end) {
+            int type = nalType(data[nal]);
+            if (type == NAL_IDR_SLICE || type == NAL_SPS) {
+                return true;
+            }
+            nal = nextNalStart(data, nal, end);
+        }
+        return false;
+    }
+}
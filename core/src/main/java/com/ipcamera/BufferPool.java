@@ -0,0 +1,45 @@
+package com.ipcamera;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Small bounded pool of equally sized byte arrays. Acquiring from an empty
+ * pool allocates a fresh array; releasing into a full pool, or releasing an
+ * array of a size the pool no longer hands out, drops it.
+ */
+public class BufferPool {
+    private volatile int bufferSize;
+    private final BlockingQueue<byte[]> free;
+
+    public BufferPool(int capacity, int bufferSize) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** Changes the size of arrays handed out from now on, dropping pooled ones. */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+        free.clear();
+    }
+
+    public byte[] acquire() {
+        int size = bufferSize;
+        byte[] buffer = free.poll();
+        // May be left over from before a resize
+        while (buffer != null && buffer.length != size) {
+            buffer = free.poll();
+        }
+        return buffer != null ? buffer : new byte[size];
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize) {
+            free.offer(buffer);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.ipcamera;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivery state of one streaming client. Frames are handed over latest-wins:
+ * while a write is in progress newer frames replace each other rather than
+ * queueing, and every frame the client never got is counted as dropped. A
+ * write that makes no progress for longer than the stall timeout marks the
+ * client for disconnection. Its {@link StreamRateController} may limit the
+ * client's frame rate, and {@link #setRateLimits} may cap its bytes and
+ * frames per second; the server waits {@link #getFrameDelayNanos} before
+ * starting the next write.
+ */
+final class ClientSession {
+    // A single frame write taking longer than this means the socket is backing up
+    static final long WRITE_STALL_NANOS = 250_000_000L;
+    // A client stuck in one write this long is disconnected
+    static final long STALL_TIMEOUT_NANOS = WriteProgress.STALL_TIMEOUT_NANOS;
+    // How far a rate-capped client may run ahead of its rate
+    static final long RATE_LIMIT_BURST_NANOS = 200_000_000L;
+
+    private final MetricsRegistry registry;
+    private final StreamRateController controller;
+    private final String clientLabels;
+    private final Counter framesSent;
+    private final Counter bytesSent;
+    private final Counter framesSkipped;
+    private final Counter writeStalls;
+    private final LatencyHistogram writeTimer;
+    private final LatencyHistogram deliveryTimer;
+    private final LatencyHistogram frameAgeTimer;
+    private final long startedAtNanos = System.nanoTime();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final WriteProgress writeProgress = new WriteProgress();
+    private long writeStartedAtNanos = 0;
+    private long lastSequence = 0;
+    private long frames = 0;
+    private volatile long frameIntervalNanos = 0;
+    private volatile double fpsLimit = 0;
+    private volatile long throughput = 0;
+    private volatile TokenBucket byteBucket;
+    private volatile TokenBucket frameBucket;
+    // Guarded by this, shared with the controller's evaluation
+    private boolean writing = false;
+    private long windowStartNanos = System.nanoTime();
+    private long windowWriteNanos = 0;
+    private long windowBytes = 0;
+    private long windowFrames = 0;
+    // Only touched by the controller
+    int calmWindows = 0;
+
+    ClientSession(MetricsRegistry registry, StreamRateController controller, String profile,
+                  String client) {
+        this.registry = registry;
+        this.controller = controller;
+        String labels = "profile=\"" + profile + "\"";
+        this.clientLabels = "client=\"" + client + "\"," + labels;
+        framesSent = registry.counter("ipcamera_frames_sent_total",
+            "Frames written to clients", labels);
+        bytesSent = registry.counter("ipcamera_bytes_sent_total",
+            "Bytes of multipart parts written to clients", labels);
+        framesSkipped = registry.counter("ipcamera_client_frames_skipped_total",
+            "Published frames a client never received because it was still writing or rate-limited",
+            labels);
+        writeStalls = registry.counter("ipcamera_client_write_stalls_total",
+            "Frame writes that took longer than 250 ms", labels);
+        writeTimer = registry.histogram("ipcamera_client_write_seconds",
+            "Time to write one frame to a client socket", labels);
+        deliveryTimer = registry.histogram("ipcamera_frame_delivery_seconds",
+            "Time from publishing a frame to having written it to a client", labels);
+        frameAgeTimer = registry.histogram("ipcamera_frame_age_seconds",
+            "Time from the sensor capturing a frame to having written it to a client", labels);
+        registry.gauge("ipcamera_client_frames_dropped",
+            "Frames dropped for each connected client", clientLabels, framesDropped::get);
+        registry.gauge("ipcamera_client_fps_limit",
+            "Frame rate each connected client is limited to, 0 when unlimited", clientLabels,
+            () -> Math.round(fpsLimit));
+        registry.gauge("ipcamera_client_throughput_bytes",
+            "Bytes per second written to each connected client in the last window", clientLabels,
+            () -> throughput);
+    }
+
+    void beginWrite() {
+        long now = System.nanoTime();
+        synchronized (this) {
+            writeStartedAtNanos = now;
+            writing = true;
+        }
+        writeProgress.begin(now);
+    }
+
+    /** Records a completed write that was started with {@link #beginWrite()}. */
+    void recordFrame(Frame frame) {
+        long now = System.nanoTime();
+        long writeNanos = now - writeStartedAtNanos;
+        writeProgress.end();
+        synchronized (this) {
+            writing = false;
+            windowWriteNanos += now - Math.max(writeStartedAtNanos, windowStartNanos);
+            windowBytes += frame.getPartLength();
+            windowFrames++;
+        }
+        if (lastSequence != 0 && frame.getSequence() > lastSequence + 1) {
+            long skipped = frame.getSequence() - lastSequence - 1;
+            framesSkipped.add(skipped);
+            framesDropped.addAndGet(skipped);
+        }
+        lastSequence = frame.getSequence();
+        frames++;
+        framesSent.increment();
+        bytesSent.add(frame.getPartLength());
+        writeTimer.record(writeNanos);
+        deliveryTimer.record(now - frame.getPublishedAtNanos());
+        frameAgeTimer.record(now - frame.getCaptureNanos());
+        if (writeNanos > WRITE_STALL_NANOS) {
+            writeStalls.increment();
+        }
+        TokenBucket bytes = byteBucket;
+        if (bytes != null) {
+            bytes.take(frame.getPartLength(), now);
+        }
+        TokenBucket started = frameBucket;
+        if (started != null) {
+            started.take(1, writeStartedAtNanos);
+        }
+        controller.maybeEvaluate(now);
+    }
+
+    /** How long to wait before starting the next frame to respect the rate limits. */
+    long getFrameDelayNanos(long nowNanos) {
+        long delay = 0;
+        long interval = frameIntervalNanos;
+        if (interval != 0 && frames != 0) {
+            delay = Math.max(0, writeStartedAtNanos + interval - nowNanos);
+        }
+        TokenBucket bytes = byteBucket;
+        if (bytes != null) {
+            delay = Math.max(delay, bytes.getDelayNanos(nowNanos));
+        }
+        TokenBucket started = frameBucket;
+        if (started != null) {
+            delay = Math.max(delay, started.getDelayNanos(nowNanos));
+        }
+        return delay;
+    }
+
+    /**
+     * Caps the bytes and frames per second this client is sent, on top of
+     * any limit its controller sets; 0 for no cap.
+     */
+    void setRateLimits(long bytesPerSecond, double framesPerSecond) {
+        byteBucket = bytesPerSecond > 0
+            ? new TokenBucket(bytesPerSecond, RATE_LIMIT_BURST_NANOS) : null;
+        frameBucket = framesPerSecond > 0
+            ? new TokenBucket(framesPerSecond, RATE_LIMIT_BURST_NANOS) : null;
+    }
+
+    double getFpsLimit() {
+        return fpsLimit;
+    }
+
+    /** Limits the frames started per second; 0 lifts the limit. */
+    void setFpsLimit(double fps) {
+        fpsLimit = fps;
+        frameIntervalNanos = fps > 0 ? (long) (1e9 / fps) : 0;
+    }
+
+    /** What the client did since the previous call, which starts a new window. */
+    synchronized Window takeWindow(long nowNanos, long windowNanos) {
+        long busyNanos = windowWriteNanos;
+        if (writing) {
+            busyNanos += nowNanos - Math.max(writeStartedAtNanos, windowStartNanos);
+        }
+        Window window = new Window(windowNanos > 0 ? (double) busyNanos / windowNanos : 0,
+            busyNanos > 0 ? windowFrames * 1e9 / busyNanos : Double.MAX_VALUE);
+        throughput = windowNanos > 0 ? windowBytes * 1_000_000_000L / windowNanos : 0;
+        windowStartNanos = nowNanos;
+        windowWriteNanos = 0;
+        windowBytes = 0;
+        windowFrames = 0;
+        return window;
+    }
+
+    /** Called when a write made progress without finishing the frame. */
+    void recordProgress() {
+        writeProgress.progress();
+    }
+
+    boolean isStalled(long nowNanos) {
+        return writeProgress.isStalled(nowNanos);
+    }
+
+    /** Progress of the frame being written, for the server's stall watchdog. */
+    WriteProgress getWriteProgress() {
+        return writeProgress;
+    }
+
+    long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    /** Average frames per second delivered to this client so far. */
+    double getDeliveredFps() {
+        double seconds = (System.nanoTime() - startedAtNanos) / 1e9;
+        return seconds > 0 ? frames / seconds : 0;
+    }
+
+    void close() {
+        controller.remove(this);
+        registry.remove("ipcamera_client_frames_dropped", clientLabels);
+        registry.remove("ipcamera_client_fps_limit", clientLabels);
+        registry.remove("ipcamera_client_throughput_bytes", clientLabels);
+    }
+
+    static final class Window {
+        /** Share of the window spent writing. */
+        final double busy;
+        /**
+         * Frames per second the client could take if it were writing all the
+         * time, judged by how many it finished while writing; unbounded if it
+         * spent no time writing.
+         */
+        final double capacityFps;
+
+        Window(double busy, double capacityFps) {
+            this.busy = busy;
+            this.capacityFps = capacityFps;
+        }
+    }
+}
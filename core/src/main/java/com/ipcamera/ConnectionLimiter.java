@@ -0,0 +1,136 @@
+package com.ipcamera;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admits connections up to a total and a per-address limit, and hands each
+ * admitted client its own byte and frame rate limits. Priority addresses,
+ * such as a recorder's, may use slots the others cannot and are exempt from
+ * the per-address and per-client limits, so a dashboard opened in many tabs
+ * cannot starve them. Limits of 0 are off.
+ */
+public class ConnectionLimiter {
+    private final int maxConnections;
+    private final int maxPerAddress;
+    private final int reservedForPriority;
+    private final Set<String> priorityAddresses;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final ConcurrentMap<String, Integer> perAddress = new ConcurrentHashMap<>();
+    private final Counter rejectedFull;
+    private final Counter rejectedAddress;
+    private volatile long bytesPerSecond = 0;
+    private volatile double framesPerSecond = 0;
+
+    /**
+     * @param reservedForPriority connections only priority addresses may use
+     * @param priorityAddresses   host addresses as {@code InetAddress.getHostAddress()} gives them
+     */
+    public ConnectionLimiter(int maxConnections, int maxPerAddress, int reservedForPriority,
+                             Collection<String> priorityAddresses, MetricsRegistry metrics) {
+        this.maxConnections = maxConnections;
+        this.maxPerAddress = maxPerAddress;
+        this.reservedForPriority = reservedForPriority;
+        this.priorityAddresses = new HashSet<>(priorityAddresses);
+        metrics.gauge("ipcamera_connections", "Connections currently admitted",
+            connections::get);
+        String help = "Connections turned away by the connection limits";
+        rejectedFull = metrics.counter("ipcamera_connections_rejected_total", help,
+            "reason=\"full\"");
+        rejectedAddress = metrics.counter("ipcamera_connections_rejected_total", help,
+            "reason=\"address\"");
+    }
+
+    /** Caps the rate of every stream without priority; 0 for no cap. */
+    public void setClientRateLimits(long bytesPerSecond, double framesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.framesPerSecond = framesPerSecond;
+    }
+
+    public boolean isPriority(String address) {
+        return priorityAddresses.contains(address);
+    }
+
+    /**
+     * Admits a connection from {@code address}.
+     *
+     * @return the permit to close with the connection, or null if it is over a limit
+     */
+    public Permit tryAcquire(String address) {
+        boolean priority = isPriority(address);
+        int limit = maxConnections <= 0 ? Integer.MAX_VALUE
+            : priority ? maxConnections : maxConnections - reservedForPriority;
+        if (!increment(limit)) {
+            rejectedFull.increment();
+            return null;
+        }
+        if (!priority && maxPerAddress > 0 && !incrementAddress(address)) {
+            connections.decrementAndGet();
+            rejectedAddress.increment();
+            return null;
+        }
+        return new Permit(address, priority);
+    }
+
+    private boolean increment(int limit) {
+        while (true) {
+            int current = connections.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (connections.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean incrementAddress(String address) {
+        boolean[] admitted = new boolean[1];
+        perAddress.compute(address, (key, count) -> {
+            int current = count != null ? count : 0;
+            admitted[0] = current < maxPerAddress;
+            return admitted[0] ? current + 1 : count;
+        });
+        return admitted[0];
+    }
+
+    /** One admitted connection; closing it more than once releases it once. */
+    public final class Permit implements Closeable {
+        private final String address;
+        private final boolean priority;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Permit(String address, boolean priority) {
+            this.address = address;
+            this.priority = priority;
+        }
+
+        public boolean isPriority() {
+            return priority;
+        }
+
+        /** Applies the per-client rate limits to a stream on this connection. */
+        void limit(ClientSession session) {
+            if (!priority) {
+                session.setRateLimits(bytesPerSecond, framesPerSecond);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            connections.decrementAndGet();
+            if (!priority && maxPerAddress > 0) {
+                perAddress.computeIfPresent(address, (key, count) -> count > 1 ? count - 1 : null);
+            }
+        }
+    }
+}
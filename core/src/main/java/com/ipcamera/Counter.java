@@ -0,0 +1,20 @@
+package com.ipcamera;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Monotonic counter that is cheap to bump from many threads at once. */
+public class Counter {
+    private final LongAdder value = new LongAdder();
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+}
@@ -0,0 +1,344 @@
+package com.ipcamera;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scales and compresses NV21 frames on a bounded pool of worker threads, then
+ * publishes the results to each profile's {@link FrameBus} in capture order.
+ * When every worker is busy and the hand-off queue is full, new frames are
+ * dropped rather than queued, so encoding never falls behind the camera.
+ */
+public class EncodePipeline {
+    public interface JpegEncoder {
+        /** Compresses an NV21 image into {@code out}. Called concurrently from workers. */
+        void compress(byte[] nv21, int width, int height, int quality, OutputStream out)
+            throws IOException;
+    }
+
+    private static final byte PLACEHOLDER_LUMA = 64;
+
+    private final JpegEncoder encoder;
+    private final BufferPool nv21Pool;
+    private final StreamProfile[] profiles;
+    private final FrameBus[] buses;
+    private final AtomicIntegerArray qualities;
+    // 0 for profiles whose frames are published by someone else, e.g. the camera's JPEG encoder
+    private final AtomicIntegerArray softwareEncoded;
+    private final ThreadPoolExecutor executor;
+    private final boolean ownsExecutor;
+    private final ThreadLocal<WorkerState> workerState;
+    private final FrameSequencer sequencer = new FrameSequencer();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private long lastSequence = 0;
+    private final byte[][] placeholderParts;
+    private final int[] placeholderLengths;
+
+    private final LatencyHistogram queueTimer = new LatencyHistogram();
+    private final LatencyHistogram encodeTimer = new LatencyHistogram();
+    private final LatencyHistogram reorderTimer = new LatencyHistogram();
+    private final LatencyHistogram[] compressTimers;
+    private final Counter[] jpegBytes;
+
+    public EncodePipeline(int workers, JpegEncoder encoder, BufferPool nv21Pool,
+                          Map<StreamProfile, FrameBus> targets) {
+        this(newExecutor(workers), true, encoder, nv21Pool, targets);
+    }
+
+    /**
+     * Encodes on {@code executor}, which may be shared with other pipelines,
+     * e.g. one per camera, and is left running by {@link #shutdown()}.
+     */
+    public EncodePipeline(ThreadPoolExecutor executor, JpegEncoder encoder, BufferPool nv21Pool,
+                          Map<StreamProfile, FrameBus> targets) {
+        this(executor, false, encoder, nv21Pool, targets);
+    }
+
+    private EncodePipeline(ThreadPoolExecutor executor, boolean ownsExecutor, JpegEncoder encoder,
+                           BufferPool nv21Pool, Map<StreamProfile, FrameBus> targets) {
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.encoder = encoder;
+        this.nv21Pool = nv21Pool;
+        this.profiles = targets.keySet().toArray(new StreamProfile[0]);
+        this.buses = targets.values().toArray(new FrameBus[0]);
+        this.qualities = new AtomicIntegerArray(profiles.length);
+        this.softwareEncoded = new AtomicIntegerArray(profiles.length);
+        this.compressTimers = new LatencyHistogram[profiles.length];
+        this.jpegBytes = new Counter[profiles.length];
+        this.placeholderParts = new byte[profiles.length][];
+        this.placeholderLengths = new int[profiles.length];
+        for (int i = 0; i < profiles.length; i++) {
+            compressTimers[i] = new LatencyHistogram();
+            jpegBytes[i] = new Counter();
+            qualities.set(i, profiles[i].getQuality());
+            softwareEncoded.set(i, 1);
+        }
+        this.workerState = new ThreadLocal<WorkerState>() {
+            @Override
+            protected WorkerState initialValue() {
+                return new WorkerState(profiles);
+            }
+        };
+    }
+
+    /**
+     * Worker pool that hands frames over through a queue as short as the pool
+     * and rejects them when both are full, so callers drop rather than wait.
+     */
+    public static ThreadPoolExecutor newExecutor(int workers) {
+        return new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(workers), new WorkerThreadFactory());
+    }
+
+    public static int defaultWorkerCount() {
+        // Leave a core for the camera and network threads
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    /**
+     * Queues an NV21 frame for encoding. The pipeline returns {@code nv21} to
+     * the pool once it is done with it. Must be called from a single thread.
+     *
+     * @return false if the frame was dropped because the workers are saturated
+     */
+    public boolean submit(byte[] nv21, int width, int height) {
+        return submit(nv21, width, height, System.nanoTime());
+    }
+
+    /**
+     * Like {@link #submit(byte[], int, int)}, for a frame the sensor captured
+     * at {@code captureNanos} on the {@link System#nanoTime()} clock.
+     */
+    public boolean submit(byte[] nv21, int width, int height, long captureNanos) {
+        long sequence = lastSequence + 1;
+        long submittedAt = System.nanoTime();
+        try {
+            executor.execute(() -> encode(sequence, nv21, width, height, captureNanos,
+                submittedAt));
+        } catch (RejectedExecutionException e) {
+            nv21Pool.release(nv21);
+            framesDropped.incrementAndGet();
+            return false;
+        }
+        lastSequence = sequence;
+        return true;
+    }
+
+    /**
+     * Publishes a flat grey image to every profile once all frames submitted
+     * before it are out, so clients can tell that the camera stopped. Encoded
+     * on the calling thread, which must be the one that calls {@link #submit}.
+     */
+    public void submitPlaceholder() {
+        long sequence = ++lastSequence;
+        List<Runnable> publications = new ArrayList<>(profiles.length);
+        for (int i = 0; i < profiles.length; i++) {
+            try {
+                if (placeholderParts[i] == null) {
+                    renderPlaceholder(i);
+                }
+            } catch (IOException | RuntimeException e) {
+                continue;
+            }
+            byte[] part = placeholderParts[i];
+            int length = placeholderLengths[i];
+            FrameBus bus = buses[i];
+            publications.add(() -> bus.publishPlaceholder(part, length));
+        }
+        sequencer.complete(sequence, () -> {
+            for (Runnable publication : publications) {
+                publication.run();
+            }
+        });
+    }
+
+    private void renderPlaceholder(int index) throws IOException {
+        StreamProfile profile = profiles[index];
+        int width = profile.getWidth();
+        int height = profile.getHeight();
+        byte[] grey = new byte[YuvConverter.nv21Size(width, height)];
+        Arrays.fill(grey, 0, width * height, PLACEHOLDER_LUMA);
+        Arrays.fill(grey, width * height, grey.length, (byte) 128);
+        ReusableByteArrayOutputStream out = new ReusableByteArrayOutputStream(1024);
+        encoder.compress(grey, width, height, profile.getQuality(), out);
+        placeholderParts[index] = MultipartEncoder.encode(out.getBuffer(), 0, out.size());
+        placeholderLengths[index] = out.size();
+    }
+
+    private void encode(long sequence, byte[] nv21, int width, int height, long captureNanos,
+                        long submittedAt) {
+        long startedAt = System.nanoTime();
+        queueTimer.record(startedAt - submittedAt);
+
+        List<Runnable> publications = new ArrayList<>(profiles.length);
+        try {
+            WorkerState state = workerState.get();
+            String timestamp = MultipartEncoder.timestamp(captureNanos);
+            for (int i = 0; i < profiles.length; i++) {
+                if (buses[i].hasSubscribers() && softwareEncoded.get(i) == 1) {
+                    publications.add(encodeProfile(state, i, nv21, width, height, captureNanos,
+                        timestamp, startedAt));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Still complete the sequence so later frames are not held back
+            publications.clear();
+        } finally {
+            nv21Pool.release(nv21);
+        }
+
+        long encodedAt = System.nanoTime();
+        encodeTimer.record(encodedAt - startedAt);
+        sequencer.complete(sequence, () -> {
+            reorderTimer.record(System.nanoTime() - encodedAt);
+            for (Runnable publication : publications) {
+                publication.run();
+            }
+        });
+    }
+
+    private Runnable encodeProfile(WorkerState state, int index, byte[] nv21, int width,
+                                   int height, long captureNanos, String timestamp,
+                                   long startedAt) throws IOException {
+        StreamProfile profile = profiles[index];
+        int outWidth = profile.getWidth();
+        int outHeight = profile.getHeight();
+        if (width <= outWidth && height <= outHeight) {
+            // Never upscaled, e.g. while a throttled capture is smaller than the profile
+            outWidth = width;
+            outHeight = height;
+        }
+        byte[] source = nv21;
+        if (outWidth != width || outHeight != height) {
+            if (state.scaled[index] == null) {
+                state.scaled[index] = new byte[YuvConverter.nv21Size(outWidth, outHeight)];
+            }
+            source = state.scaled[index];
+            Nv21Scaler.scale(nv21, width, height, source, outWidth, outHeight);
+        }
+
+        ReusableByteArrayOutputStream out = state.jpegStreams[index];
+        out.reset();
+        long compressStart = System.nanoTime();
+        encoder.compress(source, outWidth, outHeight, qualities.get(index), out);
+        long encodedAt = System.nanoTime();
+        compressTimers[index].record(encodedAt - compressStart);
+        // Render the part now so nothing is copied while the sequencer lock is held
+        int length = out.size();
+        jpegBytes[index].add(length);
+        byte[] part = MultipartEncoder.encode(MultipartEncoder.header(length, timestamp),
+            out.getBuffer(), 0, length);
+        FrameBus bus = buses[index];
+        return () -> bus.publishPart(part, length, captureNanos, startedAt, encodedAt);
+    }
+
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    /** Time frames wait for a free worker. */
+    public LatencyHistogram getQueueTimer() {
+        return queueTimer;
+    }
+
+    /** Time a worker spends on one frame, all profiles included. */
+    public LatencyHistogram getEncodeTimer() {
+        return encodeTimer;
+    }
+
+    /** Time encoded frames wait for their predecessors before publication. */
+    public LatencyHistogram getReorderTimer() {
+        return reorderTimer;
+    }
+
+    /** Overrides the JPEG quality of {@code profile}, starting with the next frame encoded. */
+    public void setQuality(StreamProfile profile, int quality) {
+        for (int i = 0; i < profiles.length; i++) {
+            if (profiles[i] == profile) {
+                qualities.set(i, quality);
+            }
+        }
+    }
+
+    /**
+     * Stops or resumes encoding {@code profile}, starting with the next
+     * frame, for when its frames come from elsewhere.
+     */
+    public void setSoftwareEncoded(StreamProfile profile, boolean encoded) {
+        for (int i = 0; i < profiles.length; i++) {
+            if (profiles[i] == profile) {
+                softwareEncoded.set(i, encoded ? 1 : 0);
+            }
+        }
+    }
+
+    public StreamProfile[] getProfiles() {
+        return profiles.clone();
+    }
+
+    /** Time spent in {@link JpegEncoder#compress} for the profile at {@code index}. */
+    public LatencyHistogram getCompressTimer(int index) {
+        return compressTimers[index];
+    }
+
+    public Counter getJpegBytes(int index) {
+        return jpegBytes[index];
+    }
+
+    public void shutdown() {
+        if (ownsExecutor) {
+            shutdown(executor);
+        }
+    }
+
+    /** Stops a pool from {@link #newExecutor}, giving queued frames a second to finish. */
+    public static void shutdown(ThreadPoolExecutor executor) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class WorkerState {
+        final byte[][] scaled;
+        final ReusableByteArrayOutputStream[] jpegStreams;
+
+        WorkerState(StreamProfile[] profiles) {
+            scaled = new byte[profiles.length][];
+            jpegStreams = new ReusableByteArrayOutputStream[profiles.length];
+            for (int i = 0; i < profiles.length; i++) {
+                jpegStreams[i] = new ReusableByteArrayOutputStream(
+                    profiles[i].getWidth() * profiles[i].getHeight() / 4);
+            }
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "JpegEncoder-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.ipcamera;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Fan-out of server-sent events to {@code /events} clients. Events are kept
+ * in a bounded ring and read in order; a client that falls out of the ring
+ * continues with the oldest event still kept. Each event is rendered to its
+ * wire format once, when published.
+ */
+public class EventStream {
+    public static final String HEADERS = "HTTP/1.1 200 OK\r\n" +
+            "Content-Type: text/event-stream\r\n" +
+            "Cache-Control: no-cache\r\n" +
+            "Connection: close\r\n" +
+            "\r\n";
+    /** Comment line that keeps idle connections and proxies from timing out. */
+    public static final String KEEP_ALIVE = ": keep-alive\n\n";
+
+    public interface Listener {
+        void onEvent(Event event);
+    }
+
+    public static final class Event {
+        private final long id;
+        private final String type;
+        private final String data;
+        private final byte[] encoded;
+
+        Event(long id, String type, String data) {
+            this.id = id;
+            this.type = type;
+            this.data = data;
+            this.encoded = ("id: " + id + "\nevent: " + type + "\ndata: " + data + "\n\n")
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getData() {
+            return data;
+        }
+
+        public byte[] getEncoded() {
+            return encoded;
+        }
+
+        /** Independent read-only view of the encoded event. */
+        public ByteBuffer getEncodedBuffer() {
+            return ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+        }
+    }
+
+    private final Object lock = new Object();
+    private final Event[] ring;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private long lastId = 0;
+    private boolean closed = false;
+
+    public EventStream(int capacity) {
+        this.ring = new Event[capacity];
+    }
+
+    /** {@code data} must be a single line, e.g. compact JSON. */
+    public Event publish(String type, String data) {
+        if (data.indexOf('\n') >= 0 || data.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("Event data must be a single line");
+        }
+        Event event;
+        synchronized (lock) {
+            event = new Event(++lastId, type, data);
+            ring[(int) (event.id % ring.length)] = event;
+            lock.notifyAll();
+        }
+        for (Listener listener : listeners) {
+            listener.onEvent(event);
+        }
+        return event;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /** Id to start a new client from so that it first receives the newest event. */
+    public long getResumeId() {
+        synchronized (lock) {
+            return Math.max(0, lastId - 1);
+        }
+    }
+
+    /**
+     * Returns the event following {@code lastId}, or the oldest one still kept
+     * if that event has already been overwritten; null if there is none yet.
+     */
+    public Event next(long lastId) {
+        synchronized (lock) {
+            if (lastId >= this.lastId) {
+                return null;
+            }
+            long id = Math.max(lastId + 1, this.lastId - ring.length + 1);
+            return ring[(int) (id % ring.length)];
+        }
+    }
+
+    /** Like {@link #next}, but waits for it. Returns null on timeout or once closed. */
+    public Event awaitNext(long lastId, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        synchronized (lock) {
+            while (!closed) {
+                Event next = next(lastId);
+                if (next != null) {
+                    return next;
+                }
+                long remainingMs = (deadline - System.nanoTime()) / 1_000_000L;
+                if (remainingMs <= 0) {
+                    return null;
+                }
+                lock.wait(remainingMs);
+            }
+            return null;
+        }
+    }
+
+    public boolean isClosed() {
+        synchronized (lock) {
+            return closed;
+        }
+    }
+
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+}
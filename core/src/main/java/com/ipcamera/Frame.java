@@ -0,0 +1,97 @@
+package com.ipcamera;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A published JPEG frame, stored once as a ready-to-send multipart part. The
+ * backing array is never modified after construction, so every client can
+ * write it directly or through its own {@link ByteBuffer#duplicate()}.
+ */
+public final class Frame {
+    private final long sequence;
+    private final byte[] part;
+    private final int payloadOffset;
+    private final int payloadLength;
+    private final ByteBuffer partBuffer;
+    private final long captureNanos;
+    private final long encodeStartedAtNanos;
+    private final long encodedAtNanos;
+    private final long publishedAtNanos;
+    private final boolean placeholder;
+
+    Frame(long sequence, byte[] part, int payloadLength, long captureNanos,
+          long encodeStartedAtNanos, long encodedAtNanos, long publishedAtNanos,
+          boolean placeholder) {
+        this.sequence = sequence;
+        this.part = part;
+        this.payloadOffset = MultipartEncoder.payloadOffset(part, payloadLength);
+        this.payloadLength = payloadLength;
+        this.partBuffer = ByteBuffer.wrap(part).asReadOnlyBuffer();
+        this.captureNanos = captureNanos != 0 ? captureNanos : publishedAtNanos;
+        this.encodeStartedAtNanos = encodeStartedAtNanos;
+        this.encodedAtNanos = encodedAtNanos;
+        this.publishedAtNanos = publishedAtNanos;
+        this.placeholder = placeholder;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    public int getPartLength() {
+        return part.length;
+    }
+
+    /**
+     * When the sensor captured the frame, on the {@link System#nanoTime()}
+     * clock; the publication time for frames whose capture time is unknown.
+     */
+    public long getCaptureNanos() {
+        return captureNanos;
+    }
+
+    /** When a worker started encoding the frame, or 0 if it was not encoded in software. */
+    public long getEncodeStartedAtNanos() {
+        return encodeStartedAtNanos;
+    }
+
+    /** When its JPEG was ready, or 0 if it was not encoded in software. */
+    public long getEncodedAtNanos() {
+        return encodedAtNanos;
+    }
+
+    public long getPublishedAtNanos() {
+        return publishedAtNanos;
+    }
+
+    /** True for the image shown while the camera is down rather than a captured frame. */
+    public boolean isPlaceholder() {
+        return placeholder;
+    }
+
+    /** Independent read-only view of the whole multipart part. */
+    public ByteBuffer getPartBuffer() {
+        return partBuffer.duplicate();
+    }
+
+    /** Independent read-only view of just the JPEG bytes. */
+    public ByteBuffer getPayloadBuffer() {
+        ByteBuffer payload = partBuffer.duplicate();
+        payload.position(payloadOffset).limit(payloadOffset + payloadLength);
+        return payload.slice();
+    }
+
+    public void writePartTo(OutputStream out) throws IOException {
+        out.write(part);
+    }
+
+    public void writePayloadTo(OutputStream out) throws IOException {
+        out.write(part, payloadOffset, payloadLength);
+    }
+}
@@ -0,0 +1,181 @@
+package com.ipcamera;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands the most recent encoded frame from the camera to any number of
+ * streaming clients. Every published frame gets a sequence number one higher
+ * than the previous one, so a client only wakes up when there is something it
+ * has not sent yet.
+ */
+public class FrameBus {
+    public interface Listener {
+        void onFramePublished(Frame frame);
+    }
+
+    public interface SubscriberListener {
+        void onSubscriberCountChanged(int subscribers);
+    }
+
+    private final Object lock = new Object();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final List<SubscriberListener> subscriberListeners = new CopyOnWriteArrayList<>();
+    private final AtomicInteger subscribers = new AtomicInteger();
+    private Frame latestFrame;
+    private long lastSequence = 0;
+    private boolean closed = false;
+
+    public Frame publish(byte[] jpeg) {
+        return publish(jpeg, 0, jpeg.length);
+    }
+
+    /**
+     * Copies {@code length} bytes of {@code jpeg} into a new frame, so the
+     * caller may reuse its buffer as soon as this returns.
+     */
+    public Frame publish(byte[] jpeg, int offset, int length) {
+        return publishPart(MultipartEncoder.encode(jpeg, offset, length), length);
+    }
+
+    /**
+     * Copies the remaining bytes of {@code jpeg}, e.g. a camera image plane,
+     * straight into a new frame.
+     */
+    public Frame publish(ByteBuffer jpeg) {
+        return publish(jpeg, 0);
+    }
+
+    /**
+     * Like {@link #publish(ByteBuffer)}, for a frame the sensor captured at
+     * {@code captureNanos} on the {@link System#nanoTime()} clock.
+     */
+    public Frame publish(ByteBuffer jpeg, long captureNanos) {
+        int length = jpeg.remaining();
+        String timestamp = captureNanos != 0 ? MultipartEncoder.timestamp(captureNanos) : null;
+        return publishPart(MultipartEncoder.encode(jpeg, timestamp), length, captureNanos, 0, 0,
+            false);
+    }
+
+    /**
+     * Publishes a part already rendered by {@link MultipartEncoder}, which must
+     * not be modified afterwards. Lets encoder threads do the copy before
+     * taking any lock.
+     */
+    public Frame publishPart(byte[] part, int payloadLength) {
+        return publishPart(part, payloadLength, 0, 0, 0, false);
+    }
+
+    /**
+     * Like {@link #publishPart(byte[], int)}, with the times the frame went
+     * through the pipeline on the {@link System#nanoTime()} clock, 0 where unknown.
+     */
+    public Frame publishPart(byte[] part, int payloadLength, long captureNanos,
+                             long encodeStartedAtNanos, long encodedAtNanos) {
+        return publishPart(part, payloadLength, captureNanos, encodeStartedAtNanos,
+            encodedAtNanos, false);
+    }
+
+    /**
+     * Publishes a rendered part that stands in for the camera while it is
+     * down, so clients stop showing the last captured frame.
+     */
+    public Frame publishPlaceholder(byte[] part, int payloadLength) {
+        return publishPart(part, payloadLength, 0, 0, 0, true);
+    }
+
+    private Frame publishPart(byte[] part, int payloadLength, long captureNanos,
+                              long encodeStartedAtNanos, long encodedAtNanos,
+                              boolean placeholder) {
+        Frame frame;
+        synchronized (lock) {
+            frame = new Frame(++lastSequence, part, payloadLength, captureNanos,
+                encodeStartedAtNanos, encodedAtNanos, System.nanoTime(), placeholder);
+            latestFrame = frame;
+            lock.notifyAll();
+        }
+        for (Listener listener : listeners) {
+            listener.onFramePublished(frame);
+        }
+        return frame;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /** Registers a client that wants frames; the camera only encodes while there is one. */
+    public void subscribe() {
+        notifySubscribers(subscribers.incrementAndGet());
+    }
+
+    public void unsubscribe() {
+        notifySubscribers(subscribers.decrementAndGet());
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.get();
+    }
+
+    public boolean hasSubscribers() {
+        return subscribers.get() > 0;
+    }
+
+    public void addSubscriberListener(SubscriberListener listener) {
+        subscriberListeners.add(listener);
+    }
+
+    public void removeSubscriberListener(SubscriberListener listener) {
+        subscriberListeners.remove(listener);
+    }
+
+    private void notifySubscribers(int count) {
+        for (SubscriberListener listener : subscriberListeners) {
+            listener.onSubscriberCountChanged(count);
+        }
+    }
+
+    public Frame getLatestFrame() {
+        synchronized (lock) {
+            return latestFrame;
+        }
+    }
+
+    /**
+     * Waits until a frame with a sequence number greater than
+     * {@code lastSequence} is published. Returns null on timeout or once the
+     * bus has been closed.
+     */
+    public Frame awaitFrame(long lastSequence, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        synchronized (lock) {
+            while (!closed && (latestFrame == null || latestFrame.getSequence() <= lastSequence)) {
+                long remainingMs = (deadline - System.nanoTime()) / 1_000_000L;
+                if (remainingMs <= 0) {
+                    return null;
+                }
+                lock.wait(remainingMs);
+            }
+            return closed ? null : latestFrame;
+        }
+    }
+
+    public boolean isClosed() {
+        synchronized (lock) {
+            return closed;
+        }
+    }
+
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.ipcamera;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs completion actions strictly in sequence order, holding back any that
+ * finish before their predecessors. Sequences start at 1 and every sequence
+ * must eventually be completed, even if only with a no-op.
+ */
+public class FrameSequencer {
+    private final Map<Long, Runnable> completed = new HashMap<>();
+    private long nextSequence = 1;
+
+    public synchronized void complete(long sequence, Runnable action) {
+        completed.put(sequence, action);
+        Runnable next;
+        while ((next = completed.remove(nextSequence)) != null) {
+            next.run();
+            nextSequence++;
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return completed.size();
+    }
+}
@@ -0,0 +1,199 @@
+package com.ipcamera;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Fan-out of encoded H.264 access units to streaming clients. Unlike JPEG
+ * frames, access units depend on each other, so every client reads them in
+ * order from a bounded ring. A client that joins late or falls out of the ring
+ * is moved to the newest key frame instead.
+ */
+public class H264Stream {
+    public interface Listener {
+        void onAccessUnitPublished(AccessUnit unit);
+    }
+
+    public static final class AccessUnit {
+        private final long sequence;
+        private final byte[] data;
+        private final boolean keyFrame;
+        private final long presentationTimeUs;
+
+        AccessUnit(long sequence, byte[] data, boolean keyFrame, long presentationTimeUs) {
+            this.sequence = sequence;
+            this.data = data;
+            this.keyFrame = keyFrame;
+            this.presentationTimeUs = presentationTimeUs;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public boolean isKeyFrame() {
+            return keyFrame;
+        }
+
+        public long getPresentationTimeUs() {
+            return presentationTimeUs;
+        }
+    }
+
+    private final Object lock = new Object();
+    private final AccessUnit[] ring;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private long lastSequence = 0;
+    private byte[] codecConfig;
+    private boolean closed = false;
+    private Runnable keyFrameRequester;
+    private boolean keyFrameRequested = false;
+
+    public H264Stream(int capacity) {
+        this.ring = new AccessUnit[capacity];
+    }
+
+    public void setKeyFrameRequester(Runnable keyFrameRequester) {
+        synchronized (lock) {
+            this.keyFrameRequester = keyFrameRequester;
+        }
+    }
+
+    /** SPS/PPS that every client must receive before its first access unit. */
+    public void setCodecConfig(byte[] config) {
+        synchronized (lock) {
+            codecConfig = config;
+        }
+    }
+
+    public byte[] getCodecConfig() {
+        synchronized (lock) {
+            return codecConfig;
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public AccessUnit publish(byte[] data, int offset, int length, long presentationTimeUs,
+                              boolean keyFrame) {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        boolean isKey = keyFrame || AnnexB.containsKeyFrame(copy, 0, length);
+        AccessUnit unit;
+        synchronized (lock) {
+            unit = new AccessUnit(++lastSequence, copy, isKey, presentationTimeUs);
+            ring[(int) (unit.sequence % ring.length)] = unit;
+            if (isKey) {
+                keyFrameRequested = false;
+            }
+            lock.notifyAll();
+        }
+        for (Listener listener : listeners) {
+            listener.onAccessUnitPublished(unit);
+        }
+        return unit;
+    }
+
+    /**
+     * Returns the access unit that follows {@code lastSequence}, or the newest
+     * key frame if that unit is no longer available (pass 0 for a new client).
+     * Returns null on timeout or once the stream has been closed.
+     */
+    public AccessUnit awaitNext(long lastSequence, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        boolean requestedKeyFrame = false;
+        synchronized (lock) {
+            while (!closed) {
+                AccessUnit next = findNext(lastSequence);
+                if (next == null && isResyncing(lastSequence) && !requestedKeyFrame
+                        && keyFrameRequester != null) {
+                    keyFrameRequester.run();
+                    requestedKeyFrame = true;
+                }
+                if (next != null) {
+                    return next;
+                }
+                long remainingMs = (deadline - System.nanoTime()) / 1_000_000L;
+                if (remainingMs <= 0) {
+                    return null;
+                }
+                lock.wait(remainingMs);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Returns what {@link #awaitNext} would without waiting, or null if there
+     * is nothing yet or the stream has been closed. For a client that has to
+     * resync and finds no key frame, one is requested, once until it arrives.
+     */
+    public AccessUnit next(long lastSequence) {
+        synchronized (lock) {
+            if (closed) {
+                return null;
+            }
+            AccessUnit next = findNext(lastSequence);
+            if (next == null && isResyncing(lastSequence) && !keyFrameRequested
+                    && keyFrameRequester != null) {
+                keyFrameRequested = true;
+                keyFrameRequester.run();
+            }
+            return next;
+        }
+    }
+
+    public boolean isClosed() {
+        synchronized (lock) {
+            return closed;
+        }
+    }
+
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    private AccessUnit findNext(long lastSequence) {
+        AccessUnit next = lastSequence > 0 ? get(lastSequence + 1) : null;
+        if (next == null && isResyncing(lastSequence)) {
+            next = newestKeyFrameAfter(lastSequence);
+        }
+        return next;
+    }
+
+    // A new client, or one whose next unit has already left the ring
+    private boolean isResyncing(long lastSequence) {
+        return lastSequence == 0 || this.lastSequence - lastSequence >= ring.length;
+    }
+
+    private AccessUnit get(long sequence) {
+        if (sequence > lastSequence || lastSequence - sequence >= ring.length) {
+            return null;
+        }
+        return ring[(int) (sequence % ring.length)];
+    }
+
+    private AccessUnit newestKeyFrameAfter(long sequence) {
+        long oldest = Math.max(sequence + 1, lastSequence - ring.length + 1);
+        for (long s = lastSequence; s >= oldest && s > 0; s--) {
+            AccessUnit unit = ring[(int) (s % ring.length)];
+            if (unit.keyFrame) {
+                return unit;
+            }
+        }
+        return null;
+    }
+}
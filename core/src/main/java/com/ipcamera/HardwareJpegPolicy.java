@@ -0,0 +1,128 @@
+package com.ipcamera;
+
+import java.util.Locale;
+
+/**
+ * Decides whether a profile is compressed by the camera's own JPEG encoder
+ * instead of in software, and gives up on it once the camera's JPEG stream
+ * turns out not to keep up. The camera is only consulted through
+ * {@link Capabilities}, so the decisions can be exercised without one.
+ *
+ * <p>Not thread-safe; the camera thread drives it.
+ */
+public class HardwareJpegPolicy {
+    public interface Capabilities {
+        /**
+         * Shortest time between JPEG frames of this size the camera supports,
+         * stall included, in nanoseconds; 0 if unknown and -1 if the camera
+         * cannot produce JPEG at this size.
+         */
+        long getJpegFrameDurationNanos(int width, int height);
+    }
+
+    public interface FallbackListener {
+        void onFallback(String reason);
+    }
+
+    static final long WINDOW_NANOS = 3_000_000_000L;
+    // Share of captured frames the JPEG stream must deliver when below the target rate
+    private static final double MIN_DELIVERED_SHARE = 0.8;
+
+    private final Capabilities capabilities;
+    private final double targetFps;
+    private FallbackListener listener;
+    private boolean fallenBack = false;
+    private boolean measuring = false;
+    private long windowStartNanos;
+    private int capturedFrames;
+    private int hardwareFrames;
+
+    /** @param targetFps frame rate the JPEG stream must sustain */
+    public HardwareJpegPolicy(Capabilities capabilities, double targetFps) {
+        this.capabilities = capabilities;
+        this.targetFps = targetFps;
+    }
+
+    public void setFallbackListener(FallbackListener listener) {
+        this.listener = listener;
+    }
+
+    /** Whether to ask the camera for JPEG frames of this size. */
+    public boolean shouldUseHardware(int width, int height) {
+        if (fallenBack) {
+            return false;
+        }
+        long duration = capabilities.getJpegFrameDurationNanos(width, height);
+        return duration >= 0 && duration <= 1e9 / targetFps;
+    }
+
+    public boolean hasFallenBack() {
+        return fallenBack;
+    }
+
+    /** Starts judging the JPEG stream, e.g. once it is part of the repeating request. */
+    public void startMeasuring(long nowNanos) {
+        measuring = true;
+        startWindow(nowNanos);
+    }
+
+    public void stopMeasuring() {
+        measuring = false;
+    }
+
+    /** Counts a frame of the software path, which the JPEG stream is compared with. */
+    public void onCaptureFrame(long nowNanos) {
+        if (measuring) {
+            capturedFrames++;
+            evaluate(nowNanos);
+        }
+    }
+
+    public void onHardwareFrame(long nowNanos) {
+        if (measuring) {
+            hardwareFrames++;
+            evaluate(nowNanos);
+        }
+    }
+
+    /** The camera rejected a session with the JPEG output. */
+    public void onSessionFailed() {
+        fallBack("capture session with JPEG output could not be configured");
+    }
+
+    /** Gives hardware JPEG another chance, e.g. after the capture size changed. */
+    public void reset() {
+        fallenBack = false;
+        measuring = false;
+    }
+
+    private void evaluate(long nowNanos) {
+        long elapsed = nowNanos - windowStartNanos;
+        if (elapsed < WINDOW_NANOS) {
+            return;
+        }
+        double hardwareFps = hardwareFrames * 1e9 / elapsed;
+        // A slow sensor, e.g. in the dark, is not the JPEG stream's fault
+        if (hardwareFps < targetFps && hardwareFrames < capturedFrames * MIN_DELIVERED_SHARE) {
+            fallBack(String.format(Locale.ROOT, "JPEG stream delivered %.1f fps of %.1f captured",
+                hardwareFps, capturedFrames * 1e9 / elapsed));
+        } else {
+            startWindow(nowNanos);
+        }
+    }
+
+    private void startWindow(long nowNanos) {
+        windowStartNanos = nowNanos;
+        capturedFrames = 0;
+        hardwareFrames = 0;
+    }
+
+    private void fallBack(String reason) {
+        fallenBack = true;
+        measuring = false;
+        FallbackListener current = listener;
+        if (current != null) {
+            current.onFallback(reason);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.ipcamera;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Method, decoded path and query parameters, and headers of an HTTP request,
+ * as produced by {@link HttpRequestParser}.
+ */
+public final class HttpRequest {
+    private final String method;
+    private final String path;
+    private final String version;
+    private final Map<String, String> queryParameters;
+    private final Map<String, String> headers;
+
+    HttpRequest(String method, String path, String version,
+                Map<String, String> queryParameters, Map<String, String> headers) {
+        this.method = method;
+        this.path = path;
+        this.version = version;
+        this.queryParameters = Collections.unmodifiableMap(queryParameters);
+        this.headers = Collections.unmodifiableMap(headers);
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    /** Returns the value of header {@code name}, matched case-insensitively, or null. */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /** HTTP/1.1 connections persist unless closed explicitly; HTTP/1.0 ones only on request. */
+    public boolean isKeepAlive() {
+        String connection = getHeader("Connection");
+        if ("HTTP/1.1".equals(version)) {
+            return connection == null || !connection.equalsIgnoreCase("close");
+        }
+        return connection != null && connection.equalsIgnoreCase("keep-alive");
+    }
+
+    public String getQueryParameter(String name) {
+        return queryParameters.get(name);
+    }
+
+    public Map<String, String> getQueryParameters() {
+        return queryParameters;
+    }
+}
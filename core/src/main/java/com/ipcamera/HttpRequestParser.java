@@ -0,0 +1,295 @@
+package com.ipcamera;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Incremental parser for HTTP/1.x request heads. Input may arrive split at
+ * any byte; {@link #parse} consumes bytes only up to the end of the current
+ * request head, so pipelined requests stay in the caller's buffer. The head
+ * is bounded in size and request bodies are rejected unless the parser was
+ * created for a caller that reads them itself.
+ */
+public final class HttpRequestParser {
+    public static final int DEFAULT_MAX_HEAD_BYTES = 8192;
+    private static final int INITIAL_CAPACITY = 512;
+    private static final int MAX_HEADERS = 64;
+
+    /** A request that cannot be served; {@link #getStatus()} is the status to answer with. */
+    public static final class InvalidRequestException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+        private final String reason;
+
+        InvalidRequestException(int status, String reason, String message) {
+            super(message);
+            this.status = status;
+            this.reason = reason;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+    }
+
+    private final int maxHeadBytes;
+    private final boolean acceptBodies;
+    private final boolean rtsp;
+    private byte[] head;
+    private int length = 0;
+    private boolean lineEmpty = false;
+
+    public HttpRequestParser() {
+        this(DEFAULT_MAX_HEAD_BYTES);
+    }
+
+    public HttpRequestParser(int maxHeadBytes) {
+        this(maxHeadBytes, false);
+    }
+
+    /**
+     * @param acceptBodies let requests with a body through; the body is left
+     *                     unread in the caller's buffer like a pipelined request
+     */
+    public HttpRequestParser(int maxHeadBytes, boolean acceptBodies) {
+        this(maxHeadBytes, acceptBodies, false);
+    }
+
+    private HttpRequestParser(int maxHeadBytes, boolean acceptBodies, boolean rtsp) {
+        this.maxHeadBytes = maxHeadBytes;
+        this.acceptBodies = acceptBodies;
+        this.rtsp = rtsp;
+        this.head = new byte[Math.min(INITIAL_CAPACITY, maxHeadBytes)];
+    }
+
+    /**
+     * Returns a parser for RTSP/1.0 requests, whose heads share the HTTP
+     * syntax. Targets are {@code rtsp://} URLs or {@code *}; bodies are let
+     * through for the caller to skip.
+     */
+    public static HttpRequestParser forRtsp() {
+        return new HttpRequestParser(DEFAULT_MAX_HEAD_BYTES, true, true);
+    }
+
+    /**
+     * Consumes bytes from {@code input} until a request head is complete.
+     *
+     * @return the request, or null if {@code input} ran out first
+     * @throws InvalidRequestException if the head is malformed or too large;
+     *         the parser must not be used for that connection afterwards
+     */
+    public HttpRequest parse(ByteBuffer input) throws InvalidRequestException {
+        while (input.hasRemaining()) {
+            byte b = input.get();
+            // Stray line breaks between pipelined requests are allowed
+            if (length == 0 && (b == '\r' || b == '\n')) {
+                continue;
+            }
+            if (length == head.length) {
+                if (length >= maxHeadBytes) {
+                    throw new InvalidRequestException(431, "Request Header Fields Too Large",
+                            "Request head exceeds " + maxHeadBytes + " bytes");
+                }
+                byte[] grown = new byte[Math.min(head.length * 2, maxHeadBytes)];
+                System.arraycopy(head, 0, grown, 0, length);
+                head = grown;
+            }
+            head[length++] = b;
+            if (b == '\n') {
+                if (lineEmpty) {
+                    try {
+                        return build();
+                    } finally {
+                        reset();
+                    }
+                }
+                lineEmpty = true;
+            } else if (b != '\r') {
+                lineEmpty = false;
+            }
+        }
+        return null;
+    }
+
+    /** True once part of a request head has been received but not all of it. */
+    public boolean isStarted() {
+        return length > 0;
+    }
+
+    public void reset() {
+        length = 0;
+        lineEmpty = false;
+    }
+
+    private HttpRequest build() throws InvalidRequestException {
+        int lineEnd = lineEnd(0);
+        int firstSpace = indexOf(' ', 0, lineEnd);
+        int secondSpace = firstSpace < 0 ? -1 : indexOf(' ', firstSpace + 1, lineEnd);
+        if (firstSpace <= 0 || secondSpace < 0 || secondSpace == firstSpace + 1
+                || indexOf(' ', secondSpace + 1, lineEnd) >= 0) {
+            throw badRequest("Malformed request line");
+        }
+        String method = text(0, firstSpace);
+        for (int i = 0; i < method.length(); i++) {
+            if (!isTokenChar(method.charAt(i))) {
+                throw badRequest("Malformed method");
+            }
+        }
+        String version = text(secondSpace + 1, lineEnd);
+        if (rtsp ? !version.equals("RTSP/1.0")
+                : !version.equals("HTTP/1.1") && !version.equals("HTTP/1.0")) {
+            throw new InvalidRequestException(505,
+                    rtsp ? "RTSP Version Not Supported" : "HTTP Version Not Supported",
+                    "Unsupported version " + version);
+        }
+
+        String target = text(firstSpace + 1, secondSpace);
+        if (rtsp && target.startsWith("rtsp://")
+                || !rtsp && (target.startsWith("http://") || target.startsWith("https://"))) {
+            // Absolute form, as sent to proxies and by every RTSP client
+            int pathStart = target.indexOf('/', target.indexOf("//") + 2);
+            target = pathStart >= 0 ? target.substring(pathStart) : "/";
+        }
+        if (!target.startsWith("/") && !(rtsp && target.equals("*"))) {
+            throw badRequest("Malformed request target");
+        }
+        int queryStart = target.indexOf('?');
+        String path = decode(queryStart >= 0 ? target.substring(0, queryStart) : target, false);
+        Map<String, String> query = new HashMap<>();
+        if (queryStart >= 0) {
+            parseQuery(target.substring(queryStart + 1), query);
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        int lineStart = nextLine(lineEnd);
+        while (lineStart < length) {
+            lineEnd = lineEnd(lineStart);
+            if (lineEnd == lineStart) {
+                break;
+            }
+            if (head[lineStart] == ' ' || head[lineStart] == '\t') {
+                throw badRequest("Folded header lines are not supported");
+            }
+            int colon = indexOf(':', lineStart, lineEnd);
+            if (colon <= lineStart) {
+                throw badRequest("Malformed header line");
+            }
+            for (int i = lineStart; i < colon; i++) {
+                if (!isTokenChar((char) head[i])) {
+                    throw badRequest("Malformed header name");
+                }
+            }
+            if (headers.size() == MAX_HEADERS) {
+                throw new InvalidRequestException(431, "Request Header Fields Too Large",
+                        "More than " + MAX_HEADERS + " header fields");
+            }
+            String name = text(lineStart, colon).toLowerCase(Locale.ROOT);
+            String value = text(colon + 1, lineEnd).trim();
+            String previous = headers.get(name);
+            headers.put(name, previous == null ? value : previous + ", " + value);
+            lineStart = nextLine(lineEnd);
+        }
+
+        String contentLength = headers.get("content-length");
+        if (!acceptBodies && (headers.containsKey("transfer-encoding")
+                || (contentLength != null && !contentLength.equals("0")))) {
+            throw badRequest("Request bodies are not supported");
+        }
+        return new HttpRequest(method, path, version, query, headers);
+    }
+
+    private static void parseQuery(String query, Map<String, String> out)
+            throws InvalidRequestException {
+        int start = 0;
+        while (start <= query.length()) {
+            int end = query.indexOf('&', start);
+            if (end < 0) {
+                end = query.length();
+            }
+            if (end > start) {
+                int eq = query.indexOf('=', start);
+                if (eq >= 0 && eq < end) {
+                    out.put(decode(query.substring(start, eq), true),
+                            decode(query.substring(eq + 1, end), true));
+                } else {
+                    out.put(decode(query.substring(start, end), true), "");
+                }
+            }
+            start = end + 1;
+        }
+    }
+
+    /** Percent-decodes {@code value} as UTF-8. */
+    static String decode(String value, boolean plusIsSpace) throws InvalidRequestException {
+        if (value.indexOf('%') < 0 && (!plusIsSpace || value.indexOf('+') < 0)) {
+            return value;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '%') {
+                int high = i + 2 < value.length() ? Character.digit(value.charAt(i + 1), 16) : -1;
+                int low = high >= 0 ? Character.digit(value.charAt(i + 2), 16) : -1;
+                if (low < 0) {
+                    throw badRequest("Malformed percent-encoding");
+                }
+                out.write((high << 4) | low);
+                i += 2;
+            } else if (c == '+' && plusIsSpace) {
+                out.write(' ');
+            } else {
+                out.write(c);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static boolean isTokenChar(char c) {
+        if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9') {
+            return true;
+        }
+        return c < 0x7f && c > ' ' && "!#$%&'*+-.^_`|~".indexOf(c) >= 0;
+    }
+
+    // Index of the line break ending the line at start, excluding a preceding '\r'
+    private int lineEnd(int start) {
+        int newline = indexOf('\n', start, length);
+        return newline > start && head[newline - 1] == '\r' ? newline - 1 : newline;
+    }
+
+    private int nextLine(int lineEnd) {
+        return head[lineEnd] == '\r' ? lineEnd + 2 : lineEnd + 1;
+    }
+
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (head[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String text(int from, int to) throws InvalidRequestException {
+        for (int i = from; i < to; i++) {
+            if (head[i] == 0 || head[i] == '\r') {
+                throw badRequest("Control character in request head");
+            }
+        }
+        return new String(head, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    private static InvalidRequestException badRequest(String message) {
+        return new InvalidRequestException(400, "Bad Request", message);
+    }
+}
@@ -0,0 +1,151 @@
+package com.ipcamera;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters, gauges and latency histograms, rendered in the Prometheus
+ * text exposition format for {@code /metrics}. Registration is idempotent:
+ * asking for an existing name returns the same instance, so hot paths can
+ * keep a reference and never touch the registry again.
+ */
+public class MetricsRegistry {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final Map<String, Family> families;
+    // Prepended to the labels of everything registered through this instance
+    private final String commonLabels;
+
+    public MetricsRegistry() {
+        this(new ConcurrentSkipListMap<String, Family>(), "");
+    }
+
+    private MetricsRegistry(Map<String, Family> families, String commonLabels) {
+        this.families = families;
+        this.commonLabels = commonLabels;
+    }
+
+    /**
+     * Returns a view that registers into this registry with {@code labels}
+     * added to every series, e.g. {@code camera="1"} for one of several
+     * cameras. Rendering either one renders everything.
+     */
+    public MetricsRegistry withLabels(String labels) {
+        return new MetricsRegistry(families, withCommonLabels(labels));
+    }
+
+    private String withCommonLabels(String labels) {
+        if (commonLabels.isEmpty()) {
+            return labels;
+        }
+        return labels.isEmpty() ? commonLabels : commonLabels + "," + labels;
+    }
+
+    public Counter counter(String name, String help) {
+        return counter(name, help, "");
+    }
+
+    /** {@code labels} is the already formatted label list, e.g. {@code profile="hd"}. */
+    public Counter counter(String name, String help, String labels) {
+        return (Counter) family(name, help, "counter").series
+            .computeIfAbsent(withCommonLabels(labels), key -> new Counter());
+    }
+
+    /** Exposes a monotonic count kept elsewhere as a counter. */
+    public void counter(String name, String help, String labels, LongSupplier value) {
+        family(name, help, "counter").series.put(withCommonLabels(labels), value);
+    }
+
+    public void gauge(String name, String help, LongSupplier value) {
+        gauge(name, help, "", value);
+    }
+
+    public void gauge(String name, String help, String labels, LongSupplier value) {
+        family(name, help, "gauge").series.put(withCommonLabels(labels), value);
+    }
+
+    public LatencyHistogram histogram(String name, String help) {
+        return histogram(name, help, "");
+    }
+
+    public LatencyHistogram histogram(String name, String help, String labels) {
+        return (LatencyHistogram) family(name, help, "summary").series
+            .computeIfAbsent(withCommonLabels(labels), key -> new LatencyHistogram());
+    }
+
+    /** Exposes a histogram owned elsewhere, replacing any previous one under the same labels. */
+    public LatencyHistogram register(String name, String help, String labels,
+                                     LatencyHistogram histogram) {
+        family(name, help, "summary").series.put(withCommonLabels(labels), histogram);
+        return histogram;
+    }
+
+    public void remove(String name, String labels) {
+        Family family = families.get(name);
+        if (family != null) {
+            family.series.remove(withCommonLabels(labels));
+        }
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    public String render() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+                if (metric instanceof Counter) {
+                    sample(out, name, labels, ((Counter) metric).get());
+                } else if (metric instanceof LongSupplier) {
+                    sample(out, name, labels, ((LongSupplier) metric).getAsLong());
+                } else {
+                    LatencyHistogram histogram = (LatencyHistogram) metric;
+                    for (double quantile : QUANTILES) {
+                        String quantileLabel = "quantile=\"" + quantile + "\"";
+                        sample(out, name, labels.isEmpty() ? quantileLabel : labels + "," + quantileLabel,
+                            seconds(histogram.getQuantileNanos(quantile)));
+                    }
+                    sample(out, name + "_sum", labels, seconds(histogram.getTotalNanos()));
+                    sample(out, name + "_count", labels, histogram.getCount());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, Object value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static final class Family {
+        final String help;
+        final String type;
+        final Map<String, Object> series = new ConcurrentHashMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
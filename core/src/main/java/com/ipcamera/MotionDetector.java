@@ -0,0 +1,190 @@
+package com.ipcamera;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Block-wise frame differencing on the luma plane. Each frame is reduced to
+ * the mean brightness of every {@code blockSize} square, sampled on a sparse
+ * grid, and compared with the previous frame. The scene counts as moving
+ * while enough unmasked blocks change, and for {@code holdNanos} afterwards
+ * so that brief pauses do not flap between states.
+ *
+ * <p>Not thread-safe; meant to be fed from the camera thread.
+ */
+public class MotionDetector {
+    public interface Listener {
+        void onMotionChanged(boolean moving, float score, long timestampNanos);
+    }
+
+    // Every SAMPLE_STEP-th pixel in both directions contributes to a block mean
+    private static final int SAMPLE_STEP = 4;
+
+    private final int blockSize;
+    private final int threshold;
+    private final float minChangedFraction;
+    private final long holdNanos;
+    private Listener listener;
+
+    private int width;
+    private int height;
+    private int columns;
+    private int rows;
+    private int[] means = new int[0];
+    private int[] previousMeans = new int[0];
+    private boolean[] masked = new boolean[0];
+    private float[][] maskRegions = new float[0][];
+    private int unmaskedBlocks;
+    private boolean hasPrevious = false;
+
+    private boolean moving = false;
+    private long lastMotionNanos;
+    private float lastScore;
+
+    /**
+     * @param blockSize          block edge in pixels
+     * @param threshold          change in mean luma (0-255) for a block to count as changed
+     * @param minChangedFraction share of unmasked blocks that must change for motion
+     * @param holdNanos          how long the scene stays moving after the last change
+     */
+    public MotionDetector(int blockSize, int threshold, float minChangedFraction, long holdNanos) {
+        if (blockSize < SAMPLE_STEP) {
+            throw new IllegalArgumentException("blockSize must be at least " + SAMPLE_STEP);
+        }
+        this.blockSize = blockSize;
+        this.threshold = threshold;
+        this.minChangedFraction = minChangedFraction;
+        this.holdNanos = holdNanos;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Ignores blocks that fall into any of {@code regions}, each given as
+     * {left, top, right, bottom} fractions of the frame. Replaces the
+     * previous mask; pass none to watch the whole frame.
+     */
+    public void setMask(float[]... regions) {
+        for (float[] region : regions) {
+            if (region.length != 4) {
+                throw new IllegalArgumentException("Mask regions are {left, top, right, bottom}");
+            }
+        }
+        maskRegions = regions.clone();
+        if (columns > 0) {
+            applyMask();
+        }
+    }
+
+    /** Analyses a packed luma plane, e.g. the start of an NV21 buffer. */
+    public boolean analyze(byte[] luma, int width, int height, long timestampNanos) {
+        return analyze(ByteBuffer.wrap(luma), width, width, height, timestampNanos);
+    }
+
+    /**
+     * Analyses the luma plane in {@code y}, read with absolute gets so the
+     * buffer's position is left alone.
+     *
+     * @return whether the scene is currently moving
+     */
+    public boolean analyze(ByteBuffer y, int rowStride, int width, int height,
+                           long timestampNanos) {
+        if (width != this.width || height != this.height) {
+            resize(width, height);
+        }
+        int samplesPerSide = blockSize / SAMPLE_STEP;
+        int samplesPerBlock = samplesPerSide * samplesPerSide;
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int block = row * columns + column;
+                if (masked[block]) {
+                    continue;
+                }
+                int sum = 0;
+                int offset = row * blockSize * rowStride + column * blockSize;
+                for (int sy = 0; sy < samplesPerSide; sy++) {
+                    int index = offset + sy * SAMPLE_STEP * rowStride;
+                    for (int sx = 0; sx < samplesPerSide; sx++) {
+                        sum += y.get(index + sx * SAMPLE_STEP) & 0xFF;
+                    }
+                }
+                means[block] = sum / samplesPerBlock;
+            }
+        }
+
+        int changed = 0;
+        if (hasPrevious) {
+            for (int block = 0; block < means.length; block++) {
+                if (!masked[block] && Math.abs(means[block] - previousMeans[block]) > threshold) {
+                    changed++;
+                }
+            }
+        }
+        int[] swap = previousMeans;
+        previousMeans = means;
+        means = swap;
+        hasPrevious = true;
+
+        lastScore = unmaskedBlocks > 0 ? (float) changed / unmaskedBlocks : 0f;
+        boolean motion = changed > 0 && lastScore >= minChangedFraction;
+        if (motion) {
+            lastMotionNanos = timestampNanos;
+        }
+        boolean nowMoving = motion || (moving && timestampNanos - lastMotionNanos < holdNanos);
+        if (nowMoving != moving) {
+            moving = nowMoving;
+            if (listener != null) {
+                listener.onMotionChanged(moving, lastScore, timestampNanos);
+            }
+        }
+        return moving;
+    }
+
+    public boolean isMoving() {
+        return moving;
+    }
+
+    /** Share of unmasked blocks that changed in the last analysed frame. */
+    public float getLastScore() {
+        return lastScore;
+    }
+
+    /** Forgets the previous frame, e.g. after the camera was reconfigured. */
+    public void reset() {
+        hasPrevious = false;
+    }
+
+    private void resize(int width, int height) {
+        this.width = width;
+        this.height = height;
+        columns = width / blockSize;
+        rows = height / blockSize;
+        means = new int[columns * rows];
+        previousMeans = new int[columns * rows];
+        masked = new boolean[columns * rows];
+        hasPrevious = false;
+        applyMask();
+    }
+
+    private void applyMask() {
+        Arrays.fill(masked, false);
+        unmaskedBlocks = masked.length;
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                // A block is masked when its centre lies inside a region
+                float x = (column + 0.5f) / columns;
+                float y = (row + 0.5f) / rows;
+                for (float[] region : maskRegions) {
+                    if (x >= region[0] && x < region[2] && y >= region[1] && y < region[3]) {
+                        masked[row * columns + column] = true;
+                        unmaskedBlocks--;
+                        break;
+                    }
+                }
+            }
+        }
+        hasPrevious = false;
+    }
+}
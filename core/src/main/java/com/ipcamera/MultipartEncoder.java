@@ -0,0 +1,77 @@
+package com.ipcamera;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Renders JPEG frames as complete multipart/x-mixed-replace parts: boundary
+ * line, part headers, payload and trailing CRLF in one contiguous array, so a
+ * frame can be written to a client with a single write call.
+ */
+final class MultipartEncoder {
+    static final String BOUNDARY = "frame";
+
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private MultipartEncoder() {
+    }
+
+    static byte[] header(int payloadLength) {
+        return header(payloadLength, null);
+    }
+
+    /** @param timestamp value of an {@code X-Timestamp} header, or null for none */
+    static byte[] header(int payloadLength, String timestamp) {
+        return ("--" + BOUNDARY + "\r\n" +
+                "Content-Type: image/jpeg\r\n" +
+                "Content-Length: " + payloadLength + "\r\n" +
+                (timestamp != null ? "X-Timestamp: " + timestamp + "\r\n" : "") +
+                "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Renders {@code nanos}, a {@link System#nanoTime()} value, as wall-clock
+     * seconds since the epoch with microseconds, the way mjpg-streamer sends
+     * {@code X-Timestamp}, so viewers can compare it with their own clock.
+     */
+    static String timestamp(long nanos) {
+        long micros = System.currentTimeMillis() * 1000 - (System.nanoTime() - nanos) / 1000;
+        String fraction = Long.toString(micros % 1_000_000);
+        StringBuilder timestamp = new StringBuilder(20).append(micros / 1_000_000).append('.');
+        for (int i = fraction.length(); i < 6; i++) {
+            timestamp.append('0');
+        }
+        return timestamp.append(fraction).toString();
+    }
+
+    static byte[] encode(byte[] payload, int offset, int length) {
+        return encode(header(length), payload, offset, length);
+    }
+
+    /**
+     * Renders the remaining bytes of {@code payload} without an intermediate copy.
+     *
+     * @param timestamp value of an {@code X-Timestamp} header, or null for none
+     */
+    static byte[] encode(ByteBuffer payload, String timestamp) {
+        int length = payload.remaining();
+        byte[] header = header(length, timestamp);
+        byte[] part = new byte[header.length + length + CRLF.length];
+        System.arraycopy(header, 0, part, 0, header.length);
+        payload.get(part, header.length, length);
+        System.arraycopy(CRLF, 0, part, header.length + length, CRLF.length);
+        return part;
+    }
+
+    static int payloadOffset(byte[] part, int payloadLength) {
+        return part.length - payloadLength - CRLF.length;
+    }
+
+    static byte[] encode(byte[] header, byte[] payload, int offset, int length) {
+        byte[] part = new byte[header.length + length + CRLF.length];
+        System.arraycopy(header, 0, part, 0, header.length);
+        System.arraycopy(payload, offset, part, header.length, length);
+        System.arraycopy(CRLF, 0, part, header.length + length, CRLF.length);
+        return part;
+    }
+}
@@ -0,0 +1,83 @@
+package com.ipcamera;
+
+/**
+ * Downscales NV21 images. Exact integer ratios are box-filtered, anything
+ * else falls back to nearest-neighbour sampling.
+ */
+public final class Nv21Scaler {
+    private Nv21Scaler() {
+    }
+
+    public static void scale(byte[] src, int srcWidth, int srcHeight,
+                             byte[] dst, int dstWidth, int dstHeight) {
+        int factor = srcWidth / dstWidth;
+        if (factor > 1 && factor * dstWidth == srcWidth && factor * dstHeight == srcHeight
+                && dstWidth % 2 == 0 && dstHeight % 2 == 0) {
+            boxScale(src, srcWidth, srcHeight, dst, dstWidth, dstHeight, factor);
+        } else {
+            nearestScale(src, srcWidth, srcHeight, dst, dstWidth, dstHeight);
+        }
+    }
+
+    private static void boxScale(byte[] src, int srcWidth, int srcHeight,
+                                 byte[] dst, int dstWidth, int dstHeight, int factor) {
+        int area = factor * factor;
+        for (int y = 0; y < dstHeight; y++) {
+            for (int x = 0; x < dstWidth; x++) {
+                int sum = 0;
+                for (int dy = 0; dy < factor; dy++) {
+                    int row = (y * factor + dy) * srcWidth + x * factor;
+                    for (int dx = 0; dx < factor; dx++) {
+                        sum += src[row + dx] & 0xff;
+                    }
+                }
+                dst[y * dstWidth + x] = (byte) (sum / area);
+            }
+        }
+
+        int srcChroma = srcWidth * srcHeight;
+        int dstChroma = dstWidth * dstHeight;
+        for (int y = 0; y < dstHeight / 2; y++) {
+            for (int x = 0; x < dstWidth / 2; x++) {
+                int v = 0;
+                int u = 0;
+                for (int dy = 0; dy < factor; dy++) {
+                    int row = srcChroma + (y * factor + dy) * srcWidth + x * factor * 2;
+                    for (int dx = 0; dx < factor; dx++) {
+                        v += src[row + dx * 2] & 0xff;
+                        u += src[row + dx * 2 + 1] & 0xff;
+                    }
+                }
+                int out = dstChroma + y * dstWidth + x * 2;
+                dst[out] = (byte) (v / area);
+                dst[out + 1] = (byte) (u / area);
+            }
+        }
+    }
+
+    private static void nearestScale(byte[] src, int srcWidth, int srcHeight,
+                                     byte[] dst, int dstWidth, int dstHeight) {
+        for (int y = 0; y < dstHeight; y++) {
+            int srcRow = (y * srcHeight / dstHeight) * srcWidth;
+            for (int x = 0; x < dstWidth; x++) {
+                dst[y * dstWidth + x] = src[srcRow + x * srcWidth / dstWidth];
+            }
+        }
+
+        int srcChroma = srcWidth * srcHeight;
+        int dstChroma = dstWidth * dstHeight;
+        int srcChromaWidth = (srcWidth + 1) / 2;
+        int srcChromaHeight = (srcHeight + 1) / 2;
+        int dstChromaWidth = (dstWidth + 1) / 2;
+        int dstChromaHeight = (dstHeight + 1) / 2;
+        for (int y = 0; y < dstChromaHeight; y++) {
+            int srcRow = srcChroma + (y * srcChromaHeight / dstChromaHeight) * srcChromaWidth * 2;
+            int dstRow = dstChroma + y * dstChromaWidth * 2;
+            for (int x = 0; x < dstChromaWidth; x++) {
+                int sx = srcRow + (x * srcChromaWidth / dstChromaWidth) * 2;
+                dst[dstRow + x * 2] = src[sx];
+                dst[dstRow + x * 2 + 1] = src[sx + 1];
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.ipcamera;
+
+/**
+ * Delays between attempts to restart something that keeps failing: the first
+ * retry comes after the initial delay, each further one waits twice as long
+ * up to the maximum. {@link #reset()} once an attempt has worked.
+ */
+public class RetryBackoff {
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private long nextDelayMillis;
+    private int attempts = 0;
+
+    public RetryBackoff(long initialDelayMillis, long maxDelayMillis) {
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.nextDelayMillis = initialDelayMillis;
+    }
+
+    /** Returns how long to wait before the next attempt and counts it. */
+    public synchronized long nextDelayMillis() {
+        long delay = nextDelayMillis;
+        nextDelayMillis = Math.min(maxDelayMillis, nextDelayMillis * 2);
+        attempts++;
+        return delay;
+    }
+
+    /** Attempts made since the last {@link #reset()}. */
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    public synchronized void reset() {
+        nextDelayMillis = initialDelayMillis;
+        attempts = 0;
+    }
+}
@@ -0,0 +1,19 @@
+package com.ipcamera;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * {@link ByteArrayOutputStream} whose internal array can be read in place,
+ * avoiding the copy made by {@link #toByteArray()}. Call {@link #reset()}
+ * before reusing it.
+ */
+public class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+    public ReusableByteArrayOutputStream(int initialSize) {
+        super(initialSize);
+    }
+
+    /** Backing array; only the first {@link #size()} bytes are valid. */
+    public byte[] getBuffer() {
+        return buf;
+    }
+}
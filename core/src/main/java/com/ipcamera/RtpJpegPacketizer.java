@@ -0,0 +1,288 @@
+package com.ipcamera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits JPEG frames into RTP packets as specified by RFC 2435. Only the
+ * entropy-coded scan travels in the packets; the receiver rebuilds the JPEG
+ * headers from the type, size and quantization tables in the RTP/JPEG
+ * header, assuming the standard Huffman tables that Android's encoders use.
+ * Baseline frames with 4:2:2 or 4:2:0 chroma and sides that are multiples
+ * of 8 up to 2040 pixels are supported; {@link #parse} returns null for anything else.
+ *
+ * <p>One instance per RTP stream, since it numbers the packets it produces.
+ * Not thread-safe.
+ */
+public class RtpJpegPacketizer {
+    public static final int PAYLOAD_TYPE = 26;
+    public static final int CLOCK_RATE = 90_000;
+    static final int RTP_HEADER_BYTES = 12;
+    private static final int TABLE_BYTES = 64;
+    // Tells the receiver the quantization tables come with the first packet of every frame
+    private static final int Q_IN_BAND_TABLES = 255;
+    private static final int MAX_DIMENSION = 255 * 8;
+
+    public interface PacketSink {
+        void send(byte[] packet, int length) throws IOException;
+    }
+
+    /** The parts of a JPEG frame RTP/JPEG carries, parsed once for every stream sending it. */
+    public static final class Image {
+        final int type;
+        final int width;
+        final int height;
+        final int restartInterval;
+        final byte[] quantizationTables;
+        final ByteBuffer scan;
+
+        Image(int type, int width, int height, int restartInterval, byte[] quantizationTables,
+              ByteBuffer scan) {
+            this.type = type;
+            this.width = width;
+            this.height = height;
+            this.restartInterval = restartInterval;
+            this.quantizationTables = quantizationTables;
+            this.scan = scan;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+    }
+
+    private final int ssrc;
+    private final byte[] packet;
+    private int sequence;
+    private long packetCount = 0;
+    private long octetCount = 0;
+
+    /**
+     * @param maxPacketBytes size of the RTP packets, headers included, e.g. to fit the path MTU
+     */
+    public RtpJpegPacketizer(int ssrc, int initialSequence, int maxPacketBytes) {
+        this.ssrc = ssrc;
+        this.sequence = initialSequence & 0xffff;
+        this.packet = new byte[maxPacketBytes];
+    }
+
+    /** Sequence number the next packet will carry. */
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Finds what RTP/JPEG needs in a JPEG frame without copying it.
+     *
+     * @return null if the frame cannot be sent as RTP/JPEG
+     */
+    public static Image parse(ByteBuffer jpeg) {
+        ByteBuffer in = jpeg.slice();
+        byte[][] tables = new byte[4][];
+        int[] tableIds = null;
+        int type = -1;
+        int width = 0;
+        int height = 0;
+        int restartInterval = 0;
+        if (in.remaining() < 4 || (in.get() & 0xff) != 0xff || (in.get() & 0xff) != 0xd8) {
+            return null;
+        }
+        while (in.remaining() >= 4) {
+            if ((in.get() & 0xff) != 0xff) {
+                return null;
+            }
+            int marker = in.get() & 0xff;
+            if (marker == 0xff) {
+                // Fill byte
+                in.position(in.position() - 1);
+                continue;
+            }
+            int length = in.getShort() & 0xffff;
+            int segmentEnd = in.position() + length - 2;
+            if (length < 2 || segmentEnd > in.limit()) {
+                return null;
+            }
+            switch (marker) {
+                case 0xdb: // DQT
+                    while (in.position() < segmentEnd) {
+                        int info = in.get() & 0xff;
+                        if ((info >> 4) != 0 || (info & 0x0f) > 3
+                                || in.position() + TABLE_BYTES > segmentEnd) {
+                            // 16-bit tables cannot be sent
+                            return null;
+                        }
+                        byte[] table = new byte[TABLE_BYTES];
+                        in.get(table);
+                        tables[info & 0x0f] = table;
+                    }
+                    break;
+                case 0xc0: // SOF0, baseline
+                case 0xc1: // SOF1, same coding with 8-bit samples
+                    if (length != 17 || (in.get() & 0xff) != 8) {
+                        return null;
+                    }
+                    height = in.getShort() & 0xffff;
+                    width = in.getShort() & 0xffff;
+                    if (in.get() != 3) {
+                        return null;
+                    }
+                    int[] sampling = new int[3];
+                    tableIds = new int[3];
+                    for (int i = 0; i < 3; i++) {
+                        in.get();
+                        sampling[i] = in.get() & 0xff;
+                        tableIds[i] = in.get() & 0x0f;
+                    }
+                    if (sampling[1] != 0x11 || sampling[2] != 0x11 || tableIds[1] != tableIds[2]) {
+                        return null;
+                    }
+                    if (sampling[0] == 0x21) {
+                        type = 0;
+                    } else if (sampling[0] == 0x22) {
+                        type = 1;
+                    } else {
+                        return null;
+                    }
+                    break;
+                case 0xdd: // DRI
+                    restartInterval = in.getShort() & 0xffff;
+                    break;
+                case 0xda: // SOS
+                    in.position(segmentEnd);
+                    return image(in, type, width, height, restartInterval, tables, tableIds);
+                default:
+                    // APPn, COM and Huffman tables, which must be the standard ones
+                    if ((marker & 0xf0) == 0xc0 && marker != 0xc4 && marker != 0xcc) {
+                        // Progressive, lossless or arithmetic coding
+                        return null;
+                    }
+                    break;
+            }
+            in.position(segmentEnd);
+        }
+        return null;
+    }
+
+    private static Image image(ByteBuffer in, int type, int width, int height, int restartInterval,
+                               byte[][] tables, int[] tableIds) {
+        // Sizes travel in units of 8 pixels
+        if (type < 0 || width == 0 || height == 0 || width > MAX_DIMENSION
+                || height > MAX_DIMENSION || width % 8 != 0 || height % 8 != 0) {
+            return null;
+        }
+        byte[] luma = tables[tableIds[0]];
+        byte[] chroma = tables[tableIds[1]];
+        if (luma == null || chroma == null) {
+            return null;
+        }
+        byte[] quantizationTables = new byte[2 * TABLE_BYTES];
+        System.arraycopy(luma, 0, quantizationTables, 0, TABLE_BYTES);
+        System.arraycopy(chroma, 0, quantizationTables, TABLE_BYTES, TABLE_BYTES);
+
+        ByteBuffer scan = in.slice();
+        int end = scan.limit();
+        // Everything up to EOI; the receiver appends its own
+        if (end >= 2 && (scan.get(end - 2) & 0xff) == 0xff && (scan.get(end - 1) & 0xff) == 0xd9) {
+            scan.limit(end - 2);
+        }
+        if (restartInterval > 0) {
+            type += 64;
+        }
+        return new Image(type, width, height, restartInterval, quantizationTables, scan);
+    }
+
+    /**
+     * Sends one frame as consecutive packets, the last with the marker bit set.
+     *
+     * @param timestamp RTP timestamp at {@link #CLOCK_RATE}
+     * @return the number of packets sent
+     */
+    public int packetize(Image image, int timestamp, PacketSink sink) throws IOException {
+        ByteBuffer scan = image.scan.duplicate();
+        int total = scan.remaining();
+        int offset = 0;
+        int packets = 0;
+        do {
+            int position = writeRtpHeader(timestamp);
+            packet[position++] = 0;
+            packet[position++] = (byte) (offset >> 16);
+            packet[position++] = (byte) (offset >> 8);
+            packet[position++] = (byte) offset;
+            packet[position++] = (byte) image.type;
+            packet[position++] = (byte) Q_IN_BAND_TABLES;
+            packet[position++] = (byte) (image.width >> 3);
+            packet[position++] = (byte) (image.height >> 3);
+            if (image.restartInterval > 0) {
+                // Fragments do not follow restart intervals, so mark the count unknown
+                packet[position++] = (byte) (image.restartInterval >> 8);
+                packet[position++] = (byte) image.restartInterval;
+                packet[position++] = (byte) 0xff;
+                packet[position++] = (byte) 0xff;
+            }
+            if (offset == 0) {
+                byte[] tables = image.quantizationTables;
+                packet[position++] = 0;
+                packet[position++] = 0;
+                packet[position++] = (byte) (tables.length >> 8);
+                packet[position++] = (byte) tables.length;
+                System.arraycopy(tables, 0, packet, position, tables.length);
+                position += tables.length;
+            }
+
+            int length = Math.min(total - offset, packet.length - position);
+            scan.get(packet, position, length);
+            offset += length;
+            position += length;
+            if (offset == total) {
+                packet[1] |= (byte) 0x80;
+            }
+            sink.send(packet, position);
+            packetCount++;
+            octetCount += position - RTP_HEADER_BYTES;
+            packets++;
+        } while (offset < total);
+        return packets;
+    }
+
+    /**
+     * Renders an RTCP sender report relating {@code timestamp} to the wall
+     * clock, which lets receivers such as NVRs put frames in real time.
+     */
+    public byte[] senderReport(long wallClockMillis, int timestamp) {
+        ByteBuffer report = ByteBuffer.allocate(28);
+        report.put((byte) 0x80);
+        report.put((byte) 200);
+        report.putShort((short) 6);
+        report.putInt(ssrc);
+        // NTP time: seconds since 1900 and a binary fraction
+        long seconds = wallClockMillis / 1000 + 2_208_988_800L;
+        long fraction = ((wallClockMillis % 1000) << 32) / 1000;
+        report.putInt((int) seconds);
+        report.putInt((int) fraction);
+        report.putInt(timestamp);
+        report.putInt((int) packetCount);
+        report.putInt((int) octetCount);
+        return report.array();
+    }
+
+    private int writeRtpHeader(int timestamp) {
+        packet[0] = (byte) 0x80;
+        packet[1] = (byte) PAYLOAD_TYPE;
+        packet[2] = (byte) (sequence >> 8);
+        packet[3] = (byte) sequence;
+        packet[4] = (byte) (timestamp >> 24);
+        packet[5] = (byte) (timestamp >> 16);
+        packet[6] = (byte) (timestamp >> 8);
+        packet[7] = (byte) timestamp;
+        packet[8] = (byte) (ssrc >> 24);
+        packet[9] = (byte) (ssrc >> 16);
+        packet[10] = (byte) (ssrc >> 8);
+        packet[11] = (byte) ssrc;
+        sequence = (sequence + 1) & 0xffff;
+        return RTP_HEADER_BYTES;
+    }
+}
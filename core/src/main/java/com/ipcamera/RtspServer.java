@@ -0,0 +1,713 @@
+package com.ipcamera;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the published JPEG frames over RTSP as RTP/JPEG (RFC 2435), for
+ * NVRs and players that prefer it to multipart HTTP. Handles OPTIONS,
+ * DESCRIBE, SETUP, PLAY, PAUSE, TEARDOWN and GET_PARAMETER keep-alives, with
+ * RTP either over UDP to the client's ports or interleaved in the RTSP
+ * connection. Each playing session sends the newest frame whenever it has
+ * finished the previous one, so over UDP a lost packet costs one frame
+ * instead of stalling the stream. Sessions end with their RTSP connection,
+ * which counts against the same {@link ConnectionLimiter} as HTTP viewers.
+ */
+public class RtspServer implements StreamServer {
+    public interface StreamResolver {
+        /**
+         * Returns the frames for a stream URL, {@code path} being its path
+         * without the track, or null if there is no such stream.
+         */
+        FrameBus find(String path, HttpRequest request);
+    }
+
+    private static final Logger LOG = Logger.getLogger(RtspServer.class.getName());
+    public static final int DEFAULT_PORT = 8554;
+    static final String TRACK = "trackID=0";
+    private static final int SESSION_TIMEOUT_SECONDS = 60;
+    // Each session has its own sender, so one connection cannot set up more than this
+    static final int MAX_SESSIONS_PER_CONNECTION = 4;
+    // Fits a 1500-byte Ethernet MTU with IP and UDP headers to spare
+    private static final int MAX_PACKET_BYTES = 1400;
+    private static final long FRAME_WAIT_TIMEOUT_MS = 1000;
+    private static final long SENDER_REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final int READ_BUFFER_SIZE = 2048;
+    private static final int UDP_SEND_BUFFER_BYTES = 1024 * 1024;
+    private static final int TCP_SEND_BUFFER_BYTES = 128 * 1024;
+    private static final String PUBLIC_METHODS =
+            "OPTIONS, DESCRIBE, SETUP, PLAY, PAUSE, TEARDOWN, GET_PARAMETER";
+    // Sent before any request is read, so there is no CSeq to echo
+    private static final byte[] UNAVAILABLE_RESPONSE = ("RTSP/1.0 503 Service Unavailable\r\n" +
+            "Retry-After: 1\r\n" +
+            "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private final int port;
+    private final StreamResolver resolver;
+    private final ConnectionLimiter limiter;
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    // Newest frame of each bus with what RTP/JPEG needs from it, shared by all sessions
+    private final Map<FrameBus, ParsedFrame> parsedFrames = new ConcurrentHashMap<>();
+    private final AtomicInteger playingSessions = new AtomicInteger();
+    private final Counter framesSent;
+    private final Counter packetsSent;
+    private final Counter framesUnsupported;
+    private ServerSocket serverSocket;
+    private DatagramSocket rtpSocket;
+    private DatagramSocket rtcpSocket;
+    private volatile boolean isRunning = false;
+
+    private static final class ParsedFrame {
+        final Frame frame;
+        final RtpJpegPacketizer.Image image;
+
+        ParsedFrame(Frame frame, RtpJpegPacketizer.Image image) {
+            this.frame = frame;
+            this.image = image;
+        }
+    }
+
+    /** One RTSP control connection and the sessions set up through it. */
+    private final class Connection {
+        final Socket socket;
+        final OutputStream output;
+        final Map<String, Session> sessions = new ConcurrentHashMap<>();
+        int nextChannel = 0;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.output = new BufferedOutputStream(socket.getOutputStream(), MAX_PACKET_BYTES * 4);
+        }
+
+        boolean isStreamingInterleaved() {
+            for (Session session : sessions.values()) {
+                if (session.playing && session.rtpChannel >= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final class Session {
+        final String id = Long.toHexString(ThreadLocalRandom.current().nextLong() >>> 1);
+        final int ssrc = ThreadLocalRandom.current().nextInt();
+        final int timestampOffset = ThreadLocalRandom.current().nextInt();
+        final RtpJpegPacketizer packetizer = new RtpJpegPacketizer(ssrc,
+                ThreadLocalRandom.current().nextInt(), MAX_PACKET_BYTES);
+        final Connection connection;
+        final FrameBus frameBus;
+        final String url;
+        InetSocketAddress rtpTarget;
+        InetSocketAddress rtcpTarget;
+        int rtpChannel = -1;
+        int rtcpChannel = -1;
+        volatile boolean playing = false;
+        Future<?> sender;
+
+        Session(Connection connection, FrameBus frameBus, String url) {
+            this.connection = connection;
+            this.frameBus = frameBus;
+            this.url = url;
+        }
+    }
+
+    public RtspServer(int port, StreamResolver resolver, MetricsRegistry metrics) {
+        this(port, resolver, metrics,
+                new ConnectionLimiter(0, 0, 0, Collections.<String>emptySet(), metrics));
+    }
+
+    /** @param limiter admits each RTSP connection */
+    public RtspServer(int port, StreamResolver resolver, MetricsRegistry metrics,
+                      ConnectionLimiter limiter) {
+        this.port = port;
+        this.resolver = resolver;
+        this.limiter = limiter;
+        metrics.gauge("ipcamera_rtsp_sessions", "RTSP sessions currently playing",
+                playingSessions::get);
+        framesSent = metrics.counter("ipcamera_rtsp_frames_total", "Frames sent over RTP");
+        packetsSent = metrics.counter("ipcamera_rtsp_packets_total", "RTP packets sent");
+        framesUnsupported = metrics.counter("ipcamera_rtsp_frames_unsupported_total",
+                "Frames not sent because RTP/JPEG cannot carry them");
+    }
+
+    /**
+     * Binds the RTSP port and starts accepting connections. Without a free
+     * RTP port pair, sessions can still play interleaved over RTSP.
+     *
+     * @throws UncheckedIOException if the RTSP port cannot be bound
+     */
+    @Override
+    public void start() {
+        try {
+            openRtpSockets();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "RTP over UDP unavailable", e);
+        }
+        try {
+            serverSocket = new ServerSocket(port);
+        } catch (IOException e) {
+            stop();
+            throw new UncheckedIOException("Cannot listen for RTSP on port " + port, e);
+        }
+        isRunning = true;
+        LOG.info("RTSP server listening on port " + port);
+        executorService.execute(this::acceptConnections);
+    }
+
+    private void acceptConnections() {
+        while (isRunning) {
+            try {
+                Socket socket = serverSocket.accept();
+                ConnectionLimiter.Permit permit = limiter.tryAcquire(
+                        socket.getInetAddress().getHostAddress());
+                if (permit == null) {
+                    LOG.fine("Turning away client " + socket.getInetAddress());
+                    turnAway(socket);
+                    continue;
+                }
+                try {
+                    executorService.execute(() -> handleConnection(socket, permit));
+                } catch (RejectedExecutionException e) {
+                    // Stopping
+                    permit.close();
+                    socket.close();
+                }
+            } catch (IOException e) {
+                if (isRunning) {
+                    LOG.log(Level.WARNING, "Error accepting connection", e);
+                }
+            }
+        }
+    }
+
+    private static void turnAway(Socket socket) {
+        try {
+            // Nothing has been written yet, so this fits the send buffer at once
+            socket.getOutputStream().write(UNAVAILABLE_RESPONSE);
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Error sending response", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Error closing socket", e);
+            }
+        }
+    }
+
+    // RTP on an even port and RTCP on the next one up, as clients expect
+    private void openRtpSockets() throws IOException {
+        for (int attempt = 0; attempt < 20; attempt++) {
+            DatagramSocket rtp = new DatagramSocket(0);
+            int rtpPort = rtp.getLocalPort();
+            if (rtpPort % 2 == 0) {
+                try {
+                    rtcpSocket = new DatagramSocket(rtpPort + 1);
+                    rtpSocket = rtp;
+                    rtpSocket.setSendBufferSize(UDP_SEND_BUFFER_BYTES);
+                    return;
+                } catch (SocketException e) {
+                    // Taken; try another pair
+                }
+            }
+            rtp.close();
+        }
+        throw new IOException("No free RTP port pair");
+    }
+
+    private void handleConnection(Socket socket, ConnectionLimiter.Permit permit) {
+        Connection connection = null;
+        HttpRequestParser parser = HttpRequestParser.forRtsp();
+        ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        input.flip();
+        long skip = 0;
+        try {
+            connection = new Connection(socket);
+            socket.setTcpNoDelay(true);
+            socket.setSendBufferSize(TCP_SEND_BUFFER_BYTES);
+            socket.setSoTimeout(SESSION_TIMEOUT_SECONDS * 1000);
+            InputStream in = socket.getInputStream();
+            while (isRunning) {
+                if (skip > 0) {
+                    // Request body or interleaved RTCP from the client, neither of any use here
+                    int skipped = (int) Math.min(skip, input.remaining());
+                    input.position(input.position() + skipped);
+                    skip -= skipped;
+                    if (input.hasRemaining()) {
+                        continue;
+                    }
+                } else if (!parser.isStarted() && input.hasRemaining()
+                        && input.get(input.position()) == '$') {
+                    if (input.remaining() >= 4) {
+                        skip = 4 + (input.getShort(input.position() + 2) & 0xffff);
+                        continue;
+                    }
+                } else if (input.hasRemaining()) {
+                    HttpRequest request = parser.parse(input);
+                    if (request != null) {
+                        String length = request.getHeader("Content-Length");
+                        skip = length != null ? Long.parseLong(length.trim()) : 0;
+                        handleRequest(connection, request);
+                        continue;
+                    }
+                }
+                try {
+                    if (!refill(in, input)) {
+                        break;
+                    }
+                } catch (SocketTimeoutException e) {
+                    // Interleaved clients may say nothing while they play; UDP ones must keep alive
+                    if (!connection.isStreamingInterleaved()) {
+                        break;
+                    }
+                }
+            }
+        } catch (HttpRequestParser.InvalidRequestException e) {
+            if (connection != null) {
+                respond(connection, e.getStatus(), e.getReason(), null, "", null);
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOG.log(Level.FINE, "Error handling connection", e);
+        } finally {
+            if (connection != null) {
+                for (Session session : connection.sessions.values()) {
+                    pause(session);
+                }
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Error closing socket", e);
+            }
+            permit.close();
+        }
+    }
+
+    // Moves unread bytes to the front and reads more after them; false at end of stream
+    private static boolean refill(InputStream in, ByteBuffer input) throws IOException {
+        input.compact();
+        int bytesRead = in.read(input.array(), input.position(), input.remaining());
+        if (bytesRead < 0) {
+            input.flip();
+            return false;
+        }
+        input.position(input.position() + bytesRead);
+        input.flip();
+        return true;
+    }
+
+    private void handleRequest(Connection connection, HttpRequest request) {
+        String cseq = request.getHeader("CSeq");
+        if (cseq == null) {
+            respond(connection, 400, "Bad Request", null, "", null);
+            return;
+        }
+        Session session = findSession(connection, request);
+        switch (request.getMethod()) {
+            case "OPTIONS":
+                respond(connection, 200, "OK", cseq, "Public: " + PUBLIC_METHODS + "\r\n", null);
+                break;
+            case "DESCRIBE":
+                describe(connection, request, cseq);
+                break;
+            case "SETUP":
+                setUp(connection, request, cseq);
+                break;
+            case "PLAY":
+                if (session == null) {
+                    respond(connection, 454, "Session Not Found", cseq, "", null);
+                    break;
+                }
+                respond(connection, 200, "OK", cseq, sessionHeader(session)
+                        + "Range: npt=0.000-\r\n"
+                        + "RTP-Info: url=" + session.url + ";seq="
+                        + session.packetizer.getSequence() + "\r\n", null);
+                play(session);
+                break;
+            case "PAUSE":
+                if (session == null) {
+                    respond(connection, 454, "Session Not Found", cseq, "", null);
+                    break;
+                }
+                pause(session);
+                respond(connection, 200, "OK", cseq, sessionHeader(session), null);
+                break;
+            case "TEARDOWN":
+                if (session == null) {
+                    respond(connection, 454, "Session Not Found", cseq, "", null);
+                    break;
+                }
+                pause(session);
+                connection.sessions.remove(session.id);
+                respond(connection, 200, "OK", cseq, "", null);
+                break;
+            case "GET_PARAMETER":
+                respond(connection, 200, "OK", cseq,
+                        session != null ? sessionHeader(session) : "", null);
+                break;
+            default:
+                respond(connection, 501, "Not Implemented", cseq, "", null);
+                break;
+        }
+    }
+
+    private void describe(Connection connection, HttpRequest request, String cseq) {
+        FrameBus frameBus = resolver.find(request.getPath(), request);
+        if (frameBus == null) {
+            respond(connection, 404, "Not Found", cseq, "", null);
+            return;
+        }
+        InetAddress local = connection.socket.getLocalAddress();
+        String addressType = local instanceof Inet6Address ? "IP6" : "IP4";
+        String sdp = "v=0\r\n" +
+                "o=- " + System.currentTimeMillis() + " 1 IN " + addressType + " "
+                + local.getHostAddress() + "\r\n" +
+                "s=IP Camera\r\n" +
+                "c=IN " + addressType + " " + (addressType.equals("IP6") ? "::" : "0.0.0.0") + "\r\n" +
+                "t=0 0\r\n" +
+                "a=control:*\r\n" +
+                "m=video 0 RTP/AVP " + RtpJpegPacketizer.PAYLOAD_TYPE + "\r\n" +
+                "a=control:" + trackUrl(connection, request) + "\r\n";
+        respond(connection, 200, "OK", cseq, "Content-Type: application/sdp\r\n", sdp);
+    }
+
+    private void setUp(Connection connection, HttpRequest request, String cseq) {
+        if (request.getHeader("Session") != null) {
+            // Only one track, so there is nothing to add to an existing session
+            respond(connection, 459, "Aggregate Operation Not Allowed", cseq, "", null);
+            return;
+        }
+        String path = request.getPath();
+        if (path.endsWith("/" + TRACK)) {
+            path = path.substring(0, path.length() - TRACK.length() - 1);
+        }
+        FrameBus frameBus = resolver.find(path, request);
+        if (frameBus == null) {
+            respond(connection, 404, "Not Found", cseq, "", null);
+            return;
+        }
+        if (connection.sessions.size() >= MAX_SESSIONS_PER_CONNECTION) {
+            respond(connection, 453, "Not Enough Bandwidth", cseq, "", null);
+            return;
+        }
+
+        Session session = new Session(connection, frameBus, trackUrl(connection, request));
+        String transport = chooseTransport(connection, session, request.getHeader("Transport"));
+        if (transport == null) {
+            respond(connection, 461, "Unsupported Transport", cseq, "", null);
+            return;
+        }
+        connection.sessions.put(session.id, session);
+        respond(connection, 200, "OK", cseq, "Transport: " + transport + "\r\n"
+                + sessionHeader(session), null);
+    }
+
+    /**
+     * Picks the first transport the client offers that is supported and sets
+     * the session up for it; returns its description for the response, or
+     * null if none is supported. Packets only ever go to the address the
+     * RTSP connection comes from, whatever destination the client names.
+     */
+    private String chooseTransport(Connection connection, Session session, String header) {
+        if (header == null) {
+            return null;
+        }
+        String ssrc = String.format(Locale.ROOT, "%08X", session.ssrc);
+        for (String spec : header.split(",")) {
+            String[] parameters = spec.trim().split(";");
+            String protocol = parameters[0].trim();
+            int[] interleaved = null;
+            int[] clientPorts = null;
+            boolean multicast = false;
+            for (String parameter : parameters) {
+                String trimmed = parameter.trim();
+                if (trimmed.equals("multicast")) {
+                    multicast = true;
+                } else if (trimmed.startsWith("interleaved=")) {
+                    interleaved = parseRange(trimmed.substring("interleaved=".length()));
+                } else if (trimmed.startsWith("client_port=")) {
+                    clientPorts = parseRange(trimmed.substring("client_port=".length()));
+                }
+            }
+            if (multicast) {
+                continue;
+            }
+            if (protocol.equals("RTP/AVP/TCP")) {
+                if (interleaved == null) {
+                    interleaved = new int[] {connection.nextChannel, connection.nextChannel + 1};
+                }
+                if (interleaved[0] > 255 || interleaved[1] > 255) {
+                    continue;
+                }
+                session.rtpChannel = interleaved[0];
+                session.rtcpChannel = interleaved[1];
+                connection.nextChannel = Math.max(connection.nextChannel, interleaved[1] + 1);
+                return "RTP/AVP/TCP;unicast;interleaved=" + interleaved[0] + "-" + interleaved[1]
+                        + ";ssrc=" + ssrc;
+            }
+            if ((protocol.equals("RTP/AVP") || protocol.equals("RTP/AVP/UDP"))
+                    && clientPorts != null && rtpSocket != null) {
+                InetAddress client = connection.socket.getInetAddress();
+                session.rtpTarget = new InetSocketAddress(client, clientPorts[0]);
+                session.rtcpTarget = new InetSocketAddress(client, clientPorts[1]);
+                return protocol + ";unicast;client_port=" + clientPorts[0] + "-" + clientPorts[1]
+                        + ";server_port=" + rtpSocket.getLocalPort() + "-"
+                        + rtcpSocket.getLocalPort() + ";ssrc=" + ssrc;
+            }
+        }
+        return null;
+    }
+
+    // "a-b", or just "a" meaning "a-(a+1)"; null if malformed
+    private static int[] parseRange(String range) {
+        try {
+            int dash = range.indexOf('-');
+            int first = Integer.parseInt(dash >= 0 ? range.substring(0, dash) : range);
+            int second = dash >= 0 ? Integer.parseInt(range.substring(dash + 1)) : first + 1;
+            if (first < 0 || second < 0 || first > 65535 || second > 65535) {
+                return null;
+            }
+            return new int[] {first, second};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Session findSession(Connection connection, HttpRequest request) {
+        String header = request.getHeader("Session");
+        if (header == null) {
+            return null;
+        }
+        int parameters = header.indexOf(';');
+        return connection.sessions.get((parameters >= 0 ? header.substring(0, parameters) : header)
+                .trim());
+    }
+
+    private static String sessionHeader(Session session) {
+        return "Session: " + session.id + ";timeout=" + SESSION_TIMEOUT_SECONDS + "\r\n";
+    }
+
+    // Absolute, so that the query, e.g. the profile, survives into SETUP
+    private String trackUrl(Connection connection, HttpRequest request) {
+        InetAddress local = connection.socket.getLocalAddress();
+        String host = local instanceof Inet6Address
+                ? "[" + local.getHostAddress() + "]" : local.getHostAddress();
+        String path = request.getPath();
+        if (!path.endsWith("/" + TRACK)) {
+            path = (path.endsWith("/") ? path : path + "/") + TRACK;
+        }
+        StringBuilder url = new StringBuilder("rtsp://").append(host).append(':')
+                .append(connection.socket.getLocalPort()).append(path);
+        char separator = '?';
+        for (Map.Entry<String, String> entry : request.getQueryParameters().entrySet()) {
+            url.append(separator).append(encode(entry.getKey())).append('=')
+                    .append(encode(entry.getValue()));
+            separator = '&';
+        }
+        return url.toString();
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void play(Session session) {
+        synchronized (session) {
+            if (session.playing) {
+                return;
+            }
+            session.playing = true;
+            playingSessions.incrementAndGet();
+            session.sender = executorService.submit(() -> send(session));
+        }
+    }
+
+    private void pause(Session session) {
+        synchronized (session) {
+            if (!session.playing) {
+                return;
+            }
+            session.playing = false;
+            playingSessions.decrementAndGet();
+            // Wakes the sender if it is waiting for a frame; socket writes ignore it
+            session.sender.cancel(true);
+        }
+    }
+
+    /** Sends the newest frame whenever the previous one is out, until the session stops playing. */
+    private void send(Session session) {
+        Connection connection = session.connection;
+        DatagramPacket datagram = new DatagramPacket(new byte[0], 0);
+        RtpJpegPacketizer.PacketSink sink;
+        if (session.rtpChannel >= 0) {
+            byte[] framing = {'$', (byte) session.rtpChannel, 0, 0};
+            sink = (packet, length) -> {
+                framing[2] = (byte) (length >> 8);
+                framing[3] = (byte) length;
+                connection.output.write(framing);
+                connection.output.write(packet, 0, length);
+                packetsSent.increment();
+            };
+        } else {
+            datagram.setSocketAddress(session.rtpTarget);
+            sink = (packet, length) -> {
+                datagram.setData(packet, 0, length);
+                rtpSocket.send(datagram);
+                packetsSent.increment();
+            };
+        }
+
+        session.frameBus.subscribe();
+        try {
+            long lastSequence = 0;
+            long nextReportNanos = System.nanoTime();
+            while (session.playing && isRunning) {
+                Frame frame = session.frameBus.awaitFrame(lastSequence, FRAME_WAIT_TIMEOUT_MS);
+                if (frame == null) {
+                    continue;
+                }
+                lastSequence = frame.getSequence();
+                RtpJpegPacketizer.Image image = parse(session.frameBus, frame);
+                if (image == null) {
+                    continue;
+                }
+                int timestamp = rtpTimestamp(session, frame.getCaptureNanos());
+                long now = System.nanoTime();
+                if (session.rtpChannel >= 0) {
+                    synchronized (connection) {
+                        session.packetizer.packetize(image, timestamp, sink);
+                        if (now - nextReportNanos >= 0) {
+                            writeInterleaved(connection, session.rtcpChannel,
+                                    session.packetizer.senderReport(System.currentTimeMillis(),
+                                            rtpTimestamp(session, now)));
+                        }
+                        connection.output.flush();
+                    }
+                } else {
+                    session.packetizer.packetize(image, timestamp, sink);
+                    if (now - nextReportNanos >= 0) {
+                        byte[] report = session.packetizer.senderReport(
+                                System.currentTimeMillis(), rtpTimestamp(session, now));
+                        rtcpSocket.send(new DatagramPacket(report, report.length,
+                                session.rtcpTarget));
+                    }
+                }
+                if (now - nextReportNanos >= 0) {
+                    nextReportNanos = now + SENDER_REPORT_INTERVAL_NANOS;
+                }
+                framesSent.increment();
+            }
+        } catch (InterruptedException e) {
+            // Paused or torn down
+        } catch (IOException e) {
+            // The client went away; closing the connection ends the session
+            LOG.log(Level.FINE, "Error sending to session " + session.id, e);
+            try {
+                connection.socket.close();
+            } catch (IOException closeError) {
+                LOG.log(Level.FINE, "Error closing socket", closeError);
+            }
+        } finally {
+            session.frameBus.unsubscribe();
+        }
+    }
+
+    private RtpJpegPacketizer.Image parse(FrameBus frameBus, Frame frame) {
+        ParsedFrame parsed = parsedFrames.get(frameBus);
+        if (parsed != null && parsed.frame == frame) {
+            return parsed.image;
+        }
+        if (frame.getPayloadLength() == 0) {
+            return null;
+        }
+        RtpJpegPacketizer.Image image = RtpJpegPacketizer.parse(frame.getPayloadBuffer());
+        if (image == null) {
+            framesUnsupported.increment();
+        }
+        parsedFrames.put(frameBus, new ParsedFrame(frame, image));
+        return image;
+    }
+
+    private static int rtpTimestamp(Session session, long nanos) {
+        return (int) (nanos / 1000 * (RtpJpegPacketizer.CLOCK_RATE / 1000) / 1000)
+                + session.timestampOffset;
+    }
+
+    private static void writeInterleaved(Connection connection, int channel, byte[] packet)
+            throws IOException {
+        connection.output.write(new byte[] {'$', (byte) channel,
+                (byte) (packet.length >> 8), (byte) packet.length});
+        connection.output.write(packet);
+    }
+
+    private void respond(Connection connection, int status, String reason, String cseq,
+                         String headers, String body) {
+        byte[] content = body != null ? body.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        String head = "RTSP/1.0 " + status + " " + reason + "\r\n" +
+                (cseq != null ? "CSeq: " + cseq + "\r\n" : "") +
+                headers +
+                (content.length > 0 ? "Content-Length: " + content.length + "\r\n" : "") +
+                "\r\n";
+        try {
+            synchronized (connection) {
+                connection.output.write(head.getBytes(StandardCharsets.US_ASCII));
+                connection.output.write(content);
+                connection.output.flush();
+            }
+        } catch (IOException e) {
+            // The read loop notices the connection is gone
+            LOG.log(Level.FINE, "Error sending response", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        isRunning = false;
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Error closing server socket", e);
+        }
+        if (rtpSocket != null) {
+            rtpSocket.close();
+            rtcpSocket.close();
+        }
+        executorService.shutdownNow();
+    }
+}
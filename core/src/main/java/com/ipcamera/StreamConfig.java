@@ -0,0 +1,178 @@
+package com.ipcamera;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Settings that can be changed while the service runs: the capture size, the
+ * highest capture frame rate and each profile's JPEG quality. Instances are
+ * immutable; {@link #with} returns a changed copy. Settings are named as in
+ * {@code /config} requests: {@code capture=1920x1080}, {@code maxFps=15} and
+ * {@code quality.<profile>=70}.
+ */
+public final class StreamConfig {
+    private static final String CAPTURE = "capture";
+    private static final String MAX_FPS = "maxFps";
+    private static final String QUALITY_PREFIX = "quality.";
+    private static final int MAX_CAPTURE_EDGE = 8192;
+    private static final int MAX_FPS_LIMIT = 240;
+
+    private final int captureWidth;
+    private final int captureHeight;
+    private final int maxFps;
+    private final Map<String, Integer> qualities;
+
+    /**
+     * @param maxFps    highest capture frame rate, 0 for the camera's default
+     * @param qualities JPEG quality for each profile name
+     */
+    public StreamConfig(int captureWidth, int captureHeight, int maxFps,
+                        Map<String, Integer> qualities) {
+        this.captureWidth = captureWidth;
+        this.captureHeight = captureHeight;
+        this.maxFps = maxFps;
+        this.qualities = Collections.unmodifiableMap(new LinkedHashMap<>(qualities));
+    }
+
+    public int getCaptureWidth() {
+        return captureWidth;
+    }
+
+    public int getCaptureHeight() {
+        return captureHeight;
+    }
+
+    public int getMaxFps() {
+        return maxFps;
+    }
+
+    /** Returns the quality configured for {@code profile}, or -1 if it is unknown. */
+    public int getQuality(String profile) {
+        Integer quality = qualities.get(profile);
+        return quality != null ? quality : -1;
+    }
+
+    public boolean hasSameCaptureSize(StreamConfig other) {
+        return captureWidth == other.captureWidth && captureHeight == other.captureHeight;
+    }
+
+    /**
+     * Returns a copy with {@code settings} applied. Nothing is applied if any
+     * setting is unknown or out of range.
+     *
+     * @throws IllegalArgumentException naming the offending setting
+     */
+    public StreamConfig with(Map<String, String> settings) {
+        int width = captureWidth;
+        int height = captureHeight;
+        int fps = maxFps;
+        Map<String, Integer> changedQualities = new LinkedHashMap<>(qualities);
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            String name = setting.getKey();
+            String value = setting.getValue().trim();
+            if (name.equals(CAPTURE)) {
+                int x = value.indexOf('x');
+                width = x > 0 ? parse(name, value.substring(0, x), 2, MAX_CAPTURE_EDGE) : -1;
+                height = x > 0 ? parse(name, value.substring(x + 1), 2, MAX_CAPTURE_EDGE) : -1;
+                if (x <= 0 || width % 2 != 0 || height % 2 != 0) {
+                    throw new IllegalArgumentException(
+                        CAPTURE + " must be <width>x<height> with even sides");
+                }
+            } else if (name.equals(MAX_FPS)) {
+                fps = parse(name, value, 0, MAX_FPS_LIMIT);
+            } else if (name.startsWith(QUALITY_PREFIX)
+                    && qualities.containsKey(name.substring(QUALITY_PREFIX.length()))) {
+                changedQualities.put(name.substring(QUALITY_PREFIX.length()),
+                    parse(name, value, 1, 100));
+            } else {
+                throw new IllegalArgumentException("Unknown setting " + name);
+            }
+        }
+        return new StreamConfig(width, height, fps, changedQualities);
+    }
+
+    private static int parse(String name, String value, int min, int max) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed >= min && parsed <= max) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException(name + " must be between " + min + " and " + max);
+    }
+
+    /** The settings as they would be written in a request. */
+    public Map<String, String> toSettings() {
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put(CAPTURE, captureWidth + "x" + captureHeight);
+        settings.put(MAX_FPS, Integer.toString(maxFps));
+        for (Map.Entry<String, Integer> quality : qualities.entrySet()) {
+            settings.put(QUALITY_PREFIX + quality.getKey(), quality.getValue().toString());
+        }
+        return settings;
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"capture\":\"").append(captureWidth).append('x').append(captureHeight)
+            .append("\",\"maxFps\":").append(maxFps).append(",\"quality\":{");
+        boolean first = true;
+        for (Map.Entry<String, Integer> quality : qualities.entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(quality.getKey()).append("\":").append(quality.getValue());
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * Reads settings saved by {@link #store} on top of {@code defaults}. A
+     * missing file yields {@code defaults}.
+     *
+     * @throws IllegalArgumentException if the file holds an invalid setting
+     */
+    public static StreamConfig load(File file, StreamConfig defaults) throws IOException {
+        if (!file.exists()) {
+            return defaults;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        Map<String, String> settings = new HashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            // Profiles may have been removed since the file was written
+            if (!name.startsWith(QUALITY_PREFIX)
+                    || defaults.qualities.containsKey(name.substring(QUALITY_PREFIX.length()))) {
+                settings.put(name, properties.getProperty(name));
+            }
+        }
+        return defaults.with(settings);
+    }
+
+    /** Saves the settings, replacing {@code file} only once they are fully written. */
+    public void store(File file) throws IOException {
+        Properties properties = new Properties();
+        properties.putAll(toSettings());
+        File temporary = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temporary)) {
+            properties.store(out, null);
+        }
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.ipcamera;
+
+/**
+ * A named output resolution and JPEG quality, selected by clients with
+ * {@code /video?profile=<name>}.
+ */
+public final class StreamProfile {
+    public static final String DEFAULT = "default";
+
+    private final String name;
+    private final int width;
+    private final int height;
+    private final int quality;
+
+    public StreamProfile(String name, int width, int height, int quality) {
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.quality = quality;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+}
@@ -0,0 +1,201 @@
+package com.ipcamera;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sends the frames of one bus to a relay, which serves them on to any number
+ * of viewers, so the phone uploads each frame once however many people watch.
+ * The upload is a single long-running HTTP POST whose chunked body is the same
+ * multipart/x-mixed-replace stream a viewer gets. Like a viewer, it only ever
+ * sends the newest frame, so a slow uplink drops frames instead of falling
+ * behind. Reconnects with backoff whenever the relay goes away.
+ */
+public class StreamPusher {
+    static final String CONTENT_TYPE = "multipart/x-mixed-replace; boundary="
+            + MultipartEncoder.BOUNDARY;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final long FRAME_WAIT_TIMEOUT_MS = 1000;
+    // Short kernel queue, as for viewers, so frames do not go stale waiting in it
+    private static final int SEND_BUFFER_BYTES = 128 * 1024;
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final InetSocketAddress relay;
+    private final byte[] requestHead;
+    private final FrameBus frameBus;
+    private final RetryBackoff backoff = new RetryBackoff(500, 30_000);
+    private final Counter framesPushed;
+    private final Counter bytesPushed;
+    private final Counter failures;
+    private volatile boolean connected = false;
+    private volatile boolean running = false;
+    private volatile SocketChannel channel;
+    private Thread thread;
+
+    public StreamPusher(String relayUrl, FrameBus frameBus, MetricsRegistry metrics) {
+        this(relayUrl, null, frameBus, metrics);
+    }
+
+    /**
+     * @param relayUrl where to POST the stream, e.g. {@code http://192.168.1.10:8090/push}
+     * @param token    shared token the relay requires, sent as {@code Authorization: Bearer},
+     *                 or null
+     * @throws IllegalArgumentException if {@code relayUrl} is not an http URL
+     */
+    public StreamPusher(String relayUrl, String token, FrameBus frameBus,
+                        MetricsRegistry metrics) {
+        URI uri;
+        try {
+            uri = new URI(relayUrl);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid relay URL " + relayUrl, e);
+        }
+        if (!"http".equals(uri.getScheme()) || uri.getHost() == null) {
+            throw new IllegalArgumentException("Relay URL must be http://host[:port]/path");
+        }
+        int port = uri.getPort() >= 0 ? uri.getPort() : 80;
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty()
+                ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null) {
+            path += "?" + uri.getRawQuery();
+        }
+        this.relay = InetSocketAddress.createUnresolved(uri.getHost(), port);
+        this.requestHead = ("POST " + path + " HTTP/1.1\r\n" +
+                "Host: " + uri.getHost() + ":" + port + "\r\n" +
+                "Content-Type: " + CONTENT_TYPE + "\r\n" +
+                (token != null ? "Authorization: Bearer " + token + "\r\n" : "") +
+                "Transfer-Encoding: chunked\r\n" +
+                "\r\n").getBytes(StandardCharsets.US_ASCII);
+        this.frameBus = frameBus;
+
+        metrics.gauge("ipcamera_push_connected", "Whether the stream is being pushed to the relay",
+                () -> connected ? 1 : 0);
+        framesPushed = metrics.counter("ipcamera_push_frames_total", "Frames pushed to the relay");
+        bytesPushed = metrics.counter("ipcamera_push_bytes_total", "Bytes pushed to the relay");
+        failures = metrics.counter("ipcamera_push_failures_total",
+                "Connections to the relay that failed or were lost");
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "StreamPusher");
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+        closeChannel();
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                push();
+            } catch (IOException e) {
+                if (running) {
+                    failures.increment();
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (!running) {
+                break;
+            }
+            try {
+                Thread.sleep(backoff.nextDelayMillis());
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private void push() throws IOException, InterruptedException {
+        SocketChannel socket = SocketChannel.open();
+        channel = socket;
+        try {
+            socket.socket().setSendBufferSize(SEND_BUFFER_BYTES);
+            socket.socket().setTcpNoDelay(true);
+            socket.socket().setKeepAlive(true);
+            // Resolved on every attempt, so a relay that changes address is found again
+            socket.socket().connect(new InetSocketAddress(relay.getHostString(), relay.getPort()),
+                    CONNECT_TIMEOUT_MS);
+            writeFully(socket, ByteBuffer.wrap(requestHead));
+            connected = true;
+            backoff.reset();
+
+            frameBus.subscribe();
+            try {
+                streamFrames(socket);
+            } finally {
+                frameBus.unsubscribe();
+            }
+            writeFully(socket, ByteBuffer.wrap(LAST_CHUNK));
+        } finally {
+            connected = false;
+            closeChannel();
+        }
+    }
+
+    private void streamFrames(SocketChannel socket) throws IOException, InterruptedException {
+        ByteBuffer trailer = ByteBuffer.wrap(CRLF);
+        long lastSequence = 0;
+        while (running && !frameBus.isClosed()) {
+            Frame frame = frameBus.awaitFrame(lastSequence, FRAME_WAIT_TIMEOUT_MS);
+            if (frame == null) {
+                continue;
+            }
+            lastSequence = frame.getSequence();
+            if (frame.getPayloadLength() == 0) {
+                continue;
+            }
+            // One chunk per part, handed to the kernel in a single gathering write
+            ByteBuffer[] chunk = {
+                ByteBuffer.wrap((Integer.toHexString(frame.getPartLength()) + "\r\n")
+                        .getBytes(StandardCharsets.US_ASCII)),
+                frame.getPartBuffer(),
+                trailer
+            };
+            trailer.rewind();
+            long written = 0;
+            while (chunk[2].hasRemaining()) {
+                written += socket.write(chunk);
+            }
+            framesPushed.increment();
+            bytesPushed.add(written);
+        }
+    }
+
+    private static void writeFully(SocketChannel socket, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            socket.write(buffer);
+        }
+    }
+
+    private void closeChannel() {
+        SocketChannel current = channel;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+}
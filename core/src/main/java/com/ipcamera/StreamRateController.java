@@ -0,0 +1,229 @@
+package com.ipcamera;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Adapts one profile to the throughput its clients actually achieve. Once per
+ * evaluation window it looks at how much of the window each client spent
+ * writing frames: a client that is busy nearly all the time is limited by its
+ * link and gets a frame rate it can sustain, one that is mostly idle has its
+ * limit raised again step by step. While any client cannot sustain the
+ * target frame rate the profile's JPEG quality is lowered for everyone, and
+ * it is raised again once every client has had room to spare for a while.
+ * Separate thresholds, hold counts and a cooldown after each change keep it
+ * from oscillating.
+ *
+ * <p>Evaluation runs on whichever client thread records a frame after the
+ * window has elapsed, so an idle profile costs nothing.
+ */
+public class StreamRateController {
+    public interface QualityListener {
+        void onQualityChanged(StreamProfile profile, int quality);
+    }
+
+    static final long WINDOW_NANOS = 1_000_000_000L;
+    // Share of the window spent writing above which a client counts as link-limited
+    private static final double CONGESTED_BUSY = 0.9;
+    // ... and below which it has room to spare
+    private static final double IDLE_BUSY = 0.5;
+    // Limit link-limited clients below their capacity so their socket buffer drains
+    private static final double HEADROOM = 0.8;
+    private static final double FPS_RAISE_FACTOR = 1.25;
+    private static final int FPS_RAISE_AFTER_WINDOWS = 2;
+    private static final int QUALITY_DOWN_STEP = 10;
+    private static final int QUALITY_UP_STEP = 5;
+    private static final int QUALITY_RAISE_AFTER_WINDOWS = 5;
+    // Capacity over the target frame rate every client needs before quality goes up
+    private static final double QUALITY_RAISE_MARGIN = 1.5;
+    // Windows to wait after a quality change before judging its effect
+    private static final int QUALITY_COOLDOWN_WINDOWS = 2;
+
+    private final StreamProfile profile;
+    private final MetricsRegistry registry;
+    private final int configuredMinQuality;
+    private int minQuality;
+    private int maxQuality;
+    private final double minFps;
+    private final double targetFps;
+    private final double maxFps;
+    private final long windowNanos;
+    private final List<ClientSession> sessions = new CopyOnWriteArrayList<>();
+    private final Counter qualityDowns;
+    private final Counter qualityUps;
+    private final Counter fpsLimited;
+    private final Counter fpsRaised;
+    private QualityListener listener;
+    private volatile int quality;
+    private volatile long nextEvaluationNanos;
+    private long lastEvaluationNanos;
+    private int cooldownWindows = 0;
+    private int calmWindows = 0;
+
+    /**
+     * @param minQuality lowest JPEG quality to fall back to; the profile's own
+     *                   quality is the highest
+     * @param minFps     lowest frame rate a client is limited to
+     * @param targetFps  frame rate every client should get before quality is spent
+     * @param maxFps     limits raised beyond this are lifted altogether
+     */
+    public StreamRateController(StreamProfile profile, MetricsRegistry registry, int minQuality,
+                                double minFps, double targetFps, double maxFps) {
+        this(profile, registry, minQuality, minFps, targetFps, maxFps, WINDOW_NANOS);
+    }
+
+    /** @param windowNanos how often the clients are evaluated */
+    StreamRateController(StreamProfile profile, MetricsRegistry registry, int minQuality,
+                         double minFps, double targetFps, double maxFps, long windowNanos) {
+        this.profile = profile;
+        this.registry = registry;
+        this.configuredMinQuality = minQuality;
+        this.minQuality = Math.min(minQuality, profile.getQuality());
+        this.maxQuality = profile.getQuality();
+        this.minFps = minFps;
+        this.targetFps = targetFps;
+        this.maxFps = maxFps;
+        this.windowNanos = windowNanos;
+        this.quality = maxQuality;
+        this.lastEvaluationNanos = System.nanoTime();
+        this.nextEvaluationNanos = lastEvaluationNanos + windowNanos;
+
+        String labels = "profile=\"" + profile.getName() + "\"";
+        registry.gauge("ipcamera_stream_quality", "JPEG quality currently encoded for a profile",
+            labels, () -> quality);
+        qualityDowns = registry.counter("ipcamera_stream_quality_changes_total",
+            "Adaptive quality changes", labels + ",direction=\"down\"");
+        qualityUps = registry.counter("ipcamera_stream_quality_changes_total",
+            "Adaptive quality changes", labels + ",direction=\"up\"");
+        fpsLimited = registry.counter("ipcamera_client_fps_changes_total",
+            "Adaptive changes to per-client frame rate limits", labels + ",direction=\"down\"");
+        fpsRaised = registry.counter("ipcamera_client_fps_changes_total",
+            "Adaptive changes to per-client frame rate limits", labels + ",direction=\"up\"");
+    }
+
+    public StreamProfile getProfile() {
+        return profile;
+    }
+
+    public void setQualityListener(QualityListener listener) {
+        this.listener = listener;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    /**
+     * Replaces the highest quality, which starts out as the profile's own,
+     * and restarts adaptation from it.
+     */
+    public synchronized void setMaxQuality(int maxQuality) {
+        this.maxQuality = maxQuality;
+        this.minQuality = Math.min(configuredMinQuality, maxQuality);
+        setQuality(maxQuality);
+    }
+
+    /** Starts tracking a new client of this profile; closing the session stops it. */
+    ClientSession openSession(String client) {
+        ClientSession session = new ClientSession(registry, this, profile.getName(), client);
+        sessions.add(session);
+        return session;
+    }
+
+    void remove(ClientSession session) {
+        sessions.remove(session);
+    }
+
+    void maybeEvaluate(long nowNanos) {
+        if (nowNanos - nextEvaluationNanos >= 0) {
+            evaluate(nowNanos);
+        }
+    }
+
+    synchronized void evaluate(long nowNanos) {
+        if (nowNanos - nextEvaluationNanos < 0) {
+            // Another client thread got here first
+            return;
+        }
+        long elapsedNanos = nowNanos - lastEvaluationNanos;
+        lastEvaluationNanos = nowNanos;
+        nextEvaluationNanos = nowNanos + windowNanos;
+
+        Map<ClientSession, ClientSession.Window> windows = new LinkedHashMap<>();
+        for (ClientSession session : sessions) {
+            windows.put(session, session.takeWindow(nowNanos, elapsedNanos));
+        }
+        adapt(windows);
+    }
+
+    /** Adjusts the client frame rate limits and the quality to one window of each client. */
+    synchronized void adapt(Map<ClientSession, ClientSession.Window> windows) {
+        boolean anyConstrained = false;
+        boolean allComfortable = true;
+        for (Map.Entry<ClientSession, ClientSession.Window> entry : windows.entrySet()) {
+            ClientSession session = entry.getKey();
+            ClientSession.Window window = entry.getValue();
+            if (window.busy >= CONGESTED_BUSY) {
+                limitFps(session, window.capacityFps);
+            } else if (window.busy < IDLE_BUSY) {
+                raiseFps(session);
+            } else {
+                session.calmWindows = 0;
+            }
+            // Only a congested client's writes tell its capacity; otherwise its limit does
+            double limit = session.getFpsLimit();
+            anyConstrained |= (window.busy >= CONGESTED_BUSY && window.capacityFps < targetFps)
+                || (limit > 0 && limit < targetFps);
+            double comfortableFps = targetFps * QUALITY_RAISE_MARGIN;
+            allComfortable &= window.busy < IDLE_BUSY && window.capacityFps >= comfortableFps
+                && (limit == 0 || limit >= comfortableFps);
+        }
+
+        if (cooldownWindows > 0) {
+            cooldownWindows--;
+        } else if (anyConstrained && quality > minQuality) {
+            setQuality(Math.max(minQuality, quality - QUALITY_DOWN_STEP));
+            qualityDowns.increment();
+        } else if (allComfortable && quality < maxQuality
+                && ++calmWindows >= QUALITY_RAISE_AFTER_WINDOWS) {
+            setQuality(Math.min(maxQuality, quality + QUALITY_UP_STEP));
+            qualityUps.increment();
+        }
+        if (!allComfortable) {
+            calmWindows = 0;
+        }
+    }
+
+    private void limitFps(ClientSession session, double capacityFps) {
+        session.calmWindows = 0;
+        double limit = Math.max(minFps, Math.min(maxFps, capacityFps * HEADROOM));
+        double current = session.getFpsLimit();
+        if (current == 0 || limit < current) {
+            session.setFpsLimit(limit);
+            fpsLimited.increment();
+        }
+    }
+
+    private void raiseFps(ClientSession session) {
+        double current = session.getFpsLimit();
+        if (current == 0 || ++session.calmWindows < FPS_RAISE_AFTER_WINDOWS) {
+            return;
+        }
+        session.calmWindows = 0;
+        double raised = current * FPS_RAISE_FACTOR;
+        session.setFpsLimit(raised > maxFps ? 0 : raised);
+        fpsRaised.increment();
+    }
+
+    private void setQuality(int quality) {
+        this.quality = quality;
+        cooldownWindows = QUALITY_COOLDOWN_WINDOWS;
+        calmWindows = 0;
+        QualityListener current = listener;
+        if (current != null) {
+            current.onQualityChanged(profile, quality);
+        }
+    }
+}
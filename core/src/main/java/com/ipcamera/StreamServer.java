@@ -0,0 +1,7 @@
+package com.ipcamera;
+
+public interface StreamServer {
+    void start();
+
+    void stop();
+}
@@ -0,0 +1,220 @@
+package com.ipcamera;
+
+import java.util.Locale;
+
+/**
+ * Steps the capture frame rate, capture size and JPEG quality down through
+ * fixed {@link Tier}s as the device heats up or its battery runs low, before
+ * the system throttles the CPU on its own and the frame rate collapses. The
+ * device is only seen through {@link Readings}, so the policy can be driven
+ * without one.
+ *
+ * <p>A hotter tier is taken as soon as the readings call for it; the way
+ * back is one tier at a time, each once the readings have allowed it for
+ * the recovery time, so the stream does not flap around a threshold.
+ */
+public class ThermalGovernor {
+    /** Limits applied at one level of throttling. */
+    public static final class Tier {
+        private final String name;
+        private final int maxFps;
+        private final double captureScale;
+        private final double qualityScale;
+
+        /**
+         * @param maxFps       highest capture frame rate, 0 for no limit
+         * @param captureScale share of the configured capture width and height
+         * @param qualityScale share of each profile's configured JPEG quality
+         */
+        public Tier(String name, int maxFps, double captureScale, double qualityScale) {
+            this.name = name;
+            this.maxFps = maxFps;
+            this.captureScale = captureScale;
+            this.qualityScale = qualityScale;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMaxFps() {
+            return maxFps;
+        }
+
+        public double getCaptureScale() {
+            return captureScale;
+        }
+
+        public double getQualityScale() {
+            return qualityScale;
+        }
+
+        /** Applies this tier's quality share, keeping at least quality 1. */
+        public int scaleQuality(int quality) {
+            return Math.max(1, (int) Math.round(quality * qualityScale));
+        }
+    }
+
+    /** What the device reported at one point in time. */
+    public static final class Readings {
+        /** PowerManager's status, 0 for none up to 6 for shutdown; -1 if unknown. */
+        final int thermalStatus;
+        /** Forecast share of the way to severe throttling, 1 meaning there; NaN if unknown. */
+        final double thermalHeadroom;
+        /** Battery charge in percent; -1 if unknown. */
+        final int batteryPercent;
+        final boolean charging;
+        /** Battery temperature; NaN if unknown. */
+        final double batteryCelsius;
+
+        public Readings(int thermalStatus, double thermalHeadroom, int batteryPercent,
+                        boolean charging, double batteryCelsius) {
+            this.thermalStatus = thermalStatus;
+            this.thermalHeadroom = thermalHeadroom;
+            this.batteryPercent = batteryPercent;
+            this.charging = charging;
+            this.batteryCelsius = batteryCelsius;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                "thermal status %d, headroom %.2f, battery %d%% %s at %.1f C",
+                thermalStatus, thermalHeadroom, batteryPercent,
+                charging ? "charging" : "discharging", batteryCelsius);
+        }
+    }
+
+    public interface TierListener {
+        void onTierChanged(Tier previous, Tier next, Readings readings);
+    }
+
+    /** Full rate, then lighter steps before the capture size is given up. */
+    public static final Tier[] DEFAULT_TIERS = {
+        new Tier("full", 0, 1.0, 1.0),
+        new Tier("warm", 20, 1.0, 0.9),
+        new Tier("hot", 15, 0.75, 0.8),
+        new Tier("severe", 10, 0.5, 0.7),
+        new Tier("critical", 5, 0.5, 0.6),
+    };
+
+    // Tier called for by each PowerManager status, none up to shutdown
+    private static final int[] STATUS_TIERS = {0, 1, 2, 3, 4, 4, 4};
+    // Headroom at which tiers 1, 2, ... are called for; 1.0 is where the system throttles
+    private static final double[] HEADROOM_STEPS = {0.75, 0.85, 0.95};
+    // Battery temperatures at which tiers 1, 2, ... are called for
+    private static final double[] BATTERY_CELSIUS_STEPS = {42, 45, 48};
+    // Charge below which tiers 1, 2, ... are called for while discharging
+    private static final int[] BATTERY_PERCENT_STEPS = {30, 20, 10};
+
+    private final Tier[] tiers;
+    private final long recoveryNanos;
+    private final Counter throttled;
+    private final Counter recovered;
+    private TierListener listener;
+    private volatile int tier = 0;
+    private volatile Readings lastReadings;
+    private boolean recovering = false;
+    private long recoveringSinceNanos;
+
+    /**
+     * @param tiers         from no throttling to the most
+     * @param recoveryNanos how long the readings must allow a cooler tier before it is taken
+     */
+    public ThermalGovernor(Tier[] tiers, long recoveryNanos, MetricsRegistry metrics) {
+        this.tiers = tiers.clone();
+        this.recoveryNanos = recoveryNanos;
+        metrics.gauge("ipcamera_thermal_tier", "Throttling tier in effect, 0 for none",
+            () -> tier);
+        metrics.gauge("ipcamera_thermal_status", "Thermal status reported by the system",
+            () -> lastReadings != null ? lastReadings.thermalStatus : -1);
+        metrics.gauge("ipcamera_thermal_headroom_percent",
+            "Forecast thermal headroom used, 100 where the system throttles",
+            () -> lastReadings != null && !Double.isNaN(lastReadings.thermalHeadroom)
+                ? Math.round(lastReadings.thermalHeadroom * 100) : -1);
+        metrics.gauge("ipcamera_battery_percent", "Battery charge",
+            () -> lastReadings != null ? lastReadings.batteryPercent : -1);
+        metrics.gauge("ipcamera_battery_temperature_celsius", "Battery temperature",
+            () -> lastReadings != null && !Double.isNaN(lastReadings.batteryCelsius)
+                ? Math.round(lastReadings.batteryCelsius) : -1);
+        String help = "Changes of the throttling tier";
+        throttled = metrics.counter("ipcamera_thermal_tier_changes_total", help,
+            "direction=\"throttle\"");
+        recovered = metrics.counter("ipcamera_thermal_tier_changes_total", help,
+            "direction=\"recover\"");
+    }
+
+    public void setTierListener(TierListener listener) {
+        this.listener = listener;
+    }
+
+    public Tier getTier() {
+        return tiers[tier];
+    }
+
+    /**
+     * Takes new readings and moves to the tier they call for.
+     *
+     * @return the tier now in effect
+     */
+    public synchronized Tier update(Readings readings, long nowNanos) {
+        lastReadings = readings;
+        int wanted = Math.min(tiers.length - 1, tierFor(readings));
+        int current = tier;
+        if (wanted > current) {
+            recovering = false;
+            change(current, wanted, readings);
+            throttled.increment();
+        } else if (wanted == current) {
+            recovering = false;
+        } else if (!recovering) {
+            recovering = true;
+            recoveringSinceNanos = nowNanos;
+        } else if (nowNanos - recoveringSinceNanos >= recoveryNanos) {
+            // One step, and the next only after another recovery time
+            recoveringSinceNanos = nowNanos;
+            change(current, current - 1, readings);
+            recovered.increment();
+        }
+        return tiers[tier];
+    }
+
+    /** The tier the readings call for on their own, which may be beyond the last. */
+    static int tierFor(Readings readings) {
+        int wanted = 0;
+        if (readings.thermalStatus > 0) {
+            wanted = STATUS_TIERS[Math.min(readings.thermalStatus, STATUS_TIERS.length - 1)];
+        }
+        if (!Double.isNaN(readings.thermalHeadroom)) {
+            wanted = Math.max(wanted, stepsReached(readings.thermalHeadroom, HEADROOM_STEPS));
+        }
+        if (!Double.isNaN(readings.batteryCelsius)) {
+            wanted = Math.max(wanted, stepsReached(readings.batteryCelsius, BATTERY_CELSIUS_STEPS));
+        }
+        if (!readings.charging && readings.batteryPercent >= 0) {
+            int steps = 0;
+            while (steps < BATTERY_PERCENT_STEPS.length
+                    && readings.batteryPercent <= BATTERY_PERCENT_STEPS[steps]) {
+                steps++;
+            }
+            wanted = Math.max(wanted, steps);
+        }
+        return wanted;
+    }
+
+    private static int stepsReached(double value, double[] steps) {
+        int reached = 0;
+        while (reached < steps.length && value >= steps[reached]) {
+            reached++;
+        }
+        return reached;
+    }
+
+    private void change(int from, int to, Readings readings) {
+        tier = to;
+        TierListener current = listener;
+        if (current != null) {
+            current.onTierChanged(tiers[from], tiers[to], readings);
+        }
+    }
+}
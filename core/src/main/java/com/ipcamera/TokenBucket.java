@@ -0,0 +1,45 @@
+package com.ipcamera;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits a rate in units per second, e.g. bytes or frames, allowing a burst
+ * of up to {@code burstNanos} worth of units. Instead of a token count the
+ * bucket keeps the time at which it is full again, which every take moves
+ * forward. That is a single atomic value, so taking never locks and one
+ * bucket may be shared by several writers.
+ *
+ * <p>Units are taken after the fact and may overdraw the bucket, so a frame
+ * larger than the burst still goes out; whoever takes next waits it off.
+ */
+public final class TokenBucket {
+    private final double nanosPerUnit;
+    private final long burstNanos;
+    private final AtomicLong fullAtNanos = new AtomicLong(System.nanoTime());
+
+    public TokenBucket(double unitsPerSecond, long burstNanos) {
+        if (unitsPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + unitsPerSecond);
+        }
+        this.nanosPerUnit = 1e9 / unitsPerSecond;
+        this.burstNanos = burstNanos;
+    }
+
+    /** How long to wait before taking more; 0 if the bucket has room now. */
+    public long getDelayNanos(long nowNanos) {
+        long delay = fullAtNanos.get() - burstNanos - nowNanos;
+        return delay > 0 ? delay : 0;
+    }
+
+    public void take(long units, long nowNanos) {
+        long cost = (long) (units * nanosPerUnit);
+        while (true) {
+            long fullAt = fullAtNanos.get();
+            // A bucket left alone has filled up; it holds no more than the burst
+            long base = fullAt - nowNanos > 0 ? fullAt : nowNanos;
+            if (fullAtNanos.compareAndSet(fullAt, base + cost)) {
+                return;
+            }
+        }
+    }
+}
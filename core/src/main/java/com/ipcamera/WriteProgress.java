@@ -0,0 +1,92 @@
+package com.ipcamera;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Whether a write to a client is still moving. A client that stops reading
+ * leaves the write stuck once the socket buffer is full; one that makes no
+ * progress for longer than the stall timeout is to be disconnected. Clients
+ * that read slowly but steadily keep making progress and are left alone.
+ */
+final class WriteProgress {
+    // A client stuck in one write this long is disconnected
+    static final long STALL_TIMEOUT_NANOS = 5_000_000_000L;
+    // Largest piece a tracked stream hands to the socket at once
+    static final int CHUNK_BYTES = 8 * 1024;
+
+    private volatile long lastProgressNanos = 0;
+
+    void begin(long nowNanos) {
+        lastProgressNanos = nowNanos;
+    }
+
+    /** Called when a write in progress got some bytes out without finishing. */
+    void progress() {
+        if (lastProgressNanos != 0) {
+            lastProgressNanos = System.nanoTime();
+        }
+    }
+
+    void end() {
+        lastProgressNanos = 0;
+    }
+
+    boolean isWriting() {
+        return lastProgressNanos != 0;
+    }
+
+    boolean isStalled(long nowNanos) {
+        long progressAt = lastProgressNanos;
+        return progressAt != 0 && nowNanos - progressAt > STALL_TIMEOUT_NANOS;
+    }
+
+    /**
+     * Wraps a blocking stream so that every write is tracked, in chunks of
+     * {@link #CHUNK_BYTES} with progress recorded after each. A write made
+     * while one is already in progress, e.g. a frame between
+     * {@link ClientSession#beginWrite} and {@link ClientSession#recordFrame},
+     * only adds progress to it.
+     */
+    OutputStream track(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                boolean started = start();
+                try {
+                    out.write(b);
+                } finally {
+                    finish(started);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                boolean started = start();
+                try {
+                    for (int i = 0; i < len; i += CHUNK_BYTES) {
+                        out.write(b, off + i, Math.min(CHUNK_BYTES, len - i));
+                        progress();
+                    }
+                } finally {
+                    finish(started);
+                }
+            }
+        };
+    }
+
+    private boolean start() {
+        if (isWriting()) {
+            return false;
+        }
+        begin(System.nanoTime());
+        return true;
+    }
+
+    private void finish(boolean started) {
+        if (started) {
+            end();
+        }
+    }
+}
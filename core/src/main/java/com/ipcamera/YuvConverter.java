@@ -0,0 +1,130 @@
+package com.ipcamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Repacks the three planes of a YUV_420_888 image into an NV21 array
+ * (full Y plane followed by interleaved V/U samples), honouring each plane's
+ * row and pixel stride. Plane buffers are read with absolute offsets from
+ * their current position, which is left untouched, and never written to.
+ */
+public class YuvConverter {
+    private byte[] uRow = new byte[0];
+    private byte[] vRow = new byte[0];
+    // Whether this camera's chroma planes are one NV21 block; null until a frame tells
+    private Boolean interleavedNv21;
+
+    public static int nv21Size(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    public void toNv21(ByteBuffer yBuffer, int yRowStride,
+                       ByteBuffer uBuffer, ByteBuffer vBuffer,
+                       int uvRowStride, int uvPixelStride,
+                       int width, int height, byte[] nv21) {
+        copyLuma(yBuffer, yRowStride, width, height, nv21);
+
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int offset = width * height;
+        if (uvPixelStride == 2 && interleavedNv21 == null) {
+            // The layout is the camera's and stays the same, so it is checked until known
+            interleavedNv21 = detectInterleavedNv21(uBuffer, vBuffer);
+        }
+        if (uvPixelStride == 2 && Boolean.TRUE.equals(interleavedNv21)) {
+            copyInterleavedChroma(uBuffer, vBuffer, uvRowStride,
+                    chromaWidth, chromaHeight, nv21, offset);
+        } else {
+            copyPlanarChroma(uBuffer, vBuffer, uvRowStride, uvPixelStride,
+                    chromaWidth, chromaHeight, nv21, offset);
+        }
+    }
+
+    private static void copyLuma(ByteBuffer yBuffer, int rowStride, int width, int height,
+                                 byte[] nv21) {
+        ByteBuffer y = yBuffer.duplicate();
+        int base = y.position();
+        if (rowStride == width) {
+            y.get(nv21, 0, width * height);
+            return;
+        }
+        for (int row = 0; row < height; row++) {
+            y.position(base + row * rowStride);
+            y.get(nv21, row * width, width);
+        }
+    }
+
+    static boolean isInterleavedNv21(ByteBuffer uBuffer, ByteBuffer vBuffer) {
+        return Boolean.TRUE.equals(detectInterleavedNv21(uBuffer, vBuffer));
+    }
+
+    /**
+     * Whether the V plane is the start of an NV21 block, i.e. the U buffer
+     * holds the same bytes as the V buffer from its second byte on. Then the
+     * V buffer can be copied as it is. Decided by comparing the contents
+     * only, so it works on read-only buffers. Returns null while the
+     * chroma is flat, because then both layouts look the same.
+     */
+    static Boolean detectInterleavedNv21(ByteBuffer uBuffer, ByteBuffer vBuffer) {
+        int length = Math.min(uBuffer.remaining(), vBuffer.remaining() - 1);
+        if (length < 1) {
+            return false;
+        }
+        ByteBuffer u = uBuffer.duplicate();
+        u.limit(u.position() + length);
+        ByteBuffer v = vBuffer.duplicate();
+        v.limit(v.position() + length);
+        if (u.equals(v)) {
+            return null;
+        }
+        v.position(v.position() + 1).limit(v.limit() + 1);
+        return u.equals(v);
+    }
+
+    private static void copyInterleavedChroma(ByteBuffer uBuffer, ByteBuffer vBuffer,
+                                              int rowStride, int chromaWidth, int chromaHeight,
+                                              byte[] nv21, int offset) {
+        ByteBuffer v = vBuffer.duplicate();
+        int base = v.position();
+        int rowBytes = chromaWidth * 2;
+        int total = rowBytes * chromaHeight;
+        if (rowStride == rowBytes) {
+            // V buffer covers everything except the very last U sample
+            v.get(nv21, offset, total - 1);
+        } else {
+            for (int row = 0; row < chromaHeight; row++) {
+                int length = row == chromaHeight - 1 ? rowBytes - 1 : rowBytes;
+                v.position(base + row * rowStride);
+                v.get(nv21, offset + row * rowBytes, length);
+            }
+        }
+        int lastU = uBuffer.position() + (chromaHeight - 1) * rowStride + rowBytes - 2;
+        nv21[offset + total - 1] = uBuffer.get(lastU);
+    }
+
+    private void copyPlanarChroma(ByteBuffer uBuffer, ByteBuffer vBuffer,
+                                  int rowStride, int pixelStride,
+                                  int chromaWidth, int chromaHeight,
+                                  byte[] nv21, int offset) {
+        int rowLength = (chromaWidth - 1) * pixelStride + 1;
+        if (uRow.length < rowLength) {
+            uRow = new byte[rowLength];
+            vRow = new byte[rowLength];
+        }
+        ByteBuffer u = uBuffer.duplicate();
+        ByteBuffer v = vBuffer.duplicate();
+        int uBase = u.position();
+        int vBase = v.position();
+        int out = offset;
+        for (int row = 0; row < chromaHeight; row++) {
+            u.position(uBase + row * rowStride);
+            u.get(uRow, 0, rowLength);
+            v.position(vBase + row * rowStride);
+            v.get(vRow, 0, rowLength);
+            for (int col = 0; col < rowLength; col += pixelStride) {
+                nv21[out++] = vRow[col];
+                nv21[out++] = uRow[col];
+            }
+        }
+    }
+}
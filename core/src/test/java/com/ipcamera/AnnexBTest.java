@@ -0,0 +1,49 @@
+package com.ipcamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AnnexBTest {
+    @Test
+    public void findsThreeAndFourByteStartCodes() {
+        byte[] data = {0, 0, 1, 0x65, 0x11, 0, 0, 0, 1, 0x41, 0x22};
+        assertEquals(3, AnnexB.nextNalStart(data, 0, data.length));
+        assertEquals(9, AnnexB.nextNalStart(data, 3, data.length));
+        assertEquals(-1, AnnexB.nextNalStart(data, 9, data.length));
+    }
+
+    @Test
+    public void zerosInsideAUnitAreNotAStartCode() {
+        byte[] data = {0, 0, 1, 0x41, 0, 0, 3, 0, 0, 2, 0x22};
+        assertEquals(-1, AnnexB.nextNalStart(data, 3, data.length));
+    }
+
+    @Test
+    public void truncatedStartCodesAreNotFound() {
+        byte[] data = {0, 0, 1, 0x41, 0x22, 0, 0, 0, 1};
+        // A start code cut short by the end of the range
+        assertEquals(-1, AnnexB.nextNalStart(data, 3, 8));
+        assertEquals(-1, AnnexB.nextNalStart(data, 3, 7));
+        // A start code with nothing after it still ends the range
+        assertEquals(9, AnnexB.nextNalStart(data, 3, data.length));
+        assertEquals(-1, AnnexB.nextNalStart(new byte[] {0, 0}, 0, 2));
+    }
+
+    @Test
+    public void idrSlicesAndParameterSetsAreKeyFrames() {
+        byte[] idr = {0, 0, 0, 1, 0x65, 0x11};
+        byte[] sps = {0, 0, 0, 1, 0x67, 0x42, 0, 0, 1, 0x68, 0x33};
+        byte[] slice = {0, 0, 0, 1, 0x41, 0x11, 0, 0, 1, 0x06, 0x05};
+        assertTrue(AnnexB.containsKeyFrame(idr, 0, idr.length));
+        assertTrue(AnnexB.containsKeyFrame(sps, 0, sps.length));
+        assertFalse(AnnexB.containsKeyFrame(slice, 0, slice.length));
+        // Only the given range counts
+        byte[] sliceThenIdr = {0, 0, 1, 0x41, 0x11, 0, 0, 1, 0x65, 0x22};
+        assertFalse(AnnexB.containsKeyFrame(sliceThenIdr, 0, 5));
+        assertTrue(AnnexB.containsKeyFrame(sliceThenIdr, 5, 5));
+        assertEquals(AnnexB.NAL_IDR_SLICE, AnnexB.nalType((byte) 0x65));
+    }
+}
@@ -0,0 +1,177 @@
+package com.ipcamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ClientSessionTest {
+    private static final int FRAME_BYTES = 32 * 1024;
+    private static final int FRAMES = 60;
+    private static final long FRAME_INTERVAL_MS = 20;
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final StreamProfile profile = new StreamProfile(StreamProfile.DEFAULT, 640, 480, 80);
+    private final StreamRateController controller =
+        new StreamRateController(profile, metrics, 30, 2, 10, 30);
+    private final FrameBus bus = new FrameBus();
+    private final List<Socket> sockets = new ArrayList<>();
+
+    /** Sends the newest frame whenever the last write is done, as the servers do. */
+    private final class Writer extends Thread {
+        final ClientSession session;
+        final OutputStream output;
+        final AtomicLong framesWritten = new AtomicLong();
+
+        Writer(ClientSession session, Socket socket) throws IOException {
+            this.session = session;
+            this.output = socket.getOutputStream();
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                long last = 0;
+                while (true) {
+                    Frame frame = bus.awaitFrame(last, 100);
+                    if (frame == null) {
+                        if (bus.isClosed()) {
+                            return;
+                        }
+                        continue;
+                    }
+                    session.beginWrite();
+                    frame.writePartTo(output);
+                    session.recordFrame(frame);
+                    framesWritten.incrementAndGet();
+                    last = frame.getSequence();
+                }
+            } catch (IOException | InterruptedException e) {
+                // Socket closed by the test
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        bus.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void slowReaderDoesNotSlowDownFastOnes() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress())) {
+            Socket slowClient = connect(server, true);
+            Socket slowServerSide = accept(server);
+            Writer slow = new Writer(controller.openSession("slow"), slowServerSide);
+            List<Writer> fast = new ArrayList<>();
+            List<AtomicLong> fastBytes = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                Socket client = connect(server, false);
+                fast.add(new Writer(controller.openSession("fast" + i), accept(server)));
+                fastBytes.add(drain(client));
+            }
+            slow.start();
+            for (Writer writer : fast) {
+                writer.start();
+            }
+
+            byte[] jpeg = new byte[FRAME_BYTES];
+            long started = System.nanoTime();
+            for (int i = 0; i < FRAMES; i++) {
+                bus.publish(jpeg);
+                Thread.sleep(FRAME_INTERVAL_MS);
+            }
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            Thread.sleep(100);
+
+            for (int i = 0; i < fast.size(); i++) {
+                Writer writer = fast.get(i);
+                assertTrue("fast client " + i + " got " + writer.framesWritten + " of " + FRAMES
+                    + " frames in " + elapsedMs + " ms",
+                    writer.framesWritten.get() >= FRAMES * 9 / 10);
+                assertTrue(fastBytes.get(i).get() >= (long) FRAMES * 9 / 10 * FRAME_BYTES);
+                assertTrue(writer.session.getFramesDropped() <= FRAMES / 10);
+            }
+            // The slow reader is stuck in one write instead of queueing every frame
+            assertTrue("slow client got " + slow.framesWritten,
+                slow.framesWritten.get() < FRAMES / 2);
+            long stallCheck = System.nanoTime() + ClientSession.STALL_TIMEOUT_NANOS + 1;
+            assertTrue(slow.session.isStalled(stallCheck));
+            for (Writer writer : fast) {
+                assertFalse(writer.session.isStalled(stallCheck));
+            }
+            slowClient.close();
+        }
+    }
+
+    @Test
+    public void skippedFramesAreCountedAsDropped() {
+        ClientSession session = controller.openSession("skipping");
+        byte[] jpeg = new byte[16];
+        for (int i = 0; i < 10; i++) {
+            Frame frame = bus.publish(jpeg);
+            if (i % 3 == 0) {
+                session.beginWrite();
+                session.recordFrame(frame);
+            }
+        }
+        // Frames 1, 4, 7 and 10 were sent, the six between them dropped
+        assertEquals(6, session.getFramesDropped());
+        session.close();
+    }
+
+    /** Opens a client connection; a slow one never reads and barely buffers. */
+    private Socket connect(ServerSocket server, boolean slow) throws IOException {
+        Socket socket = new Socket();
+        if (slow) {
+            socket.setReceiveBufferSize(4096);
+        }
+        socket.connect(server.getLocalSocketAddress());
+        sockets.add(socket);
+        return socket;
+    }
+
+    private Socket accept(ServerSocket server) throws IOException {
+        Socket socket = server.accept();
+        socket.setSendBufferSize(16 * 1024);
+        sockets.add(socket);
+        return socket;
+    }
+
+    /** Reads everything the client is sent on a thread of its own, counting the bytes. */
+    private static AtomicLong drain(Socket socket) throws IOException {
+        AtomicLong bytes = new AtomicLong();
+        InputStream input = socket.getInputStream();
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[64 * 1024];
+            try {
+                int read;
+                while ((read = input.read(buffer)) > 0) {
+                    bytes.addAndGet(read);
+                }
+            } catch (IOException e) {
+                // Closed by the test
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+        return bytes;
+    }
+}
@@ -0,0 +1,224 @@
+package com.ipcamera;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class ConnectionLimiterTest {
+    private static final String RECORDER = "10.0.0.99";
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
+    private ConnectionLimiter limiter(int max, int perAddress, int reserved) {
+        return new ConnectionLimiter(max, perAddress, reserved,
+            Collections.singleton(RECORDER), metrics);
+    }
+
+    @Test
+    public void capsConnectionsInTotalAndPerAddress() {
+        ConnectionLimiter limiter = limiter(4, 2, 0);
+        ConnectionLimiter.Permit first = limiter.tryAcquire("10.0.0.1");
+        assertNotNull(first);
+        assertNotNull(limiter.tryAcquire("10.0.0.1"));
+        assertNull("third from one address", limiter.tryAcquire("10.0.0.1"));
+        assertNotNull(limiter.tryAcquire("10.0.0.2"));
+        assertNotNull(limiter.tryAcquire("10.0.0.3"));
+        assertNull("fifth in total", limiter.tryAcquire("10.0.0.4"));
+
+        first.close();
+        assertNotNull(limiter.tryAcquire("10.0.0.1"));
+        String rendered = metrics.render();
+        assertTrue(rendered, rendered.contains("ipcamera_connections 4"));
+        assertTrue(rendered.contains("ipcamera_connections_rejected_total{reason=\"full\"} 1"));
+        assertTrue(rendered.contains("ipcamera_connections_rejected_total{reason=\"address\"} 1"));
+    }
+
+    @Test
+    public void reservedConnectionsAreLeftForPriorityAddresses() {
+        ConnectionLimiter limiter = limiter(4, 0, 2);
+        assertNotNull(limiter.tryAcquire("10.0.0.1"));
+        assertNotNull(limiter.tryAcquire("10.0.0.2"));
+        assertNull(limiter.tryAcquire("10.0.0.3"));
+
+        ConnectionLimiter.Permit recorder = limiter.tryAcquire(RECORDER);
+        assertTrue(recorder.isPriority());
+        assertNotNull(limiter.tryAcquire(RECORDER));
+        assertNull(limiter.tryAcquire(RECORDER));
+    }
+
+    @Test
+    public void priorityAddressesSkipThePerAddressCap() {
+        ConnectionLimiter limiter = limiter(10, 1, 0);
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(limiter.tryAcquire(RECORDER));
+        }
+        assertNotNull(limiter.tryAcquire("10.0.0.1"));
+        assertNull(limiter.tryAcquire("10.0.0.1"));
+    }
+
+    @Test
+    public void closingTwiceReleasesOnce() {
+        ConnectionLimiter limiter = limiter(2, 1, 0);
+        ConnectionLimiter.Permit permit = limiter.tryAcquire("10.0.0.1");
+        permit.close();
+        permit.close();
+        assertNotNull(limiter.tryAcquire("10.0.0.1"));
+        assertNotNull(limiter.tryAcquire("10.0.0.2"));
+        assertNull(limiter.tryAcquire("10.0.0.3"));
+    }
+
+    @Test
+    public void manyClientsConnectingAtOnceNeverExceedTheCaps() throws Exception {
+        int max = 12;
+        int perAddress = 3;
+        ConnectionLimiter limiter = limiter(max, perAddress, 0);
+        List<String> addresses = Arrays.asList("10.0.0.1", "10.0.0.2", "10.0.0.3",
+            "10.0.0.4", "10.0.0.5", "10.0.0.6");
+        AtomicInteger open = new AtomicInteger();
+        AtomicInteger mostOpen = new AtomicInteger();
+        ConcurrentMap<String, AtomicInteger> openPerAddress = new ConcurrentHashMap<>();
+        AtomicInteger mostPerAddress = new AtomicInteger();
+        ConcurrentMap<String, AtomicLong> admittedPerAddress = new ConcurrentHashMap<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < 48; i++) {
+            String address = addresses.get(i % addresses.size());
+            openPerAddress.putIfAbsent(address, new AtomicInteger());
+            admittedPerAddress.putIfAbsent(address, new AtomicLong());
+            Thread client = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int attempt = 0; attempt < 2000; attempt++) {
+                        ConnectionLimiter.Permit permit = limiter.tryAcquire(address);
+                        if (permit == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        admittedPerAddress.get(address).incrementAndGet();
+                        AtomicInteger fromAddress = openPerAddress.get(address);
+                        mostOpen.accumulateAndGet(open.incrementAndGet(), Math::max);
+                        mostPerAddress.accumulateAndGet(fromAddress.incrementAndGet(), Math::max);
+                        fromAddress.decrementAndGet();
+                        open.decrementAndGet();
+                        permit.close();
+                    }
+                } catch (InterruptedException e) {
+                    // Test over
+                }
+            });
+            clients.add(client);
+            client.start();
+        }
+        start.countDown();
+        for (Thread client : clients) {
+            client.join();
+        }
+
+        assertTrue("at most " + mostOpen + " open", mostOpen.get() <= max);
+        assertTrue("at most " + mostPerAddress + " from one address",
+            mostPerAddress.get() <= perAddress);
+        assertTrue(metrics.render().contains("ipcamera_connections 0"));
+        // Every address got a fair share of the slots
+        long fewest = Long.MAX_VALUE;
+        long most = 0;
+        for (AtomicLong admitted : admittedPerAddress.values()) {
+            fewest = Math.min(fewest, admitted.get());
+            most = Math.max(most, admitted.get());
+        }
+        assertTrue("admitted " + admittedPerAddress, fewest * 3 >= most);
+    }
+
+    @Test
+    public void cappedClientsGetEqualFrameRatesAndPriorityOnesAreUncapped() throws Exception {
+        double fps = 25;
+        long durationNanos = TimeUnit.SECONDS.toNanos(1);
+        ConnectionLimiter limiter = limiter(0, 0, 0);
+        limiter.setClientRateLimits(0, fps);
+        StreamRateController controller = new StreamRateController(
+            new StreamProfile(StreamProfile.DEFAULT, 640, 480, 80), metrics, 30, 2, 10, 30);
+        FrameBus bus = new FrameBus();
+        byte[] jpeg = new byte[1000];
+
+        List<AtomicLong> capped = new ArrayList<>();
+        AtomicLong priority = new AtomicLong();
+        List<Thread> clients = new ArrayList<>();
+        long end = System.nanoTime() + durationNanos;
+        for (int i = 0; i <= 10; i++) {
+            String address = i < 10 ? "10.0.0." + (i + 1) : RECORDER;
+            ClientSession session = controller.openSession(address);
+            ConnectionLimiter.Permit permit = limiter.tryAcquire(address);
+            permit.limit(session);
+            AtomicLong frames = i < 10 ? new AtomicLong() : priority;
+            if (i < 10) {
+                capped.add(frames);
+            }
+            Thread client = new Thread(() -> {
+                try {
+                    receive(bus, session, frames, end);
+                } catch (InterruptedException e) {
+                    // Test over
+                } finally {
+                    permit.close();
+                }
+            });
+            clients.add(client);
+            client.start();
+        }
+        while (System.nanoTime() < end) {
+            bus.publish(jpeg);
+            Thread.sleep(4);
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        bus.close();
+
+        // The rate over the second, plus the burst a fresh bucket allows
+        long fewest = Long.MAX_VALUE;
+        long most = 0;
+        for (AtomicLong frames : capped) {
+            fewest = Math.min(fewest, frames.get());
+            most = Math.max(most, frames.get());
+        }
+        assertTrue("capped clients got " + capped, fewest >= fps * 0.8);
+        assertTrue("capped clients got " + capped,
+            most <= fps * (1 + ClientSession.RATE_LIMIT_BURST_NANOS / 1e9) + 2);
+        assertTrue("priority client got " + priority, priority.get() > most * 3);
+        assertTrue(metrics.render().contains("ipcamera_connections 0"));
+    }
+
+    /** Takes the newest frame whenever the session's limits allow, as the servers do. */
+    private static void receive(FrameBus bus, ClientSession session, AtomicLong frames, long end)
+            throws InterruptedException {
+        long lastSequence = 0;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            long delay = session.getFrameDelayNanos(now);
+            if (delay > 0) {
+                TimeUnit.NANOSECONDS.sleep(Math.min(delay, end - now));
+                continue;
+            }
+            Frame frame = bus.awaitFrame(lastSequence, 50);
+            if (frame == null) {
+                continue;
+            }
+            session.beginWrite();
+            session.recordFrame(frame);
+            lastSequence = frame.getSequence();
+            frames.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.ipcamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EncodePipelineTest {
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 12;
+
+    /**
+     * Writes the first byte of each image as its JPEG, after waiting for the
+     * gate of that image if the test set one, or failing if it is marked bad.
+     */
+    private static final class StubEncoder implements EncodePipeline.JpegEncoder {
+        final Map<Integer, CountDownLatch> gates = new ConcurrentHashMap<>();
+        final Map<Integer, Boolean> failing = new ConcurrentHashMap<>();
+        volatile long sleepMs;
+
+        @Override
+        public void compress(byte[] nv21, int width, int height, int quality,
+                             OutputStream out) throws IOException {
+            int id = nv21[0];
+            CountDownLatch gate = gates.get(id);
+            try {
+                if (gate != null) {
+                    gate.await();
+                }
+                if (sleepMs > 0) {
+                    Thread.sleep(sleepMs);
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (failing.containsKey(id)) {
+                throw new IOException("bad frame " + id);
+            }
+            out.write(id);
+        }
+
+        CountDownLatch gate(int id) {
+            CountDownLatch gate = new CountDownLatch(1);
+            gates.put(id, gate);
+            return gate;
+        }
+    }
+
+    private final StubEncoder encoder = new StubEncoder();
+    private final BufferPool pool = new BufferPool(16, YuvConverter.nv21Size(WIDTH, HEIGHT));
+    private final List<Integer> published = Collections.synchronizedList(new ArrayList<>());
+    private FrameBus bus;
+    private EncodePipeline pipeline;
+
+    @Before
+    public void setUp() {
+        bus = new FrameBus();
+        bus.subscribe();
+        bus.addListener(frame -> published.add((int) frame.getPayloadBuffer().get(0)));
+    }
+
+    @After
+    public void tearDown() {
+        for (CountDownLatch gate : encoder.gates.values()) {
+            gate.countDown();
+        }
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+    }
+
+    private EncodePipeline newPipeline(int workers) {
+        Map<StreamProfile, FrameBus> targets = new LinkedHashMap<>();
+        targets.put(new StreamProfile(StreamProfile.DEFAULT, WIDTH, HEIGHT, 80), bus);
+        return new EncodePipeline(workers, encoder, pool, targets);
+    }
+
+    private boolean submit(int id) {
+        byte[] nv21 = pool.acquire();
+        nv21[0] = (byte) id;
+        return pipeline.submit(nv21, WIDTH, HEIGHT);
+    }
+
+    private void submitWhenFree(int id) throws InterruptedException {
+        while (!submit(id)) {
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitPublished(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (published.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals("published " + published, count, published.size());
+    }
+
+    @Test
+    public void framesFinishedEarlyWaitForTheirPredecessors() throws Exception {
+        pipeline = newPipeline(2);
+        CountDownLatch first = encoder.gate(1);
+        CountDownLatch second = encoder.gate(2);
+        assertTrue(submit(1));
+        assertTrue(submit(2));
+
+        second.countDown();
+        Thread.sleep(100);
+        assertNull("frame 2 must not overtake frame 1", bus.getLatestFrame());
+
+        first.countDown();
+        awaitPublished(2);
+        assertEquals(Arrays.asList(1, 2), published);
+        assertEquals(2, bus.getLatestFrame().getSequence());
+    }
+
+    @Test
+    public void droppedAndFailedFramesDoNotHoldBackLaterOnes() throws Exception {
+        // One worker and a hand-off queue of one: a third frame has nowhere to go
+        pipeline = newPipeline(1);
+        CountDownLatch first = encoder.gate(1);
+        encoder.failing.put(4, true);
+        assertTrue(submit(1));
+        assertTrue(submit(2));
+        assertFalse(submit(3));
+        assertEquals(1, pipeline.getFramesDropped());
+
+        first.countDown();
+        awaitPublished(2);
+        submitWhenFree(4);
+        submitWhenFree(5);
+        awaitPublished(3);
+        assertEquals(Arrays.asList(1, 2, 5), published);
+    }
+
+    @Test
+    public void framesAreNotEncodedWithoutSubscribers() throws Exception {
+        pipeline = newPipeline(1);
+        bus.unsubscribe();
+        assertTrue(submit(1));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pipeline.getEncodeTimer().getCount() < 1 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        bus.subscribe();
+        assertTrue(submit(2));
+        awaitPublished(1);
+        assertEquals(Collections.singletonList(2), published);
+    }
+
+    @Test
+    public void moreWorkersEncodeMoreFrames() throws Exception {
+        encoder.sleepMs = 10;
+        long oneWorker = encodeAll(1, 24);
+        long fourWorkers = encodeAll(4, 24);
+        assertTrue("1 worker took " + oneWorker + " ms, 4 took " + fourWorkers + " ms",
+            fourWorkers * 2 < oneWorker);
+    }
+
+    /** Submits frames as fast as the workers take them; returns the milliseconds taken. */
+    private long encodeAll(int workers, int frames) throws Exception {
+        published.clear();
+        pipeline = newPipeline(workers);
+        long started = System.nanoTime();
+        for (int id = 1; id <= frames; id++) {
+            submitWhenFree(id);
+        }
+        awaitPublished(frames);
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        for (int i = 1; i < frames; i++) {
+            assertTrue("out of order: " + published, published.get(i) > published.get(i - 1));
+        }
+        pipeline.shutdown();
+        pipeline = null;
+        return elapsedMs;
+    }
+}
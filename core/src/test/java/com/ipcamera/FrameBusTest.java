@@ -0,0 +1,164 @@
+package com.ipcamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class FrameBusTest {
+    private static final byte[] JPEG = {
+        (byte) 0xFF, (byte) 0xD8, 1, 2, 3, (byte) 0xFF, (byte) 0xD9,
+    };
+
+    /** Sends what the bus hands it until the bus closes, like a server's client thread. */
+    private static final class Client extends Thread {
+        private final FrameBus bus;
+        private final long sendNanos;
+        final List<Long> sequences = new ArrayList<>();
+        long maxLatencyNanos;
+        volatile Throwable failure;
+
+        Client(FrameBus bus, long sendNanos) {
+            this.bus = bus;
+            this.sendNanos = sendNanos;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long last = 0;
+                Frame frame;
+                while ((frame = bus.awaitFrame(last, 5000)) != null) {
+                    maxLatencyNanos = Math.max(maxLatencyNanos,
+                        System.nanoTime() - frame.getPublishedAtNanos());
+                    sequences.add(frame.getSequence());
+                    last = frame.getSequence();
+                    if (sendNanos > 0) {
+                        TimeUnit.NANOSECONDS.sleep(sendNanos);
+                    }
+                }
+            } catch (Throwable e) {
+                failure = e;
+            }
+        }
+    }
+
+    @Test
+    public void sequencesIncreaseByOne() {
+        FrameBus bus = new FrameBus();
+        assertNull(bus.getLatestFrame());
+        for (int i = 1; i <= 5; i++) {
+            Frame frame = bus.publish(JPEG);
+            assertEquals(i, frame.getSequence());
+            assertSame(frame, bus.getLatestFrame());
+        }
+    }
+
+    @Test
+    public void clientsNeverSeeAFrameTwice() throws Exception {
+        FrameBus bus = new FrameBus();
+        Client fast = new Client(bus, 0);
+        Client slow = new Client(bus, TimeUnit.MILLISECONDS.toNanos(25));
+        fast.start();
+        slow.start();
+
+        int published = 100;
+        for (int i = 0; i < published; i++) {
+            bus.publish(JPEG);
+            Thread.sleep(5);
+        }
+        // Let both clients catch up with the last frame before closing
+        Thread.sleep(100);
+        bus.close();
+        fast.join(5000);
+        slow.join(5000);
+
+        for (Client client : new Client[] {fast, slow}) {
+            assertNull(client.failure);
+            for (int i = 1; i < client.sequences.size(); i++) {
+                assertTrue("sent twice or out of order: " + client.sequences,
+                    client.sequences.get(i) > client.sequences.get(i - 1));
+            }
+            assertEquals(published, (long) client.sequences.get(client.sequences.size() - 1));
+        }
+        // The fast client keeps up; the slow one skips to the newest frame instead of queueing
+        assertTrue("fast client got " + fast.sequences.size(),
+            fast.sequences.size() >= published * 9 / 10);
+        assertTrue("slow client got " + slow.sequences.size(),
+            slow.sequences.size() <= published / 3);
+        assertTrue("fast client latency " + fast.maxLatencyNanos,
+            fast.maxLatencyNanos < TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void awaitTimesOutWithoutNewFrame() throws Exception {
+        FrameBus bus = new FrameBus();
+        Frame frame = bus.publish(JPEG);
+        assertSame(frame, bus.awaitFrame(0, 10));
+
+        long started = System.nanoTime();
+        assertNull(bus.awaitFrame(frame.getSequence(), 50));
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        assertTrue("waited " + waitedMs + " ms", waitedMs >= 40 && waitedMs < 1000);
+    }
+
+    @Test
+    public void closeWakesWaitingClients() throws Exception {
+        FrameBus bus = new FrameBus();
+        CountDownLatch waiting = new CountDownLatch(1);
+        AtomicReference<Object> result = new AtomicReference<>("unset");
+        Thread client = new Thread(() -> {
+            try {
+                waiting.countDown();
+                result.set(bus.awaitFrame(0, 10_000));
+            } catch (InterruptedException e) {
+                result.set(e);
+            }
+        });
+        client.start();
+        waiting.await();
+        Thread.sleep(20);
+
+        long started = System.nanoTime();
+        bus.close();
+        client.join(1000);
+        assertTrue(bus.isClosed());
+        assertNull(result.get());
+        assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(1));
+
+        // A closed bus hands out nothing, not even frames published afterwards
+        bus.publish(JPEG);
+        assertNull(bus.awaitFrame(0, 10));
+        assertNotNull(bus.getLatestFrame());
+    }
+
+    @Test
+    public void listenersAndSubscribersAreNotified() {
+        FrameBus bus = new FrameBus();
+        List<Long> published = new ArrayList<>();
+        List<Integer> counts = new ArrayList<>();
+        bus.addListener(frame -> published.add(frame.getSequence()));
+        bus.addSubscriberListener(counts::add);
+
+        bus.subscribe();
+        bus.subscribe();
+        bus.publish(JPEG);
+        bus.unsubscribe();
+        bus.publish(JPEG);
+
+        assertEquals(1, bus.getSubscriberCount());
+        assertTrue(bus.hasSubscribers());
+        assertEquals(Arrays.asList(1L, 2L), published);
+        assertEquals(Arrays.asList(1, 2, 1), counts);
+    }
+}
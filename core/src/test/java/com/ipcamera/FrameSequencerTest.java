@@ -0,0 +1,38 @@
+package com.ipcamera;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FrameSequencerTest {
+    @Test
+    public void runsActionsInSequenceOrder() {
+        FrameSequencer sequencer = new FrameSequencer();
+        List<Long> ran = new ArrayList<>();
+        for (long sequence : new long[] {3, 1, 4, 2}) {
+            sequencer.complete(sequence, () -> ran.add(sequence));
+        }
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), ran);
+        assertEquals(0, sequencer.getPendingCount());
+    }
+
+    @Test
+    public void holdsBackEverythingAfterAMissingSequence() {
+        FrameSequencer sequencer = new FrameSequencer();
+        List<Long> ran = new ArrayList<>();
+        sequencer.complete(2, () -> ran.add(2L));
+        sequencer.complete(3, () -> ran.add(3L));
+        assertEquals(Collections.emptyList(), ran);
+        assertEquals(2, sequencer.getPendingCount());
+
+        // A no-op completion for a frame that produced nothing releases the rest
+        sequencer.complete(1, () -> { });
+        assertEquals(Arrays.asList(2L, 3L), ran);
+        assertEquals(0, sequencer.getPendingCount());
+    }
+}
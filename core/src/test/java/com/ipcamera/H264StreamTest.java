@@ -0,0 +1,125 @@
+package com.ipcamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class H264StreamTest {
+    private static final byte[] IDR = {0, 0, 0, 1, 0x65, 0x11, 0x22};
+    private static final byte[] SLICE = {0, 0, 0, 1, 0x41, 0x33, 0x44};
+
+    private final H264Stream stream = new H264Stream(4);
+    private final AtomicInteger keyFrameRequests = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        stream.setKeyFrameRequester(keyFrameRequests::incrementAndGet);
+    }
+
+    private H264Stream.AccessUnit publish(byte[] unit) {
+        return stream.publish(unit, 0, unit.length, 0, false);
+    }
+
+    @Test
+    public void keyFramesAreDetectedFromTheData() {
+        assertTrue(publish(IDR).isKeyFrame());
+        assertFalse(publish(SLICE).isKeyFrame());
+        assertTrue(stream.publish(SLICE, 0, SLICE.length, 0, true).isKeyFrame());
+    }
+
+    @Test
+    public void clientsReadUnitsInOrder() throws Exception {
+        H264Stream.AccessUnit key = publish(IDR);
+        H264Stream.AccessUnit second = publish(SLICE);
+        H264Stream.AccessUnit third = publish(SLICE);
+
+        // A new client starts at the key frame, then follows on unit by unit
+        assertSame(key, stream.awaitNext(0, 100));
+        assertSame(second, stream.awaitNext(key.getSequence(), 100));
+        assertSame(third, stream.next(second.getSequence()));
+        assertNull(stream.next(third.getSequence()));
+        assertNull(stream.awaitNext(third.getSequence(), 20));
+        assertEquals(0, keyFrameRequests.get());
+    }
+
+    @Test
+    public void awaitNextWakesUpOnPublish() throws Exception {
+        H264Stream.AccessUnit key = publish(IDR);
+        Thread publisher = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            publish(SLICE);
+        });
+        publisher.start();
+        H264Stream.AccessUnit next = stream.awaitNext(key.getSequence(), 5000);
+        publisher.join();
+        assertEquals(key.getSequence() + 1, next.getSequence());
+    }
+
+    @Test
+    public void clientsThatFallOutOfTheRingResyncToTheNewestKeyFrame() throws Exception {
+        H264Stream.AccessUnit first = publish(IDR);
+        publish(SLICE);
+        H264Stream.AccessUnit newestKey = publish(IDR);
+        for (int i = 0; i < 3; i++) {
+            publish(SLICE);
+        }
+        // The unit after the first has been overwritten; the older key frame too
+        assertSame(newestKey, stream.next(first.getSequence()));
+        assertSame(newestKey, stream.awaitNext(first.getSequence(), 100));
+        assertEquals(0, keyFrameRequests.get());
+    }
+
+    @Test
+    public void aKeyFrameIsRequestedOncePerResync() throws Exception {
+        H264Stream.AccessUnit first = publish(IDR);
+        for (int i = 0; i < 5; i++) {
+            publish(SLICE);
+        }
+        // No key frame left in the ring: one request, however many clients ask
+        assertNull(stream.next(first.getSequence()));
+        assertNull(stream.next(0));
+        assertNull(stream.next(first.getSequence()));
+        assertEquals(1, keyFrameRequests.get());
+
+        H264Stream.AccessUnit key = publish(IDR);
+        assertSame(key, stream.next(first.getSequence()));
+        assertEquals(1, keyFrameRequests.get());
+
+        // Once it has arrived, the next resync asks again
+        for (int i = 0; i < 5; i++) {
+            publish(SLICE);
+        }
+        assertNull(stream.next(key.getSequence()));
+        assertNull(stream.next(0));
+        assertEquals(2, keyFrameRequests.get());
+    }
+
+    @Test
+    public void awaitNextRequestsAKeyFrameOnceWhileWaiting() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            publish(SLICE);
+        }
+        assertNull(stream.awaitNext(0, 50));
+        assertEquals(1, keyFrameRequests.get());
+    }
+
+    @Test
+    public void closingEndsTheStream() throws Exception {
+        publish(IDR);
+        stream.close();
+        assertTrue(stream.isClosed());
+        assertNull(stream.next(0));
+        assertNull(stream.awaitNext(0, 1000));
+    }
+}
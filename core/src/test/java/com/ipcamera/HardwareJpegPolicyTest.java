@@ -0,0 +1,141 @@
+package com.ipcamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class HardwareJpegPolicyTest {
+    private static final double TARGET_FPS = 15;
+    private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Map<String, Long> durations = new HashMap<>();
+    private final List<String> fallbacks = new ArrayList<>();
+    private HardwareJpegPolicy policy;
+    private long now = 0;
+
+    @Before
+    public void setUp() {
+        durations.put("1280x720", 33 * MILLISECOND);
+        policy = new HardwareJpegPolicy((width, height) -> {
+            Long duration = durations.get(width + "x" + height);
+            return duration != null ? duration : -1;
+        }, TARGET_FPS);
+        policy.setFallbackListener(fallbacks::add);
+    }
+
+    /** Feeds {@code seconds} of frames at the given rates, interleaved as the camera would. */
+    private void run(double captureFps, double hardwareFps, double seconds) {
+        long end = now + (long) (seconds * 1e9);
+        long captureInterval = (long) (1e9 / captureFps);
+        long hardwareInterval = hardwareFps > 0 ? (long) (1e9 / hardwareFps) : Long.MAX_VALUE;
+        long nextCapture = now + captureInterval;
+        long nextHardware = hardwareFps > 0 ? now + hardwareInterval : Long.MAX_VALUE;
+        while (Math.min(nextCapture, nextHardware) <= end) {
+            if (nextCapture <= nextHardware) {
+                now = nextCapture;
+                policy.onCaptureFrame(now);
+                nextCapture += captureInterval;
+            } else {
+                now = nextHardware;
+                policy.onHardwareFrame(now);
+                nextHardware += hardwareInterval;
+            }
+        }
+        now = end;
+    }
+
+    @Test
+    public void usesHardwareOnlyForSizesFastEnough() {
+        assertTrue(policy.shouldUseHardware(1280, 720));
+        // Exactly the target frame time is still fast enough
+        durations.put("1920x1080", (long) (1e9 / TARGET_FPS));
+        assertTrue(policy.shouldUseHardware(1920, 1080));
+        durations.put("1920x1080", (long) (1e9 / TARGET_FPS) + 1);
+        assertFalse(policy.shouldUseHardware(1920, 1080));
+        // An unknown duration gets the benefit of the doubt, an unsupported size does not
+        durations.put("640x480", 0L);
+        assertTrue(policy.shouldUseHardware(640, 480));
+        assertFalse(policy.shouldUseHardware(4000, 3000));
+        assertTrue(fallbacks.isEmpty());
+    }
+
+    @Test
+    public void fallsBackWhenTheJpegStreamFallsBehind() {
+        policy.startMeasuring(now);
+        // Keeping up with a 30 fps sensor at 20 fps is below 80% but above the target
+        run(30, 20, 4);
+        assertFalse(policy.hasFallenBack());
+
+        policy.startMeasuring(now);
+        run(30, 10, 2.9);
+        assertFalse("judged before the window was over", policy.hasFallenBack());
+        run(30, 10, 0.2);
+        assertTrue(policy.hasFallenBack());
+        assertEquals(1, fallbacks.size());
+        assertTrue(fallbacks.get(0), fallbacks.get(0).startsWith("JPEG stream delivered 10.0 fps"));
+        assertFalse(policy.shouldUseHardware(1280, 720));
+
+        // Nothing more is judged once fallen back
+        run(30, 1, 6);
+        assertEquals(1, fallbacks.size());
+    }
+
+    @Test
+    public void aSlowSensorIsNotTheJpegStreamsFault() {
+        policy.startMeasuring(now);
+        // In the dark both run at 8 fps, below the target
+        run(8, 8, 10);
+        assertFalse(policy.hasFallenBack());
+        // Delivering at least 80% of what was captured is enough
+        policy.startMeasuring(now);
+        run(10, 8.5, 10);
+        assertFalse(policy.hasFallenBack());
+        policy.startMeasuring(now);
+        run(10, 7, 3.1);
+        assertTrue(policy.hasFallenBack());
+    }
+
+    @Test
+    public void framesOnlyCountWhileMeasuring() {
+        run(30, 1, 10);
+        assertFalse(policy.hasFallenBack());
+        policy.startMeasuring(now);
+        run(30, 30, 3.1);
+        policy.stopMeasuring();
+        run(30, 1, 10);
+        assertFalse(policy.hasFallenBack());
+    }
+
+    @Test
+    public void aFailedSessionFallsBackAtOnce() {
+        policy.startMeasuring(now);
+        policy.onSessionFailed();
+        assertTrue(policy.hasFallenBack());
+        assertEquals(1, fallbacks.size());
+        assertFalse(policy.shouldUseHardware(1280, 720));
+    }
+
+    @Test
+    public void resetGivesHardwareAnotherChance() {
+        policy.onSessionFailed();
+        policy.reset();
+        assertFalse(policy.hasFallenBack());
+        assertTrue(policy.shouldUseHardware(1280, 720));
+        // Not measured again until asked to
+        run(30, 1, 10);
+        assertFalse(policy.hasFallenBack());
+        policy.startMeasuring(now);
+        run(30, 1, 3.1);
+        assertTrue(policy.hasFallenBack());
+        assertEquals(2, fallbacks.size());
+    }
+}
@@ -0,0 +1,258 @@
+package com.ipcamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HttpRequestParserTest {
+    private static final String REQUEST = "GET /video/1?profile=thumb&name=a%20b+c HTTP/1.1\r\n"
+        + "Host: camera.local:8080\r\n"
+        + "Accept: image/jpeg\r\n"
+        + "accept: */*\r\n"
+        + "Connection: keep-alive\r\n"
+        + "\r\n";
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static HttpRequest parse(String text) throws HttpRequestParser.InvalidRequestException {
+        return new HttpRequestParser().parse(bytes(text));
+    }
+
+    private static void assertRejected(int status, String text) {
+        assertRejected(status, new HttpRequestParser(), bytes(text));
+    }
+
+    private static void assertRejected(int status, HttpRequestParser parser, ByteBuffer input) {
+        try {
+            HttpRequest request = parser.parse(input);
+            fail("accepted " + (request != null ? request.getPath() : "a partial request"));
+        } catch (HttpRequestParser.InvalidRequestException e) {
+            assertEquals(e.getMessage(), status, e.getStatus());
+        }
+    }
+
+    private static void assertParsed(HttpRequest request) {
+        assertNotNull(request);
+        assertEquals("GET", request.getMethod());
+        assertEquals("/video/1", request.getPath());
+        assertEquals("HTTP/1.1", request.getVersion());
+        assertEquals("thumb", request.getQueryParameter("profile"));
+        assertEquals("a b c", request.getQueryParameter("name"));
+        assertEquals("camera.local:8080", request.getHeader("host"));
+        assertEquals("image/jpeg, */*", request.getHeader("Accept"));
+        assertTrue(request.isKeepAlive());
+    }
+
+    @Test
+    public void parsesACompleteRequest() throws Exception {
+        ByteBuffer input = bytes(REQUEST);
+        assertParsed(new HttpRequestParser().parse(input));
+        assertFalse(input.hasRemaining());
+    }
+
+    @Test
+    public void parsesARequestSplitAtEveryOffset() throws Exception {
+        byte[] request = REQUEST.getBytes(StandardCharsets.ISO_8859_1);
+        for (int split = 0; split <= request.length; split++) {
+            HttpRequestParser parser = new HttpRequestParser();
+            ByteBuffer first = ByteBuffer.wrap(request, 0, split);
+            if (split < request.length) {
+                assertNull("split at " + split, parser.parse(first));
+                assertEquals(split > 0, parser.isStarted());
+            }
+            HttpRequest parsed = split < request.length
+                ? parser.parse(ByteBuffer.wrap(request, split, request.length - split))
+                : parser.parse(first);
+            assertParsed(parsed);
+            assertFalse(parser.isStarted());
+        }
+    }
+
+    @Test
+    public void parsesARequestFedOneByteAtATime() throws Exception {
+        byte[] request = REQUEST.getBytes(StandardCharsets.ISO_8859_1);
+        HttpRequestParser parser = new HttpRequestParser();
+        for (int i = 0; i < request.length - 1; i++) {
+            assertNull(parser.parse(ByteBuffer.wrap(request, i, 1)));
+        }
+        assertParsed(parser.parse(ByteBuffer.wrap(request, request.length - 1, 1)));
+    }
+
+    @Test
+    public void leavesPipelinedRequestsInTheBuffer() throws Exception {
+        String second = "GET /snapshot.jpg HTTP/1.1\r\n\r\n";
+        String third = "GET /metrics HTTP/1.0\n\n";
+        ByteBuffer input = bytes(REQUEST + "\r\n" + second + third + "GET /partial");
+        HttpRequestParser parser = new HttpRequestParser();
+
+        assertParsed(parser.parse(input));
+        assertEquals(second.length() + third.length() + "GET /partial".length() + 2,
+            input.remaining());
+        assertEquals("/snapshot.jpg", parser.parse(input).getPath());
+        HttpRequest last = parser.parse(input);
+        assertEquals("/metrics", last.getPath());
+        assertFalse(last.isKeepAlive());
+        assertNull(parser.parse(input));
+        assertTrue(parser.isStarted());
+    }
+
+    @Test
+    public void acceptsAbsoluteTargetsAndBareLineFeeds() throws Exception {
+        HttpRequest request = parse("GET http://camera.local:8080/events?x=1 HTTP/1.1\n\n");
+        assertEquals("/events", request.getPath());
+        assertEquals("1", request.getQueryParameter("x"));
+        assertEquals("/", parse("GET http://camera.local HTTP/1.0\r\n\r\n").getPath());
+    }
+
+    @Test
+    public void rejectsOversizedHeads() {
+        StringBuilder huge = new StringBuilder("GET / HTTP/1.1\r\nX-Filler: ");
+        while (huge.length() < HttpRequestParser.DEFAULT_MAX_HEAD_BYTES) {
+            huge.append("aaaaaaaaaa");
+        }
+        assertRejected(431, huge.toString());
+        assertRejected(431, new HttpRequestParser(64), bytes(
+            "GET /video HTTP/1.1\r\nHost: a-host-name-long-enough-to-overflow\r\n\r\n"));
+
+        StringBuilder many = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i <= 64; i++) {
+            many.append("X-").append(i).append(": 1\r\n");
+        }
+        assertRejected(431, many.append("\r\n").toString());
+    }
+
+    @Test
+    public void rejectsMalformedRequests() {
+        String[] malformed = {
+            "GET\r\n\r\n",
+            "GET /\r\n\r\n",
+            "GET  / HTTP/1.1\r\n\r\n",
+            "GET / HTTP/1.1 extra\r\n\r\n",
+            "G(T / HTTP/1.1\r\n\r\n",
+            "GET video HTTP/1.1\r\n\r\n",
+            "GET /%zz HTTP/1.1\r\n\r\n",
+            "GET /?a=%4 HTTP/1.1\r\n\r\n",
+            "GET / HTTP/1.1\r\nNo colon\r\n\r\n",
+            "GET / HTTP/1.1\r\n: empty name\r\n\r\n",
+            "GET / HTTP/1.1\r\nBad Name: 1\r\n\r\n",
+            "GET / HTTP/1.1\r\nHost: a\r\n folded\r\n\r\n",
+            "GET / HTTP/1.1\r\nHost: a\0b\r\n\r\n",
+            "GET / HTTP/1.1\r\nHost: a\rb\r\n\r\n",
+            "POST /config HTTP/1.1\r\nContent-Length: 5\r\n\r\n",
+            "POST /config HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n",
+        };
+        for (String request : malformed) {
+            assertRejected(400, request);
+        }
+    }
+
+    @Test
+    public void rejectsUnsupportedVersions() {
+        assertRejected(505, "GET / HTTP/2.0\r\n\r\n");
+        assertRejected(505, "GET / HTTP/1.1x\r\n\r\n");
+        assertRejected(505, "GET / RTSP/1.0\r\n\r\n");
+        assertRejected(505, HttpRequestParser.forRtsp(), bytes("OPTIONS * HTTP/1.1\r\n\r\n"));
+    }
+
+    @Test
+    public void letsBodiesThroughWhenAsked() throws Exception {
+        ByteBuffer input = bytes("POST /push HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello");
+        HttpRequest request = new HttpRequestParser(HttpRequestParser.DEFAULT_MAX_HEAD_BYTES, true)
+            .parse(input);
+        assertEquals("5", request.getHeader("content-length"));
+        assertEquals(5, input.remaining());
+    }
+
+    @Test
+    public void parsesRtspRequests() throws Exception {
+        HttpRequestParser parser = HttpRequestParser.forRtsp();
+        HttpRequest request = parser.parse(bytes(
+            "DESCRIBE rtsp://camera.local:8554/live RTSP/1.0\r\nCSeq: 2\r\n\r\n"));
+        assertEquals("/live", request.getPath());
+        assertEquals("2", request.getHeader("CSeq"));
+        assertEquals("*", parser.parse(bytes("OPTIONS * RTSP/1.0\r\nCSeq: 1\r\n\r\n")).getPath());
+    }
+
+    @Test
+    public void survivesMutatedRequests() {
+        byte[] valid = REQUEST.getBytes(StandardCharsets.ISO_8859_1);
+        Random random = new Random(12);
+        for (int round = 0; round < 20_000; round++) {
+            byte[] mutated = Arrays.copyOf(valid, valid.length);
+            int mutations = 1 + random.nextInt(4);
+            for (int i = 0; i < mutations; i++) {
+                int at = random.nextInt(mutated.length);
+                switch (random.nextInt(3)) {
+                    case 0:
+                        mutated[at] = (byte) random.nextInt(256);
+                        break;
+                    case 1:
+                        mutated[at] = (byte) " \r\n:%?/\0".charAt(random.nextInt(8));
+                        break;
+                    default:
+                        mutated = cut(mutated, at, random.nextInt(mutated.length - at));
+                        break;
+                }
+            }
+            feedInPieces(mutated, random);
+        }
+    }
+
+    @Test
+    public void survivesRandomBytes() {
+        Random random = new Random(34);
+        for (int round = 0; round < 5_000; round++) {
+            byte[] garbage = new byte[random.nextInt(3 * HttpRequestParser.DEFAULT_MAX_HEAD_BYTES)];
+            random.nextBytes(garbage);
+            // Salt in line breaks so some heads end
+            for (int i = 0; i < garbage.length / 20; i++) {
+                garbage[random.nextInt(garbage.length)] = '\n';
+            }
+            feedInPieces(garbage, random);
+        }
+    }
+
+    private static byte[] cut(byte[] data, int at, int length) {
+        byte[] shorter = new byte[data.length - length];
+        System.arraycopy(data, 0, shorter, 0, at);
+        System.arraycopy(data, at + length, shorter, at, data.length - at - length);
+        return shorter;
+    }
+
+    /**
+     * Feeds {@code data} in random pieces, checking that every outcome is a
+     * request, a need for more input or a rejection with a proper status.
+     */
+    private static void feedInPieces(byte[] data, Random random) {
+        HttpRequestParser parser = new HttpRequestParser();
+        int offset = 0;
+        try {
+            while (offset < data.length) {
+                int piece = 1 + random.nextInt(data.length - offset);
+                ByteBuffer input = ByteBuffer.wrap(data, offset, piece);
+                HttpRequest request;
+                while ((request = parser.parse(input)) != null) {
+                    assertNotNull(request.getMethod());
+                    assertTrue(request.getPath(), request.getPath().startsWith("/"));
+                }
+                assertFalse(input.hasRemaining());
+                offset += piece;
+            }
+        } catch (HttpRequestParser.InvalidRequestException e) {
+            int status = e.getStatus();
+            assertTrue("status " + status, status == 400 || status == 431 || status == 505);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.ipcamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MotionDetectorTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int BLOCK = 16;
+    private static final int THRESHOLD = 12;
+    private static final long FRAME_NANOS = 33_000_000L;
+    private static final long HOLD_NANOS = 1_000_000_000L;
+
+    private final List<Boolean> changes = new ArrayList<>();
+    private MotionDetector detector;
+    private long now = 0;
+
+    @Before
+    public void setUp() {
+        detector = new MotionDetector(BLOCK, THRESHOLD, 0.01f, HOLD_NANOS);
+        detector.setListener((moving, score, timestampNanos) -> changes.add(moving));
+    }
+
+    /**
+     * A grey scene with sensor noise of up to {@code noise} either way, and a
+     * bright 64 pixel square at {@code blockX}, or none if that is negative.
+     */
+    private static byte[] scene(int blockX, int noise, long seed) {
+        Random random = new Random(seed);
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < luma.length; i++) {
+            luma[i] = (byte) (100 + (noise > 0 ? random.nextInt(2 * noise + 1) - noise : 0));
+        }
+        if (blockX >= 0) {
+            for (int y = 96; y < 160; y++) {
+                Arrays.fill(luma, y * WIDTH + blockX, y * WIDTH + blockX + 64, (byte) 230);
+            }
+        }
+        return luma;
+    }
+
+    private boolean feed(byte[] luma) {
+        boolean moving = detector.analyze(luma, WIDTH, HEIGHT, now);
+        now += FRAME_NANOS;
+        return moving;
+    }
+
+    @Test
+    public void staticSceneIsStill() {
+        byte[] still = scene(40, 0, 0);
+        for (int i = 0; i < 30; i++) {
+            assertFalse(feed(still));
+            assertEquals(0f, detector.getLastScore(), 0f);
+        }
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void noiseUnderTheThresholdIsStill() {
+        for (int i = 0; i < 30; i++) {
+            assertFalse(feed(scene(-1, THRESHOLD, i)));
+        }
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void movingBlockIsMotion() {
+        feed(scene(-1, 4, 0));
+        assertTrue(feed(scene(40, 4, 1)));
+        assertTrue(detector.getLastScore() > 0);
+        for (int i = 2; i < 10; i++) {
+            assertTrue(feed(scene(40 + i * 16, 4, i)));
+        }
+        assertEquals(Arrays.asList(true), changes);
+    }
+
+    @Test
+    public void motionHoldsUntilTheSceneHasBeenStillForTheHoldTime() {
+        feed(scene(40, 0, 0));
+        assertTrue(feed(scene(120, 0, 0)));
+        long motionAt = now - FRAME_NANOS;
+        byte[] still = scene(120, 0, 0);
+        while (now - motionAt < HOLD_NANOS) {
+            assertTrue("still moving " + (now - motionAt) + " ns after the change", feed(still));
+        }
+        assertFalse(feed(still));
+        assertEquals(Arrays.asList(true, false), changes);
+
+        // A single change during the hold restarts it
+        changes.clear();
+        assertTrue(feed(scene(200, 0, 0)));
+        now += HOLD_NANOS / 2;
+        assertTrue(feed(scene(120, 0, 0)));
+        now += HOLD_NANOS / 2;
+        assertTrue(feed(scene(120, 0, 0)));
+        assertEquals(Arrays.asList(true), changes);
+    }
+
+    @Test
+    public void maskedRegionsAreIgnored() {
+        detector.setMask(new float[] {0f, 0f, 1f, 1f});
+        feed(scene(40, 0, 0));
+        assertFalse(feed(scene(200, 0, 0)));
+
+        detector.setMask(new float[] {0f, 0f, 0.5f, 1f});
+        feed(scene(40, 0, 0));
+        assertFalse("change only on the masked left half", feed(scene(-1, 0, 0)));
+        assertTrue("change on the right half", feed(scene(200, 0, 0)));
+    }
+
+    @Test
+    public void paddedRowsGiveTheSameResult() {
+        int stride = WIDTH + 48;
+        MotionDetector packed = new MotionDetector(BLOCK, THRESHOLD, 0.01f, 0);
+        byte[] first = scene(40, 4, 1);
+        byte[] second = scene(200, 4, 2);
+        packed.analyze(first, WIDTH, HEIGHT, 0);
+        boolean packedMoving = packed.analyze(second, WIDTH, HEIGHT, 1);
+
+        detector.analyze(padded(first, stride), stride, WIDTH, HEIGHT, 0);
+        ByteBuffer paddedSecond = padded(second, stride);
+        assertEquals(packedMoving, detector.analyze(paddedSecond, stride, WIDTH, HEIGHT, 1));
+        assertEquals(packed.getLastScore(), detector.getLastScore(), 0f);
+        assertEquals(0, paddedSecond.position());
+    }
+
+    private static ByteBuffer padded(byte[] luma, int stride) {
+        ByteBuffer buffer = ByteBuffer.allocate(stride * HEIGHT);
+        for (int row = 0; row < HEIGHT; row++) {
+            buffer.position(row * stride);
+            buffer.put(luma, row * WIDTH, WIDTH);
+        }
+        buffer.position(0);
+        return buffer;
+    }
+}
@@ -0,0 +1,229 @@
+package com.ipcamera;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RtpJpegPacketizerTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int SSRC = 0x12345678;
+    private static final int TIMESTAMP = 0x0badcafe;
+    private static final int PACKET_BYTES = 200;
+    private static final int JPEG_HEADER_BYTES = 8;
+    private static final int TABLES_HEADER_BYTES = 4;
+
+    /**
+     * A baseline JPEG as far as RTP/JPEG looks into it: the scan is arbitrary
+     * bytes, since it is passed through without being decoded.
+     */
+    static byte[] jpeg(int width, int height, int lumaSampling, int restartInterval, byte[] scan) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xff);
+        out.write(0xd8);
+        // An APP0 segment to skip over
+        writeSegment(out, 0xe0, new byte[] {'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+        writeSegment(out, 0xdb, table(0, 1));
+        writeSegment(out, 0xdb, table(1, 2));
+        if (restartInterval > 0) {
+            writeSegment(out, 0xdd, new byte[] {
+                (byte) (restartInterval >> 8), (byte) restartInterval});
+        }
+        writeSegment(out, 0xc0, new byte[] {
+            8, (byte) (height >> 8), (byte) height, (byte) (width >> 8), (byte) width, 3,
+            1, (byte) lumaSampling, 0,
+            2, 0x11, 1,
+            3, 0x11, 1});
+        writeSegment(out, 0xda, new byte[] {3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0});
+        out.write(scan, 0, scan.length);
+        out.write(0xff);
+        out.write(0xd9);
+        return out.toByteArray();
+    }
+
+    private static byte[] table(int id, int value) {
+        byte[] segment = new byte[65];
+        segment[0] = (byte) id;
+        Arrays.fill(segment, 1, segment.length, (byte) value);
+        return segment;
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] content) {
+        out.write(0xff);
+        out.write(marker);
+        out.write((content.length + 2) >> 8);
+        out.write(content.length + 2);
+        out.write(content, 0, content.length);
+    }
+
+    private static byte[] scan(int length) {
+        byte[] scan = new byte[length];
+        for (int i = 0; i < length; i++) {
+            scan[i] = (byte) (i * 7);
+        }
+        return scan;
+    }
+
+    private static List<byte[]> packetize(RtpJpegPacketizer packetizer,
+                                          RtpJpegPacketizer.Image image) throws Exception {
+        List<byte[]> packets = new ArrayList<>();
+        int count = packetizer.packetize(image, TIMESTAMP,
+            (packet, length) -> packets.add(Arrays.copyOf(packet, length)));
+        assertEquals(packets.size(), count);
+        return packets;
+    }
+
+    private static int offsetOf(ByteBuffer packet) {
+        return packet.getInt(RtpJpegPacketizer.RTP_HEADER_BYTES) & 0xffffff;
+    }
+
+    @Test
+    public void parsesWhatRtpJpegCarries() {
+        byte[] scan = scan(500);
+        RtpJpegPacketizer.Image image = RtpJpegPacketizer.parse(
+            ByteBuffer.wrap(jpeg(WIDTH, HEIGHT, 0x22, 0, scan)));
+        assertNotNull(image);
+        assertEquals(WIDTH, image.getWidth());
+        assertEquals(HEIGHT, image.getHeight());
+        assertEquals(1, image.type);
+        assertEquals(0, image.restartInterval);
+        assertEquals(128, image.quantizationTables.length);
+        assertEquals(1, image.quantizationTables[0]);
+        assertEquals(2, image.quantizationTables[64]);
+        // The scan without the end-of-image marker
+        byte[] parsedScan = new byte[image.scan.remaining()];
+        image.scan.duplicate().get(parsedScan);
+        assertArrayEquals(scan, parsedScan);
+
+        assertEquals(0, RtpJpegPacketizer.parse(
+            ByteBuffer.wrap(jpeg(WIDTH, HEIGHT, 0x21, 0, scan))).type);
+    }
+
+    @Test
+    public void rejectsWhatRtpJpegCannotCarry() {
+        byte[] scan = scan(100);
+        assertNull(RtpJpegPacketizer.parse(ByteBuffer.wrap(scan)));
+        assertNull("4:4:4", RtpJpegPacketizer.parse(
+            ByteBuffer.wrap(jpeg(WIDTH, HEIGHT, 0x11, 0, scan))));
+        assertNull("width not a multiple of 8", RtpJpegPacketizer.parse(
+            ByteBuffer.wrap(jpeg(WIDTH + 4, HEIGHT, 0x22, 0, scan))));
+        assertNull("wider than 2040", RtpJpegPacketizer.parse(
+            ByteBuffer.wrap(jpeg(2048, HEIGHT, 0x22, 0, scan))));
+
+        byte[] progressive = jpeg(WIDTH, HEIGHT, 0x22, 0, scan);
+        for (int i = 0; i < progressive.length - 1; i++) {
+            if ((progressive[i] & 0xff) == 0xff && (progressive[i + 1] & 0xff) == 0xc0) {
+                progressive[i + 1] = (byte) 0xc2;
+            }
+        }
+        assertNull("progressive", RtpJpegPacketizer.parse(ByteBuffer.wrap(progressive)));
+
+        byte[] truncated = jpeg(WIDTH, HEIGHT, 0x22, 0, scan);
+        assertNull(RtpJpegPacketizer.parse(ByteBuffer.wrap(truncated, 0, 100)));
+    }
+
+    @Test
+    public void fragmentsCarryTheRfc2435HeadersAndOffsets() throws Exception {
+        byte[] scan = scan(1000);
+        RtpJpegPacketizer.Image image = RtpJpegPacketizer.parse(
+            ByteBuffer.wrap(jpeg(WIDTH, HEIGHT, 0x22, 0, scan)));
+        RtpJpegPacketizer packetizer = new RtpJpegPacketizer(SSRC, 0xfffe, PACKET_BYTES);
+        List<byte[]> packets = packetize(packetizer, image);
+        assertTrue(packets.size() > 2);
+
+        ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+        for (int i = 0; i < packets.size(); i++) {
+            byte[] bytes = packets.get(i);
+            ByteBuffer packet = ByteBuffer.wrap(bytes);
+            assertTrue(bytes.length <= PACKET_BYTES);
+            // RTP: version 2, marker only on the last packet, sequence wrapping at 16 bits
+            assertEquals(0x80, bytes[0] & 0xff);
+            assertEquals(i == packets.size() - 1 ? 0x80 : 0, bytes[1] & 0x80);
+            assertEquals(RtpJpegPacketizer.PAYLOAD_TYPE, bytes[1] & 0x7f);
+            assertEquals((0xfffe + i) & 0xffff, packet.getShort(2) & 0xffff);
+            assertEquals(TIMESTAMP, packet.getInt(4));
+            assertEquals(SSRC, packet.getInt(8));
+
+            // RTP/JPEG: type-specific, fragment offset, type, Q, width and height / 8
+            int header = RtpJpegPacketizer.RTP_HEADER_BYTES;
+            assertEquals(0, bytes[header]);
+            assertEquals(reassembled.size(), offsetOf(packet));
+            assertEquals(1, bytes[header + 4]);
+            assertEquals(255, bytes[header + 5] & 0xff);
+            assertEquals(WIDTH / 8, bytes[header + 6] & 0xff);
+            assertEquals(HEIGHT / 8, bytes[header + 7] & 0xff);
+
+            int payload = header + JPEG_HEADER_BYTES;
+            if (i == 0) {
+                // Quantization table header: MBZ, precision 0, length, then both tables
+                assertEquals(0, bytes[payload]);
+                assertEquals(0, bytes[payload + 1]);
+                assertEquals(128, packet.getShort(payload + 2));
+                assertEquals(1, bytes[payload + TABLES_HEADER_BYTES]);
+                assertEquals(2, bytes[payload + TABLES_HEADER_BYTES + 64]);
+                payload += TABLES_HEADER_BYTES + 128;
+            }
+            reassembled.write(bytes, payload, bytes.length - payload);
+        }
+        assertArrayEquals(scan, reassembled.toByteArray());
+        assertEquals((0xfffe + packets.size()) & 0xffff, packetizer.getSequence());
+    }
+
+    @Test
+    public void restartIntervalsAddTheRestartHeader() throws Exception {
+        byte[] scan = scan(600);
+        RtpJpegPacketizer.Image image = RtpJpegPacketizer.parse(
+            ByteBuffer.wrap(jpeg(WIDTH, HEIGHT, 0x21, 4, scan)));
+        assertEquals(64, image.type);
+        List<byte[]> packets = packetize(new RtpJpegPacketizer(SSRC, 0, PACKET_BYTES), image);
+
+        ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+        for (int i = 0; i < packets.size(); i++) {
+            byte[] bytes = packets.get(i);
+            ByteBuffer packet = ByteBuffer.wrap(bytes);
+            int restart = RtpJpegPacketizer.RTP_HEADER_BYTES + JPEG_HEADER_BYTES;
+            assertEquals(64, bytes[RtpJpegPacketizer.RTP_HEADER_BYTES + 4]);
+            assertEquals(reassembled.size(), offsetOf(packet));
+            // Interval, then first and last bits set with an unknown restart count
+            assertEquals(4, packet.getShort(restart));
+            assertEquals(0xffff, packet.getShort(restart + 2) & 0xffff);
+            int payload = restart + 4 + (i == 0 ? TABLES_HEADER_BYTES + 128 : 0);
+            reassembled.write(bytes, payload, bytes.length - payload);
+        }
+        assertArrayEquals(scan, reassembled.toByteArray());
+    }
+
+    @Test
+    public void senderReportsCountWhatWasSent() throws Exception {
+        RtpJpegPacketizer packetizer = new RtpJpegPacketizer(SSRC, 0, PACKET_BYTES);
+        RtpJpegPacketizer.Image image = RtpJpegPacketizer.parse(
+            ByteBuffer.wrap(jpeg(WIDTH, HEIGHT, 0x22, 0, scan(1000))));
+        List<byte[]> packets = packetize(packetizer, image);
+        long octets = 0;
+        for (byte[] packet : packets) {
+            octets += packet.length - RtpJpegPacketizer.RTP_HEADER_BYTES;
+        }
+
+        ByteBuffer report = ByteBuffer.wrap(packetizer.senderReport(1_500L, 42));
+        assertEquals(28, report.remaining());
+        assertEquals(0x80, report.get(0) & 0xff);
+        assertEquals(200, report.get(1) & 0xff);
+        assertEquals(6, report.getShort(2));
+        assertEquals(SSRC, report.getInt(4));
+        assertEquals(2_208_988_801L, report.getInt(8) & 0xffffffffL);
+        assertEquals(1L << 31, report.getInt(12) & 0xffffffffL);
+        assertEquals(42, report.getInt(16));
+        assertEquals(packets.size(), report.getInt(20));
+        assertEquals(octets, report.getInt(24));
+    }
+}
@@ -0,0 +1,269 @@
+package com.ipcamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Plays a stream over RTSP on loopback with RTP interleaved in the control connection. */
+public class RtspServerTest {
+    private final FrameBus frameBus = new FrameBus();
+    private final byte[] jpeg = RtpJpegPacketizerTest.jpeg(64, 48, 0x22, 0, new byte[3000]);
+    private RtspServer server;
+    private Thread publisher;
+    private int port;
+    private Socket socket;
+    private DataInputStream input;
+    private int cseq = 0;
+
+    /** A response's status line, headers and body. */
+    private static final class Response {
+        String status;
+        final Map<String, String> headers = new LinkedHashMap<>();
+        String body = "";
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server = new RtspServer(port, (path, request) ->
+            "/video".equals(path) ? frameBus : null, new MetricsRegistry());
+        server.start();
+        publisher = new Thread(() -> {
+            try {
+                while (true) {
+                    frameBus.publish(jpeg);
+                    Thread.sleep(20);
+                }
+            } catch (InterruptedException e) {
+                // Test over
+            }
+        });
+        publisher.setDaemon(true);
+        publisher.start();
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setSoTimeout(5000);
+        input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        publisher.interrupt();
+        socket.close();
+        server.stop();
+    }
+
+    @Test
+    public void playsOverInterleavedRtp() throws Exception {
+        String base = "rtsp://127.0.0.1:" + port;
+        Response options = request("OPTIONS " + base + "/video", "");
+        assertEquals("RTSP/1.0 200 OK", options.status);
+        assertTrue(options.headers.get("public").contains("DESCRIBE, SETUP, PLAY"));
+
+        assertEquals("RTSP/1.0 404 Not Found",
+            request("DESCRIBE " + base + "/missing", "").status);
+
+        Response describe = request("DESCRIBE " + base + "/video?profile=hd",
+            "Accept: application/sdp\r\n");
+        assertEquals("RTSP/1.0 200 OK", describe.status);
+        assertEquals("application/sdp", describe.headers.get("content-type"));
+        assertTrue(describe.body, describe.body.contains(
+            "m=video 0 RTP/AVP " + RtpJpegPacketizer.PAYLOAD_TYPE + "\r\n"));
+        String control = describe.body.substring(describe.body.lastIndexOf("a=control:") + 10)
+            .trim();
+        assertEquals(base + "/video/" + RtspServer.TRACK + "?profile=hd", control);
+
+        Response setup = request("SETUP " + control,
+            "Transport: RTP/AVP/TCP;unicast;interleaved=0-1\r\n");
+        assertEquals("RTSP/1.0 200 OK", setup.status);
+        assertTrue(setup.headers.get("transport"),
+            setup.headers.get("transport").startsWith("RTP/AVP/TCP;unicast;interleaved=0-1"));
+        String session = setup.headers.get("session").split(";")[0];
+
+        assertEquals("RTSP/1.0 454 Session Not Found",
+            request("PLAY " + base + "/video", "Session: nope\r\n").status);
+        Response play = request("PLAY " + base + "/video", "Session: " + session + "\r\n");
+        assertEquals("RTSP/1.0 200 OK", play.status);
+        assertTrue(play.headers.get("rtp-info").startsWith("url=" + control + ";seq="));
+
+        // Whole frames: packets with consecutive sequence numbers, the last one marked
+        int frames = 0;
+        int packets = 0;
+        int lastSequence = -1;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (frames < 3 && System.nanoTime() < deadline) {
+            assertEquals('$', input.readUnsignedByte());
+            int channel = input.readUnsignedByte();
+            byte[] packet = new byte[input.readUnsignedShort()];
+            input.readFully(packet);
+            if (channel == 1) {
+                assertEquals("RTCP sender report", 200, packet[1] & 0xff);
+                continue;
+            }
+            assertEquals(0, channel);
+            assertEquals(RtpJpegPacketizer.PAYLOAD_TYPE, packet[1] & 0x7f);
+            int sequence = ByteBuffer.wrap(packet).getShort(2) & 0xffff;
+            if (lastSequence >= 0) {
+                assertEquals((lastSequence + 1) & 0xffff, sequence);
+            }
+            lastSequence = sequence;
+            packets++;
+            if ((packet[1] & 0x80) != 0) {
+                frames++;
+            }
+        }
+        assertEquals(3, frames);
+        assertTrue(packets > frames);
+
+        Response teardown = request("TEARDOWN " + base + "/video", "Session: " + session + "\r\n");
+        assertEquals("RTSP/1.0 200 OK", teardown.status);
+        assertEquals("RTSP/1.0 454 Session Not Found",
+            request("PLAY " + base + "/video", "Session: " + session + "\r\n").status);
+    }
+
+    @Test
+    public void requestsWithoutCSeqAreRejected() throws Exception {
+        socket.getOutputStream().write(("OPTIONS * RTSP/1.0\r\n\r\n")
+            .getBytes(StandardCharsets.US_ASCII));
+        assertEquals("RTSP/1.0 400 Bad Request", readResponse().status);
+    }
+
+    @Test
+    public void sessionsPerConnectionAreCapped() throws Exception {
+        String control = "rtsp://127.0.0.1:" + port + "/video/" + RtspServer.TRACK;
+        String transport = "Transport: RTP/AVP/TCP;unicast\r\n";
+        String first = null;
+        for (int i = 0; i < RtspServer.MAX_SESSIONS_PER_CONNECTION; i++) {
+            Response setup = request("SETUP " + control, transport);
+            assertEquals("RTSP/1.0 200 OK", setup.status);
+            if (first == null) {
+                first = setup.headers.get("session").split(";")[0];
+            }
+        }
+        assertEquals("RTSP/1.0 453 Not Enough Bandwidth",
+            request("SETUP " + control, transport).status);
+
+        assertEquals("RTSP/1.0 200 OK",
+            request("TEARDOWN " + control, "Session: " + first + "\r\n").status);
+        assertEquals("RTSP/1.0 200 OK", request("SETUP " + control, transport).status);
+    }
+
+    @Test
+    public void connectionsOverTheLimitAreTurnedAway() throws Exception {
+        int limitedPort;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            limitedPort = probe.getLocalPort();
+        }
+        MetricsRegistry metrics = new MetricsRegistry();
+        RtspServer limited = new RtspServer(limitedPort, (path, request) -> frameBus, metrics,
+            new ConnectionLimiter(1, 0, 0, Collections.<String>emptySet(), metrics));
+        limited.start();
+        try {
+            socket.close();
+            socket = new Socket(InetAddress.getLoopbackAddress(), limitedPort);
+            socket.setSoTimeout(5000);
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            assertEquals("RTSP/1.0 200 OK", request("OPTIONS *", "").status);
+
+            try (Socket second = new Socket(InetAddress.getLoopbackAddress(), limitedPort)) {
+                second.setSoTimeout(5000);
+                input = new DataInputStream(new BufferedInputStream(second.getInputStream()));
+                assertEquals("RTSP/1.0 503 Service Unavailable", readLine());
+            }
+            assertTrue(metrics.render().contains(
+                "ipcamera_connections_rejected_total{reason=\"full\"} 1"));
+
+            // The slot is free again once the first connection is gone
+            socket.close();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!metrics.render().contains("ipcamera_connections 0")
+                    && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            socket = new Socket(InetAddress.getLoopbackAddress(), limitedPort);
+            socket.setSoTimeout(5000);
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            assertEquals("RTSP/1.0 200 OK", request("OPTIONS *", "").status);
+        } finally {
+            limited.stop();
+        }
+    }
+
+    @Test
+    public void startFailsWhenThePortIsTaken() {
+        RtspServer second = new RtspServer(port, (path, request) -> null, new MetricsRegistry());
+        try {
+            second.start();
+            second.stop();
+            fail("started on a port already in use");
+        } catch (UncheckedIOException e) {
+            assertTrue(e.getMessage().contains(String.valueOf(port)));
+        }
+    }
+
+    private Response request(String line, String headers) throws IOException {
+        String request = line + " RTSP/1.0\r\nCSeq: " + ++cseq + "\r\n" + headers + "\r\n";
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+        Response response = readResponse();
+        assertEquals(String.valueOf(cseq), response.headers.get("cseq"));
+        return response;
+    }
+
+    /** Reads the next response, skipping interleaved packets that come before it. */
+    private Response readResponse() throws IOException {
+        Response response = new Response();
+        response.status = readLine();
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            response.headers.put(line.substring(0, colon).trim().toLowerCase(),
+                line.substring(colon + 1).trim());
+        }
+        String length = response.headers.get("content-length");
+        if (length != null) {
+            byte[] body = new byte[Integer.parseInt(length)];
+            input.readFully(body);
+            response.body = new String(body, StandardCharsets.UTF_8);
+        }
+        return response;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = input.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException();
+            }
+            if (c == '$' && line.length() == 0) {
+                input.readUnsignedByte();
+                input.skipBytes(input.readUnsignedShort());
+                continue;
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+}
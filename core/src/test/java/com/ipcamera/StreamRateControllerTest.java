@@ -0,0 +1,289 @@
+package com.ipcamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class StreamRateControllerTest {
+    private static final int MAX_QUALITY = 80;
+    private static final int MIN_QUALITY = 30;
+    private static final double TARGET_FPS = 10;
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final List<Integer> qualities = new ArrayList<>();
+    private StreamRateController controller;
+
+    @Before
+    public void setUp() {
+        StreamProfile profile = new StreamProfile(StreamProfile.DEFAULT, 640, 480, MAX_QUALITY);
+        controller = new StreamRateController(profile, metrics, MIN_QUALITY, 2, TARGET_FPS, 30);
+        controller.setQualityListener((changed, quality) -> qualities.add(quality));
+    }
+
+    /** Busy all window long, managing {@code fps} frames per second while writing. */
+    private static ClientSession.Window congested(double fps) {
+        return new ClientSession.Window(0.95, fps);
+    }
+
+    /** Idle most of the window, with room for far more than the target. */
+    private static ClientSession.Window idle() {
+        return new ClientSession.Window(0.1, 100);
+    }
+
+    private void adapt(ClientSession session, ClientSession.Window window) {
+        controller.adapt(Collections.singletonMap(session, window));
+    }
+
+    @Test
+    public void congestedClientLowersQualityStepByStep() {
+        ClientSession slow = controller.openSession("slow");
+        List<Integer> perWindow = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            adapt(slow, congested(5));
+            perWindow.add(controller.getQuality());
+        }
+        // One step, then two windows to see its effect before the next
+        assertEquals(Integer.valueOf(70), perWindow.get(0));
+        assertEquals(Integer.valueOf(70), perWindow.get(2));
+        assertEquals(Integer.valueOf(60), perWindow.get(3));
+        assertEquals(Integer.valueOf(MIN_QUALITY), perWindow.get(19));
+        assertEquals(Arrays.asList(70, 60, 50, 40, 30), qualities);
+        // Limited below what it managed so its socket buffer drains
+        assertEquals(4, slow.getFpsLimit(), 1e-9);
+    }
+
+    @Test
+    public void qualityRecoversOnlyAfterCalmWindows() {
+        ClientSession client = controller.openSession("client");
+        adapt(client, congested(12));
+        assertEquals(70, controller.getQuality());
+        double limit = client.getFpsLimit();
+        assertTrue(limit > 0 && limit < TARGET_FPS);
+
+        // The limit is raised every other idle window; quality waits until it is lifted
+        // well past the target and five more windows have been calm
+        int windows = 0;
+        while (controller.getQuality() == 70 && windows < 50) {
+            adapt(client, idle());
+            windows++;
+        }
+        assertEquals(75, controller.getQuality());
+        assertTrue("raised after " + windows + " windows", windows >= 7);
+        double raisedLimit = client.getFpsLimit();
+        assertTrue(raisedLimit == 0 || raisedLimit >= TARGET_FPS * 1.5);
+
+        // A window that is not calm starts the count again
+        for (int i = 0; i < 6; i++) {
+            adapt(client, idle());
+        }
+        adapt(client, new ClientSession.Window(0.7, 20));
+        for (int i = 0; i < 4; i++) {
+            adapt(client, idle());
+        }
+        assertEquals(75, controller.getQuality());
+        adapt(client, idle());
+        assertEquals(80, controller.getQuality());
+
+        for (int i = 0; i < 20; i++) {
+            adapt(client, idle());
+        }
+        assertEquals(MAX_QUALITY, controller.getQuality());
+    }
+
+    @Test
+    public void frameRateIsLimitedPerClient() {
+        ClientSession slow = controller.openSession("slow");
+        ClientSession fast = controller.openSession("fast");
+        Map<ClientSession, ClientSession.Window> windows = new LinkedHashMap<>();
+        windows.put(slow, congested(5));
+        windows.put(fast, idle());
+        controller.adapt(windows);
+
+        assertEquals(4, slow.getFpsLimit(), 1e-9);
+        assertEquals(0, fast.getFpsLimit(), 0);
+        // Quality is per profile, so the slow client lowers it for both
+        assertEquals(70, controller.getQuality());
+    }
+
+    @Test
+    public void priorityClientsSkipTheCapsButNotAdaptation() {
+        ConnectionLimiter limiter = new ConnectionLimiter(4, 0, 1,
+            Collections.singleton("10.0.0.2"), metrics);
+        limiter.setClientRateLimits(0, 1);
+        ClientSession viewer = controller.openSession("viewer");
+        ClientSession recorder = controller.openSession("recorder");
+        limiter.tryAcquire("10.0.0.1").limit(viewer);
+        limiter.tryAcquire("10.0.0.2").limit(recorder);
+
+        FrameBus bus = new FrameBus();
+        for (int i = 0; i < 10; i++) {
+            Frame frame = bus.publish(new byte[100]);
+            for (ClientSession session : new ClientSession[] {viewer, recorder}) {
+                session.beginWrite();
+                session.recordFrame(frame);
+            }
+        }
+        long now = System.nanoTime();
+        assertTrue(viewer.getFrameDelayNanos(now) > 0);
+        assertEquals(0, recorder.getFrameDelayNanos(now));
+
+        // A congested priority client still gets a frame rate its link can carry
+        adapt(recorder, congested(5));
+        assertEquals(4, recorder.getFpsLimit(), 1e-9);
+        assertTrue(recorder.getFrameDelayNanos(System.nanoTime()) > 0);
+    }
+
+    @Test
+    public void throttledReaderLowersQualityAndFrameRateUntilTheThrottleIsLifted()
+            throws Exception {
+        long windowNanos = TimeUnit.MILLISECONDS.toNanos(250);
+        double targetFps = 20;
+        StreamRateController live = new StreamRateController(
+            new StreamProfile(StreamProfile.DEFAULT, 640, 480, 50), new MetricsRegistry(),
+            MIN_QUALITY, 5, targetFps, 30, windowNanos);
+        ClientSession session = live.openSession("throttled");
+        FrameBus bus = new FrameBus();
+        AtomicBoolean running = new AtomicBoolean(true);
+        // 60 KB/s carries 6 fps at quality 50 and 10 at quality 30, both short of the target
+        AtomicLong bytesPerSecond = new AtomicLong(60_000);
+        List<Thread> threads = new ArrayList<>();
+
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket viewer = new Socket()) {
+            // Small socket buffers, so that writes wait for the reader almost at once
+            viewer.setReceiveBufferSize(4096);
+            viewer.connect(listener.getLocalSocketAddress());
+            Socket server = listener.accept();
+            server.setSendBufferSize(4096);
+
+            // Frames get smaller as the quality goes down
+            threads.add(new Thread(() -> {
+                while (running.get()) {
+                    bus.publish(new byte[live.getQuality() * 200]);
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }));
+            threads.add(new Thread(() -> {
+                try {
+                    serve(bus, session, server.getOutputStream(), running);
+                } catch (IOException | InterruptedException e) {
+                    // Test over
+                }
+            }));
+            threads.add(new Thread(() -> {
+                try {
+                    read(viewer.getInputStream(), bytesPerSecond);
+                } catch (IOException | InterruptedException e) {
+                    // Test over
+                }
+            }));
+            for (Thread thread : threads) {
+                thread.start();
+            }
+
+            long deadline = System.nanoTime() + 40 * windowNanos;
+            while (live.getQuality() > MIN_QUALITY && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(MIN_QUALITY, live.getQuality());
+            double throttledLimit = session.getFpsLimit();
+            assertTrue("limit " + throttledLimit, throttledLimit > 0 && throttledLimit < targetFps);
+
+            // Once the reader keeps up again the limit goes up step by step until it is
+            // lifted, and only then, after more calm windows, does quality
+            bytesPerSecond.set(0);
+            long liftedAt = System.nanoTime();
+            List<Double> limits = new ArrayList<>();
+            limits.add(session.getFpsLimit());
+            long qualityRaisedAfter = 0;
+            deadline = liftedAt + 60 * windowNanos;
+            while (System.nanoTime() < deadline) {
+                double limit = session.getFpsLimit();
+                if (limit != limits.get(limits.size() - 1)) {
+                    limits.add(limit);
+                }
+                if (live.getQuality() > MIN_QUALITY) {
+                    qualityRaisedAfter = System.nanoTime() - liftedAt;
+                    break;
+                }
+                Thread.sleep(10);
+            }
+            assertTrue("quality not raised; limits " + limits, qualityRaisedAfter > 0);
+            assertEquals("limits " + limits, 0, session.getFpsLimit(), 0);
+            assertTrue("limits " + limits, limits.size() >= 4);
+            for (int i = 1; i < limits.size() - 1; i++) {
+                assertTrue("limits " + limits, limits.get(i) > limits.get(i - 1));
+            }
+            assertTrue("quality raised after " + qualityRaisedAfter / 1_000_000 + " ms",
+                qualityRaisedAfter >= (limits.size() - 1) * 2 * windowNanos);
+            server.close();
+        } finally {
+            running.set(false);
+            bus.close();
+            for (Thread thread : threads) {
+                thread.interrupt();
+                thread.join(5000);
+            }
+        }
+    }
+
+    /** Writes the newest frame whenever the session's limits allow, as the servers do. */
+    private static void serve(FrameBus bus, ClientSession session, OutputStream output,
+                              AtomicBoolean running) throws IOException, InterruptedException {
+        long lastSequence = 0;
+        while (running.get()) {
+            long delay = session.getFrameDelayNanos(System.nanoTime());
+            if (delay > 0) {
+                TimeUnit.NANOSECONDS.sleep(delay);
+                continue;
+            }
+            Frame frame = bus.awaitFrame(lastSequence, 50);
+            if (frame == null) {
+                continue;
+            }
+            session.beginWrite();
+            frame.writePartTo(output);
+            output.flush();
+            session.recordFrame(frame);
+            lastSequence = frame.getSequence();
+        }
+    }
+
+    /** Reads at up to {@code bytesPerSecond}, or as fast as it can while that is 0. */
+    private static void read(InputStream input, AtomicLong bytesPerSecond)
+            throws IOException, InterruptedException {
+        byte[] buffer = new byte[64 * 1024];
+        while (true) {
+            long rate = bytesPerSecond.get();
+            int read = input.read(buffer, 0, rate > 0 ? 1024 : buffer.length);
+            if (read < 0) {
+                return;
+            }
+            if (rate > 0) {
+                TimeUnit.NANOSECONDS.sleep(read * 1_000_000_000L / rate);
+            }
+        }
+    }
+}
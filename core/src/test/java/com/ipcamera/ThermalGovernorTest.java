@@ -0,0 +1,174 @@
+package com.ipcamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ThermalGovernorTest {
+    private static final long RECOVERY_NANOS = TimeUnit.MINUTES.toNanos(2);
+    private static final long POLL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final List<String> changes = new ArrayList<>();
+    private ThermalGovernor governor;
+    private long now = 0;
+
+    @Before
+    public void setUp() {
+        governor = new ThermalGovernor(ThermalGovernor.DEFAULT_TIERS, RECOVERY_NANOS, metrics);
+        governor.setTierListener((previous, next, readings) ->
+            changes.add(previous.getName() + ">" + next.getName()));
+    }
+
+    private static ThermalGovernor.Readings status(int thermalStatus) {
+        return new ThermalGovernor.Readings(thermalStatus, Double.NaN, 80, true, 30);
+    }
+
+    private static ThermalGovernor.Readings headroom(double headroom) {
+        return new ThermalGovernor.Readings(-1, headroom, 80, true, 30);
+    }
+
+    private static ThermalGovernor.Readings battery(int percent, boolean charging) {
+        return new ThermalGovernor.Readings(-1, Double.NaN, percent, charging, 30);
+    }
+
+    private static ThermalGovernor.Readings batteryCelsius(double celsius) {
+        return new ThermalGovernor.Readings(-1, Double.NaN, 80, true, celsius);
+    }
+
+    /** Feeds the same readings at the poll interval for {@code nanos}; returns the last tier. */
+    private String hold(ThermalGovernor.Readings readings, long nanos) {
+        long until = now + nanos;
+        ThermalGovernor.Tier tier = governor.update(readings, now);
+        while (now < until) {
+            now += POLL_NANOS;
+            tier = governor.update(readings, now);
+        }
+        return tier.getName();
+    }
+
+    private String update(ThermalGovernor.Readings readings) {
+        now += POLL_NANOS;
+        return governor.update(readings, now).getName();
+    }
+
+    @Test
+    public void unknownReadingsDoNotThrottle() {
+        assertEquals(0, ThermalGovernor.tierFor(
+            new ThermalGovernor.Readings(-1, Double.NaN, -1, false, Double.NaN)));
+        assertEquals("full", update(status(0)));
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void stepsDownAtOnce() {
+        assertEquals("warm", update(status(1)));
+        // Straight past the tiers in between
+        assertEquals("critical", update(status(5)));
+        assertEquals(Arrays.asList("full>warm", "warm>critical"), changes);
+        assertTrue(metrics.render().contains(
+            "ipcamera_thermal_tier_changes_total{direction=\"throttle\"} 2"));
+        assertTrue(metrics.render().contains("ipcamera_thermal_tier 4"));
+    }
+
+    @Test
+    public void recoversOneStepPerRecoveryTime() {
+        update(status(3));
+        assertEquals("severe", governor.getTier().getName());
+        changes.clear();
+
+        // Cool again, but nothing changes until the readings have allowed it for the recovery time
+        assertEquals("severe", update(status(0)));
+        assertEquals("severe", hold(status(0), RECOVERY_NANOS - POLL_NANOS));
+        assertEquals("hot", update(status(0)));
+        // The next step needs another full recovery time
+        assertEquals("hot", hold(status(0), RECOVERY_NANOS - POLL_NANOS));
+        assertEquals("warm", update(status(0)));
+        assertEquals("full", hold(status(0), RECOVERY_NANOS));
+        assertEquals(Arrays.asList("severe>hot", "hot>warm", "warm>full"), changes);
+        assertTrue(metrics.render().contains(
+            "ipcamera_thermal_tier_changes_total{direction=\"recover\"} 3"));
+    }
+
+    @Test
+    public void readingsThatStopAllowingRecoveryRestartTheWait() {
+        update(status(2));
+        hold(status(0), RECOVERY_NANOS - POLL_NANOS);
+        // Back at the current tier's level: no change, and the wait starts over
+        assertEquals("hot", update(status(2)));
+        assertEquals("hot", hold(status(0), RECOVERY_NANOS - POLL_NANOS));
+        assertEquals("warm", update(status(0)));
+
+        // Hotter again during recovery throttles at once
+        assertEquals("critical", update(status(4)));
+        assertEquals(Arrays.asList("full>hot", "hot>warm", "warm>critical"), changes);
+    }
+
+    @Test
+    public void lowBatteryOnlyThrottlesWhileDischarging() {
+        assertEquals(0, ThermalGovernor.tierFor(battery(31, false)));
+        assertEquals(1, ThermalGovernor.tierFor(battery(30, false)));
+        assertEquals(1, ThermalGovernor.tierFor(battery(21, false)));
+        assertEquals(2, ThermalGovernor.tierFor(battery(20, false)));
+        assertEquals(3, ThermalGovernor.tierFor(battery(10, false)));
+        assertEquals(3, ThermalGovernor.tierFor(battery(1, false)));
+        assertEquals(0, ThermalGovernor.tierFor(battery(5, true)));
+        assertEquals(0, ThermalGovernor.tierFor(battery(-1, false)));
+
+        assertEquals("severe", update(battery(8, false)));
+        // Plugging in allows recovery, still one step at a time
+        assertEquals("severe", update(battery(8, true)));
+        assertEquals("hot", hold(battery(8, true), RECOVERY_NANOS));
+    }
+
+    @Test
+    public void batteryTemperatureThrottles() {
+        assertEquals(0, ThermalGovernor.tierFor(batteryCelsius(41.9)));
+        assertEquals(1, ThermalGovernor.tierFor(batteryCelsius(42)));
+        assertEquals(2, ThermalGovernor.tierFor(batteryCelsius(45)));
+        assertEquals(3, ThermalGovernor.tierFor(batteryCelsius(48)));
+        assertEquals(3, ThermalGovernor.tierFor(batteryCelsius(60)));
+    }
+
+    @Test
+    public void headroomThrottlesBeforeTheSystemDoes() {
+        assertEquals(0, ThermalGovernor.tierFor(headroom(0.74)));
+        assertEquals(1, ThermalGovernor.tierFor(headroom(0.75)));
+        assertEquals(1, ThermalGovernor.tierFor(headroom(0.84)));
+        assertEquals(2, ThermalGovernor.tierFor(headroom(0.85)));
+        assertEquals(3, ThermalGovernor.tierFor(headroom(0.95)));
+        assertEquals(3, ThermalGovernor.tierFor(headroom(1.2)));
+    }
+
+    @Test
+    public void theHottestReadingWins() {
+        ThermalGovernor.Readings mixed = new ThermalGovernor.Readings(1, 0.9, 25, false, 46);
+        assertEquals(2, ThermalGovernor.tierFor(mixed));
+        // Up to shutdown, the status calls for the last tier at most
+        assertEquals(4, ThermalGovernor.tierFor(status(6)));
+    }
+
+    @Test
+    public void tiersBeyondTheLastStayOnIt() {
+        ThermalGovernor.Tier[] two = {
+            ThermalGovernor.DEFAULT_TIERS[0], ThermalGovernor.DEFAULT_TIERS[1]};
+        governor = new ThermalGovernor(two, RECOVERY_NANOS, new MetricsRegistry());
+        assertEquals("warm", update(status(4)));
+        assertEquals("full", hold(status(0), RECOVERY_NANOS + POLL_NANOS));
+    }
+
+    @Test
+    public void tiersScaleQuality() {
+        ThermalGovernor.Tier hot = ThermalGovernor.DEFAULT_TIERS[2];
+        assertEquals(64, hot.scaleQuality(80));
+        assertEquals(1, hot.scaleQuality(1));
+        assertEquals(80, ThermalGovernor.DEFAULT_TIERS[0].scaleQuality(80));
+    }
+}
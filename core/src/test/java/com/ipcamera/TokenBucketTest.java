@@ -0,0 +1,122 @@
+package com.ipcamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void allowsTheBurstThenTheRate() {
+        long now = System.nanoTime() + SECOND;
+        TokenBucket bucket = new TokenBucket(100, 200 * MILLISECOND);
+        // A bucket left alone is full: the 20 units of the burst go out at once, and one
+        // more as units are taken after the fact
+        for (int i = 0; i <= 20; i++) {
+            assertEquals("unit " + i, 0, bucket.getDelayNanos(now));
+            bucket.take(1, now);
+        }
+        assertEquals(10 * MILLISECOND, bucket.getDelayNanos(now), MILLISECOND / 100);
+        // Then one unit every 10 ms
+        now += 10 * MILLISECOND;
+        assertEquals(0, bucket.getDelayNanos(now));
+        bucket.take(1, now);
+        assertEquals(10 * MILLISECOND, bucket.getDelayNanos(now), MILLISECOND / 100);
+    }
+
+    @Test
+    public void unitsTakenPastTheBurstAreWaitedOff() {
+        long now = System.nanoTime() + SECOND;
+        TokenBucket bucket = new TokenBucket(1000, 100 * MILLISECOND);
+        // A frame of 500 ms worth still goes out, and the next waits 400 ms
+        bucket.take(500, now);
+        assertEquals(400 * MILLISECOND, bucket.getDelayNanos(now), MILLISECOND / 100);
+        assertEquals(0, bucket.getDelayNanos(now + 400 * MILLISECOND));
+    }
+
+    @Test
+    public void idleTimeDoesNotBuildUpMoreThanTheBurst() {
+        long now = System.nanoTime() + SECOND;
+        TokenBucket bucket = new TokenBucket(10, 300 * MILLISECOND);
+        now += 60 * SECOND;
+        int taken = 0;
+        while (bucket.getDelayNanos(now) == 0) {
+            bucket.take(1, now);
+            taken++;
+        }
+        assertEquals(4, taken);
+    }
+
+    @Test
+    public void rejectsRatesThatAreNotPositive() {
+        try {
+            new TokenBucket(0, SECOND);
+            fail("accepted a rate of 0");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("0"));
+        }
+    }
+
+    @Test
+    public void sharedBucketHoldsTheRateAndSharesItFairly() throws Exception {
+        int clients = 8;
+        double rate = 400;
+        long burstNanos = 100 * MILLISECOND;
+        long durationNanos = SECOND;
+        TokenBucket bucket = new TokenBucket(rate, burstNanos);
+        List<AtomicLong> taken = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] end = new long[1];
+        for (int i = 0; i < clients; i++) {
+            AtomicLong count = new AtomicLong();
+            taken.add(count);
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    long now;
+                    while ((now = System.nanoTime()) < end[0]) {
+                        long delay = bucket.getDelayNanos(now);
+                        if (delay > 0) {
+                            TimeUnit.NANOSECONDS.sleep(delay);
+                            continue;
+                        }
+                        bucket.take(1, now);
+                        count.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    // Test over
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        end[0] = System.nanoTime() + durationNanos;
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long total = 0;
+        long fewest = Long.MAX_VALUE;
+        for (AtomicLong count : taken) {
+            total += count.get();
+            fewest = Math.min(fewest, count.get());
+        }
+        // The burst, then the rate; every racing take may overdraw by one unit
+        double allowed = rate * (durationNanos + burstNanos) / SECOND + clients;
+        assertTrue("took " + total + " of " + allowed, total <= allowed);
+        assertTrue("took " + total, total >= rate * durationNanos / SECOND * 0.8);
+        assertTrue("fewest " + fewest + " of " + total, fewest >= total / clients / 3);
+    }
+}
@@ -0,0 +1,220 @@
+package com.ipcamera;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class YuvConverterTest {
+    /** A random image and the NV21 array it should convert to. */
+    private static final class Image {
+        final int width;
+        final int height;
+        final int chromaWidth;
+        final int chromaHeight;
+        final byte[] y;
+        final byte[] u;
+        final byte[] v;
+
+        Image(int width, int height, long seed) {
+            this.width = width;
+            this.height = height;
+            chromaWidth = (width + 1) / 2;
+            chromaHeight = (height + 1) / 2;
+            Random random = new Random(seed);
+            y = new byte[width * height];
+            u = new byte[chromaWidth * chromaHeight];
+            v = new byte[chromaWidth * chromaHeight];
+            random.nextBytes(y);
+            random.nextBytes(u);
+            random.nextBytes(v);
+        }
+
+        byte[] expectedNv21() {
+            byte[] nv21 = new byte[YuvConverter.nv21Size(width, height)];
+            System.arraycopy(y, 0, nv21, 0, y.length);
+            for (int i = 0; i < u.length; i++) {
+                nv21[y.length + 2 * i] = v[i];
+                nv21[y.length + 2 * i + 1] = u[i];
+            }
+            return nv21;
+        }
+
+        /** The Y plane with {@code rowStride} bytes per row, the last row unpadded. */
+        ByteBuffer lumaPlane(int rowStride) {
+            return plane(y, width, height, rowStride, 1);
+        }
+
+        ByteBuffer chromaPlane(byte[] samples, int rowStride, int pixelStride) {
+            return plane(samples, chromaWidth, chromaHeight, rowStride, pixelStride);
+        }
+
+        /**
+         * One block holding both chroma planes interleaved, {@code first}
+         * at even offsets, returned as the views a camera hands out: the
+         * plane of {@code first} and the one starting a byte later.
+         */
+        ByteBuffer[] interleavedPlanes(byte[] first, byte[] second, int rowStride) {
+            int length = (chromaHeight - 1) * rowStride + 2 * chromaWidth - 1;
+            ByteBuffer block = ByteBuffer.allocateDirect(length + 1);
+            for (int row = 0; row < chromaHeight; row++) {
+                for (int col = 0; col < chromaWidth; col++) {
+                    block.put(row * rowStride + 2 * col, first[row * chromaWidth + col]);
+                    block.put(row * rowStride + 2 * col + 1, second[row * chromaWidth + col]);
+                }
+            }
+            block.limit(length);
+            ByteBuffer firstPlane = block.slice();
+            block.limit(length + 1).position(1);
+            ByteBuffer secondPlane = block.slice();
+            return new ByteBuffer[] {firstPlane, secondPlane};
+        }
+
+        private static ByteBuffer plane(byte[] samples, int width, int height, int rowStride,
+                                        int pixelStride) {
+            // Camera planes end right after the last sample, without row padding
+            int length = (height - 1) * rowStride + (width - 1) * pixelStride + 1;
+            ByteBuffer plane = ByteBuffer.allocateDirect(length);
+            for (int row = 0; row < height; row++) {
+                for (int col = 0; col < width; col++) {
+                    plane.put(row * rowStride + col * pixelStride, samples[row * width + col]);
+                }
+            }
+            return plane;
+        }
+    }
+
+    private static byte[] convert(Image image, ByteBuffer y, int yRowStride, ByteBuffer u,
+                                  ByteBuffer v, int uvRowStride, int uvPixelStride) {
+        byte[] nv21 = new byte[YuvConverter.nv21Size(image.width, image.height)];
+        new YuvConverter().toNv21(y, yRowStride, u, v, uvRowStride, uvPixelStride,
+            image.width, image.height, nv21);
+        return nv21;
+    }
+
+    @Test
+    public void nv21SizeRoundsChromaUp() {
+        assertEquals(640 * 480 * 3 / 2, YuvConverter.nv21Size(640, 480));
+        assertEquals(9 * 7 + 2 * 5 * 4, YuvConverter.nv21Size(9, 7));
+    }
+
+    @Test
+    public void planar() {
+        for (int[] size : new int[][] {{8, 6}, {9, 7}, {64, 48}}) {
+            Image image = new Image(size[0], size[1], size[0]);
+            byte[] nv21 = convert(image, image.lumaPlane(image.width), image.width,
+                image.chromaPlane(image.u, image.chromaWidth, 1),
+                image.chromaPlane(image.v, image.chromaWidth, 1), image.chromaWidth, 1);
+            assertArrayEquals(size[0] + "x" + size[1], image.expectedNv21(), nv21);
+        }
+    }
+
+    @Test
+    public void planarWithPaddedRows() {
+        Image image = new Image(10, 6, 1);
+        byte[] nv21 = convert(image, image.lumaPlane(16), 16,
+            image.chromaPlane(image.u, 8, 1), image.chromaPlane(image.v, 8, 1), 8, 1);
+        assertArrayEquals(image.expectedNv21(), nv21);
+    }
+
+    @Test
+    public void semiPlanarNv21() {
+        for (int[] size : new int[][] {{8, 6}, {9, 7}}) {
+            Image image = new Image(size[0], size[1], 2);
+            int rowStride = 2 * image.chromaWidth;
+            ByteBuffer[] vu = image.interleavedPlanes(image.v, image.u, rowStride);
+            assertTrue(YuvConverter.isInterleavedNv21(vu[1], vu[0]));
+            byte[] nv21 = convert(image, image.lumaPlane(image.width), image.width,
+                vu[1], vu[0], rowStride, 2);
+            assertArrayEquals(size[0] + "x" + size[1], image.expectedNv21(), nv21);
+        }
+    }
+
+    @Test
+    public void semiPlanarNv21WithPaddedRows() {
+        Image image = new Image(12, 8, 3);
+        ByteBuffer[] vu = image.interleavedPlanes(image.v, image.u, 16);
+        byte[] nv21 = convert(image, image.lumaPlane(16), 16, vu[1], vu[0], 16, 2);
+        assertArrayEquals(image.expectedNv21(), nv21);
+    }
+
+    @Test
+    public void semiPlanarNv12IsNotTakenForNv21() {
+        Image image = new Image(12, 8, 4);
+        ByteBuffer[] uv = image.interleavedPlanes(image.u, image.v, 16);
+        assertFalse(YuvConverter.isInterleavedNv21(uv[0], uv[1]));
+        byte[] nv21 = convert(image, image.lumaPlane(12), 12, uv[0], uv[1], 16, 2);
+        assertArrayEquals(image.expectedNv21(), nv21);
+    }
+
+    @Test
+    public void readOnlyPlanes() {
+        Image image = new Image(12, 8, 5);
+        ByteBuffer[] vu = image.interleavedPlanes(image.v, image.u, 12);
+        byte[] nv21 = convert(image, image.lumaPlane(12).asReadOnlyBuffer(), 12,
+            vu[1].asReadOnlyBuffer(), vu[0].asReadOnlyBuffer(), 12, 2);
+        assertArrayEquals(image.expectedNv21(), nv21);
+    }
+
+    @Test
+    public void readOnlyNv21IsDetectedWithoutWriting() {
+        Image image = new Image(12, 8, 7);
+        ByteBuffer[] vu = image.interleavedPlanes(image.v, image.u, 12);
+        ByteBuffer v = vu[0].asReadOnlyBuffer();
+        ByteBuffer u = vu[1].asReadOnlyBuffer();
+        assertTrue(YuvConverter.isInterleavedNv21(u, v));
+        byte[] nv21 = convert(image, image.lumaPlane(12), 12, u, v, 12, 2);
+        assertArrayEquals(image.expectedNv21(), nv21);
+        assertEquals(0, u.position());
+        assertEquals(0, v.position());
+    }
+
+    @Test
+    public void flatChromaLeavesTheLayoutUndecided() {
+        Image flat = new Image(12, 8, 8);
+        Arrays.fill(flat.u, (byte) 0x80);
+        Arrays.fill(flat.v, (byte) 0x80);
+        ByteBuffer[] vu = flat.interleavedPlanes(flat.v, flat.u, 12);
+        assertNull(YuvConverter.detectInterleavedNv21(vu[1], vu[0]));
+        YuvConverter converter = new YuvConverter();
+        byte[] nv21 = new byte[YuvConverter.nv21Size(12, 8)];
+        converter.toNv21(flat.lumaPlane(12), 12, vu[1], vu[0], 12, 2, 12, 8, nv21);
+        assertArrayEquals(flat.expectedNv21(), nv21);
+
+        // The next frame with some colour settles it
+        Image image = new Image(12, 8, 9);
+        vu = image.interleavedPlanes(image.v, image.u, 12);
+        assertEquals(Boolean.TRUE, YuvConverter.detectInterleavedNv21(vu[1], vu[0]));
+        converter.toNv21(image.lumaPlane(12), 12, vu[1], vu[0], 12, 2, 12, 8, nv21);
+        assertArrayEquals(image.expectedNv21(), nv21);
+    }
+
+    @Test
+    public void planesAreReadFromTheirPositionAndLeftThere() {
+        Image image = new Image(8, 6, 6);
+        ByteBuffer y = withOffset(image.lumaPlane(8), 3);
+        ByteBuffer u = withOffset(image.chromaPlane(image.u, 4, 1), 5);
+        ByteBuffer v = withOffset(image.chromaPlane(image.v, 4, 1), 7);
+        byte[] nv21 = convert(image, y, 8, u, v, 4, 1);
+        assertArrayEquals(image.expectedNv21(), nv21);
+        assertEquals(3, y.position());
+        assertEquals(5, u.position());
+        assertEquals(7, v.position());
+    }
+
+    /** Copies {@code plane} into a larger buffer whose position is {@code offset}. */
+    private static ByteBuffer withOffset(ByteBuffer plane, int offset) {
+        ByteBuffer buffer = ByteBuffer.allocate(offset + plane.capacity());
+        buffer.position(offset);
+        buffer.put(plane.duplicate());
+        buffer.position(offset);
+        return buffer;
+    }
+}
@@ -0,0 +1,117 @@
+package com.ipcamera;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes an HTTP/1.1 chunked request body. Reports end of stream after the
+ * last chunk and its trailers; a connection that ends before that is an
+ * {@link EOFException}.
+ */
+final class ChunkedInputStream extends FilterInputStream {
+    private static final int MAX_LINE_BYTES = 1024;
+
+    private long chunkRemaining = 0;
+    private boolean firstChunk = true;
+    private boolean finished = false;
+
+    ChunkedInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Connection closed mid-chunk");
+        }
+        chunkRemaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int count = in.read(b, off, (int) Math.min(len, chunkRemaining));
+        if (count < 0) {
+            throw new EOFException("Connection closed mid-chunk");
+        }
+        chunkRemaining -= count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return finished ? 0 : (int) Math.min(in.available(), chunkRemaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    // Moves on to the next chunk once the current one is used up; false after the last
+    private boolean nextChunk() throws IOException {
+        if (finished) {
+            return false;
+        }
+        if (chunkRemaining > 0) {
+            return true;
+        }
+        if (!firstChunk && !readLine().isEmpty()) {
+            throw new IOException("Chunk not followed by CRLF");
+        }
+        firstChunk = false;
+        String line = readLine();
+        int extension = line.indexOf(';');
+        String size = (extension >= 0 ? line.substring(0, extension) : line).trim();
+        try {
+            chunkRemaining = Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed chunk size " + size);
+        }
+        if (chunkRemaining < 0) {
+            throw new IOException("Malformed chunk size " + size);
+        }
+        if (chunkRemaining == 0) {
+            // Trailer fields, if any, are of no use here
+            while (!readLine().isEmpty()) {
+                // Skip
+            }
+            finished = true;
+            return false;
+        }
+        return true;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed mid-chunk");
+            }
+            if (b == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() == MAX_LINE_BYTES) {
+                throw new IOException("Chunk line exceeds " + MAX_LINE_BYTES + " bytes");
+            }
+            line.append((char) b);
+        }
+    }
+}
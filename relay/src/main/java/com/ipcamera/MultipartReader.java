@@ -0,0 +1,134 @@
+package com.ipcamera;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * Reads JPEG frames back out of a multipart/x-mixed-replace stream, such as
+ * the one {@link StreamPusher} sends. Each payload is read straight into a
+ * part rendered for a {@link FrameBus}, so it is copied exactly once on its
+ * way from the socket to the viewers. Every part must give its
+ * Content-Length, as the app's parts always do.
+ */
+final class MultipartReader {
+    private static final int MAX_LINE_BYTES = 1024;
+    private static final int MAX_HEADER_LINES = 32;
+
+    private final InputStream in;
+    private final String delimiter;
+    private final int maxPayloadBytes;
+
+    MultipartReader(InputStream in, String boundary, int maxPayloadBytes) {
+        this.in = in;
+        this.delimiter = "--" + boundary;
+        this.maxPayloadBytes = maxPayloadBytes;
+    }
+
+    /** Returns the boundary parameter of a multipart Content-Type, or null if it has none. */
+    static String boundaryOf(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        for (String parameter : contentType.split(";")) {
+            String trimmed = parameter.trim();
+            if (trimmed.toLowerCase(Locale.ROOT).startsWith("boundary=")) {
+                String boundary = trimmed.substring("boundary=".length());
+                if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
+                return boundary.isEmpty() ? null : boundary;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the next part and publishes its payload on {@code bus}.
+     *
+     * @return the published frame, or null once the stream has ended
+     */
+    Frame readInto(FrameBus bus) throws IOException {
+        String line;
+        do {
+            line = readLine();
+            if (line == null) {
+                return null;
+            }
+        } while (!line.startsWith(delimiter));
+        if (line.startsWith(delimiter + "--")) {
+            return null;
+        }
+
+        int length = -1;
+        String timestamp = null;
+        for (int i = 0; (line = readLine()) != null && !line.isEmpty(); i++) {
+            if (i == MAX_HEADER_LINES) {
+                throw new IOException("More than " + MAX_HEADER_LINES + " part headers");
+            }
+            int colon = line.indexOf(':');
+            String name = colon > 0 ? line.substring(0, colon).trim() : "";
+            if (name.equalsIgnoreCase("Content-Length")) {
+                try {
+                    length = Integer.parseInt(line.substring(colon + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed part length " + line);
+                }
+            } else if (name.equalsIgnoreCase("X-Timestamp")) {
+                timestamp = line.substring(colon + 1).trim();
+            }
+        }
+        if (line == null) {
+            throw new EOFException("Stream ended in part headers");
+        }
+        if (length < 0 || length > maxPayloadBytes) {
+            throw new IOException("Part length " + length + " missing or above " + maxPayloadBytes);
+        }
+
+        // Keeps the capture time, so viewers of the relay can still measure their latency
+        byte[] header = MultipartEncoder.header(length, timestamp);
+        byte[] part = new byte[header.length + length + 2];
+        System.arraycopy(header, 0, part, 0, header.length);
+        readFully(part, header.length, length);
+        part[part.length - 2] = '\r';
+        part[part.length - 1] = '\n';
+        return bus.publishPart(part, length);
+    }
+
+    private void readFully(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count = in.read(buffer, offset, length);
+            if (count < 0) {
+                throw new EOFException("Stream ended mid-part");
+            }
+            offset += count;
+            length -= count;
+        }
+    }
+
+    // The next line without its line break, or null at the end of the stream
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                if (line.length() > 0) {
+                    throw new EOFException("Stream ended mid-line");
+                }
+                return null;
+            }
+            if (b == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() == MAX_LINE_BYTES) {
+                throw new IOException("Line exceeds " + MAX_LINE_BYTES + " bytes");
+            }
+            line.append((char) b);
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package com.ipcamera;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Re-serves the stream a phone pushes to {@code POST /push} to any number of
+ * viewers at {@code GET /video}, so the phone's uplink carries each frame
+ * once and the fan-out happens on a wired host. Received frames go onto a
+ * {@link FrameBus} just like the app's own, and each viewer gets the newest
+ * one whenever it is ready for more.
+ *
+ * <p>Only pushes carrying the shared token or coming from one of the
+ * configured source addresses are accepted; with neither configured, only
+ * pushes from this host are. Any other push is refused and leaves the
+ * current stream alone.
+ *
+ * <p>Run with {@code ./gradlew :relay:run --args="8090 [source address...]"},
+ * with the token, if any, in the {@code RELAY_PUSH_TOKEN} environment variable.
+ */
+public class RelayServer implements StreamServer {
+    private static final Logger LOG = Logger.getLogger(RelayServer.class.getName());
+    static final int DEFAULT_PORT = 8090;
+    static final String PUSH_PATH = "/push";
+    static final String PUSH_TOKEN_ENV = "RELAY_PUSH_TOKEN";
+    private static final long FRAME_WAIT_TIMEOUT_MS = 1000;
+    // Whole request head must arrive within this
+    private static final int REQUEST_TIMEOUT_MS = 10_000;
+    // The phone sends at least one frame a second, a placeholder if need be
+    private static final int UPSTREAM_IDLE_TIMEOUT_MS = 10_000;
+    private static final int READ_BUFFER_SIZE = 1024;
+    private static final int UPSTREAM_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+    private static final int STREAM_SEND_BUFFER_BYTES = 128 * 1024;
+    private static final long SNAPSHOT_WAIT_MS = 2000;
+
+    private static final String STREAM_HEADERS = "HTTP/1.1 200 OK\r\n" +
+            "Content-Type: " + StreamPusher.CONTENT_TYPE + "\r\n" +
+            "Cache-Control: no-cache\r\n" +
+            "Connection: close\r\n" +
+            "\r\n";
+    private static final String METRICS_HEADERS = "HTTP/1.1 200 OK\r\n" +
+            "Content-Type: text/plain; version=0.0.4\r\n" +
+            "Connection: close\r\n";
+
+    private final int port;
+    private final MetricsRegistry metrics;
+    private final byte[] pushToken;
+    private final Set<String> pushSources;
+    private final FrameBus frameBus = new FrameBus();
+    private final AtomicReference<Socket> upstream = new AtomicReference<>();
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final Counter framesReceived;
+    private final Counter bytesReceived;
+    private final Counter framesSent;
+    private final Counter pushesRejected;
+    private ServerSocket serverSocket;
+    private volatile boolean isRunning = false;
+
+    /** Accepts pushes from this host only. */
+    public RelayServer(int port, MetricsRegistry metrics) {
+        this(port, null, Collections.<String>emptySet(), metrics);
+    }
+
+    /**
+     * @param pushToken   token a push must present as {@code Authorization: Bearer}, or null
+     * @param pushSources addresses that may push without the token
+     */
+    public RelayServer(int port, String pushToken, Collection<String> pushSources,
+                       MetricsRegistry metrics) {
+        this.port = port;
+        this.metrics = metrics;
+        this.pushToken = pushToken != null && !pushToken.isEmpty()
+                ? pushToken.getBytes(StandardCharsets.UTF_8) : null;
+        this.pushSources = new HashSet<>(pushSources);
+        metrics.gauge("ipcamera_relay_upstream_connected", "Whether a phone is pushing a stream",
+                () -> upstream.get() != null ? 1 : 0);
+        metrics.gauge("ipcamera_relay_viewers", "Viewers of the relayed stream",
+                frameBus::getSubscriberCount);
+        framesReceived = metrics.counter("ipcamera_relay_frames_received_total",
+                "Frames received from the phone");
+        bytesReceived = metrics.counter("ipcamera_relay_bytes_received_total",
+                "JPEG bytes received from the phone");
+        framesSent = metrics.counter("ipcamera_relay_frames_sent_total",
+                "Frames sent to viewers");
+        pushesRejected = metrics.counter("ipcamera_relay_pushes_rejected_total",
+                "Pushes refused for lacking the token or an allowed source address");
+    }
+
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        Collection<String> sources = args.length > 1
+                ? Arrays.asList(args).subList(1, args.length)
+                : Collections.<String>emptySet();
+        RelayServer server = new RelayServer(port, System.getenv(PUSH_TOKEN_ENV), sources,
+                new MetricsRegistry());
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        server.start();
+    }
+
+    public FrameBus getFrameBus() {
+        return frameBus;
+    }
+
+    @Override
+    public void start() {
+        isRunning = true;
+        executorService.execute(this::acceptConnections);
+    }
+
+    private void acceptConnections() {
+        try {
+            serverSocket = new ServerSocket(port);
+            LOG.info("Relay listening on port " + port);
+
+            while (isRunning) {
+                try {
+                    Socket clientSocket = serverSocket.accept();
+                    executorService.execute(() -> handleClient(clientSocket));
+                } catch (IOException e) {
+                    if (isRunning) {
+                        LOG.log(Level.WARNING, "Error accepting connection", e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Error starting relay", e);
+        }
+    }
+
+    private void handleClient(Socket socket) {
+        HttpRequestParser parser = new HttpRequestParser(
+                HttpRequestParser.DEFAULT_MAX_HEAD_BYTES, true);
+        ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        input.flip();
+        try {
+            HttpRequest request = readRequest(socket, parser, input);
+            if (request == null) {
+                return;
+            }
+            String method = request.getMethod();
+            String path = request.getPath();
+            if ("POST".equals(method) && PUSH_PATH.equals(path)) {
+                receive(socket, request, input);
+            } else if ("GET".equals(method) && "/video".equals(path)) {
+                stream(socket);
+            } else if ("GET".equals(method) && "/snapshot.jpg".equals(path)) {
+                sendSnapshot(socket);
+            } else if ("GET".equals(method) && "/metrics".equals(path)) {
+                send(socket, response(METRICS_HEADERS, metrics.render()));
+            } else {
+                send(socket, statusResponse(404, "Not Found"));
+            }
+        } catch (HttpRequestParser.InvalidRequestException e) {
+            LOG.fine("Rejecting request: " + e.getMessage());
+            send(socket, statusResponse(e.getStatus(), e.getReason()));
+        } catch (SocketTimeoutException e) {
+            if (parser.isStarted()) {
+                send(socket, statusResponse(408, "Request Timeout"));
+            }
+        } catch (IOException | InterruptedException e) {
+            LOG.log(Level.FINE, "Error handling client", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Error closing socket", e);
+            }
+        }
+    }
+
+    /** Publishes the frames of a pushed stream until the phone stops sending or is replaced. */
+    private void receive(Socket socket, HttpRequest request, ByteBuffer input) throws IOException {
+        String encoding = request.getHeader("Transfer-Encoding");
+        String boundary = MultipartReader.boundaryOf(request.getHeader("Content-Type"));
+        if (encoding == null || !encoding.toLowerCase(Locale.ROOT).contains("chunked")) {
+            send(socket, statusResponse(411, "Length Required"));
+            return;
+        }
+        if (boundary == null) {
+            send(socket, statusResponse(415, "Unsupported Media Type"));
+            return;
+        }
+        String client = socket.getInetAddress().getHostAddress();
+        if (!isPushAllowed(socket, request)) {
+            pushesRejected.increment();
+            LOG.warning("Refusing push from " + client);
+            send(socket, statusResponse(403, "Forbidden"));
+            return;
+        }
+        // A phone that reconnects replaces the connection it lost, which may not have timed out yet
+        Socket previous = upstream.getAndSet(socket);
+        if (previous != null) {
+            previous.close();
+        }
+        LOG.info("Receiving stream from " + client);
+        try {
+            socket.setSoTimeout(UPSTREAM_IDLE_TIMEOUT_MS);
+            // Body bytes that arrived along with the request head come first
+            InputStream body = new ChunkedInputStream(new BufferedInputStream(
+                    new SequenceInputStream(
+                            new ByteArrayInputStream(input.array(), input.position(),
+                                    input.remaining()),
+                            socket.getInputStream()),
+                    UPSTREAM_BUFFER_SIZE));
+            MultipartReader reader = new MultipartReader(body, boundary, MAX_FRAME_BYTES);
+            Frame frame;
+            while (isRunning && (frame = reader.readInto(frameBus)) != null) {
+                framesReceived.increment();
+                bytesReceived.add(frame.getPayloadLength());
+            }
+            send(socket, statusResponse(204, "No Content"));
+        } finally {
+            upstream.compareAndSet(socket, null);
+            LOG.info("Stream from " + client + " ended");
+        }
+    }
+
+    private boolean isPushAllowed(Socket socket, HttpRequest request) {
+        if (pushToken != null) {
+            String authorization = request.getHeader("Authorization");
+            if (authorization != null && authorization.startsWith("Bearer ")
+                    && MessageDigest.isEqual(pushToken, authorization.substring(7).trim()
+                            .getBytes(StandardCharsets.UTF_8))) {
+                return true;
+            }
+        }
+        if (pushSources.contains(socket.getInetAddress().getHostAddress())) {
+            return true;
+        }
+        return pushToken == null && pushSources.isEmpty()
+                && socket.getInetAddress().isLoopbackAddress();
+    }
+
+    private void stream(Socket socket) throws IOException, InterruptedException {
+        frameBus.subscribe();
+        try {
+            try {
+                socket.setSendBufferSize(STREAM_SEND_BUFFER_BYTES);
+            } catch (SocketException e) {
+                LOG.log(Level.FINE, "Could not limit send buffer", e);
+            }
+            OutputStream output = socket.getOutputStream();
+            output.write(STREAM_HEADERS.getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+
+            // Newest frame only, so a slow viewer never holds back anyone else
+            long lastSequence = 0;
+            while (isRunning && !socket.isClosed()) {
+                Frame frame = frameBus.awaitFrame(lastSequence, FRAME_WAIT_TIMEOUT_MS);
+                if (frame == null) {
+                    continue;
+                }
+                lastSequence = frame.getSequence();
+                frame.writePartTo(output);
+                output.flush();
+                framesSent.increment();
+            }
+        } finally {
+            frameBus.unsubscribe();
+        }
+    }
+
+    private void sendSnapshot(Socket socket) throws IOException, InterruptedException {
+        Frame frame = frameBus.getLatestFrame();
+        if (frame == null) {
+            frame = frameBus.awaitFrame(0, SNAPSHOT_WAIT_MS);
+        }
+        if (frame == null || frame.isPlaceholder()) {
+            send(socket, statusResponse(503, "Service Unavailable"));
+            return;
+        }
+        OutputStream output = socket.getOutputStream();
+        output.write(("HTTP/1.1 200 OK\r\n" +
+                "Content-Type: image/jpeg\r\n" +
+                "Content-Length: " + frame.getPayloadLength() + "\r\n" +
+                "Cache-Control: no-cache\r\n" +
+                "Connection: close\r\n" +
+                "\r\n").getBytes(StandardCharsets.US_ASCII));
+        frame.writePayloadTo(output);
+        output.flush();
+    }
+
+    // One request per connection; the head must arrive within REQUEST_TIMEOUT_MS
+    private static HttpRequest readRequest(Socket socket, HttpRequestParser parser,
+                                           ByteBuffer input) throws IOException {
+        InputStream in = socket.getInputStream();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REQUEST_TIMEOUT_MS);
+        while (true) {
+            HttpRequest request = parser.parse(input);
+            if (request != null) {
+                return request;
+            }
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMs <= 0) {
+                throw new SocketTimeoutException("Request not received in time");
+            }
+            socket.setSoTimeout((int) remainingMs);
+
+            input.clear();
+            int bytesRead = in.read(input.array(), 0, input.capacity());
+            if (bytesRead < 0) {
+                if (parser.isStarted()) {
+                    throw new EOFException("Connection closed mid-request");
+                }
+                return null;
+            }
+            input.limit(bytesRead);
+        }
+    }
+
+    private static byte[] response(String headers, String body) {
+        byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        byte[] head = (headers + "Content-Length: " + content.length + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        byte[] response = new byte[head.length + content.length];
+        System.arraycopy(head, 0, response, 0, head.length);
+        System.arraycopy(content, 0, response, head.length, content.length);
+        return response;
+    }
+
+    private static byte[] statusResponse(int status, String reason) {
+        return ("HTTP/1.1 " + status + " " + reason + "\r\n" +
+                (status == 204 ? "" : "Content-Length: 0\r\n") +
+                "Connection: close\r\n" +
+                "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void send(Socket socket, byte[] response) {
+        try {
+            socket.getOutputStream().write(response);
+            socket.getOutputStream().flush();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Error sending response", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        isRunning = false;
+        frameBus.close();
+        Socket current = upstream.get();
+        try {
+            if (current != null) {
+                current.close();
+            }
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Error closing sockets", e);
+        }
+        executorService.shutdown();
+        LOG.info("Relay stopped");
+    }
+}
@@ -0,0 +1,258 @@
+package com.ipcamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Pushes a stream through a relay on loopback, as a phone would, to several viewers. */
+public class RelayServerTest {
+    private static final String TOKEN = "relay-test-token";
+    private static final int VIEWERS = 4;
+    private static final int FRAME_BYTES = 16 * 1024;
+
+    private final FrameBus camera = new FrameBus();
+    private final List<Socket> sockets = new ArrayList<>();
+    private RelayServer relay;
+    private StreamPusher pusher;
+    private Thread publisher;
+    private int port;
+
+    /** Reads the relayed stream back into a bus of its own, checking every frame. */
+    private final class Viewer extends Thread {
+        final FrameBus received = new FrameBus();
+        final AtomicLong frames = new AtomicLong();
+        final AtomicReference<String> error = new AtomicReference<>();
+        final InputStream input;
+
+        Viewer() throws IOException {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            sockets.add(socket);
+            socket.getOutputStream().write(
+                "GET /video HTTP/1.1\r\nHost: relay\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            input = new BufferedInputStream(socket.getInputStream());
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                String status = readLine(input);
+                if (!status.startsWith("HTTP/1.1 200 ")) {
+                    error.set(status);
+                    return;
+                }
+                while (!readLine(input).isEmpty()) {
+                    // Response headers
+                }
+                MultipartReader reader = new MultipartReader(input, MultipartEncoder.BOUNDARY,
+                    1024 * 1024);
+                int last = 0;
+                Frame frame;
+                while ((frame = reader.readInto(received)) != null) {
+                    int index = check(frame.getPayloadBuffer());
+                    if (index <= last) {
+                        error.compareAndSet(null, "frame " + index + " after " + last);
+                    }
+                    last = index;
+                    frames.incrementAndGet();
+                }
+            } catch (IOException e) {
+                // Socket closed by the test
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        relay = new RelayServer(port, TOKEN, Collections.<String>emptySet(),
+            new MetricsRegistry());
+        relay.start();
+        awaitListening();
+        publisher = new Thread(() -> {
+            try {
+                for (int index = 1; ; index++) {
+                    camera.publish(payload(index));
+                    Thread.sleep(20);
+                }
+            } catch (InterruptedException e) {
+                // Test over
+            }
+        });
+        publisher.setDaemon(true);
+        publisher.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (pusher != null) {
+            pusher.stop();
+        }
+        publisher.interrupt();
+        relay.stop();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void everyViewerGetsThePushedFrames() throws Exception {
+        List<Viewer> viewers = startViewers();
+        pusher = new StreamPusher("http://127.0.0.1:" + port + RelayServer.PUSH_PATH, TOKEN,
+            camera, new MetricsRegistry());
+        pusher.start();
+
+        awaitFrames(viewers, 20);
+        assertTrue(pusher.isConnected());
+        for (Viewer viewer : viewers) {
+            assertNull(viewer.error.get());
+        }
+    }
+
+    @Test
+    public void pushesWithoutTheTokenAreRefusedAndLeaveTheStreamAlone() throws Exception {
+        List<Viewer> viewers = startViewers();
+        pusher = new StreamPusher("http://127.0.0.1:" + port + RelayServer.PUSH_PATH, TOKEN,
+            camera, new MetricsRegistry());
+        pusher.start();
+        awaitFrames(viewers, 5);
+
+        assertEquals("HTTP/1.1 403 Forbidden", push(null));
+        assertEquals("HTTP/1.1 403 Forbidden", push("Bearer not-the-token"));
+
+        // The phone's stream keeps flowing
+        long[] before = new long[VIEWERS];
+        for (int i = 0; i < VIEWERS; i++) {
+            before[i] = viewers.get(i).frames.get();
+        }
+        Thread.sleep(300);
+        assertTrue(pusher.isConnected());
+        for (int i = 0; i < VIEWERS; i++) {
+            Viewer viewer = viewers.get(i);
+            assertTrue("viewer " + i + " stalled", viewer.frames.get() > before[i]);
+            assertNull(viewer.error.get());
+        }
+    }
+
+    @Test
+    public void loopbackPushesAreAllowedWhenNothingIsConfigured() throws Exception {
+        relay.stop();
+        relay = new RelayServer(port, new MetricsRegistry());
+        relay.start();
+        awaitListening();
+        List<Viewer> viewers = startViewers();
+        pusher = new StreamPusher("http://127.0.0.1:" + port + RelayServer.PUSH_PATH, camera,
+            new MetricsRegistry());
+        pusher.start();
+        awaitFrames(viewers, 5);
+    }
+
+    private List<Viewer> startViewers() throws IOException {
+        List<Viewer> viewers = new ArrayList<>();
+        for (int i = 0; i < VIEWERS; i++) {
+            Viewer viewer = new Viewer();
+            viewer.start();
+            viewers.add(viewer);
+        }
+        return viewers;
+    }
+
+    private static void awaitFrames(List<Viewer> viewers, int frames) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        for (int i = 0; i < viewers.size(); i++) {
+            Viewer viewer = viewers.get(i);
+            while (viewer.frames.get() < frames && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue("viewer " + i + " got " + viewer.frames + " frames, error "
+                + viewer.error.get(), viewer.frames.get() >= frames);
+        }
+    }
+
+    /** Starts a push with the given Authorization header and returns the status line. */
+    private String push(String authorization) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            String head = "POST " + RelayServer.PUSH_PATH + " HTTP/1.1\r\n"
+                + "Content-Type: " + StreamPusher.CONTENT_TYPE + "\r\n"
+                + (authorization != null ? "Authorization: " + authorization + "\r\n" : "")
+                + "Transfer-Encoding: chunked\r\n\r\n";
+            socket.getOutputStream().write(head.getBytes(StandardCharsets.US_ASCII));
+            socket.setSoTimeout(5000);
+            return readLine(new BufferedInputStream(socket.getInputStream()));
+        }
+    }
+
+    private void awaitListening() throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (true) {
+            try (Socket probe = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                assertTrue(probe.isConnected());
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    /** A JPEG-sized payload that starts with its index and is filled from it. */
+    private static byte[] payload(int index) {
+        byte[] payload = new byte[FRAME_BYTES];
+        ByteBuffer.wrap(payload).putInt(index);
+        for (int i = 4; i < payload.length; i++) {
+            payload[i] = (byte) (index + i);
+        }
+        return payload;
+    }
+
+    /** Returns the index of a payload, or -1 if it was corrupted on the way. */
+    private static int check(ByteBuffer payload) {
+        if (payload.remaining() != FRAME_BYTES) {
+            return -1;
+        }
+        int index = payload.getInt(payload.position());
+        for (int i = 4; i < FRAME_BYTES; i++) {
+            if (payload.get(payload.position() + i) != (byte) (index + i)) {
+                return -1;
+            }
+        }
+        return index;
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = input.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("Stream ended");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+}